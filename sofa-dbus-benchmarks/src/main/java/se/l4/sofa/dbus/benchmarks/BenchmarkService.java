@@ -0,0 +1,83 @@
+package se.l4.sofa.dbus.benchmarks;
+
+import java.util.List;
+import java.util.Map;
+
+import se.l4.sofa.dbus.DBusException;
+import se.l4.sofa.dbus.DBusInterface;
+import se.l4.sofa.dbus.Holder;
+import se.l4.sofa.dbus.Name;
+import se.l4.sofa.dbus.Out;
+import se.l4.sofa.dbus.StructPosition;
+
+/**
+ * Interface used by the reflection benchmarks, with one method for each
+ * kind of conversion.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+@Name("se.l4.sofa.dbus.benchmarks.Service")
+public interface BenchmarkService
+	extends DBusInterface
+{
+	class Point
+	{
+		@StructPosition(0)
+		private final int x;
+		@StructPosition(1)
+		private final int y;
+		@StructPosition(2)
+		private final String label;
+		
+		public Point(int x, int y, String label)
+		{
+			this.x = x;
+			this.y = y;
+			this.label = label;
+		}
+		
+		public int getX()
+		{
+			return x;
+		}
+		
+		public int getY()
+		{
+			return y;
+		}
+		
+		public String getLabel()
+		{
+			return label;
+		}
+	}
+	
+	@Name("se.l4.sofa.dbus.benchmarks.Error.Rejected")
+	class RejectedException
+		extends DBusException
+	{
+		public RejectedException(String message)
+		{
+			super(message);
+		}
+	}
+	
+	int add(int a, int b)
+		throws DBusException;
+		
+	List<String> reverse(List<String> values)
+		throws DBusException;
+		
+	Map<String, Integer> count(Map<String, Integer> values)
+		throws DBusException;
+		
+	Point move(Point point, int dx, int dy)
+		throws DBusException;
+		
+	void split(String value, @Out Holder<String> first, @Out Holder<String> second)
+		throws DBusException;
+		
+	void reject(String reason)
+		throws DBusException, RejectedException;
+}
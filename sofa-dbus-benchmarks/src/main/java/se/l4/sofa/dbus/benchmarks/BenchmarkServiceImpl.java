@@ -0,0 +1,62 @@
+package se.l4.sofa.dbus.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import se.l4.sofa.dbus.Holder;
+
+/**
+ * Implementation of {@link BenchmarkService} that does as little work as
+ * possible so that only the overhead of the call is measured.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class BenchmarkServiceImpl
+	implements BenchmarkService
+{
+	public int add(int a, int b)
+	{
+		return a + b;
+	}
+	
+	public List<String> reverse(List<String> values)
+	{
+		List<String> result = new ArrayList<String>(values);
+		Collections.reverse(result);
+		
+		return result;
+	}
+	
+	public Map<String, Integer> count(Map<String, Integer> values)
+	{
+		Map<String, Integer> result = new HashMap<String, Integer>();
+		for(Map.Entry<String, Integer> e : values.entrySet())
+		{
+			result.put(e.getKey(), e.getValue() + 1);
+		}
+		
+		return result;
+	}
+	
+	public Point move(Point point, int dx, int dy)
+	{
+		return new Point(point.getX() + dx, point.getY() + dy, point.getLabel());
+	}
+	
+	public void split(String value, Holder<String> first, Holder<String> second)
+	{
+		int idx = value.indexOf(':');
+		first.setValue(value.substring(0, idx));
+		second.setValue(value.substring(idx + 1));
+	}
+	
+	public void reject(String reason)
+		throws RejectedException
+	{
+		throw new RejectedException(reason);
+	}
+}
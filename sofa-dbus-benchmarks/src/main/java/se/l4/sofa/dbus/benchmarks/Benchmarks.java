@@ -0,0 +1,40 @@
+package se.l4.sofa.dbus.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of the benchmark jar. Takes the same arguments as the JMH
+ * runner but always adds the GC profiler so that the allocation rate is
+ * recorded next to the throughput.
+ *
+ * <pre>
+ * mvn package
+ * java -jar sofa-dbus-benchmarks/target/benchmarks.jar Marshalling -p endian=LITTLE
+ * </pre>
+ *
+ * @author Andreas Holstenson
+ *
+ */
+public class Benchmarks
+{
+	private Benchmarks()
+	{
+	}
+
+	public static void main(String[] args)
+		throws RunnerException, CommandLineOptionException
+	{
+		Options options = new OptionsBuilder()
+			.parent(new CommandLineOptions(args))
+			.addProfiler(GCProfiler.class)
+			.build();
+
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,106 @@
+package se.l4.sofa.dbus.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import se.l4.sofa.dbus.DBusException;
+import se.l4.sofa.dbus.Holder;
+import se.l4.sofa.dbus.LocalConnection;
+import se.l4.sofa.dbus.benchmarks.BenchmarkService.Point;
+import se.l4.sofa.dbus.reflect.DBusProxyHandler;
+import se.l4.sofa.dbus.spi.Endian;
+import se.l4.sofa.dbus.spi.Message;
+
+/**
+ * Dispatch of incoming method calls to an exported object, from decoding
+ * the body of the call to the reply message being handed to the channel.
+ * The calls are recorded from a proxy once during setup.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DispatchBenchmark
+{
+	@Param({ "primitives", "list", "map", "struct", "outParameters", "exception" })
+	public String call;
+	
+	private LoopbackChannel channel;
+	private DBusProxyHandler server;
+	private Message message;
+	
+	@Setup
+	public void setup()
+		throws DBusException
+	{
+		channel = new LoopbackChannel();
+		BenchmarkService service = ProxyBenchmark.createProxy(channel);
+		
+		List<String> list = new ArrayList<String>();
+		Map<String, Integer> map = new HashMap<String, Integer>();
+		for(int i=0; i<16; i++)
+		{
+			list.add("value " + i);
+			map.put("key " + i, i);
+		}
+		
+		if("primitives".equals(call))
+		{
+			service.add(1, 2);
+		}
+		else if("list".equals(call))
+		{
+			service.reverse(list);
+		}
+		else if("map".equals(call))
+		{
+			service.count(map);
+		}
+		else if("struct".equals(call))
+		{
+			service.move(new Point(10, 20, "origin"), 1, 1);
+		}
+		else if("outParameters".equals(call))
+		{
+			service.split("first:second", new Holder<String>(), new Holder<String>());
+		}
+		else if("exception".equals(call))
+		{
+			try
+			{
+				service.reject("rejected");
+			}
+			catch(DBusException e)
+			{
+				// Expected, the call is what we want
+			}
+		}
+		
+		message = channel.getRequest();
+		
+		server = new DBusProxyHandler(new LocalConnection(), Endian.LITTLE, channel);
+		server.export("/service", new BenchmarkServiceImpl());
+	}
+	
+	@Benchmark
+	public Message dispatch()
+	{
+		server.handle(message, channel);
+		
+		return channel.getReply();
+	}
+}
@@ -0,0 +1,91 @@
+package se.l4.sofa.dbus.benchmarks;
+
+import java.util.concurrent.Future;
+
+import se.l4.sofa.dbus.spi.Channel;
+import se.l4.sofa.dbus.spi.Message;
+import se.l4.sofa.dbus.spi.MessageHandler;
+import se.l4.sofa.dbus.spi.SettableFuture;
+
+/**
+ * Channel without a transport that hands calls directly to a handler on the
+ * calling thread. Used to measure conversion and invocation without any
+ * socket, thread hand-off or framing.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class LoopbackChannel
+	implements Channel
+{
+	private MessageHandler target;
+	private Message request;
+	private Message reply;
+	private long serial;
+	
+	public LoopbackChannel()
+	{
+	}
+	
+	/**
+	 * Set the handler that receives messages sent on this channel.
+	 * 
+	 * @param target
+	 */
+	public void setTarget(MessageHandler target)
+	{
+		this.target = target;
+	}
+	
+	/**
+	 * Get the last message that was dispatched to the target.
+	 * 
+	 * @return
+	 */
+	public Message getRequest()
+	{
+		return request;
+	}
+	
+	/**
+	 * Get the last message the target sent back.
+	 * 
+	 * @return
+	 */
+	public Message getReply()
+	{
+		return reply;
+	}
+	
+	public void sendMessage(Message message)
+	{
+		reply = message;
+	}
+	
+	public Message sendBlocking(Message message)
+	{
+		request = message;
+		reply = null;
+		target.handle(message, this);
+		
+		return reply;
+	}
+	
+	public Future<Message> sendAsync(Message message)
+	{
+		SettableFuture<Message> future = new SettableFuture<Message>();
+		future.set(sendBlocking(message));
+		
+		return future;
+	}
+	
+	public long nextSerial()
+	{
+		return ++serial;
+	}
+	
+	public boolean isConnected()
+	{
+		return true;
+	}
+}
@@ -0,0 +1,83 @@
+package se.l4.sofa.dbus.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import se.l4.sofa.dbus.io.DBusInputStream;
+import se.l4.sofa.dbus.io.DBusOutputStream;
+import se.l4.sofa.dbus.spi.Endian;
+import se.l4.sofa.dbus.spi.Marshalling;
+import se.l4.sofa.dbus.spi.Signature;
+
+/**
+ * Serialization and deserialization of message bodies.
+ *
+ * @author Andreas Holstenson
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MarshallingBenchmark
+{
+	@Param({ "s", "ai", "a{sv}", "a(oa{sa{sv}})", "ay" })
+	public String signature;
+
+	@Param({ "LITTLE", "BIG" })
+	public Endian endian;
+
+	private Signature parsed;
+	private Object[] values;
+	private byte[] encoded;
+
+	private ByteArrayOutputStream out;
+	private DBusOutputStream dbusOut;
+
+	@Setup
+	public void setup()
+		throws IOException
+	{
+		parsed = Signature.parse(signature);
+		values = Payloads.create(signature);
+		encoded = Payloads.encode(signature, endian);
+
+		out = new ByteArrayOutputStream(encoded.length);
+		dbusOut = new DBusOutputStream(out);
+		dbusOut.setEndian(endian);
+	}
+
+	@Benchmark
+	public int serialize()
+		throws IOException
+	{
+		// Reuse the buffer so that only the cost of marshalling is measured
+		out.reset();
+		dbusOut.resetBytesWritten();
+
+		Marshalling.serialize(parsed, values, dbusOut);
+
+		return out.size();
+	}
+
+	@Benchmark
+	public List<Object> deserialize()
+		throws IOException
+	{
+		DBusInputStream in = new DBusInputStream(new ByteArrayInputStream(encoded));
+		in.setEndian(endian);
+
+		return Marshalling.deserialize(parsed, in);
+	}
+}
@@ -0,0 +1,109 @@
+package se.l4.sofa.dbus.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import se.l4.sofa.dbus.io.DBusMessenger;
+import se.l4.sofa.dbus.spi.Endian;
+import se.l4.sofa.dbus.spi.Message;
+import se.l4.sofa.dbus.spi.ObjectPath;
+import se.l4.sofa.dbus.spi.Signature;
+
+/**
+ * Writing and reading of complete messages, including the header. A new
+ * message is created for every write as messages keep their encoded frame.
+ *
+ * @author Andreas Holstenson
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessengerBenchmark
+{
+	@Param({ "sa{sv}as", "a(oa{sa{sv}})", "ay" })
+	public String signature;
+
+	@Param({ "LITTLE", "BIG" })
+	public Endian endian;
+
+	private Signature parsed;
+	private byte[] body;
+	private byte[] frame;
+
+	private ByteArrayOutputStream out;
+	private DBusMessenger writer;
+
+	@Setup
+	public void setup()
+		throws IOException
+	{
+		parsed = Signature.parse(signature);
+		body = Payloads.encode(signature, endian);
+		frame = DBusMessenger.encode(createMessage());
+
+		out = new ByteArrayOutputStream(frame.length);
+		writer = new DBusMessenger(null, out);
+	}
+
+	@Benchmark
+	public int write()
+		throws IOException
+	{
+		out.reset();
+		writer.writeMessage(createMessage());
+
+		return out.size();
+	}
+
+	@Benchmark
+	public Message read()
+		throws IOException
+	{
+		return new DBusMessenger(new ByteArrayInputStream(frame), null).readMessage();
+	}
+
+	@Benchmark
+	public List<Object> readAndDecode()
+		throws IOException
+	{
+		return read().getBodyAsObjects();
+	}
+
+	@Benchmark
+	public List<Object> roundTrip()
+		throws IOException
+	{
+		out.reset();
+		writer.writeMessage(createMessage());
+
+		Message read = new DBusMessenger(new ByteArrayInputStream(out.toByteArray()), null)
+			.readMessage();
+
+		return read.getBodyAsObjects();
+	}
+
+	private Message createMessage()
+	{
+		Message msg = new Message(endian, Message.TYPE_SIGNAL, Message.FLAG_NO_REPLY_EXPECTED, 1, body);
+		msg.addField(Message.FIELD_PATH, new ObjectPath("/se/l4/sofa/devices/0"));
+		msg.addField(Message.FIELD_INTERFACE, "se.l4.sofa.Device");
+		msg.addField(Message.FIELD_MEMBER, "Changed");
+		msg.addField(Message.FIELD_SENDER, ":1.42");
+		msg.addField(Message.FIELD_SIGNATURE, parsed);
+
+		return msg;
+	}
+}
@@ -0,0 +1,144 @@
+package se.l4.sofa.dbus.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import se.l4.sofa.dbus.io.DBusOutputStream;
+import se.l4.sofa.dbus.spi.DictEntry;
+import se.l4.sofa.dbus.spi.Endian;
+import se.l4.sofa.dbus.spi.Marshalling;
+import se.l4.sofa.dbus.spi.ObjectPath;
+import se.l4.sofa.dbus.spi.Signature;
+import se.l4.sofa.dbus.spi.Struct;
+import se.l4.sofa.dbus.spi.Variant;
+
+/**
+ * Representative values for the signatures used in the benchmarks, modelled
+ * on what is commonly seen on a bus.
+ *
+ * @author Andreas Holstenson
+ *
+ */
+public class Payloads
+{
+	/** Size of the byte array used for {@code ay} */
+	public static final int BYTES = 64 * 1024;
+
+	private static final Signature STRING = Signature.parse("s");
+	private static final Signature INT32 = Signature.parse("i");
+	private static final Signature BOOLEAN = Signature.parse("b");
+
+	private Payloads()
+	{
+	}
+
+	/**
+	 * Create the values for the given signature.
+	 *
+	 * @param signature
+	 * @return
+	 */
+	public static Object[] create(String signature)
+	{
+		if("s".equals(signature))
+		{
+			return new Object[] { "org.freedesktop.DBus.Properties" };
+		}
+		else if("ai".equals(signature))
+		{
+			int[] values = new int[256];
+			for(int i=0; i<values.length; i++)
+			{
+				values[i] = i * 31;
+			}
+
+			return new Object[] { values };
+		}
+		else if("a{sv}".equals(signature))
+		{
+			return new Object[] { properties(16) };
+		}
+		else if("a(oa{sa{sv}})".equals(signature))
+		{
+			// Shaped like the reply of GetManagedObjects
+			List<Struct> objects = new ArrayList<Struct>();
+			for(int i=0; i<8; i++)
+			{
+				List<DictEntry> interfaces = new ArrayList<DictEntry>();
+				interfaces.add(new DictEntry("se.l4.sofa.Device", properties(4)));
+				interfaces.add(new DictEntry("org.freedesktop.DBus.Properties", properties(4)));
+
+				objects.add(new Struct(new ObjectPath("/se/l4/sofa/devices/" + i), interfaces));
+			}
+
+			return new Object[] { objects };
+		}
+		else if("ay".equals(signature))
+		{
+			byte[] data = new byte[BYTES];
+			for(int i=0; i<data.length; i++)
+			{
+				data[i] = (byte) i;
+			}
+
+			return new Object[] { data };
+		}
+		else if("sa{sv}as".equals(signature))
+		{
+			// Shaped like PropertiesChanged
+			List<String> invalidated = new ArrayList<String>();
+			invalidated.add("Status");
+
+			return new Object[] { "se.l4.sofa.Device", properties(4), invalidated };
+		}
+
+		throw new IllegalArgumentException("No payload for " + signature);
+	}
+
+	/**
+	 * Serialize the values for the given signature.
+	 *
+	 * @param signature
+	 * @param endian
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] encode(String signature, Endian endian)
+		throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DBusOutputStream dbusOut = new DBusOutputStream(out);
+		dbusOut.setEndian(endian);
+
+		Marshalling.serialize(Signature.parse(signature), create(signature), dbusOut);
+
+		return out.toByteArray();
+	}
+
+	private static List<DictEntry> properties(int count)
+	{
+		List<DictEntry> result = new ArrayList<DictEntry>();
+		for(int i=0; i<count; i++)
+		{
+			Variant value;
+			switch(i % 3)
+			{
+				case 0:
+					value = new Variant(STRING, "value " + i);
+					break;
+				case 1:
+					value = new Variant(INT32, i);
+					break;
+				default:
+					value = new Variant(BOOLEAN, i % 2 == 0);
+					break;
+			}
+
+			result.add(new DictEntry("Property" + i, value));
+		}
+
+		return result;
+	}
+}
@@ -0,0 +1,139 @@
+package se.l4.sofa.dbus.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import se.l4.sofa.dbus.DBusException;
+import se.l4.sofa.dbus.Holder;
+import se.l4.sofa.dbus.LocalConnection;
+import se.l4.sofa.dbus.benchmarks.BenchmarkService.Point;
+import se.l4.sofa.dbus.reflect.DBusProxyHandler;
+import se.l4.sofa.dbus.spi.Endian;
+
+/**
+ * Calls through a proxy to an exported object over a {@link LoopbackChannel}.
+ * Every call measures the conversion and marshalling of the arguments, the
+ * dispatch to the exported method and the conversion of the reply. Compare
+ * with {@link DispatchBenchmark} to get the cost of the proxy side alone.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ProxyBenchmark
+{
+	private BenchmarkService service;
+	
+	private List<String> list;
+	private Map<String, Integer> map;
+	private Point point;
+	
+	@Setup
+	public void setup()
+		throws DBusException
+	{
+		service = createProxy();
+		
+		list = new ArrayList<String>();
+		map = new HashMap<String, Integer>();
+		for(int i=0; i<16; i++)
+		{
+			list.add("value " + i);
+			map.put("key " + i, i);
+		}
+		
+		point = new Point(10, 20, "origin");
+	}
+	
+	/**
+	 * Create a proxy for a {@link BenchmarkServiceImpl} exported on a
+	 * loopback channel.
+	 * 
+	 * @return
+	 * @throws DBusException
+	 */
+	public static BenchmarkService createProxy()
+		throws DBusException
+	{
+		return createProxy(new LoopbackChannel());
+	}
+	
+	static BenchmarkService createProxy(LoopbackChannel channel)
+		throws DBusException
+	{
+		LocalConnection connection = new LocalConnection();
+		
+		DBusProxyHandler server = new DBusProxyHandler(connection, Endian.LITTLE, channel);
+		server.export("/service", new BenchmarkServiceImpl());
+		channel.setTarget(server);
+		
+		DBusProxyHandler client = new DBusProxyHandler(connection, Endian.LITTLE, channel);
+		return client.createProxy(connection.getFirstName(), "/service", BenchmarkService.class);
+	}
+	
+	@Benchmark
+	public int primitives()
+		throws DBusException
+	{
+		return service.add(1, 2);
+	}
+	
+	@Benchmark
+	public List<String> list()
+		throws DBusException
+	{
+		return service.reverse(list);
+	}
+	
+	@Benchmark
+	public Map<String, Integer> map()
+		throws DBusException
+	{
+		return service.count(map);
+	}
+	
+	@Benchmark
+	public Point struct()
+		throws DBusException
+	{
+		return service.move(point, 1, 1);
+	}
+	
+	@Benchmark
+	public String outParameters()
+		throws DBusException
+	{
+		Holder<String> first = new Holder<String>();
+		Holder<String> second = new Holder<String>();
+		service.split("first:second", first, second);
+		
+		return second.getValue();
+	}
+	
+	@Benchmark
+	public Exception exception()
+	{
+		try
+		{
+			service.reject("rejected");
+			return null;
+		}
+		catch(DBusException e)
+		{
+			return e;
+		}
+	}
+}
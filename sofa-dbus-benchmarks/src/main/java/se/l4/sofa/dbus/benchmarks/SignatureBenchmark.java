@@ -0,0 +1,34 @@
+package se.l4.sofa.dbus.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import se.l4.sofa.dbus.spi.Signature;
+
+/**
+ * Parsing of signatures, which happens for every message read.
+ *
+ * @author Andreas Holstenson
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SignatureBenchmark
+{
+	@Param({ "s", "ai", "a{sv}", "a(oa{sa{sv}})", "ay", "sa{sv}as" })
+	public String signature;
+
+	@Benchmark
+	public Signature parse()
+	{
+		return Signature.parse(signature);
+	}
+}
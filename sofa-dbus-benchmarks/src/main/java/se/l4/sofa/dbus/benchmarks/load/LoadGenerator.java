@@ -0,0 +1,498 @@
+package se.l4.sofa.dbus.benchmarks.load;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import se.l4.sofa.dbus.BusAddress;
+import se.l4.sofa.dbus.daemon.BusDaemon;
+import se.l4.sofa.dbus.spi.Channel;
+import se.l4.sofa.dbus.spi.Message;
+import se.l4.sofa.dbus.spi.MessageHandler;
+
+/**
+ * Load generator that runs a workload against a bus and reports throughput
+ * and latency percentiles. A {@link BusDaemon} is started locally unless
+ * the address of an existing bus is given.
+ * 
+ * <p>
+ * Workloads:
+ * <ul>
+ * 	<li>{@code call} - every client calls a service that echoes the call</li>
+ * 	<li>{@code signal} - every client emits signals received by the service</li>
+ * 	<li>{@code broadcast} - the service emits signals received by every client</li>
+ * </ul>
+ * For signals every delivery counts as one operation, so a broadcast to
+ * eight clients at 1000 signals per second is reported as 8000 operations
+ * per second.
+ * 
+ * <p>
+ * With {@code --rate} the load is open-loop: operations are scheduled at a
+ * fixed rate and latency is measured from when an operation was meant to
+ * start, so a stall is counted against every operation it delayed instead
+ * of only the one that saw it (no coordinated omission). Without a rate the
+ * load is closed-loop and runs at the highest throughput the clients reach.
+ * Signals have no reply, so in closed-loop senders make a call through the
+ * bus after every {@value #WINDOW} signals to keep the queues bounded.
+ * 
+ * <pre>
+ * java -cp benchmarks.jar se.l4.sofa.dbus.benchmarks.load.LoadGenerator \
+ * 	--transport unix --workload call --clients 8 --rate 20000 --duration 60
+ * </pre>
+ * 
+ * <p>
+ * Options:
+ * <ul>
+ * 	<li>{@code --transport tcp|unix|memory|shm} - transport of the local bus, defaults to tcp</li>
+ * 	<li>{@code --address} - address of an existing bus to use instead</li>
+ * 	<li>{@code --mechanism} - SASL mechanism, defaults to ANONYMOUS</li>
+ * 	<li>{@code --workload call|signal|broadcast} - defaults to call</li>
+ * 	<li>{@code --clients} - number of clients, defaults to 4</li>
+ * 	<li>{@code --lanes} - dispatch threads per connection, defaults to 1</li>
+ * 	<li>{@code --rate} - total operations per second, 0 for closed-loop</li>
+ * 	<li>{@code --payload} - bytes of payload per message, defaults to 64</li>
+ * 	<li>{@code --warmup} - seconds before measuring, defaults to 5</li>
+ * 	<li>{@code --duration} - seconds to measure, defaults to 30</li>
+ * 	<li>{@code --histogram} - file to write the full percentile distribution to</li>
+ * </ul>
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class LoadGenerator
+{
+	public enum Workload
+	{
+		CALL,
+		SIGNAL,
+		BROADCAST
+	}
+	
+	/** Number of signals sent in closed-loop before waiting for the bus */
+	private static final int WINDOW = 64;
+	
+	private String transport = "tcp";
+	private String address;
+	private String mechanism = "ANONYMOUS";
+	private Workload workload = Workload.CALL;
+	private int clients = 4;
+	private int lanes = 1;
+	private int rate = 0;
+	private int payloadSize = 64;
+	private int warmup = 5;
+	private int duration = 30;
+	private String histogramFile;
+	
+	private final Recorder recorder;
+	private final AtomicLong operations;
+	private final AtomicLong errors;
+	
+	private volatile boolean measuring;
+	private volatile boolean running;
+	
+	public LoadGenerator()
+	{
+		recorder = new Recorder(3);
+		operations = new AtomicLong();
+		errors = new AtomicLong();
+	}
+	
+	public static void main(String[] args)
+		throws Exception
+	{
+		LoadGenerator generator = new LoadGenerator();
+		generator.parse(args);
+		generator.run(System.out);
+		
+		System.exit(0);
+	}
+	
+	/**
+	 * Parse options given on the command line.
+	 * 
+	 * @param args
+	 */
+	public void parse(String[] args)
+	{
+		for(int i=0; i<args.length; i+=2)
+		{
+			String key = args[i];
+			if(i + 1 >= args.length)
+			{
+				throw new IllegalArgumentException("No value for " + key);
+			}
+			
+			String value = args[i + 1];
+			if("--transport".equals(key))
+			{
+				transport = value;
+			}
+			else if("--address".equals(key))
+			{
+				address = value;
+			}
+			else if("--mechanism".equals(key))
+			{
+				mechanism = value;
+			}
+			else if("--workload".equals(key))
+			{
+				workload = Workload.valueOf(value.toUpperCase());
+			}
+			else if("--clients".equals(key))
+			{
+				clients = Integer.parseInt(value);
+			}
+			else if("--lanes".equals(key))
+			{
+				lanes = Integer.parseInt(value);
+			}
+			else if("--rate".equals(key))
+			{
+				rate = Integer.parseInt(value);
+			}
+			else if("--payload".equals(key))
+			{
+				payloadSize = Integer.parseInt(value);
+			}
+			else if("--warmup".equals(key))
+			{
+				warmup = Integer.parseInt(value);
+			}
+			else if("--duration".equals(key))
+			{
+				duration = Integer.parseInt(value);
+			}
+			else if("--histogram".equals(key))
+			{
+				histogramFile = value;
+			}
+			else
+			{
+				throw new IllegalArgumentException("Unknown option " + key);
+			}
+		}
+	}
+	
+	/**
+	 * Run the workload and print a report.
+	 * 
+	 * @param out
+	 * @throws Exception
+	 */
+	public void run(PrintStream out)
+		throws Exception
+	{
+		BusDaemon daemon = null;
+		String busAddress = address;
+		if(busAddress == null)
+		{
+			busAddress = localAddress();
+			daemon = new BusDaemon(busAddress);
+			daemon.start();
+			
+			if("tcp".equals(transport))
+			{
+				busAddress = "tcp:host=localhost,port=" + daemon.getLocalPort();
+			}
+		}
+		
+		BusAddress bus = new BusAddress(busAddress);
+		
+		String[] mechanisms = { mechanism };
+		List<LoadPeer> peers = new ArrayList<LoadPeer>();
+		List<Thread> drivers = new ArrayList<Thread>();
+		byte[] payload = new byte[payloadSize];
+		
+		running = true;
+		try
+		{
+			// The service answers calls, receives signals and emits broadcasts
+			LoadPeer server = new LoadPeer(bus, mechanisms, lanes, new MessageHandler()
+			{
+				public boolean handle(Message message, Channel channel)
+				{
+					if(false == LoadPeer.isLoad(message))
+					{
+						return false;
+					}
+					
+					if(message.getType() == Message.TYPE_METHOD_CALL)
+					{
+						channel.sendMessage(LoadPeer.createReply(channel, message));
+					}
+					else if(message.getType() == Message.TYPE_SIGNAL)
+					{
+						received(message);
+					}
+					
+					return true;
+				}
+			});
+			
+			server.connect();
+			peers.add(server);
+			
+			server.requestName(LoadPeer.SERVICE);
+			if(workload == Workload.SIGNAL)
+			{
+				server.addMatch();
+			}
+			
+			for(int i=0; i<clients; i++)
+			{
+				final LoadPeer client = new LoadPeer(bus, mechanisms, lanes, new MessageHandler()
+				{
+					public boolean handle(Message message, Channel channel)
+					{
+						if(message.getType() == Message.TYPE_SIGNAL && LoadPeer.isLoad(message))
+						{
+							received(message);
+							return true;
+						}
+						
+						return false;
+					}
+				});
+				
+				client.connect();
+				if(workload == Workload.BROADCAST)
+				{
+					client.addMatch();
+				}
+				
+				peers.add(client);
+				
+				if(workload != Workload.BROADCAST)
+				{
+					drivers.add(new Driver(client, payload, rate == 0 ? 0 : (long) clients * 1000000000L / rate));
+				}
+			}
+			
+			if(workload == Workload.BROADCAST)
+			{
+				drivers.add(new Driver(server, payload, rate == 0 ? 0 : 1000000000L / rate));
+			}
+			
+			out.println("Running " + workload.name().toLowerCase() + " with " + clients + " clients over " + busAddress
+				+ (rate == 0 ? ", closed-loop" : ", " + rate + " ops/s")
+				+ ", " + lanes + " dispatch lanes, " + payloadSize + " bytes payload");
+				
+			for(Thread t : drivers)
+			{
+				t.start();
+			}
+			
+			Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+			
+			// Start measuring, throwing away what was recorded during warmup
+			recorder.getIntervalHistogram();
+			operations.set(0);
+			errors.set(0);
+			measuring = true;
+			
+			long start = System.nanoTime();
+			Thread.sleep(TimeUnit.SECONDS.toMillis(duration));
+			
+			measuring = false;
+			long elapsed = System.nanoTime() - start;
+			
+			report(out, recorder.getIntervalHistogram(), elapsed);
+		}
+		finally
+		{
+			running = false;
+			for(Thread t : drivers)
+			{
+				t.interrupt();
+				t.join(1000);
+			}
+			
+			for(LoadPeer peer : peers)
+			{
+				try
+				{
+					peer.disconnect();
+				}
+				catch(IOException e)
+				{
+					// Shutting down anyway
+				}
+			}
+			
+			if(daemon != null)
+			{
+				daemon.close();
+			}
+		}
+	}
+	
+	private String localAddress()
+	{
+		String id = "sofa-dbus-load-" + System.nanoTime();
+		if("tcp".equals(transport))
+		{
+			return "tcp:host=localhost,port=0";
+		}
+		else if("unix".equals(transport))
+		{
+			return "unix:path=" + new File(System.getProperty("java.io.tmpdir"), id).getPath();
+		}
+		else if("memory".equals(transport))
+		{
+			return "memory:name=" + id;
+		}
+		else if("shm".equals(transport))
+		{
+			File base = new File("/dev/shm");
+			if(false == base.isDirectory())
+			{
+				base = new File(System.getProperty("java.io.tmpdir"));
+			}
+			
+			return "shm:path=" + new File(base, id).getPath();
+		}
+		
+		throw new IllegalArgumentException("Unknown transport " + transport);
+	}
+	
+	private void received(Message message)
+	{
+		record(System.nanoTime() - LoadPeer.getIntended(message));
+	}
+	
+	private void record(long latency)
+	{
+		if(measuring)
+		{
+			recorder.recordValue(Math.max(0, latency));
+			operations.incrementAndGet();
+		}
+	}
+	
+	private void report(PrintStream out, Histogram histogram, long elapsed)
+		throws IOException
+	{
+		double seconds = elapsed / 1e9;
+		
+		out.println();
+		out.printf("Operations: %d (%d errors) in %.1f s%n", operations.get(), errors.get(), seconds);
+		out.printf("Throughput: %.0f ops/s%n", operations.get() / seconds);
+		out.println();
+		out.println("Latency (us):");
+		
+		double[] percentiles = { 50, 90, 99, 99.9, 99.99 };
+		for(double p : percentiles)
+		{
+			out.printf("  p%-6s %10.1f%n", p, histogram.getValueAtPercentile(p) / 1000.0);
+		}
+		
+		out.printf("  max     %10.1f%n", histogram.getMaxValue() / 1000.0);
+		
+		if(histogramFile != null)
+		{
+			PrintStream file = new PrintStream(new FileOutputStream(histogramFile));
+			try
+			{
+				histogram.outputPercentileDistribution(file, 1000.0);
+			}
+			finally
+			{
+				file.close();
+			}
+			
+			out.println();
+			out.println("Percentile distribution written to " + histogramFile);
+		}
+	}
+	
+	/**
+	 * Thread that performs operations for a single peer, either as fast as
+	 * possible or on a fixed schedule.
+	 */
+	private class Driver
+		extends Thread
+	{
+		private final LoadPeer peer;
+		private final byte[] payload;
+		private final long interval;
+		
+		public Driver(LoadPeer peer, byte[] payload, long interval)
+		{
+			super("load-driver [" + peer.getName() + "]");
+			
+			this.peer = peer;
+			this.payload = payload;
+			this.interval = interval;
+			
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run()
+		{
+			long next = System.nanoTime();
+			long sent = 0;
+			while(running)
+			{
+				long intended;
+				if(interval > 0)
+				{
+					// Open-loop, wait until the operation is due
+					next += interval;
+					long wait = next - System.nanoTime();
+					if(wait > 0)
+					{
+						LockSupport.parkNanos(wait);
+					}
+					
+					intended = next;
+				}
+				else
+				{
+					intended = System.nanoTime();
+				}
+				
+				if(Thread.interrupted())
+				{
+					return;
+				}
+				
+				if(workload == Workload.CALL)
+				{
+					Message reply = peer.getClient().sendBlocking(peer.createCall(intended, payload));
+					if(reply == null || reply.getType() != Message.TYPE_METHOD_RETURN)
+					{
+						if(measuring)
+						{
+							errors.incrementAndGet();
+						}
+					}
+					else
+					{
+						record(System.nanoTime() - intended);
+					}
+				}
+				else
+				{
+					peer.getClient().sendMessage(peer.createSignal(intended, payload));
+					
+					if(interval == 0 && ++sent % WINDOW == 0)
+					{
+						// Wait for the bus to catch up, the reply is not measured
+						peer.getClient().sendBlocking(peer.createCall(intended, payload));
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,244 @@
+package se.l4.sofa.dbus.benchmarks.load;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import se.l4.sofa.dbus.BusAddress;
+import se.l4.sofa.dbus.io.DBusClient;
+import se.l4.sofa.dbus.io.DBusOutputStream;
+import se.l4.sofa.dbus.spi.Channel;
+import se.l4.sofa.dbus.spi.Endian;
+import se.l4.sofa.dbus.spi.HandlerChain;
+import se.l4.sofa.dbus.spi.Marshalling;
+import se.l4.sofa.dbus.spi.Message;
+import se.l4.sofa.dbus.spi.MessageHandler;
+import se.l4.sofa.dbus.spi.ObjectPath;
+import se.l4.sofa.dbus.spi.Signature;
+import se.l4.sofa.dbus.spi.UInt32;
+
+/**
+ * Connection used by the load generator. Messages are built directly so
+ * that the load measures the transport and the bus and not the conversion
+ * done by proxies.
+ * 
+ * <p>
+ * Every message carries the time it was meant to be sent as its first
+ * argument, so receivers can measure latency without any shared state.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class LoadPeer
+{
+	public static final String INTERFACE = "se.l4.sofa.dbus.benchmarks.Load";
+	public static final String PATH = "/se/l4/sofa/dbus/benchmarks/Load";
+	public static final String SERVICE = "se.l4.sofa.dbus.benchmarks.Load";
+	
+	private static final Signature BODY = Signature.parse("xay");
+	private static final Endian ENDIAN = Endian.LITTLE;
+	
+	private final DBusClient client;
+	private String name;
+	
+	public LoadPeer(BusAddress address, String[] mechanisms, int lanes, MessageHandler handler)
+	{
+		HandlerChain chain = new HandlerChain();
+		if(handler != null)
+		{
+			chain.addHandler(handler);
+		}
+		
+		client = new DBusClient(address, chain, mechanisms, null);
+		client.setDispatchLanes(lanes);
+		client.setReconnect(false);
+	}
+	
+	public void connect()
+		throws IOException
+	{
+		client.connect();
+		name = (String) callBus("Hello", null).get(0);
+	}
+	
+	public void disconnect()
+		throws IOException
+	{
+		client.disconnect();
+	}
+	
+	public DBusClient getClient()
+	{
+		return client;
+	}
+	
+	public String getName()
+	{
+		return name;
+	}
+	
+	/**
+	 * Request a well-known name on the bus.
+	 * 
+	 * @param name
+	 * @throws IOException
+	 */
+	public void requestName(String name)
+		throws IOException
+	{
+		callBus("RequestName", "su", name, new UInt32(0));
+	}
+	
+	/**
+	 * Receive signals sent by the load generator.
+	 * 
+	 * @throws IOException
+	 */
+	public void addMatch()
+		throws IOException
+	{
+		callBus("AddMatch", "s", "type='signal',interface='" + INTERFACE + "'");
+	}
+	
+	/**
+	 * Create a call to the service.
+	 * 
+	 * @param intended
+	 * 		time the call was meant to be made, from {@link System#nanoTime()}
+	 * @param payload
+	 * @return
+	 */
+	public Message createCall(long intended, byte[] payload)
+	{
+		Message msg = new Message(ENDIAN, Message.TYPE_METHOD_CALL, 0, client.nextSerial(),
+			encode(intended, payload));
+			
+		msg.addField(Message.FIELD_PATH, new ObjectPath(PATH));
+		msg.addField(Message.FIELD_INTERFACE, INTERFACE);
+		msg.addField(Message.FIELD_MEMBER, "Echo");
+		msg.addField(Message.FIELD_DESTINATION, SERVICE);
+		msg.addField(Message.FIELD_SIGNATURE, BODY);
+		
+		return msg;
+	}
+	
+	/**
+	 * Create a reply to a call, echoing its body.
+	 * 
+	 * @param channel
+	 * 		channel the call was received on
+	 * @param call
+	 * @return
+	 */
+	public static Message createReply(Channel channel, Message call)
+	{
+		Message msg = new Message(ENDIAN, Message.TYPE_METHOD_RETURN, Message.FLAG_NO_REPLY_EXPECTED,
+			channel.nextSerial(), call.getBodyData(), call.getBodyOffset(), call.getBodyLength());
+			
+		msg.addField(Message.FIELD_REPLY_SERIAL, new UInt32(call.getSerial()));
+		msg.addField(Message.FIELD_DESTINATION, call.getField(Message.FIELD_SENDER));
+		msg.addField(Message.FIELD_SIGNATURE, BODY);
+		
+		return msg;
+	}
+	
+	/**
+	 * Create a signal sent to everyone that listens to the load generator.
+	 * 
+	 * @param intended
+	 * @param payload
+	 * @return
+	 */
+	public Message createSignal(long intended, byte[] payload)
+	{
+		Message msg = new Message(ENDIAN, Message.TYPE_SIGNAL, Message.FLAG_NO_REPLY_EXPECTED,
+			client.nextSerial(), encode(intended, payload));
+			
+		msg.addField(Message.FIELD_PATH, new ObjectPath(PATH));
+		msg.addField(Message.FIELD_INTERFACE, INTERFACE);
+		msg.addField(Message.FIELD_MEMBER, "Tick");
+		msg.addField(Message.FIELD_SIGNATURE, BODY);
+		
+		return msg;
+	}
+	
+	/**
+	 * Get the time a message was meant to be sent, read directly from the
+	 * body to avoid decoding the payload.
+	 * 
+	 * @param message
+	 * @return
+	 */
+	public static long getIntended(Message message)
+	{
+		byte[] body = message.getBodyData();
+		int offset = message.getBodyOffset();
+		
+		long result = 0;
+		for(int i=7; i>=0; i--)
+		{
+			result = (result << 8) | (body[offset + i] & 0xff);
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Get if a message belongs to the load generator.
+	 * 
+	 * @param message
+	 * @return
+	 */
+	public static boolean isLoad(Message message)
+	{
+		return INTERFACE.equals(message.getField(Message.FIELD_INTERFACE));
+	}
+	
+	private List<Object> callBus(String member, String signature, Object... values)
+		throws IOException
+	{
+		Signature sig = signature == null ? null : Signature.parse(signature);
+		
+		Message msg = new Message(ENDIAN, Message.TYPE_METHOD_CALL, 0, client.nextSerial(),
+			sig == null ? new byte[0] : serialize(sig, values));
+			
+		msg.addField(Message.FIELD_PATH, new ObjectPath("/org/freedesktop/DBus"));
+		msg.addField(Message.FIELD_INTERFACE, "org.freedesktop.DBus");
+		msg.addField(Message.FIELD_MEMBER, member);
+		msg.addField(Message.FIELD_DESTINATION, "org.freedesktop.DBus");
+		if(sig != null)
+		{
+			msg.addField(Message.FIELD_SIGNATURE, sig);
+		}
+		
+		Message reply = client.sendBlocking(msg);
+		if(reply == null || reply.getType() == Message.TYPE_ERROR)
+		{
+			throw new IOException(member + " failed; " + reply);
+		}
+		
+		return reply.getBodyAsObjects();
+	}
+	
+	private static byte[] encode(long intended, byte[] payload)
+	{
+		return serialize(BODY, intended, payload);
+	}
+	
+	private static byte[] serialize(Signature sig, Object... values)
+	{
+		try
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			DBusOutputStream dbusOut = new DBusOutputStream(out);
+			dbusOut.setEndian(ENDIAN);
+			Marshalling.serialize(sig, values, dbusOut);
+			
+			return out.toByteArray();
+		}
+		catch(IOException e)
+		{
+			throw new IllegalArgumentException("Unable to serialize " + sig + "; " + e.getMessage(), e);
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package se.l4.sofa.dbus.benchmarks.replay;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import se.l4.sofa.dbus.BusAddress;
+import se.l4.sofa.dbus.io.DBusClient;
+import se.l4.sofa.dbus.io.DBusServer;
+import se.l4.sofa.dbus.io.capture.CaptureReplay;
+import se.l4.sofa.dbus.io.capture.PcapRingCapture;
+import se.l4.sofa.dbus.spi.Channel;
+import se.l4.sofa.dbus.spi.ClientListener;
+import se.l4.sofa.dbus.spi.HandlerChain;
+
+/**
+ * Replays a capture written by {@link PcapRingCapture} against a running
+ * server, or against a client by listening and replaying to the first
+ * client that connects, see {@link CaptureReplay}.
+ * 
+ * <pre>
+ * java -cp benchmarks.jar se.l4.sofa.dbus.benchmarks.replay.ReplayRunner \
+ * 	--capture burst.pcap --address tcp:host=localhost,port=4000 --speed 2
+ * </pre>
+ * 
+ * <p>
+ * Options:
+ * <ul>
+ * 	<li>{@code --capture} - capture to replay, required</li>
+ * 	<li>{@code --address} - address to connect to, with {@code listen=true} to wait for a client, required</li>
+ * 	<li>{@code --speed} - speed relative to the capture, 0 for as fast as possible, defaults to 1</li>
+ * 	<li>{@code --replies} - {@code true} to also replay method returns and errors</li>
+ * </ul>
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class ReplayRunner
+{
+	private static final String[] MECHANISMS = { "EXTERNAL", "DBUS_COOKIE_SHA1", "ANONYMOUS" };
+	
+	private String capture;
+	private String address;
+	private double speed = 1;
+	private boolean replies;
+	
+	public static void main(String[] args)
+		throws Exception
+	{
+		ReplayRunner runner = new ReplayRunner();
+		runner.parse(args);
+		runner.run(System.out);
+		
+		System.exit(0);
+	}
+	
+	/**
+	 * Parse options given on the command line.
+	 * 
+	 * @param args
+	 */
+	public void parse(String[] args)
+	{
+		for(int i=0; i<args.length; i+=2)
+		{
+			String key = args[i];
+			if(i + 1 >= args.length)
+			{
+				throw new IllegalArgumentException("No value for " + key);
+			}
+			
+			String value = args[i + 1];
+			if("--capture".equals(key))
+			{
+				capture = value;
+			}
+			else if("--address".equals(key))
+			{
+				address = value;
+			}
+			else if("--speed".equals(key))
+			{
+				speed = Double.parseDouble(value);
+			}
+			else if("--replies".equals(key))
+			{
+				replies = Boolean.parseBoolean(value);
+			}
+			else
+			{
+				throw new IllegalArgumentException("Unknown option " + key);
+			}
+		}
+		
+		if(capture == null || address == null)
+		{
+			throw new IllegalArgumentException("Both --capture and --address are required");
+		}
+	}
+	
+	/**
+	 * Run the replay and print how long it took.
+	 * 
+	 * @param out
+	 * @throws Exception
+	 */
+	public void run(PrintStream out)
+		throws Exception
+	{
+		CaptureReplay replay = new CaptureReplay(new File(capture));
+		replay.setSpeed(speed);
+		replay.setReplies(replies);
+		
+		BusAddress addr = new BusAddress(address);
+		if(addr.getBooleanParameter("listen"))
+		{
+			replayToClient(replay, addr, out);
+		}
+		else
+		{
+			replayToServer(replay, addr, out);
+		}
+	}
+	
+	private void replayToServer(CaptureReplay replay, BusAddress addr, PrintStream out)
+		throws Exception
+	{
+		DBusClient client = new DBusClient(addr, new HandlerChain(), MECHANISMS, null);
+		client.setReconnect(false);
+		client.connect();
+		
+		try
+		{
+			long start = System.nanoTime();
+			int sent = replay.replay(client);
+			
+			// Wait for the writer so the time includes every frame
+			while(client.getSendQueueDepth() > 0)
+			{
+				Thread.sleep(1);
+			}
+			
+			report(out, sent, System.nanoTime() - start);
+		}
+		finally
+		{
+			client.disconnect();
+		}
+	}
+	
+	private void replayToClient(CaptureReplay replay, BusAddress addr, PrintStream out)
+		throws Exception
+	{
+		final BlockingQueue<Channel> connected = new LinkedBlockingQueue<Channel>();
+		DBusServer server = new DBusServer(addr, new HandlerChain(), MECHANISMS, null);
+		server.addClientListener(new ClientListener()
+		{
+			public void clientConnected(Channel client)
+			{
+				connected.add(client);
+			}
+			
+			public void clientDisconnected(Channel client)
+			{
+			}
+		});
+		server.start();
+		
+		try
+		{
+			out.println("Waiting for a client on " + addr);
+			Channel client = connected.take();
+			
+			long start = System.nanoTime();
+			int sent = replay.replay(client);
+			
+			// Wait for the writer so the time includes every frame
+			while(server.getMetrics().getQueueDepth() > 0)
+			{
+				Thread.sleep(1);
+			}
+			
+			report(out, sent, System.nanoTime() - start);
+		}
+		finally
+		{
+			server.close();
+		}
+	}
+	
+	private static void report(PrintStream out, int sent, long nanos)
+	{
+		double seconds = nanos / 1e9;
+		out.printf("Replayed %d messages in %.3f s (%.0f messages/s)%n", 
+			sent, seconds, sent / Math.max(seconds, 1e-9));
+	}
+}
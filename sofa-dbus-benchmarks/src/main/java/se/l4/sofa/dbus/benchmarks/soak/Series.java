@@ -0,0 +1,174 @@
+package se.l4.sofa.dbus.benchmarks.soak;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Values of a single metric sampled during a soak run, together with the
+ * rule used to decide if the metric drifted.
+ * 
+ * <p>
+ * Samples are split into a number of equally sized windows and the median
+ * of each window is compared, using medians makes a single slow sample such
+ * as a GC pause or a reconnect not count. A resource is flagged as growing
+ * if the median never goes down from one window to the next and the last
+ * window is above the first by more than both the relative tolerance and
+ * the absolute floor. A rate is flagged as decaying if the last window is
+ * below the first by more than the tolerance.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class Series
+{
+	public enum Kind
+	{
+		/** Something that should stay flat, such as heap or queue depth */
+		RESOURCE,
+		/** Something that should not go down, such as throughput */
+		RATE
+	}
+	
+	private final String name;
+	private final Kind kind;
+	private final double floor;
+	private final List<Double> values;
+	
+	private double[] medians;
+	private String problem;
+	
+	/**
+	 * Create a new series.
+	 * 
+	 * @param name
+	 * 		name used in reports
+	 * @param kind
+	 * @param floor
+	 * 		smallest absolute growth of a resource that is reported, so that
+	 * 		a queue going from 1 to 3 messages does not count as a leak
+	 */
+	public Series(String name, Kind kind, double floor)
+	{
+		this.name = name;
+		this.kind = kind;
+		this.floor = floor;
+		
+		values = new ArrayList<Double>();
+	}
+	
+	public String getName()
+	{
+		return name;
+	}
+	
+	public void add(double value)
+	{
+		values.add(value);
+	}
+	
+	public int size()
+	{
+		return values.size();
+	}
+	
+	/**
+	 * Check the samples taken after the first {@code skip} for drift.
+	 * 
+	 * @param skip
+	 * 		number of samples to ignore, taken while warming up
+	 * @param windows
+	 * 		number of windows to compare
+	 * @param tolerance
+	 * 		relative change that is accepted, {@code 0.1} for ten percent
+	 * @return
+	 * 		{@code true} if the series drifted, see {@link #getProblem()}
+	 */
+	public boolean analyze(int skip, int windows, double tolerance)
+	{
+		medians = null;
+		problem = null;
+		
+		int count = values.size() - skip;
+		if(windows < 2 || count < windows * 2)
+		{
+			return false;
+		}
+		
+		medians = new double[windows];
+		for(int i=0; i<windows; i++)
+		{
+			int from = skip + (int) ((long) count * i / windows);
+			int to = skip + (int) ((long) count * (i + 1) / windows);
+			
+			medians[i] = median(values.subList(from, to));
+		}
+		
+		double first = medians[0];
+		double last = medians[windows - 1];
+		
+		if(kind == Kind.RESOURCE)
+		{
+			for(int i=1; i<windows; i++)
+			{
+				if(medians[i] < medians[i - 1])
+				{
+					return false;
+				}
+			}
+			
+			double growth = last - first;
+			if(growth > floor && growth > Math.abs(first) * tolerance)
+			{
+				problem = String.format("%s grew from %.0f to %.0f", name, first, last);
+				return true;
+			}
+		}
+		else if(last < first * (1 - tolerance))
+		{
+			problem = String.format("%s decayed from %.0f to %.0f", name, first, last);
+			return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Get the median of every window after {@link #analyze(int, int, double)}
+	 * has been called.
+	 * 
+	 * @return
+	 * 		medians, or {@code null} if there were too few samples
+	 */
+	public double[] getMedians()
+	{
+		return medians;
+	}
+	
+	/**
+	 * Get a description of the drift found by the last analysis.
+	 * 
+	 * @return
+	 * 		description, or {@code null} if no drift was found
+	 */
+	public String getProblem()
+	{
+		return problem;
+	}
+	
+	private static double median(List<Double> window)
+	{
+		double[] sorted = new double[window.size()];
+		for(int i=0; i<sorted.length; i++)
+		{
+			sorted[i] = window.get(i);
+		}
+		
+		Arrays.sort(sorted);
+		
+		int mid = sorted.length / 2;
+		return sorted.length % 2 == 1
+			? sorted[mid]
+			: (sorted[mid - 1] + sorted[mid]) / 2;
+	}
+}
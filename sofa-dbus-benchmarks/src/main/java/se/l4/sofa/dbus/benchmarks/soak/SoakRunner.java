@@ -0,0 +1,838 @@
+package se.l4.sofa.dbus.benchmarks.soak;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import se.l4.sofa.dbus.BusAddress;
+import se.l4.sofa.dbus.DBusException;
+import se.l4.sofa.dbus.Holder;
+import se.l4.sofa.dbus.PeerConnection;
+import se.l4.sofa.dbus.SignalListener;
+import se.l4.sofa.dbus.benchmarks.BenchmarkService;
+import se.l4.sofa.dbus.benchmarks.BenchmarkService.Point;
+import se.l4.sofa.dbus.benchmarks.BenchmarkService.RejectedException;
+import se.l4.sofa.dbus.benchmarks.BenchmarkServiceImpl;
+import se.l4.sofa.dbus.io.DBusClient;
+import se.l4.sofa.dbus.io.DBusServer;
+import se.l4.sofa.dbus.io.OutboundQueue;
+import se.l4.sofa.dbus.spi.Channel;
+import se.l4.sofa.dbus.spi.ClientListener;
+
+/**
+ * Soak test that runs mixed traffic against a local {@link DBusServer} for
+ * a long time and checks that nothing grows or slows down while it runs.
+ * 
+ * <p>
+ * The server is a listening {@link PeerConnection} exporting a
+ * {@link BenchmarkService}. Every client calls each of its methods in turn,
+ * including one that always fails, and emits a {@link Ticker.Tick} signal
+ * that the server receives, while the server broadcasts its own ticks to
+ * every client. At the same time:
+ * <ul>
+ * 	<li>the server drops a random client at a fixed interval, making the
+ * 		client reconnect on its own with {@link DBusClient}</li>
+ * 	<li>a second copy of the service is unexported and exported again, calls
+ * 		made to it while it is gone fail and are counted as misses</li>
+ * </ul>
+ * 
+ * <p>
+ * At every sample the heap is measured after a full GC together with the
+ * number of threads, connected clients, messages queued in every direction,
+ * replies being waited for, throughput and call latency. When the run ends
+ * each metric is checked for drift as described by {@link Series}, wrong
+ * results and clients that did not come back are also reported. The exit
+ * code is {@code 1} if anything was found.
+ * 
+ * <pre>
+ * java -cp benchmarks.jar se.l4.sofa.dbus.benchmarks.soak.SoakRunner \
+ * 	--hours 8 --clients 8 --csv soak.csv
+ * </pre>
+ * 
+ * <p>
+ * Options:
+ * <ul>
+ * 	<li>{@code --transport tcp|unix|memory} - defaults to tcp</li>
+ * 	<li>{@code --clients} - number of clients, defaults to 4</li>
+ * 	<li>{@code --duration} - seconds to run, defaults to 3600</li>
+ * 	<li>{@code --hours} - hours to run, instead of {@code --duration}</li>
+ * 	<li>{@code --warmup} - seconds of samples not analyzed, defaults to 60</li>
+ * 	<li>{@code --sample} - seconds between samples, defaults to 10</li>
+ * 	<li>{@code --rate} - calls and signals per second by each client, 0 for as fast as possible</li>
+ * 	<li>{@code --broadcast} - milliseconds between broadcasts, defaults to 10</li>
+ * 	<li>{@code --reconnect} - seconds between dropped clients, 0 to disable, defaults to 30</li>
+ * 	<li>{@code --churn} - milliseconds between unexport and export, 0 to disable, defaults to 1000</li>
+ * 	<li>{@code --windows} - number of windows compared, defaults to 4</li>
+ * 	<li>{@code --tolerance} - relative drift that is accepted, defaults to 0.1</li>
+ * 	<li>{@code --csv} - file to write every sample to</li>
+ * </ul>
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class SoakRunner
+{
+	private static final String SERVICE_PATH = "/service";
+	private static final String CHURN_PATH = "/churn";
+	private static final String TICKER_PATH = "/ticker";
+	
+	/** Number of different operations done by a client */
+	private static final int OPERATIONS = 8;
+	
+	private String transport = "tcp";
+	private int clients = 4;
+	private long duration = 3600;
+	private int warmup = 60;
+	private int sampleInterval = 10;
+	private int rate = 0;
+	private int broadcastInterval = 10;
+	private int reconnectInterval = 30;
+	private int churnInterval = 1000;
+	private int windows = 4;
+	private double tolerance = 0.1;
+	private String csvFile;
+	
+	private final AtomicLong operations;
+	private final AtomicLong callNanos;
+	private final AtomicLong calls;
+	private final AtomicLong rejected;
+	private final AtomicLong missed;
+	private final AtomicLong failed;
+	private final AtomicLong wrong;
+	private final AtomicLong received;
+	private final AtomicLong reconnects;
+	private final AtomicLong churns;
+	
+	private final List<Series> series;
+	private final Map<String, Series> byName;
+	
+	private volatile boolean running;
+	
+	public SoakRunner()
+	{
+		operations = new AtomicLong();
+		callNanos = new AtomicLong();
+		calls = new AtomicLong();
+		rejected = new AtomicLong();
+		missed = new AtomicLong();
+		failed = new AtomicLong();
+		wrong = new AtomicLong();
+		received = new AtomicLong();
+		reconnects = new AtomicLong();
+		churns = new AtomicLong();
+		
+		series = new ArrayList<Series>();
+		byName = new HashMap<String, Series>();
+		
+		addSeries(new Series("heap", Series.Kind.RESOURCE, 16 * 1024 * 1024));
+		addSeries(new Series("threads", Series.Kind.RESOURCE, 4));
+		addSeries(new Series("server-clients", Series.Kind.RESOURCE, 2));
+		addSeries(new Series("send-queue", Series.Kind.RESOURCE, 256));
+		addSeries(new Series("dispatch-queue", Series.Kind.RESOURCE, 256));
+		addSeries(new Series("server-queue", Series.Kind.RESOURCE, 256));
+		addSeries(new Series("pending-replies", Series.Kind.RESOURCE, 32));
+		addSeries(new Series("call-latency-us", Series.Kind.RESOURCE, 100));
+		addSeries(new Series("throughput", Series.Kind.RATE, 0));
+	}
+	
+	private void addSeries(Series s)
+	{
+		series.add(s);
+		byName.put(s.getName(), s);
+	}
+	
+	public static void main(String[] args)
+		throws Exception
+	{
+		SoakRunner runner = new SoakRunner();
+		runner.parse(args);
+		boolean ok = runner.run(System.out);
+		
+		System.exit(ok ? 0 : 1);
+	}
+	
+	/**
+	 * Parse options given on the command line.
+	 * 
+	 * @param args
+	 */
+	public void parse(String[] args)
+	{
+		for(int i=0; i<args.length; i+=2)
+		{
+			String key = args[i];
+			if(i + 1 >= args.length)
+			{
+				throw new IllegalArgumentException("No value for " + key);
+			}
+			
+			String value = args[i + 1];
+			if("--transport".equals(key))
+			{
+				transport = value;
+			}
+			else if("--clients".equals(key))
+			{
+				clients = Integer.parseInt(value);
+			}
+			else if("--duration".equals(key))
+			{
+				duration = Long.parseLong(value);
+			}
+			else if("--hours".equals(key))
+			{
+				duration = (long) (Double.parseDouble(value) * 3600);
+			}
+			else if("--warmup".equals(key))
+			{
+				warmup = Integer.parseInt(value);
+			}
+			else if("--sample".equals(key))
+			{
+				sampleInterval = Integer.parseInt(value);
+			}
+			else if("--rate".equals(key))
+			{
+				rate = Integer.parseInt(value);
+			}
+			else if("--broadcast".equals(key))
+			{
+				broadcastInterval = Integer.parseInt(value);
+			}
+			else if("--reconnect".equals(key))
+			{
+				reconnectInterval = Integer.parseInt(value);
+			}
+			else if("--churn".equals(key))
+			{
+				churnInterval = Integer.parseInt(value);
+			}
+			else if("--windows".equals(key))
+			{
+				windows = Integer.parseInt(value);
+			}
+			else if("--tolerance".equals(key))
+			{
+				tolerance = Double.parseDouble(value);
+			}
+			else if("--csv".equals(key))
+			{
+				csvFile = value;
+			}
+			else
+			{
+				throw new IllegalArgumentException("Unknown option " + key);
+			}
+		}
+	}
+	
+	/**
+	 * Run the soak test, printing every sample and a final report.
+	 * 
+	 * @param out
+	 * @return
+	 * 		{@code true} if no problems were found
+	 * @throws Exception
+	 */
+	public boolean run(PrintStream out)
+		throws Exception
+	{
+		String[] mechanisms = { "ANONYMOUS" };
+		String id = "sofa-dbus-soak-" + System.nanoTime();
+		
+		final PeerConnection server = new PeerConnection(
+			new BusAddress(listenAddress(id)), mechanisms, null);
+		server.connect();
+		
+		final DBusServer listening = (DBusServer) server.getConnection();
+		listening.addClientListener(new ClientListener()
+		{
+			public void clientConnected(Channel client)
+			{
+				reconnects.incrementAndGet();
+			}
+			
+			public void clientDisconnected(Channel client)
+			{
+			}
+		});
+		
+		List<PeerConnection> peers = new ArrayList<PeerConnection>();
+		List<Thread> threads = new ArrayList<Thread>();
+		PrintStream csv = null;
+		
+		running = true;
+		try
+		{
+			server.export(SERVICE_PATH, new BenchmarkServiceImpl());
+			server.export(CHURN_PATH, new BenchmarkServiceImpl());
+			server.addSignalListener(Ticker.Tick.class, new SignalListener<Ticker.Tick>()
+			{
+				public void signalReceived(Ticker.Tick signal)
+				{
+					received.incrementAndGet();
+				}
+			});
+			
+			BusAddress address = new BusAddress(clientAddress(id, listening));
+			for(int i=0; i<clients; i++)
+			{
+				PeerConnection client = new PeerConnection(address, mechanisms, null);
+				client.connect();
+				client.addSignalListener(Ticker.Tick.class, new SignalListener<Ticker.Tick>()
+				{
+					public void signalReceived(Ticker.Tick signal)
+					{
+						received.incrementAndGet();
+					}
+				});
+				
+				peers.add(client);
+				threads.add(new Worker(i, client));
+			}
+			
+			// Only count connections made after a client was dropped
+			long wait = System.currentTimeMillis() + 5000;
+			while(listening.getClients().size() < clients && System.currentTimeMillis() < wait)
+			{
+				Thread.sleep(10);
+			}
+			
+			reconnects.set(0);
+			
+			if(broadcastInterval > 0)
+			{
+				threads.add(new Broadcaster(server));
+			}
+			
+			if(reconnectInterval > 0)
+			{
+				threads.add(new Dropper(listening));
+			}
+			
+			if(churnInterval > 0)
+			{
+				threads.add(new Churner(server));
+			}
+			
+			out.println("Soaking " + clients + " clients over " + address + " for " + duration + " s"
+				+ ", sampling every " + sampleInterval + " s"
+				+ (rate == 0 ? ", closed-loop" : ", " + rate + " ops/s per client"));
+				
+			if(csvFile != null)
+			{
+				csv = new PrintStream(new FileOutputStream(csvFile));
+				csv.print("seconds");
+				for(Series s : series)
+				{
+					csv.print("," + s.getName());
+				}
+				
+				csv.println(",calls,rejected,missed,failed,wrong,received,reconnects,churns");
+			}
+			
+			for(Thread t : threads)
+			{
+				t.start();
+			}
+			
+			sample(out, csv, peers, listening);
+			
+			out.println();
+			return report(out, peers);
+		}
+		finally
+		{
+			running = false;
+			for(Thread t : threads)
+			{
+				t.interrupt();
+				t.join(1000);
+			}
+			
+			if(csv != null)
+			{
+				csv.close();
+			}
+			
+			for(PeerConnection peer : peers)
+			{
+				((DBusClient) peer.getConnection()).disconnect();
+			}
+			
+			listening.close();
+		}
+	}
+	
+	private String listenAddress(String id)
+	{
+		if("tcp".equals(transport))
+		{
+			return "tcp:host=localhost,port=0,listen=true";
+		}
+		else if("unix".equals(transport))
+		{
+			return "unix:path=" + new File(System.getProperty("java.io.tmpdir"), id).getPath() + ",listen=true";
+		}
+		else if("memory".equals(transport))
+		{
+			return "memory:name=" + id + ",listen=true";
+		}
+		
+		throw new IllegalArgumentException("Unknown transport " + transport);
+	}
+	
+	private String clientAddress(String id, DBusServer listening)
+	{
+		if("tcp".equals(transport))
+		{
+			return "tcp:host=localhost,port=" + listening.getLocalPort();
+		}
+		else if("unix".equals(transport))
+		{
+			return "unix:path=" + new File(System.getProperty("java.io.tmpdir"), id).getPath();
+		}
+		
+		return "memory:name=" + id;
+	}
+	
+	/**
+	 * Take samples until the run is over.
+	 */
+	private void sample(PrintStream out, PrintStream csv, List<PeerConnection> peers, DBusServer listening)
+		throws InterruptedException
+	{
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		
+		long start = System.nanoTime();
+		long end = start + TimeUnit.SECONDS.toNanos(duration);
+		long lastTime = start;
+		long lastOperations = 0;
+		long lastCalls = 0;
+		long lastCallNanos = 0;
+		
+		out.printf("%8s %8s %7s %7s %6s %8s %6s %7s %9s %9s %7s%n",
+			"seconds", "heap-kb", "threads", "clients", "send", "dispatch", "server",
+			"pending", "ops/s", "call-us", "failed");
+			
+		while(System.nanoTime() < end)
+		{
+			Thread.sleep(TimeUnit.SECONDS.toMillis(sampleInterval));
+			
+			long now = System.nanoTime();
+			long ops = operations.get();
+			long callCount = calls.get();
+			long nanos = callNanos.get();
+			
+			double throughput = (ops - lastOperations) / ((now - lastTime) / 1e9);
+			double latency = callCount == lastCalls
+				? 0
+				: (nanos - lastCallNanos) / 1000.0 / (callCount - lastCalls);
+				
+			lastTime = now;
+			lastOperations = ops;
+			lastCalls = callCount;
+			lastCallNanos = nanos;
+			
+			// Collect twice so that objects with finalizers are gone
+			System.gc();
+			System.gc();
+			long heap = memory.getHeapMemoryUsage().getUsed();
+			
+			long sendQueue = 0;
+			long dispatchQueue = 0;
+			long pending = 0;
+			for(PeerConnection peer : peers)
+			{
+				DBusClient client = (DBusClient) peer.getConnection();
+				sendQueue += client.getSendQueueDepth();
+				pending += client.getPendingReplies();
+				for(int depth : client.getDispatchQueueDepths())
+				{
+					dispatchQueue += depth;
+				}
+			}
+			
+			long serverQueue = 0;
+			for(OutboundQueue queue : listening.getWorstClientQueues(Integer.MAX_VALUE))
+			{
+				serverQueue += queue.getMessageCount();
+			}
+			
+			byName.get("heap").add(heap);
+			byName.get("threads").add(threadBean.getThreadCount());
+			byName.get("server-clients").add(listening.getClients().size());
+			byName.get("send-queue").add(sendQueue);
+			byName.get("dispatch-queue").add(dispatchQueue);
+			byName.get("server-queue").add(serverQueue);
+			byName.get("pending-replies").add(pending);
+			byName.get("call-latency-us").add(latency);
+			byName.get("throughput").add(throughput);
+			
+			long seconds = TimeUnit.NANOSECONDS.toSeconds(now - start);
+			out.printf("%8d %8d %7d %7d %6d %8d %6d %7d %9.0f %9.1f %7d%n",
+				seconds, heap / 1024, threadBean.getThreadCount(), listening.getClients().size(),
+				sendQueue, dispatchQueue, serverQueue, pending, throughput, latency, failed.get());
+				
+			if(csv != null)
+			{
+				csv.print(seconds);
+				csv.printf(",%d,%d,%d,%d,%d,%d,%d,%.1f,%.0f",
+					heap, threadBean.getThreadCount(), listening.getClients().size(),
+					sendQueue, dispatchQueue, serverQueue, pending, latency, throughput);
+				csv.printf(",%d,%d,%d,%d,%d,%d,%d,%d%n",
+					calls.get(), rejected.get(), missed.get(), failed.get(), wrong.get(),
+					received.get(), reconnects.get(), churns.get());
+				csv.flush();
+			}
+		}
+	}
+	
+	/**
+	 * Analyze the samples and print a report.
+	 * 
+	 * @return
+	 * 		{@code true} if no problems were found
+	 */
+	private boolean report(PrintStream out, List<PeerConnection> peers)
+	{
+		int skip = sampleInterval <= 0 ? 0 : warmup / sampleInterval;
+		
+		out.printf("Calls: %d, rejected %d, missed %d, failed %d, wrong %d%n",
+			calls.get(), rejected.get(), missed.get(), failed.get(), wrong.get());
+		out.printf("Signals received: %d, reconnects: %d, export cycles: %d%n",
+			received.get(), reconnects.get(), churns.get());
+		out.println();
+		
+		List<String> problems = new ArrayList<String>();
+		for(Series s : series)
+		{
+			if(s.analyze(skip, windows, tolerance))
+			{
+				problems.add(s.getProblem());
+			}
+			
+			double[] medians = s.getMedians();
+			out.printf("  %-16s %s%n", s.getName(),
+				medians == null ? "too few samples" : format(medians));
+		}
+		
+		if(wrong.get() > 0)
+		{
+			problems.add(wrong.get() + " calls returned the wrong result");
+		}
+		
+		int disconnected = 0;
+		for(PeerConnection peer : peers)
+		{
+			if(false == peer.isConnected())
+			{
+				disconnected++;
+			}
+		}
+		
+		if(disconnected > 0)
+		{
+			problems.add(disconnected + " clients did not reconnect");
+		}
+		
+		out.println();
+		if(problems.isEmpty())
+		{
+			out.println("No drift found");
+			return true;
+		}
+		
+		for(String problem : problems)
+		{
+			out.println("PROBLEM: " + problem);
+		}
+		
+		return false;
+	}
+	
+	private static String format(double[] medians)
+	{
+		StringBuilder builder = new StringBuilder();
+		for(double m : medians)
+		{
+			if(builder.length() > 0)
+			{
+				builder.append(" -> ");
+			}
+			
+			builder.append(String.format("%.1f", m));
+		}
+		
+		return builder.toString();
+	}
+	
+	/**
+	 * Thread that drives the traffic of a single client.
+	 */
+	private class Worker
+		extends Thread
+	{
+		private final int index;
+		private final PeerConnection peer;
+		
+		public Worker(int index, PeerConnection peer)
+		{
+			super("soak-worker-" + index);
+			
+			this.index = index;
+			this.peer = peer;
+			
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run()
+		{
+			BenchmarkService service;
+			BenchmarkService churned;
+			try
+			{
+				service = peer.get(null, SERVICE_PATH, BenchmarkService.class);
+				churned = peer.get(null, CHURN_PATH, BenchmarkService.class);
+			}
+			catch(DBusException e)
+			{
+				throw new RuntimeException(e);
+			}
+			
+			String origin = "client-" + index;
+			long interval = rate == 0 ? 0 : 1000000000L / rate;
+			long next = System.nanoTime();
+			long sequence = 0;
+			while(running)
+			{
+				if(interval > 0)
+				{
+					next += interval;
+					long wait = next - System.nanoTime();
+					if(wait > 0)
+					{
+						LockSupport.parkNanos(wait);
+					}
+				}
+				
+				if(Thread.interrupted())
+				{
+					return;
+				}
+				
+				int op = (int) (sequence++ % OPERATIONS);
+				try
+				{
+					if(op == OPERATIONS - 1)
+					{
+						peer.sendSignal(TICKER_PATH, new Ticker.Tick(origin, sequence));
+					}
+					else
+					{
+						long start = System.nanoTime();
+						boolean correct = call(op, op == OPERATIONS - 2 ? churned : service, sequence);
+						callNanos.addAndGet(System.nanoTime() - start);
+						calls.incrementAndGet();
+						
+						if(false == correct)
+						{
+							wrong.incrementAndGet();
+						}
+					}
+				}
+				catch(RejectedException e)
+				{
+					rejected.incrementAndGet();
+				}
+				catch(Exception e)
+				{
+					if(op == OPERATIONS - 2)
+					{
+						// Called while the object was not exported
+						missed.incrementAndGet();
+					}
+					else
+					{
+						// Replies lost when the client was dropped
+						failed.incrementAndGet();
+					}
+				}
+				
+				operations.incrementAndGet();
+			}
+		}
+		
+		private boolean call(int op, BenchmarkService service, long sequence)
+			throws DBusException
+		{
+			int value = (int) sequence;
+			switch(op)
+			{
+				case 0:
+					return service.add(value, 1) == value + 1;
+				case 1:
+					List<String> reversed = service.reverse(Arrays.asList("a", "b", String.valueOf(value)));
+					return reversed.size() == 3 && "a".equals(reversed.get(2));
+				case 2:
+					Map<String, Integer> counts = new HashMap<String, Integer>();
+					counts.put("value", value);
+					return Integer.valueOf(value + 1).equals(service.count(counts).get("value"));
+				case 3:
+					Point moved = service.move(new Point(value, 0, "p"), 1, 2);
+					return moved.getX() == value + 1 && moved.getY() == 2;
+				case 4:
+					Holder<String> first = new Holder<String>();
+					Holder<String> second = new Holder<String>();
+					service.split("soak:" + value, first, second);
+					return "soak".equals(first.getValue()) && String.valueOf(value).equals(second.getValue());
+				case 5:
+					service.reject("soak");
+					return false;
+				default:
+					return service.add(value, 2) == value + 2;
+			}
+		}
+	}
+	
+	/**
+	 * Thread that broadcasts signals from the server to every client.
+	 */
+	private class Broadcaster
+		extends Thread
+	{
+		private final PeerConnection server;
+		
+		public Broadcaster(PeerConnection server)
+		{
+			super("soak-broadcaster");
+			
+			this.server = server;
+			
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run()
+		{
+			long sequence = 0;
+			while(running)
+			{
+				try
+				{
+					server.sendSignal(TICKER_PATH, new Ticker.Tick("server", sequence++));
+					Thread.sleep(broadcastInterval);
+				}
+				catch(InterruptedException e)
+				{
+					return;
+				}
+				catch(DBusException e)
+				{
+					failed.incrementAndGet();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Thread that drops a random client at a fixed interval.
+	 */
+	private class Dropper
+		extends Thread
+	{
+		private final DBusServer listening;
+		private final Random random;
+		
+		public Dropper(DBusServer listening)
+		{
+			super("soak-dropper");
+			
+			this.listening = listening;
+			random = new Random();
+			
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run()
+		{
+			while(running)
+			{
+				try
+				{
+					Thread.sleep(TimeUnit.SECONDS.toMillis(reconnectInterval));
+				}
+				catch(InterruptedException e)
+				{
+					return;
+				}
+				
+				List<Channel> connected = new ArrayList<Channel>(listening.getClients());
+				if(false == connected.isEmpty())
+				{
+					listening.disconnect(connected.get(random.nextInt(connected.size())));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Thread that unexports the second copy of the service and exports it
+	 * again.
+	 */
+	private class Churner
+		extends Thread
+	{
+		private final PeerConnection server;
+		
+		public Churner(PeerConnection server)
+		{
+			super("soak-churner");
+			
+			this.server = server;
+			
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run()
+		{
+			while(running)
+			{
+				try
+				{
+					Thread.sleep(churnInterval);
+					server.unexport(CHURN_PATH);
+					
+					Thread.sleep(Math.max(1, churnInterval / 10));
+					server.export(CHURN_PATH, new BenchmarkServiceImpl());
+					
+					churns.incrementAndGet();
+				}
+				catch(InterruptedException e)
+				{
+					return;
+				}
+				catch(DBusException e)
+				{
+					failed.incrementAndGet();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package se.l4.sofa.dbus.benchmarks.soak;
+
+import se.l4.sofa.dbus.DBusInterface;
+import se.l4.sofa.dbus.DBusSignal;
+import se.l4.sofa.dbus.Name;
+import se.l4.sofa.dbus.StructPosition;
+
+/**
+ * Interface of the signals sent during a soak run, both by clients to the
+ * server and by the server to every client.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+@Name("se.l4.sofa.dbus.benchmarks.Ticker")
+public interface Ticker
+	extends DBusInterface
+{
+	class Tick
+		implements DBusSignal
+	{
+		@StructPosition(0)
+		private final String origin;
+		@StructPosition(1)
+		private final long sequence;
+		
+		public Tick(String origin, long sequence)
+		{
+			this.origin = origin;
+			this.sequence = sequence;
+		}
+		
+		public String getOrigin()
+		{
+			return origin;
+		}
+		
+		public long getSequence()
+		{
+			return sequence;
+		}
+	}
+}
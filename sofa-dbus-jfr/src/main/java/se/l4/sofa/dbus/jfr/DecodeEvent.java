@@ -0,0 +1,21 @@
+package se.l4.sofa.dbus.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Decoding the header or the body of a message.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+@Name("se.l4.sofa.dbus.Decode")
+@Label("Decode")
+@Description("Decoding the header or the body of a message.")
+@Threshold("1 ms")
+class DecodeEvent
+	extends MessageEvent
+{
+}
@@ -0,0 +1,21 @@
+package se.l4.sofa.dbus.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Encoding a frame or the arguments of a method call.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+@Name("se.l4.sofa.dbus.Encode")
+@Label("Encode")
+@Description("Encoding a frame or the arguments of a method call.")
+@Threshold("1 ms")
+class EncodeEvent
+	extends MessageEvent
+{
+}
@@ -0,0 +1,23 @@
+package se.l4.sofa.dbus.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Running the handlers of a received message.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+@Name("se.l4.sofa.dbus.Handler")
+@Label("Handler")
+@Description("Running the handlers of a received message.")
+@Threshold("10 ms")
+@StackTrace(true)
+class HandlerEvent
+	extends MessageEvent
+{
+}
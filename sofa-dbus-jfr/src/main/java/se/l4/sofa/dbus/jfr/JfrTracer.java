@@ -0,0 +1,74 @@
+package se.l4.sofa.dbus.jfr;
+
+import se.l4.sofa.dbus.spi.Trace;
+import se.l4.sofa.dbus.spi.Tracer;
+import se.l4.sofa.dbus.spi.Tracing;
+
+/**
+ * Tracer that emits JDK Flight Recorder events, so that stalls in D-Bus
+ * traffic can be correlated with GC pauses and lock contention in the same
+ * recording.
+ * 
+ * <p>
+ * Install it with {@link #install()} or by starting the JVM with
+ * {@code -Dse.l4.sofa.dbus.tracer=se.l4.sofa.dbus.jfr.JfrTracer}. Events are
+ * named {@code se.l4.sofa.dbus.*} and are only committed if they take longer
+ * than their threshold, 1 ms for reading, writing and marshalling and 10 ms
+ * for queue waits, reply waits and handlers. Thresholds can be changed in
+ * the recording settings like for any other event, such as
+ * {@code jfr configure se.l4.sofa.dbus.Handler#threshold=1ms}. Events that
+ * are disabled in the running recordings are never started.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class JfrTracer
+	implements Tracer
+{
+	/**
+	 * Install a new JFR tracer for all connections.
+	 */
+	public static void install()
+	{
+		Tracing.setTracer(new JfrTracer());
+	}
+	
+	public Trace begin(Trace.Kind kind)
+	{
+		MessageEvent event;
+		switch(kind)
+		{
+			case MESSAGE_READ:
+				event = new MessageReadEvent();
+				break;
+			case MESSAGE_WRITTEN:
+				event = new MessageWrittenEvent();
+				break;
+			case ENCODE:
+				event = new EncodeEvent();
+				break;
+			case DECODE:
+				event = new DecodeEvent();
+				break;
+			case QUEUE_WAIT:
+				event = new QueueWaitEvent();
+				break;
+			case REPLY_WAIT:
+				event = new ReplyWaitEvent();
+				break;
+			case HANDLER:
+				event = new HandlerEvent();
+				break;
+			default:
+				return null;
+		}
+		
+		if(false == event.isEnabled())
+		{
+			return null;
+		}
+		
+		event.begin();
+		return event;
+	}
+}
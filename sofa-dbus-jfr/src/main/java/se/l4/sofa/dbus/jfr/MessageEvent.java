@@ -0,0 +1,110 @@
+package se.l4.sofa.dbus.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+import se.l4.sofa.dbus.spi.Message;
+import se.l4.sofa.dbus.spi.ObjectPath;
+import se.l4.sofa.dbus.spi.Trace;
+
+/**
+ * Base of all events, describes the message an operation was about. The
+ * header fields are only read if the event is committed.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+@Category("D-Bus")
+@StackTrace(false)
+abstract class MessageEvent
+	extends Event
+	implements Trace
+{
+	@Label("Message Type")
+	String messageType;
+	
+	@Label("Serial")
+	long serial;
+	
+	@Label("Reply Serial")
+	long replySerial;
+	
+	@Label("Interface")
+	String interfaceName;
+	
+	@Label("Member")
+	String member;
+	
+	@Label("Path")
+	String path;
+	
+	@Label("Size")
+	@DataAmount
+	int size;
+	
+	@Label("Detail")
+	String detail;
+	
+	public void setSize(int size)
+	{
+		this.size = size;
+	}
+	
+	public void setDetail(String detail)
+	{
+		this.detail = detail;
+	}
+	
+	public void end(Message message)
+	{
+		end();
+		
+		if(false == shouldCommit())
+		{
+			return;
+		}
+		
+		if(message != null)
+		{
+			messageType = typeName(message.getType());
+			serial = message.getSerial();
+			
+			Object reply = message.getField(Message.FIELD_REPLY_SERIAL);
+			if(reply instanceof Number)
+			{
+				replySerial = ((Number) reply).longValue();
+			}
+			
+			interfaceName = (String) message.getField(Message.FIELD_INTERFACE);
+			member = (String) message.getField(Message.FIELD_MEMBER);
+			
+			Object p = message.getField(Message.FIELD_PATH);
+			if(p instanceof ObjectPath)
+			{
+				path = ((ObjectPath) p).getPath();
+			}
+		}
+		
+		commit();
+	}
+	
+	private static String typeName(int type)
+	{
+		switch(type)
+		{
+			case Message.TYPE_METHOD_CALL:
+				return "method_call";
+			case Message.TYPE_METHOD_RETURN:
+				return "method_return";
+			case Message.TYPE_ERROR:
+				return "error";
+			case Message.TYPE_SIGNAL:
+				return "signal";
+			default:
+				return "invalid";
+		}
+	}
+}
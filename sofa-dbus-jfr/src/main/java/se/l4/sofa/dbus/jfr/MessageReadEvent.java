@@ -0,0 +1,21 @@
+package se.l4.sofa.dbus.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Reading and decoding a message, from its first bytes arriving.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+@Name("se.l4.sofa.dbus.MessageRead")
+@Label("Message Read")
+@Description("Reading and decoding a message, from its first bytes arriving.")
+@Threshold("1 ms")
+class MessageReadEvent
+	extends MessageEvent
+{
+}
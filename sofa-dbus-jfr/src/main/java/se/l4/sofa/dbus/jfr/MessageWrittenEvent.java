@@ -0,0 +1,21 @@
+package se.l4.sofa.dbus.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Encoding a message if needed and writing it to a connection.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+@Name("se.l4.sofa.dbus.MessageWritten")
+@Label("Message Written")
+@Description("Encoding a message if needed and writing it to a connection.")
+@Threshold("1 ms")
+class MessageWrittenEvent
+	extends MessageEvent
+{
+}
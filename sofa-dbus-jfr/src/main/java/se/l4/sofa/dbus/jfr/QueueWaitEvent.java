@@ -0,0 +1,21 @@
+package se.l4.sofa.dbus.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * A message waiting in a writer queue before being written.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+@Name("se.l4.sofa.dbus.QueueWait")
+@Label("Queue Wait")
+@Description("A message waiting in a writer queue before being written.")
+@Threshold("10 ms")
+class QueueWaitEvent
+	extends MessageEvent
+{
+}
@@ -0,0 +1,23 @@
+package se.l4.sofa.dbus.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * A thread waiting for the reply to a method call.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+@Name("se.l4.sofa.dbus.ReplyWait")
+@Label("Reply Wait")
+@Description("A thread waiting for the reply to a method call.")
+@Threshold("10 ms")
+@StackTrace(true)
+class ReplyWaitEvent
+	extends MessageEvent
+{
+}
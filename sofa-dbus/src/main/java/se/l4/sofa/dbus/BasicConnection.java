@@ -96,6 +96,23 @@ public class BasicConnection
 		}
 	}
 	
+	/**
+	 * Disconnect from the bus, or stop listening if this connection was
+	 * created with the {@code listen} parameter.
+	 */
+	public void disconnect()
+		throws IOException
+	{
+		if(connection instanceof DBusClient)
+		{
+			((DBusClient) connection).disconnect();
+		}
+		else if(connection instanceof DBusServer)
+		{
+			((DBusServer) connection).close();
+		}
+	}
+	
 	/**
 	 * Get if the connection is still active.
 	 * 
@@ -1,6 +1,6 @@
 package se.l4.sofa.dbus;
 
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
@@ -19,6 +19,13 @@ import java.util.Map;
  * 		{@code tcp:host=localhost,port=4000,listen=true} - connection with TCP,
  * 		acting as a server
  * 	</li>
+ * 	<li>
+ * 		{@code memory:name=test} - connection to a server within the same JVM
+ * 	</li>
+ * 	<li>
+ * 		{@code shm:path=/dev/shm/sofa-dbus} - connection over shared memory
+ * 		to a server on the same host
+ * 	</li>
  * </ul>
  * 
  * @author Andreas Holstenson
@@ -31,7 +38,7 @@ public class BusAddress
 	
 	public BusAddress(String address)
 	{
-		parameters = new HashMap<String, String>();
+		parameters = new LinkedHashMap<String, String>();
 		
 		int idx = address.indexOf(':');
 		if(idx < 0)
@@ -146,4 +153,25 @@ public class BusAddress
 	{
 		return "true".equals(parameters.get(key));
 	}
+	
+	@Override
+	public String toString()
+	{
+		StringBuilder builder = new StringBuilder(protocol);
+		builder.append(':');
+		
+		boolean first = true;
+		for(Map.Entry<String, String> e : parameters.entrySet())
+		{
+			if(false == first)
+			{
+				builder.append(',');
+			}
+			
+			builder.append(e.getKey()).append('=').append(e.getValue());
+			first = false;
+		}
+		
+		return builder.toString();
+	}
 }
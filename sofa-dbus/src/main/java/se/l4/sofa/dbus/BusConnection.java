@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 import javax.security.auth.callback.CallbackHandler;
 
@@ -42,6 +43,8 @@ public class BusConnection
 		
 		names = new HashSet<String>();
 		unmodifiableNames = Collections.unmodifiableSet(names);
+		
+		endian = Endian.BIG;
 	}
 
 	public BusConnection(BusAddress address)
@@ -75,7 +78,7 @@ public class BusConnection
 				
 				dbus = get("org.freedesktop.DBus", "/org/freedesktop/DBus", DBus.class);
 				
-				signals = new SignalMessageHandler(dbus, endian);
+				signals = new SignalMessageHandler(c, endian);
 				addHandler(signals);
 				
 				String name = dbus.hello();
@@ -107,6 +110,18 @@ public class BusConnection
 		}
 	}
 	
+	@Override
+	public void disconnect()
+		throws IOException
+	{
+		super.disconnect();
+		
+		if(signals != null)
+		{
+			signals.close();
+		}
+	}
+	
 	public String getFirstName()
 	{
 		return firstName;
@@ -153,7 +168,18 @@ public class BusConnection
 		return proxying.createProxy(bus, path, dbusInterface);
 	}
 	
-	public <T extends DBusSignal> void addSignalListener(Class<T> signal, SignalListener<T> listener)
+	public <T extends DBusSignal> Future<Void> addSignalListener(Class<T> signal, SignalListener<T> listener)
+		throws DBusException
+	{
+		if(signals == null)
+		{
+			throw new IllegalStateException("Can't add signal listeners without being connected");
+		}
+		
+		return signals.addListener(signal, listener);
+	}
+	
+	public <T extends DBusSignal> Future<Void> addSignalListener(String path, Class<T> signal, SignalListener<T> listener)
 		throws DBusException
 	{
 		if(signals == null)
@@ -161,10 +187,10 @@ public class BusConnection
 			throw new IllegalStateException("Can't add signal listeners without being connected");
 		}
 		
-		signals.addListener(signal, listener);
+		return signals.addListener(path, signal, listener);
 	}
 	
-	public <T extends DBusSignal> void addSignalListener(String path, Class<T> signal, SignalListener<T> listener)
+	public <T extends DBusSignal> Future<Void> addSignalListener(MatchRule rule, Class<T> signal, SignalListener<T> listener)
 		throws DBusException
 	{
 		if(signals == null)
@@ -172,13 +198,31 @@ public class BusConnection
 			throw new IllegalStateException("Can't add signal listeners without being connected");
 		}
 		
-		signals.addListener(path, signal, listener);
+		return signals.addListener(rule, signal, listener);
+	}
+	
+	public <T extends DBusSignal> Future<Void> addSignalListener(MatchRule rule, Class<T> signal, 
+			SignalListener<T> listener, SignalDelivery delivery)
+		throws DBusException
+	{
+		if(signals == null)
+		{
+			throw new IllegalStateException("Can't add signal listeners without being connected");
+		}
+		
+		return signals.addListener(rule, signal, listener, delivery);
 	}
 	
 	public <T extends DBusSignal> void removeSignalListener(Class<T> signal, SignalListener<T> listener) 
 		throws DBusException
 	{
-		signals.removeListener(null, signal, listener);
+		signals.removeListener((MatchRule) null, signal, listener);
+	}
+	
+	public <T extends DBusSignal> void removeSignalListener(MatchRule rule, Class<T> signal, SignalListener<T> listener) 
+		throws DBusException
+	{
+		signals.removeListener(rule, signal, listener);
 	}
 	
 	public void export(String path, DBusInterface object)
@@ -192,6 +236,17 @@ public class BusConnection
 		proxying.export(path, object);
 	}
 	
+	public void unexport(String path)
+		throws DBusException
+	{
+		if(proxying == null)
+		{
+			throw new IllegalStateException("Can't unexport objects without being connected");
+		}
+		
+		proxying.unexport(path);
+	}
+	
 	public void sendSignal(String path, DBusSignal signal) 
 		throws DBusException
 	{
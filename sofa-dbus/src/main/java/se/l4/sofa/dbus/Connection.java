@@ -2,6 +2,7 @@ package se.l4.sofa.dbus;
 
 import java.io.IOException;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 
 public interface Connection
@@ -9,6 +10,11 @@ public interface Connection
 
 	void connect() throws IOException;
 
+	/**
+	 * Disconnect and release the resources of this connection.
+	 */
+	void disconnect() throws IOException;
+
 	/**
 	 * Get the first name of the connection.
 	 * 
@@ -49,19 +55,87 @@ public interface Connection
 	<T extends DBusInterface> T get(String bus, String path, Class<T> dbusInterface)
 		throws DBusException;
 
-	<T extends DBusSignal> void addSignalListener(Class<T> signal, SignalListener<T> listener)
+	<T extends DBusSignal> Future<Void> addSignalListener(Class<T> signal, SignalListener<T> listener)
 		throws DBusException;
 
-	<T extends DBusSignal> void addSignalListener(String path, Class<T> signal,
+	<T extends DBusSignal> Future<Void> addSignalListener(String path, Class<T> signal,
 			SignalListener<T> listener) 
 		throws DBusException;
 
+	/**
+	 * Add a listener for signals that match the given rule. The rule is
+	 * sent to the bus so that only matching signals are delivered to this
+	 * connection. The type, interface and member of the rule are taken
+	 * from the signal class.
+	 * 
+	 * @param rule
+	 * 		rule that signals must match, such as path, sender and argument
+	 * 		constraints
+	 * @param signal
+	 * 		class of signal
+	 * @param listener
+	 * 		listener to invoke when signal is received
+	 * @return
+	 * 		future that completes when the rule is active on the bus
+	 * @throws DBusException
+	 */
+	<T extends DBusSignal> Future<Void> addSignalListener(MatchRule rule, Class<T> signal,
+			SignalListener<T> listener) 
+		throws DBusException;
+
+	/**
+	 * Add a listener for signals that match the given rule, delivering
+	 * signals according to the given options instead of directly on the
+	 * thread that reads from the bus. Use this for listeners that are slow
+	 * or that receive signals at a high rate.
+	 * 
+	 * @param rule
+	 * 		rule that signals must match, {@code null} for all signals of
+	 * 		the given class
+	 * @param signal
+	 * 		class of signal
+	 * @param listener
+	 * 		listener to invoke when signal is received
+	 * @param delivery
+	 * 		executor, queue and conflation options for the listener
+	 * @return
+	 * 		future that completes when the rule is active on the bus
+	 * @throws DBusException
+	 */
+	<T extends DBusSignal> Future<Void> addSignalListener(MatchRule rule, Class<T> signal,
+			SignalListener<T> listener, SignalDelivery delivery) 
+		throws DBusException;
+
 	<T extends DBusSignal> void removeSignalListener(Class<T> signal, SignalListener<T> listener)
 		throws DBusException;
 	
+	/**
+	 * Remove a listener that was added with the given rule.
+	 * 
+	 * @param rule
+	 * 		rule the listener was added with
+	 * @param signal
+	 * 		class of signal
+	 * @param listener
+	 * 		listener to remove
+	 * @throws DBusException
+	 */
+	<T extends DBusSignal> void removeSignalListener(MatchRule rule, Class<T> signal,
+			SignalListener<T> listener)
+		throws DBusException;
+	
 	void export(String path, DBusInterface object)
 		throws DBusException;
 
+	/**
+	 * Stop exporting the object at the given path.
+	 * 
+	 * @param path
+	 * @throws DBusException
+	 */
+	void unexport(String path)
+		throws DBusException;
+		
 	void sendSignal(String path, DBusSignal signal)
 		throws DBusException;
 
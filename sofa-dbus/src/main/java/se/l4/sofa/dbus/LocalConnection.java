@@ -6,6 +6,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Future;
 
 import se.l4.sofa.dbus.reflect.PathImpl;
 import se.l4.sofa.dbus.reflect.SignalMessageHandler;
@@ -57,24 +58,43 @@ public class LocalConnection
 		exported = new ConcurrentHashMap<String, DBusInterface>();
 	}
 	
-	public <T extends DBusSignal> void addSignalListener(Class<T> signal,
+	public <T extends DBusSignal> Future<Void> addSignalListener(Class<T> signal,
 			SignalListener<T> listener) 
 		throws DBusException
 	{
-		signals.addListener(signal, listener);
+		return signals.addListener(signal, listener);
 	}
 
-	public <T extends DBusSignal> void addSignalListener(String path,
+	public <T extends DBusSignal> Future<Void> addSignalListener(String path,
 			Class<T> signal, SignalListener<T> listener)
 		throws DBusException
 	{
-		signals.addListener(path, signal, listener);
+		return signals.addListener(path, signal, listener);
+	}
+
+	public <T extends DBusSignal> Future<Void> addSignalListener(MatchRule rule,
+			Class<T> signal, SignalListener<T> listener)
+		throws DBusException
+	{
+		return signals.addListener(rule, signal, listener);
+	}
+
+	public <T extends DBusSignal> Future<Void> addSignalListener(MatchRule rule,
+			Class<T> signal, SignalListener<T> listener, SignalDelivery delivery)
+		throws DBusException
+	{
+		return signals.addListener(rule, signal, listener, delivery);
 	}
 
 	public void connect()
 		throws IOException
 	{
 	}
+	
+	public void disconnect()
+	{
+		signals.close();
+	}
 
 	public void export(String path, DBusInterface object)
 		throws DBusException
@@ -141,7 +161,14 @@ public class LocalConnection
 			SignalListener<T> listener)
 		throws DBusException
 	{
-		signals.removeListener(null, signal, listener);
+		signals.removeListener((MatchRule) null, signal, listener);
+	}
+	
+	public <T extends DBusSignal> void removeSignalListener(MatchRule rule,
+			Class<T> signal, SignalListener<T> listener)
+		throws DBusException
+	{
+		signals.removeListener(rule, signal, listener);
 	}
 
 	public void sendSignal(String path, DBusSignal signal)
@@ -0,0 +1,512 @@
+package se.l4.sofa.dbus;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Rule describing which messages a connection is interested in. Rules are
+ * sent to the bus via {@link DBus#addMatch(String)} so that the bus can drop
+ * messages that no one is interested in before they are sent to us.
+ * 
+ * <p>
+ * Rules are immutable, every {@code with}-method returns a new rule. Example
+ * of listening for a signal from a specific sender where the first argument
+ * is {@code eth0}:
+ * 
+ * <pre>
+ * MatchRule rule = new MatchRule()
+ * 	.withSender("org.freedesktop.NetworkManager")
+ * 	.withArg(0, "eth0");
+ * 
+ * conn.addSignalListener(rule, DeviceChanged.class, listener);
+ * </pre>
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class MatchRule
+{
+	/** Maximum argument index supported by the DBus specification. */
+	public static final int MAX_ARG = 63;
+	
+	private final String type;
+	private final String sender;
+	private final String dbusInterface;
+	private final String member;
+	private final String path;
+	private final String pathNamespace;
+	private final String destination;
+	private final SortedMap<Integer, String> args;
+	private final SortedMap<Integer, String> argPaths;
+	
+	/**
+	 * Create a new empty rule, that matches every message.
+	 */
+	public MatchRule()
+	{
+		this(null, null, null, null, null, null, null,
+			new TreeMap<Integer, String>(), new TreeMap<Integer, String>());
+	}
+	
+	private MatchRule(String type, String sender, String dbusInterface,
+			String member, String path, String pathNamespace,
+			String destination, SortedMap<Integer, String> args,
+			SortedMap<Integer, String> argPaths)
+	{
+		this.type = type;
+		this.sender = sender;
+		this.dbusInterface = dbusInterface;
+		this.member = member;
+		this.path = path;
+		this.pathNamespace = pathNamespace;
+		this.destination = destination;
+		this.args = args;
+		this.argPaths = argPaths;
+	}
+	
+	/**
+	 * Create a copy of this rule with a new message type, such as
+	 * {@code signal} or {@code method_call}.
+	 * 
+	 * @param type
+	 * @return
+	 */
+	public MatchRule withType(String type)
+	{
+		return new MatchRule(type, sender, dbusInterface, member, path,
+			pathNamespace, destination, args, argPaths);
+	}
+	
+	/**
+	 * Create a copy of this rule that only matches messages from the given
+	 * sender, either a unique or a well-known name.
+	 * 
+	 * @param sender
+	 * @return
+	 */
+	public MatchRule withSender(String sender)
+	{
+		return new MatchRule(type, sender, dbusInterface, member, path,
+			pathNamespace, destination, args, argPaths);
+	}
+	
+	/**
+	 * Create a copy of this rule that only matches the given interface.
+	 * 
+	 * @param dbusInterface
+	 * @return
+	 */
+	public MatchRule withInterface(String dbusInterface)
+	{
+		return new MatchRule(type, sender, dbusInterface, member, path,
+			pathNamespace, destination, args, argPaths);
+	}
+	
+	/**
+	 * Create a copy of this rule that only matches the given member.
+	 * 
+	 * @param member
+	 * @return
+	 */
+	public MatchRule withMember(String member)
+	{
+		return new MatchRule(type, sender, dbusInterface, member, path,
+			pathNamespace, destination, args, argPaths);
+	}
+	
+	/**
+	 * Create a copy of this rule that only matches messages sent from
+	 * exactly the given object path. Can not be combined with
+	 * {@link #withPathNamespace(String)}.
+	 * 
+	 * @param path
+	 * @return
+	 */
+	public MatchRule withPath(String path)
+	{
+		if(path != null && pathNamespace != null)
+		{
+			throw new IllegalArgumentException("path and path_namespace can not be combined");
+		}
+		
+		return new MatchRule(type, sender, dbusInterface, member, path,
+			pathNamespace, destination, args, argPaths);
+	}
+	
+	/**
+	 * Create a copy of this rule that matches messages sent from the given
+	 * object path or any path below it. Can not be combined with
+	 * {@link #withPath(String)}.
+	 * 
+	 * @param pathNamespace
+	 * @return
+	 */
+	public MatchRule withPathNamespace(String pathNamespace)
+	{
+		if(pathNamespace != null && path != null)
+		{
+			throw new IllegalArgumentException("path and path_namespace can not be combined");
+		}
+		
+		return new MatchRule(type, sender, dbusInterface, member, path,
+			pathNamespace, destination, args, argPaths);
+	}
+	
+	/**
+	 * Create a copy of this rule that only matches messages sent to the
+	 * given unique name.
+	 * 
+	 * @param destination
+	 * @return
+	 */
+	public MatchRule withDestination(String destination)
+	{
+		return new MatchRule(type, sender, dbusInterface, member, path,
+			pathNamespace, destination, args, argPaths);
+	}
+	
+	/**
+	 * Create a copy of this rule where the string argument at the given
+	 * index must be equal to {@code value}.
+	 * 
+	 * @param index
+	 * 		index of argument, between 0 and {@value #MAX_ARG}
+	 * @param value
+	 * 		value the argument must have
+	 * @return
+	 */
+	public MatchRule withArg(int index, String value)
+	{
+		return new MatchRule(type, sender, dbusInterface, member, path,
+			pathNamespace, destination, with(args, index, value), argPaths);
+	}
+	
+	/**
+	 * Create a copy of this rule where the string or object path argument
+	 * at the given index must be a path that is equal to {@code value}, a
+	 * parent of it or a child of it. See the DBus specification for
+	 * details.
+	 * 
+	 * @param index
+	 * 		index of argument, between 0 and {@value #MAX_ARG}
+	 * @param value
+	 * 		path to match against
+	 * @return
+	 */
+	public MatchRule withArgPath(int index, String value)
+	{
+		return new MatchRule(type, sender, dbusInterface, member, path,
+			pathNamespace, destination, args, with(argPaths, index, value));
+	}
+	
+	private static SortedMap<Integer, String> with(SortedMap<Integer, String> map,
+			int index, String value)
+	{
+		if(index < 0 || index > MAX_ARG)
+		{
+			throw new IllegalArgumentException("Argument index must be between 0 and " + MAX_ARG + ", was " + index);
+		}
+		
+		SortedMap<Integer, String> result = new TreeMap<Integer, String>(map);
+		if(value == null)
+		{
+			result.remove(index);
+		}
+		else
+		{
+			result.put(index, value);
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Parse a rule in the format used by {@link DBus#addMatch(String)}, such
+	 * as {@code type='signal',interface='org.freedesktop.DBus'}.
+	 * 
+	 * @param rule
+	 * 		string to parse
+	 * @return
+	 * 		parsed rule
+	 * @throws IllegalArgumentException
+	 * 		if the rule is not valid
+	 */
+	public static MatchRule parse(String rule)
+	{
+		MatchRule result = new MatchRule();
+		
+		int i = 0;
+		int n = rule.length();
+		while(i < n)
+		{
+			int eq = rule.indexOf('=', i);
+			if(eq < 0)
+			{
+				throw new IllegalArgumentException("Invalid match rule, expected key=value: " + rule);
+			}
+			
+			String key = rule.substring(i, eq).trim();
+			
+			// Read the value, quoted parts are taken as is and \' outside of
+			// quotes is an apostrophe
+			StringBuilder value = new StringBuilder();
+			boolean quoted = false;
+			i = eq + 1;
+			for(; i<n; i++)
+			{
+				char c = rule.charAt(i);
+				if(c == '\'')
+				{
+					quoted = false == quoted;
+				}
+				else if(quoted)
+				{
+					value.append(c);
+				}
+				else if(c == '\\' && i + 1 < n && rule.charAt(i + 1) == '\'')
+				{
+					value.append('\'');
+					i++;
+				}
+				else if(c == ',')
+				{
+					break;
+				}
+				else
+				{
+					value.append(c);
+				}
+			}
+			
+			if(quoted)
+			{
+				throw new IllegalArgumentException("Invalid match rule, unterminated quote: " + rule);
+			}
+			
+			// Skip the comma
+			i++;
+			
+			result = result.with(key, value.toString());
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Create a copy of this rule with the given key set.
+	 * 
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	private MatchRule with(String key, String value)
+	{
+		if("type".equals(key))
+		{
+			if(false == ("signal".equals(value) || "method_call".equals(value)
+				|| "method_return".equals(value) || "error".equals(value)))
+			{
+				throw new IllegalArgumentException("Invalid message type " + value);
+			}
+			
+			return withType(value);
+		}
+		else if("sender".equals(key))
+		{
+			return withSender(value);
+		}
+		else if("interface".equals(key))
+		{
+			return withInterface(value);
+		}
+		else if("member".equals(key))
+		{
+			return withMember(value);
+		}
+		else if("path".equals(key))
+		{
+			return withPath(value);
+		}
+		else if("path_namespace".equals(key))
+		{
+			return withPathNamespace(value);
+		}
+		else if("destination".equals(key))
+		{
+			return withDestination(value);
+		}
+		else if("eavesdrop".equals(key))
+		{
+			// Eavesdropping is not supported, treat as a normal rule
+			return this;
+		}
+		else if(key.startsWith("arg"))
+		{
+			boolean isPath = key.endsWith("path");
+			String index = key.substring(3, isPath ? key.length() - 4 : key.length());
+			
+			int idx;
+			try
+			{
+				idx = Integer.parseInt(index);
+			}
+			catch(NumberFormatException e)
+			{
+				throw new IllegalArgumentException("Unknown key in match rule: " + key);
+			}
+			
+			return isPath ? withArgPath(idx, value) : withArg(idx, value);
+		}
+		
+		throw new IllegalArgumentException("Unknown key in match rule: " + key);
+	}
+	
+	public String getType()
+	{
+		return type;
+	}
+	
+	public String getSender()
+	{
+		return sender;
+	}
+	
+	public String getInterface()
+	{
+		return dbusInterface;
+	}
+	
+	public String getMember()
+	{
+		return member;
+	}
+	
+	public String getPath()
+	{
+		return path;
+	}
+	
+	public String getPathNamespace()
+	{
+		return pathNamespace;
+	}
+	
+	public String getDestination()
+	{
+		return destination;
+	}
+	
+	/**
+	 * Get the argument constraints of this rule, keyed on argument index.
+	 * 
+	 * @return
+	 */
+	public Map<Integer, String> getArgs()
+	{
+		return Collections.unmodifiableMap(args);
+	}
+	
+	/**
+	 * Get the argument path constraints of this rule, keyed on argument
+	 * index.
+	 * 
+	 * @return
+	 */
+	public Map<Integer, String> getArgPaths()
+	{
+		return Collections.unmodifiableMap(argPaths);
+	}
+	
+	/**
+	 * Get the string representation of this rule, suitable for sending to
+	 * the bus via {@link DBus#addMatch(String)}.
+	 * 
+	 * @return
+	 */
+	public String getRule()
+	{
+		StringBuilder b = new StringBuilder();
+		append(b, "type", type);
+		append(b, "sender", sender);
+		append(b, "interface", dbusInterface);
+		append(b, "member", member);
+		append(b, "path", path);
+		append(b, "path_namespace", pathNamespace);
+		append(b, "destination", destination);
+		
+		for(Map.Entry<Integer, String> e : args.entrySet())
+		{
+			append(b, "arg" + e.getKey(), e.getValue());
+		}
+		
+		for(Map.Entry<Integer, String> e : argPaths.entrySet())
+		{
+			append(b, "arg" + e.getKey() + "path", e.getValue());
+		}
+		
+		return b.toString();
+	}
+	
+	/**
+	 * Append a key and a quoted value to the rule. Apostrophes can not be
+	 * escaped within quotes so they are written as {@code '\''}.
+	 * 
+	 * @param b
+	 * @param key
+	 * @param value
+	 */
+	private static void append(StringBuilder b, String key, String value)
+	{
+		if(value == null)
+		{
+			return;
+		}
+		
+		if(b.length() > 0)
+		{
+			b.append(',');
+		}
+		
+		b.append(key).append("='");
+		for(int i=0, n=value.length(); i<n; i++)
+		{
+			char c = value.charAt(i);
+			if(c == '\'')
+			{
+				b.append("'\\''");
+			}
+			else
+			{
+				b.append(c);
+			}
+		}
+		b.append('\'');
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "MatchRule[" + getRule() + "]";
+	}
+	
+	@Override
+	public int hashCode()
+	{
+		return getRule().hashCode();
+	}
+	
+	@Override
+	public boolean equals(Object obj)
+	{
+		if(this == obj)
+			return true;
+		if(obj == null)
+			return false;
+		if(getClass() != obj.getClass())
+			return false;
+		MatchRule other = (MatchRule) obj;
+		return getRule().equals(other.getRule());
+	}
+}
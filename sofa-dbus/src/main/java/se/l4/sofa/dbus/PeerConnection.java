@@ -0,0 +1,248 @@
+package se.l4.sofa.dbus;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+import javax.security.auth.callback.CallbackHandler;
+
+import se.l4.sofa.dbus.reflect.DBusProxyHandler;
+import se.l4.sofa.dbus.reflect.PathImpl;
+import se.l4.sofa.dbus.reflect.SignalMessageHandler;
+import se.l4.sofa.dbus.spi.Channel;
+import se.l4.sofa.dbus.spi.Endian;
+
+/**
+ * Connection directly between two peers without a bus in between. One side
+ * listens by using an address with {@code listen=true} and the other side
+ * connects to it. Proxies, exported objects and signals work as they do for
+ * a {@link BusConnection}, but there is no {@code Hello}, no names and no
+ * match rules.
+ * 
+ * <pre>
+ * // In the first process
+ * PeerConnection server = new PeerConnection("tcp:host=localhost,port=4000,listen=true");
+ * server.connect();
+ * server.export("/service", new ServiceImpl());
+ * 
+ * // In the second process
+ * PeerConnection client = new PeerConnection("tcp:host=localhost,port=4000");
+ * client.connect();
+ * Service service = client.get(null, "/service", Service.class);
+ * </pre>
+ * 
+ * <p>
+ * The listening side can only call methods on the other peer when a single
+ * peer is connected, signals it sends are delivered to every connected peer.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class PeerConnection
+	extends BasicConnection
+	implements Connection
+{
+	private SignalMessageHandler signals;
+	private DBusProxyHandler proxying;
+	
+	private Endian endian;
+	
+	public PeerConnection(BusAddress address, String[] saslMechanisms,
+			CallbackHandler authentication)
+	{
+		super(address, saslMechanisms, authentication);
+		
+		endian = Endian.BIG;
+	}
+	
+	public PeerConnection(BusAddress address)
+	{
+		this(address, DEFAULT_MECHANISMS, null);
+	}
+	
+	public PeerConnection(String address)
+	{
+		this(new BusAddress(address));
+	}
+	
+	public void setEndian(Endian endian)
+	{
+		this.endian = endian;
+	}
+	
+	@Override
+	public void connect()
+		throws IOException
+	{
+		super.connect();
+		
+		Channel c = getConnection();
+		if(c != null)
+		{
+			proxying = new DBusProxyHandler(this, endian, c);
+			addHandler(proxying);
+			
+			// Signals are always delivered by the peer, no match rules are sent
+			signals = new SignalMessageHandler((DBus) null, endian);
+			signals.setInvocationMetrics(proxying.getInvocationMetrics());
+			addHandler(signals);
+		}
+	}
+	
+	@Override
+	public void disconnect()
+		throws IOException
+	{
+		super.disconnect();
+		
+		if(signals != null)
+		{
+			signals.close();
+		}
+	}
+	
+	/**
+	 * Peers do not have names, always returns {@code null}.
+	 */
+	public String getFirstName()
+	{
+		return null;
+	}
+	
+	/**
+	 * Peers do not have names, always returns an empty set.
+	 */
+	public Set<String> getNames()
+	{
+		return Collections.emptySet();
+	}
+	
+	/**
+	 * There is no bus when connected to a peer, always returns {@code null}.
+	 */
+	public DBus getDBus()
+	{
+		return null;
+	}
+	
+	public Path get(String bus, String path)
+	{
+		return new PathImpl(this, bus, path);
+	}
+	
+	public Path getLocal(String path)
+	{
+		return get(null, path);
+	}
+	
+	/**
+	 * Get a proxy for an object exported by the peer. The bus name is only
+	 * sent as the destination of calls if it is not {@code null}.
+	 */
+	public <T extends DBusInterface> T get(String bus, String path, Class<T> dbusInterface)
+		throws DBusException
+	{
+		if(proxying == null)
+		{
+			throw new IllegalStateException("Can't create proxies without being connected");
+		}
+		
+		if(path.endsWith("/") && path.length() != 1)
+		{
+			path = path.substring(0, path.length() - 1);
+		}
+		
+		return proxying.createProxy(bus, path, dbusInterface);
+	}
+	
+	public <T extends DBusSignal> Future<Void> addSignalListener(Class<T> signal, SignalListener<T> listener)
+		throws DBusException
+	{
+		if(signals == null)
+		{
+			throw new IllegalStateException("Can't add signal listeners without being connected");
+		}
+		
+		return signals.addListener(signal, listener);
+	}
+	
+	public <T extends DBusSignal> Future<Void> addSignalListener(String path, Class<T> signal, SignalListener<T> listener)
+		throws DBusException
+	{
+		if(signals == null)
+		{
+			throw new IllegalStateException("Can't add signal listeners without being connected");
+		}
+		
+		return signals.addListener(path, signal, listener);
+	}
+	
+	public <T extends DBusSignal> Future<Void> addSignalListener(MatchRule rule, Class<T> signal, SignalListener<T> listener)
+		throws DBusException
+	{
+		if(signals == null)
+		{
+			throw new IllegalStateException("Can't add signal listeners without being connected");
+		}
+		
+		return signals.addListener(rule, signal, listener);
+	}
+	
+	public <T extends DBusSignal> Future<Void> addSignalListener(MatchRule rule, Class<T> signal, 
+			SignalListener<T> listener, SignalDelivery delivery)
+		throws DBusException
+	{
+		if(signals == null)
+		{
+			throw new IllegalStateException("Can't add signal listeners without being connected");
+		}
+		
+		return signals.addListener(rule, signal, listener, delivery);
+	}
+	
+	public <T extends DBusSignal> void removeSignalListener(Class<T> signal, SignalListener<T> listener) 
+		throws DBusException
+	{
+		signals.removeListener((MatchRule) null, signal, listener);
+	}
+	
+	public <T extends DBusSignal> void removeSignalListener(MatchRule rule, Class<T> signal, SignalListener<T> listener) 
+		throws DBusException
+	{
+		signals.removeListener(rule, signal, listener);
+	}
+	
+	public void export(String path, DBusInterface object)
+		throws DBusException
+	{
+		if(proxying == null)
+		{
+			throw new IllegalStateException("Can't export objects without being connected");
+		}
+		
+		proxying.export(path, object);
+	}
+	
+	public void unexport(String path)
+		throws DBusException
+	{
+		if(proxying == null)
+		{
+			throw new IllegalStateException("Can't unexport objects without being connected");
+		}
+		
+		proxying.unexport(path);
+	}
+	
+	public void sendSignal(String path, DBusSignal signal) 
+		throws DBusException
+	{
+		if(signals == null)
+		{
+			throw new IllegalStateException("Can't send signal without being connected");
+		}
+		
+		signals.send(getConnection(), path, signal);
+	}
+}
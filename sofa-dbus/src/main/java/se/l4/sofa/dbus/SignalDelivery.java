@@ -0,0 +1,492 @@
+package se.l4.sofa.dbus;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Options for how signals are delivered to a listener. By default listeners
+ * are invoked directly on the thread that reads messages from the bus, which
+ * means that a slow listener delays every other listener. A listener that is
+ * registered with a {@code SignalDelivery} instead gets its own queue that is
+ * drained on a separate executor.
+ * 
+ * <p>
+ * The queue can be bounded, in which case signals are dropped according to
+ * the {@link Overflow} policy when it is full. In conflating mode only the
+ * latest signal for every path and member is kept, so that bursts of signals
+ * collapse into a single delivery.
+ * 
+ * <pre>
+ * SignalDelivery delivery = new SignalDelivery()
+ * 	.setQueueSize(100, Overflow.DROP_OLDEST)
+ * 	.setConflating(true);
+ * 
+ * conn.addSignalListener(rule, Telemetry.class, listener, delivery);
+ * </pre>
+ * 
+ * <p>
+ * Instances keep statistics about the queue and should not be shared
+ * between listeners. Call {@link #close()} when the listener has been
+ * removed to stop the thread of a delivery created without an executor.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class SignalDelivery
+{
+	private static final Logger logger = LoggerFactory.getLogger(SignalDelivery.class);
+	
+	/** Number of signals to deliver before giving the executor back. */
+	private static final int BATCH_SIZE = 64;
+	
+	private static final AtomicInteger threadCount = new AtomicInteger();
+	
+	/**
+	 * Policy for when a bounded queue is full.
+	 */
+	public enum Overflow
+	{
+		/** Drop the oldest queued signal to make room for the new one. */
+		DROP_OLDEST,
+		/** Drop the signal that is being delivered. */
+		DROP_NEWEST
+	}
+	
+	private final Executor executor;
+	private final boolean ownsExecutor;
+	private final LinkedList<Pending> queue;
+	private final Map<Key, Pending> latest;
+	private final Runnable drainer;
+	
+	private int queueSize;
+	private Overflow overflow;
+	private boolean conflating;
+	
+	private boolean scheduled;
+	private boolean closed;
+	
+	private long delivered;
+	private long dropped;
+	private long conflated;
+	private int maxQueueDepth;
+	
+	/**
+	 * Deliver signals on a dedicated thread. The thread is stopped by
+	 * {@link #close()}.
+	 */
+	public SignalDelivery()
+	{
+		this(Executors.newSingleThreadExecutor(new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "dbus-signal-delivery-" + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		}), true);
+	}
+	
+	/**
+	 * Deliver signals using the given executor. Signals are always delivered
+	 * one at a time and in order, even if the executor has several threads.
+	 * 
+	 * @param executor
+	 */
+	public SignalDelivery(Executor executor)
+	{
+		this(executor, false);
+	}
+	
+	private SignalDelivery(Executor executor, boolean ownsExecutor)
+	{
+		if(executor == null)
+		{
+			throw new IllegalArgumentException("An executor is required");
+		}
+		
+		this.executor = executor;
+		this.ownsExecutor = ownsExecutor;
+		
+		queue = new LinkedList<Pending>();
+		latest = new HashMap<Key, Pending>();
+		queueSize = Integer.MAX_VALUE;
+		overflow = Overflow.DROP_OLDEST;
+		
+		drainer = new Runnable()
+		{
+			public void run()
+			{
+				drain();
+			}
+		};
+	}
+	
+	/**
+	 * Bound the queue of this delivery.
+	 * 
+	 * @param size
+	 * 		maximum number of queued signals
+	 * @param overflow
+	 * 		what to do when the queue is full
+	 * @return
+	 * 		this instance
+	 */
+	public SignalDelivery setQueueSize(int size, Overflow overflow)
+	{
+		if(size < 1)
+		{
+			throw new IllegalArgumentException("Queue size must be at least 1");
+		}
+		
+		synchronized(queue)
+		{
+			this.queueSize = size;
+			this.overflow = overflow;
+		}
+		
+		return this;
+	}
+	
+	/**
+	 * Set if this delivery should only keep the latest signal for every
+	 * path and member.
+	 * 
+	 * @param conflating
+	 * @return
+	 * 		this instance
+	 */
+	public SignalDelivery setConflating(boolean conflating)
+	{
+		synchronized(queue)
+		{
+			this.conflating = conflating;
+		}
+		
+		return this;
+	}
+	
+	public Executor getExecutor()
+	{
+		return executor;
+	}
+	
+	/**
+	 * Stop the thread of this delivery if it was created without an
+	 * executor, signals that have not been delivered are dropped. An
+	 * executor given to the constructor is left running.
+	 */
+	public void close()
+	{
+		synchronized(queue)
+		{
+			closed = true;
+			dropped += queue.size();
+			queue.clear();
+			latest.clear();
+		}
+		
+		if(ownsExecutor)
+		{
+			((ExecutorService) executor).shutdown();
+		}
+	}
+	
+	public int getQueueSize()
+	{
+		synchronized(queue)
+		{
+			return queueSize;
+		}
+	}
+	
+	public Overflow getOverflow()
+	{
+		synchronized(queue)
+		{
+			return overflow;
+		}
+	}
+	
+	public boolean isConflating()
+	{
+		synchronized(queue)
+		{
+			return conflating;
+		}
+	}
+	
+	/**
+	 * Get the number of signals currently waiting to be delivered.
+	 * 
+	 * @return
+	 */
+	public int getQueueDepth()
+	{
+		synchronized(queue)
+		{
+			return queue.size();
+		}
+	}
+	
+	/**
+	 * Get the highest number of signals that have been waiting at the same
+	 * time.
+	 * 
+	 * @return
+	 */
+	public int getMaxQueueDepth()
+	{
+		synchronized(queue)
+		{
+			return maxQueueDepth;
+		}
+	}
+	
+	/**
+	 * Get the number of signals that have been delivered to the listener.
+	 * 
+	 * @return
+	 */
+	public long getDelivered()
+	{
+		synchronized(queue)
+		{
+			return delivered;
+		}
+	}
+	
+	/**
+	 * Get the number of signals that have been dropped because the queue
+	 * was full.
+	 * 
+	 * @return
+	 */
+	public long getDropped()
+	{
+		synchronized(queue)
+		{
+			return dropped;
+		}
+	}
+	
+	/**
+	 * Get the number of signals that were replaced by a newer signal before
+	 * they were delivered.
+	 * 
+	 * @return
+	 */
+	public long getConflated()
+	{
+		synchronized(queue)
+		{
+			return conflated;
+		}
+	}
+	
+	/**
+	 * Queue a signal for delivery to the given listener. Called by the
+	 * connection when a matching signal is received.
+	 * 
+	 * @param listener
+	 * 		listener to deliver to
+	 * @param path
+	 * 		path the signal was sent from
+	 * @param signal
+	 * 		the signal
+	 */
+	public void deliver(SignalListener<?> listener, String path, DBusSignal signal)
+	{
+		boolean schedule = false;
+		
+		synchronized(queue)
+		{
+			if(closed)
+			{
+				dropped++;
+				return;
+			}
+			
+			Key key = null;
+			if(conflating)
+			{
+				key = new Key(listener, path, signal.getClass());
+				
+				Pending existing = latest.get(key);
+				if(existing != null)
+				{
+					existing.signal = signal;
+					conflated++;
+					return;
+				}
+			}
+			
+			if(queue.size() >= queueSize)
+			{
+				dropped++;
+				
+				if(overflow == Overflow.DROP_NEWEST)
+				{
+					return;
+				}
+				
+				Pending oldest = queue.removeFirst();
+				if(oldest.key != null)
+				{
+					latest.remove(oldest.key);
+				}
+			}
+			
+			Pending pending = new Pending(listener, key, signal);
+			queue.add(pending);
+			
+			if(key != null)
+			{
+				latest.put(key, pending);
+			}
+			
+			if(queue.size() > maxQueueDepth)
+			{
+				maxQueueDepth = queue.size();
+			}
+			
+			if(false == scheduled)
+			{
+				scheduled = true;
+				schedule = true;
+			}
+		}
+		
+		if(schedule)
+		{
+			schedule();
+		}
+	}
+	
+	private void schedule()
+	{
+		try
+		{
+			executor.execute(drainer);
+		}
+		catch(RejectedExecutionException e)
+		{
+			logger.error("Unable to deliver signals, executor rejected task; " + e.getMessage(), e);
+			
+			synchronized(queue)
+			{
+				scheduled = false;
+			}
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void drain()
+	{
+		for(int i=0; i<BATCH_SIZE; i++)
+		{
+			Pending pending;
+			synchronized(queue)
+			{
+				pending = queue.poll();
+				if(pending == null)
+				{
+					scheduled = false;
+					return;
+				}
+				
+				if(pending.key != null)
+				{
+					latest.remove(pending.key);
+				}
+				
+				delivered++;
+			}
+			
+			try
+			{
+				((SignalListener<DBusSignal>) pending.listener).signalReceived(pending.signal);
+			}
+			catch(RuntimeException e)
+			{
+				logger.error("Signal listener failed; " + e.getMessage(), e);
+			}
+		}
+		
+		// Let other tasks on the executor run before continuing
+		schedule();
+	}
+	
+	/** Signal waiting to be delivered. */
+	private static class Pending
+	{
+		private final SignalListener<?> listener;
+		private final Key key;
+		private DBusSignal signal;
+		
+		public Pending(SignalListener<?> listener, Key key, DBusSignal signal)
+		{
+			this.listener = listener;
+			this.key = key;
+			this.signal = signal;
+		}
+	}
+	
+	/** Key used for conflation, the path and member of a signal. */
+	private static class Key
+	{
+		private final SignalListener<?> listener;
+		private final String path;
+		private final Class<?> member;
+		
+		public Key(SignalListener<?> listener, String path, Class<?> member)
+		{
+			this.listener = listener;
+			this.path = path;
+			this.member = member;
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + System.identityHashCode(listener);
+			result = prime * result + ((path == null) ? 0 : path.hashCode());
+			result = prime * result + member.hashCode();
+			return result;
+		}
+		
+		@Override
+		public boolean equals(Object obj)
+		{
+			if(this == obj)
+				return true;
+			if(obj == null)
+				return false;
+			if(getClass() != obj.getClass())
+				return false;
+			Key other = (Key) obj;
+			if(listener != other.listener)
+				return false;
+			if(path == null)
+			{
+				if(other.path != null)
+					return false;
+			}
+			else if(!path.equals(other.path))
+				return false;
+			return member == other.member;
+		}
+	}
+}
@@ -0,0 +1,963 @@
+package se.l4.sofa.dbus.daemon;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.security.auth.callback.CallbackHandler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.l4.sofa.dbus.BusAddress;
+import se.l4.sofa.dbus.MatchRule;
+import se.l4.sofa.dbus.io.DBusMessenger;
+import se.l4.sofa.dbus.io.DBusOutputStream;
+import se.l4.sofa.dbus.io.DBusServer;
+import se.l4.sofa.dbus.io.sasl.Anonymous;
+import se.l4.sofa.dbus.io.sasl.DBusSaslProvider;
+import se.l4.sofa.dbus.match.MatchRuleIndex;
+import se.l4.sofa.dbus.match.MatchTarget;
+import se.l4.sofa.dbus.match.NameResolver;
+import se.l4.sofa.dbus.spi.Channel;
+import se.l4.sofa.dbus.spi.ClientListener;
+import se.l4.sofa.dbus.spi.Endian;
+import se.l4.sofa.dbus.spi.HandlerChain;
+import se.l4.sofa.dbus.spi.Marshalling;
+import se.l4.sofa.dbus.spi.Message;
+import se.l4.sofa.dbus.spi.MessageHandler;
+import se.l4.sofa.dbus.spi.ObjectPath;
+import se.l4.sofa.dbus.spi.Signature;
+import se.l4.sofa.dbus.spi.UInt32;
+
+/**
+ * Message bus that runs within the JVM. Clients connect to it as they would
+ * to the session or system bus and the daemon implements the
+ * {@code org.freedesktop.DBus} interface, allocating unique names, keeping
+ * track of well-known names and routing messages between clients.
+ * 
+ * <p>
+ * Only the header of a message is decoded when routing, the body is
+ * forwarded as is. The body is only decoded when a client has added a match
+ * rule with argument constraints.
+ * 
+ * <pre>
+ * BusDaemon daemon = new BusDaemon("tcp:host=localhost,port=4000");
+ * daemon.start();
+ * </pre>
+ * 
+ * <p>
+ * By default clients are authenticated with {@code ANONYMOUS} which means
+ * that anyone that can reach the address can connect.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class BusDaemon
+	implements MessageHandler, ClientListener, NameResolver
+{
+	static
+	{
+		// Register our own SASL mechanisms
+		Security.addProvider(new DBusSaslProvider());
+	}
+	
+	private static final Logger logger = LoggerFactory.getLogger(BusDaemon.class);
+	
+	public static final String BUS_NAME = "org.freedesktop.DBus";
+	public static final String BUS_PATH = "/org/freedesktop/DBus";
+	
+	private static final String PEER_INTERFACE = "org.freedesktop.DBus.Peer";
+	private static final String ERROR_PREFIX = "org.freedesktop.DBus.Error.";
+	
+	private static final String[] DEFAULT_MECHANISMS = { Anonymous.NAME };
+	
+	/* Flags and results for RequestName and ReleaseName */
+	private static final int FLAG_ALLOW_REPLACEMENT = 0x1;
+	private static final int FLAG_REPLACE_EXISTING = 0x2;
+	private static final int FLAG_DO_NOT_QUEUE = 0x4;
+	
+	private static final int REQUEST_PRIMARY_OWNER = 1;
+	private static final int REQUEST_IN_QUEUE = 2;
+	private static final int REQUEST_EXISTS = 3;
+	private static final int REQUEST_ALREADY_OWNER = 4;
+	
+	private static final int RELEASE_RELEASED = 1;
+	private static final int RELEASE_NON_EXISTENT = 2;
+	private static final int RELEASE_NOT_OWNER = 3;
+	
+	private static final int START_ALREADY_RUNNING = 2;
+	
+	private final DBusServer server;
+	private final Endian endian;
+	
+	private final AtomicLong nextId;
+	private final AtomicLong serial;
+	
+	private final ConcurrentMap<Channel, Peer> peers;
+	private final ConcurrentMap<String, Peer> uniqueNames;
+	
+	/** Well-known names and their queues, guarded by this */
+	private final Map<String, Name> names;
+	/** Current primary owner of every well-known name */
+	private final ConcurrentMap<String, String> owners;
+	
+	/** Match rules of all peers, used for routing broadcasts */
+	private final MatchRuleIndex<Peer> rules;
+	
+	public BusDaemon(String address)
+	{
+		this(new BusAddress(address));
+	}
+	
+	public BusDaemon(BusAddress address)
+	{
+		this(address, DEFAULT_MECHANISMS, null);
+	}
+	
+	/**
+	 * Create a new daemon that will listen on the given address.
+	 * 
+	 * @param address
+	 * 		address to listen on
+	 * @param mechanisms
+	 * 		SASL mechanisms that clients can use to authenticate
+	 * @param authentication
+	 * 		callback for the SASL mechanisms
+	 */
+	public BusDaemon(BusAddress address, String[] mechanisms, CallbackHandler authentication)
+	{
+		HandlerChain chain = new HandlerChain();
+		chain.addHandler(this);
+		
+		server = new DBusServer(address, chain, mechanisms, authentication);
+		server.addClientListener(this);
+		
+		endian = Endian.BIG;
+		
+		nextId = new AtomicLong(1);
+		serial = new AtomicLong(1);
+		
+		peers = new ConcurrentHashMap<Channel, Peer>();
+		uniqueNames = new ConcurrentHashMap<String, Peer>();
+		names = new HashMap<String, Name>();
+		owners = new ConcurrentHashMap<String, String>();
+		rules = new MatchRuleIndex<Peer>();
+	}
+	
+	/**
+	 * Start accepting clients.
+	 * 
+	 * @throws IOException
+	 * 		if unable to bind to the address
+	 */
+	public void start()
+		throws IOException
+	{
+		server.start();
+	}
+	
+	/**
+	 * Stop the daemon, disconnecting all clients.
+	 * 
+	 * @throws IOException
+	 */
+	public void close()
+		throws IOException
+	{
+		server.close();
+	}
+	
+	/**
+	 * Get the port the daemon is listening on.
+	 * 
+	 * @return
+	 */
+	public int getLocalPort()
+	{
+		return server.getLocalPort();
+	}
+	
+	/**
+	 * Get the server that clients connect to.
+	 * 
+	 * @return
+	 */
+	public DBusServer getServer()
+	{
+		return server;
+	}
+	
+	/**
+	 * Get the names currently on the bus, both unique and well-known.
+	 * 
+	 * @return
+	 */
+	public List<String> getNames()
+	{
+		List<String> result = new ArrayList<String>();
+		result.add(BUS_NAME);
+		result.addAll(uniqueNames.keySet());
+		result.addAll(owners.keySet());
+		
+		return result;
+	}
+	
+	/**
+	 * Get the unique name of the owner of the given name.
+	 * 
+	 * @param name
+	 * @return
+	 * 		unique name of owner, or {@code null} if the name has no owner
+	 */
+	public String getNameOwner(String name)
+	{
+		if(BUS_NAME.equals(name))
+		{
+			return BUS_NAME;
+		}
+		else if(name.startsWith(":"))
+		{
+			return uniqueNames.containsKey(name) ? name : null;
+		}
+		
+		return owners.get(name);
+	}
+	
+	/**
+	 * Get the well-known names a connection owns or is queued for.
+	 * 
+	 * @param uniqueName
+	 * @return
+	 */
+	synchronized List<String> getNamesOf(String uniqueName)
+	{
+		Peer peer = uniqueNames.get(uniqueName);
+		return peer == null 
+			? new ArrayList<String>()
+			: new ArrayList<String>(peer.names);
+	}
+	
+	public void clientConnected(Channel client)
+	{
+		peers.put(client, new Peer(client));
+	}
+	
+	public void clientDisconnected(Channel client)
+	{
+		Peer peer = peers.remove(client);
+		if(peer == null || peer.name == null)
+		{
+			return;
+		}
+		
+		for(MatchRule rule : peer.rules)
+		{
+			rules.remove(rule, peer);
+		}
+		
+		List<Message> events = new ArrayList<Message>();
+		synchronized(this)
+		{
+			for(String name : new ArrayList<String>(peer.names))
+			{
+				release(peer, name, events);
+			}
+			
+			uniqueNames.remove(peer.name);
+			events.add(nameOwnerChanged(peer.name, peer.name, ""));
+		}
+		
+		logger.debug("{} disconnected", peer.name);
+		
+		dispatch(events);
+	}
+	
+	public boolean handle(Message message, Channel channel)
+	{
+		Peer peer = peers.get(channel);
+		if(peer == null)
+		{
+			return true;
+		}
+		
+		String destination = (String) message.getField(Message.FIELD_DESTINATION);
+		
+		if(peer.name == null)
+		{
+			// The first message must be a call to Hello
+			if(BUS_NAME.equals(destination) && "Hello".equals(message.getField(Message.FIELD_MEMBER)))
+			{
+				hello(peer, message);
+			}
+			else
+			{
+				sendError(peer, message, "AccessDenied",
+					"Client tried to send a message other than Hello without being registered");
+			}
+			
+			return true;
+		}
+		
+		message.setField(Message.FIELD_SENDER, peer.name);
+		
+		if(BUS_NAME.equals(destination))
+		{
+			handleBusCall(peer, message);
+		}
+		else if(destination == null)
+		{
+			broadcast(message);
+		}
+		else
+		{
+			Peer target = resolve(destination);
+			if(target != null)
+			{
+				target.channel.sendMessage(message);
+			}
+			else if(message.getType() == Message.TYPE_METHOD_CALL)
+			{
+				sendError(peer, message, "ServiceUnknown",
+					"The name " + destination + " was not provided by any .service files");
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Find the peer that currently owns the given name.
+	 * 
+	 * @param name
+	 * @return
+	 */
+	private Peer resolve(String name)
+	{
+		String unique = name.startsWith(":") ? name : owners.get(name);
+		return unique == null ? null : uniqueNames.get(unique);
+	}
+	
+	/**
+	 * Send a message to every peer with a matching rule.
+	 * 
+	 * @param message
+	 */
+	private void broadcast(Message message)
+	{
+		Set<Peer> targets = new LinkedHashSet<Peer>();
+		rules.find(new MatchTarget(message), this, targets);
+		
+		if(targets.size() > 1)
+		{
+			try
+			{
+				// Encode once here instead of in the first writer to get to it
+				DBusMessenger.encode(message);
+			}
+			catch(IOException e)
+			{
+				logger.warn("Unable to encode " + message + "; " + e.getMessage());
+				return;
+			}
+		}
+		
+		for(Peer peer : targets)
+		{
+			peer.channel.sendMessage(message);
+		}
+	}
+	
+	/**
+	 * Send messages generated by the daemon, messages with a destination
+	 * are sent directly and others are broadcast.
+	 * 
+	 * @param events
+	 */
+	private void dispatch(List<Message> events)
+	{
+		for(Message msg : events)
+		{
+			String destination = (String) msg.getField(Message.FIELD_DESTINATION);
+			if(destination == null)
+			{
+				broadcast(msg);
+			}
+			else
+			{
+				Peer peer = uniqueNames.get(destination);
+				if(peer != null)
+				{
+					peer.channel.sendMessage(msg);
+				}
+			}
+		}
+	}
+	
+	private void hello(Peer peer, Message message)
+	{
+		String name;
+		synchronized(this)
+		{
+			if(peer.name != null)
+			{
+				sendError(peer, message, "Failed", "Already handled an Hello message");
+				return;
+			}
+			
+			name = ":1." + nextId.getAndIncrement();
+			peer.name = name;
+			uniqueNames.put(name, peer);
+		}
+		
+		logger.debug("Assigned {} to new client", name);
+		
+		sendReply(peer, message, "s", name);
+		
+		List<Message> events = new ArrayList<Message>();
+		events.add(nameAcquired(name, name));
+		events.add(nameOwnerChanged(name, "", name));
+		dispatch(events);
+	}
+	
+	/**
+	 * Handle a method call to the bus itself.
+	 * 
+	 * @param peer
+	 * @param message
+	 */
+	private void handleBusCall(Peer peer, Message message)
+	{
+		if(message.getType() != Message.TYPE_METHOD_CALL)
+		{
+			return;
+		}
+		
+		String member = (String) message.getField(Message.FIELD_MEMBER);
+		String dbusInterface = (String) message.getField(Message.FIELD_INTERFACE);
+		
+		List<Object> args;
+		try
+		{
+			args = message.getBodyAsObjects();
+		}
+		catch(IOException e)
+		{
+			sendError(peer, message, "InvalidArgs", "Unable to read arguments; " + e.getMessage());
+			return;
+		}
+		
+		if(PEER_INTERFACE.equals(dbusInterface) || "Ping".equals(member))
+		{
+			if("Ping".equals(member))
+			{
+				sendReply(peer, message, null);
+			}
+			else
+			{
+				sendError(peer, message, "UnknownMethod", "Unknown method " + member);
+			}
+			
+			return;
+		}
+		
+		if("Hello".equals(member))
+		{
+			hello(peer, message);
+		}
+		else if("RequestName".equals(member) && hasArgs(args, String.class, Number.class))
+		{
+			requestName(peer, message, (String) args.get(0), ((Number) args.get(1)).intValue());
+		}
+		else if("ReleaseName".equals(member) && hasArgs(args, String.class))
+		{
+			releaseName(peer, message, (String) args.get(0));
+		}
+		else if("AddMatch".equals(member) && hasArgs(args, String.class))
+		{
+			try
+			{
+				MatchRule rule = MatchRule.parse((String) args.get(0));
+				rules.add(rule, peer);
+				peer.rules.add(rule);
+				sendReply(peer, message, null);
+			}
+			catch(IllegalArgumentException e)
+			{
+				sendError(peer, message, "MatchRuleInvalid", e.getMessage());
+			}
+		}
+		else if("RemoveMatch".equals(member) && hasArgs(args, String.class))
+		{
+			try
+			{
+				MatchRule rule = MatchRule.parse((String) args.get(0));
+				if(peer.rules.remove(rule))
+				{
+					rules.remove(rule, peer);
+					sendReply(peer, message, null);
+				}
+				else
+				{
+					sendError(peer, message, "MatchRuleNotFound", "The given match rule wasn't found");
+				}
+			}
+			catch(IllegalArgumentException e)
+			{
+				sendError(peer, message, "MatchRuleInvalid", e.getMessage());
+			}
+		}
+		else if("GetNameOwner".equals(member) && hasArgs(args, String.class))
+		{
+			String owner = getNameOwner((String) args.get(0));
+			if(owner == null)
+			{
+				sendError(peer, message, "NameHasNoOwner",
+					"Could not get owner of name '" + args.get(0) + "': no such name");
+			}
+			else
+			{
+				sendReply(peer, message, "s", owner);
+			}
+		}
+		else if("NameHasOwner".equals(member) && hasArgs(args, String.class))
+		{
+			sendReply(peer, message, "b", getNameOwner((String) args.get(0)) != null);
+		}
+		else if("ListNames".equals(member))
+		{
+			sendReply(peer, message, "as", getNames());
+		}
+		else if("ListActivatableNames".equals(member))
+		{
+			sendReply(peer, message, "as", new ArrayList<String>());
+		}
+		else if("StartServiceByName".equals(member) && hasArgs(args, String.class, Number.class))
+		{
+			if(getNameOwner((String) args.get(0)) != null)
+			{
+				sendReply(peer, message, "u", new UInt32(START_ALREADY_RUNNING));
+			}
+			else
+			{
+				sendError(peer, message, "ServiceUnknown",
+					"The name " + args.get(0) + " was not provided by any .service files");
+			}
+		}
+		else if("GetId".equals(member))
+		{
+			sendReply(peer, message, "s", server.getUuid());
+		}
+		else
+		{
+			sendError(peer, message, "UnknownMethod", "Unknown method " + member);
+		}
+	}
+	
+	private static boolean hasArgs(List<Object> args, Class<?>... types)
+	{
+		if(args.size() != types.length)
+		{
+			return false;
+		}
+		
+		for(int i=0; i<types.length; i++)
+		{
+			if(false == types[i].isInstance(args.get(i)))
+			{
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	private void requestName(Peer peer, Message message, String name, int flags)
+	{
+		if(name.startsWith(":") || BUS_NAME.equals(name) || name.length() == 0)
+		{
+			sendError(peer, message, "InvalidArgs", "Cannot acquire the name " + name);
+			return;
+		}
+		
+		List<Message> events = new ArrayList<Message>();
+		int result;
+		synchronized(this)
+		{
+			Name n = names.get(name);
+			if(n == null)
+			{
+				n = new Name(name);
+				names.put(name, n);
+				n.queue.add(new Owner(peer, flags));
+				peer.names.add(name);
+				owners.put(name, peer.name);
+				
+				events.add(nameOwnerChanged(name, "", peer.name));
+				events.add(nameAcquired(peer.name, name));
+				
+				result = REQUEST_PRIMARY_OWNER;
+			}
+			else
+			{
+				Owner primary = n.queue.getFirst();
+				if(primary.peer == peer)
+				{
+					primary.flags = flags;
+					result = REQUEST_ALREADY_OWNER;
+				}
+				else if((flags & FLAG_REPLACE_EXISTING) != 0
+					&& (primary.flags & FLAG_ALLOW_REPLACEMENT) != 0)
+				{
+					if(false == n.remove(peer))
+					{
+						// Peers that were queued already have the name
+						peer.names.add(name);
+					}
+					
+					n.queue.removeFirst();
+					n.queue.addFirst(new Owner(peer, flags));
+					
+					if((primary.flags & FLAG_DO_NOT_QUEUE) == 0)
+					{
+						// Previous owner waits for the name to be released
+						n.queue.add(1, primary);
+					}
+					else
+					{
+						primary.peer.names.remove(name);
+					}
+					
+					owners.put(name, peer.name);
+					
+					events.add(nameOwnerChanged(name, primary.peer.name, peer.name));
+					events.add(nameLost(primary.peer.name, name));
+					events.add(nameAcquired(peer.name, name));
+					
+					result = REQUEST_PRIMARY_OWNER;
+				}
+				else if((flags & FLAG_DO_NOT_QUEUE) != 0)
+				{
+					if(n.remove(peer))
+					{
+						peer.names.remove(name);
+					}
+					
+					result = REQUEST_EXISTS;
+				}
+				else
+				{
+					Owner queued = n.get(peer);
+					if(queued == null)
+					{
+						n.queue.add(new Owner(peer, flags));
+						peer.names.add(name);
+					}
+					else
+					{
+						queued.flags = flags;
+					}
+					
+					result = REQUEST_IN_QUEUE;
+				}
+			}
+		}
+		
+		sendReply(peer, message, "u", new UInt32(result));
+		dispatch(events);
+	}
+	
+	private void releaseName(Peer peer, Message message, String name)
+	{
+		List<Message> events = new ArrayList<Message>();
+		int result;
+		synchronized(this)
+		{
+			Name n = names.get(name);
+			if(n == null)
+			{
+				result = RELEASE_NON_EXISTENT;
+			}
+			else if(n.get(peer) == null)
+			{
+				result = RELEASE_NOT_OWNER;
+			}
+			else
+			{
+				release(peer, name, events);
+				result = RELEASE_RELEASED;
+			}
+		}
+		
+		sendReply(peer, message, "u", new UInt32(result));
+		dispatch(events);
+	}
+	
+	/**
+	 * Remove the peer from the queue of the given name, passing ownership
+	 * on to the next peer in the queue if needed. Must be called while
+	 * holding the lock.
+	 * 
+	 * @param peer
+	 * @param name
+	 * @param events
+	 */
+	private void release(Peer peer, String name, List<Message> events)
+	{
+		Name n = names.get(name);
+		peer.names.remove(name);
+		if(n == null)
+		{
+			return;
+		}
+		
+		boolean wasPrimary = n.queue.getFirst().peer == peer;
+		n.remove(peer);
+		
+		if(false == wasPrimary)
+		{
+			return;
+		}
+		
+		events.add(nameLost(peer.name, name));
+		
+		if(n.queue.isEmpty())
+		{
+			names.remove(name);
+			owners.remove(name);
+			
+			events.add(nameOwnerChanged(name, peer.name, ""));
+		}
+		else
+		{
+			Peer next = n.queue.getFirst().peer;
+			owners.put(name, next.name);
+			
+			events.add(nameOwnerChanged(name, peer.name, next.name));
+			events.add(nameAcquired(next.name, name));
+		}
+	}
+	
+	private Message nameOwnerChanged(String name, String oldOwner, String newOwner)
+	{
+		return createSignal(null, "NameOwnerChanged", "sss", name, oldOwner, newOwner);
+	}
+	
+	private Message nameAcquired(String destination, String name)
+	{
+		return createSignal(destination, "NameAcquired", "s", name);
+	}
+	
+	private Message nameLost(String destination, String name)
+	{
+		return createSignal(destination, "NameLost", "s", name);
+	}
+	
+	private Message createSignal(String destination, String member, String signature, Object... values)
+	{
+		Signature sig = Signature.parse(signature);
+		
+		Message msg = new Message(
+			endian,
+			Message.TYPE_SIGNAL,
+			Message.FLAG_NO_REPLY_EXPECTED,
+			serial.getAndIncrement(),
+			serialize(sig, values)
+		);
+		
+		msg.addField(Message.FIELD_PATH, new ObjectPath(BUS_PATH));
+		msg.addField(Message.FIELD_INTERFACE, BUS_NAME);
+		msg.addField(Message.FIELD_MEMBER, member);
+		msg.addField(Message.FIELD_SENDER, BUS_NAME);
+		msg.addField(Message.FIELD_SIGNATURE, sig);
+		
+		if(destination != null)
+		{
+			msg.addField(Message.FIELD_DESTINATION, destination);
+		}
+		
+		return msg;
+	}
+	
+	/**
+	 * Reply to a method call.
+	 * 
+	 * @param peer
+	 * 		peer that made the call
+	 * @param call
+	 * 		the method call
+	 * @param signature
+	 * 		signature of reply, {@code null} if no values
+	 * @param values
+	 */
+	private void sendReply(Peer peer, Message call, String signature, Object... values)
+	{
+		if((call.getFlags() & Message.FLAG_NO_REPLY_EXPECTED) != 0)
+		{
+			return;
+		}
+		
+		Signature sig = signature == null ? null : Signature.parse(signature);
+		
+		Message msg = new Message(
+			endian,
+			Message.TYPE_METHOD_RETURN,
+			Message.FLAG_NO_REPLY_EXPECTED,
+			serial.getAndIncrement(),
+			sig == null ? new byte[0] : serialize(sig, values)
+		);
+		
+		msg.addField(Message.FIELD_REPLY_SERIAL, new UInt32(call.getSerial()));
+		msg.addField(Message.FIELD_SENDER, BUS_NAME);
+		
+		if(peer.name != null)
+		{
+			msg.addField(Message.FIELD_DESTINATION, peer.name);
+		}
+		
+		if(sig != null)
+		{
+			msg.addField(Message.FIELD_SIGNATURE, sig);
+		}
+		
+		peer.channel.sendMessage(msg);
+	}
+	
+	private void sendError(Peer peer, Message call, String error, String text)
+	{
+		if((call.getFlags() & Message.FLAG_NO_REPLY_EXPECTED) != 0)
+		{
+			return;
+		}
+		
+		Signature sig = Signature.parse("s");
+		
+		Message msg = new Message(
+			endian,
+			Message.TYPE_ERROR,
+			Message.FLAG_NO_REPLY_EXPECTED,
+			serial.getAndIncrement(),
+			serialize(sig, text)
+		);
+		
+		msg.addField(Message.FIELD_REPLY_SERIAL, new UInt32(call.getSerial()));
+		msg.addField(Message.FIELD_ERROR_NAME, ERROR_PREFIX + error);
+		msg.addField(Message.FIELD_SENDER, BUS_NAME);
+		msg.addField(Message.FIELD_SIGNATURE, sig);
+		
+		if(peer.name != null)
+		{
+			msg.addField(Message.FIELD_DESTINATION, peer.name);
+		}
+		
+		peer.channel.sendMessage(msg);
+	}
+	
+	private byte[] serialize(Signature sig, Object... values)
+	{
+		try
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			DBusOutputStream dbusOut = new DBusOutputStream(out);
+			dbusOut.setEndian(endian);
+			Marshalling.serialize(sig, values, dbusOut);
+			
+			return out.toByteArray();
+		}
+		catch(IOException e)
+		{
+			// Only happens if the values do not match the signature
+			throw new IllegalArgumentException("Unable to serialize " + sig.getValue() + "; " + e.getMessage(), e);
+		}
+	}
+	
+	/** Client connected to the bus. */
+	private static class Peer
+	{
+		private final Channel channel;
+		private final List<MatchRule> rules;
+		/** Names owned or queued for, guarded by the daemon */
+		private final List<String> names;
+		
+		private volatile String name;
+		
+		public Peer(Channel channel)
+		{
+			this.channel = channel;
+			
+			rules = new CopyOnWriteArrayList<MatchRule>();
+			names = new ArrayList<String>();
+		}
+	}
+	
+	/** Well-known name and the queue of peers that want to own it. */
+	private static class Name
+	{
+		private final String name;
+		private final LinkedList<Owner> queue;
+		
+		public Name(String name)
+		{
+			this.name = name;
+			queue = new LinkedList<Owner>();
+		}
+		
+		public Owner get(Peer peer)
+		{
+			for(Owner o : queue)
+			{
+				if(o.peer == peer)
+				{
+					return o;
+				}
+			}
+			
+			return null;
+		}
+		
+		public boolean remove(Peer peer)
+		{
+			for(Iterator<Owner> it = queue.iterator(); it.hasNext(); )
+			{
+				if(it.next().peer == peer)
+				{
+					it.remove();
+					return true;
+				}
+			}
+			
+			return false;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return "Name[" + name + "]";
+		}
+	}
+	
+	/** Entry in the queue of a name. */
+	private static class Owner
+	{
+		private final Peer peer;
+		private int flags;
+		
+		public Owner(Peer peer, int flags)
+		{
+			this.peer = peer;
+			this.flags = flags;
+		}
+	}
+}
@@ -0,0 +1,718 @@
+package se.l4.sofa.dbus.federation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import javax.security.auth.callback.CallbackHandler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.l4.sofa.dbus.BusAddress;
+import se.l4.sofa.dbus.MatchRule;
+import se.l4.sofa.dbus.io.DBusClient;
+import se.l4.sofa.dbus.io.DBusOutputStream;
+import se.l4.sofa.dbus.io.DBusServer;
+import se.l4.sofa.dbus.io.sasl.Anonymous;
+import se.l4.sofa.dbus.io.sasl.DBusSaslProvider;
+import se.l4.sofa.dbus.io.sasl.ExternalServer;
+import se.l4.sofa.dbus.spi.Channel;
+import se.l4.sofa.dbus.spi.ClientListener;
+import se.l4.sofa.dbus.spi.Endian;
+import se.l4.sofa.dbus.spi.HandlerChain;
+import se.l4.sofa.dbus.spi.Marshalling;
+import se.l4.sofa.dbus.spi.Message;
+import se.l4.sofa.dbus.spi.MessageHandler;
+import se.l4.sofa.dbus.spi.ObjectPath;
+import se.l4.sofa.dbus.spi.Signature;
+import se.l4.sofa.dbus.spi.UInt32;
+
+/**
+ * Node in a federation of buses, making selected names and signals of the
+ * local bus visible on the buses of other nodes.
+ * 
+ * <p>
+ * Every node is connected to its local bus and to the other nodes. Names
+ * exported by a node are owned by the other nodes on their local buses, so
+ * calls to them are delivered to the node which forwards them to the
+ * exporting node, where they are sent on to the real owner. Signals that
+ * match the exported rules are re-emitted on the buses of the other nodes.
+ * 
+ * <p>
+ * All traffic between two nodes is multiplexed over one link, which is an
+ * ordinary D-Bus connection. Forwarded messages get a new serial on every
+ * hop and replies are mapped back to the original serial, bodies are never
+ * decoded. Messages that are queued for a link at the same time are
+ * written together. The node that owns a remote name is cached when the
+ * name is announced, so routing a call does not need a lookup.
+ * 
+ * <pre>
+ * FederationNode node = new FederationNode("node1",
+ * 	new BusAddress("unix:path=/var/run/dbus/system_bus_socket"),
+ * 	new BusAddress("tcp:host=0.0.0.0,port=5000")
+ * );
+ * node.exportName("com.example.Service");
+ * node.exportSignals(new MatchRule().withInterface("com.example.Service"));
+ * node.addPeer(new BusAddress("tcp:host=node2,port=5000"));
+ * node.start();
+ * </pre>
+ * 
+ * <p>
+ * A pair of nodes only needs one link, so only one of them should list the
+ * other as a peer. Lost links are not reconnected.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class FederationNode
+	implements ClientListener
+{
+	static
+	{
+		// Register our own SASL mechanisms
+		Security.addProvider(new DBusSaslProvider());
+	}
+	
+	private static final Logger logger = LoggerFactory.getLogger(FederationNode.class);
+	
+	public static final String INTERFACE = "se.l4.sofa.dbus.Federation";
+	public static final String PATH = "/se/l4/sofa/dbus/Federation";
+	
+	private static final String BUS_NAME = "org.freedesktop.DBus";
+	private static final String BUS_PATH = "/org/freedesktop/DBus";
+	private static final String ERROR_PREFIX = "org.freedesktop.DBus.Error.";
+	
+	private static final String[] DEFAULT_MECHANISMS = { Anonymous.NAME };
+	private static final String[] DEFAULT_BUS_MECHANISMS = { ExternalServer.NAME };
+	
+	private static final int FLAG_DO_NOT_QUEUE = 0x4;
+	
+	private final String id;
+	private final Endian endian;
+	
+	private final BusAddress busAddress;
+	private final String[] busMechanisms;
+	private final CallbackHandler busAuthentication;
+	
+	private final BusAddress address;
+	private final String[] mechanisms;
+	private final CallbackHandler authentication;
+	
+	private final Set<String> exports;
+	private final List<MatchRule> signals;
+	private final List<BusAddress> peers;
+	
+	private final ConcurrentMap<Channel, Link> links;
+	/** Link leading to the node that exports a name */
+	private final ConcurrentMap<String, Link> owners;
+	/** Calls received over links and sent on the local bus, by local serial */
+	private final ConcurrentMap<Long, Link.Origin> inbound;
+	
+	private final HandlerChain linkChain;
+	private final List<DBusClient> outgoing;
+	
+	private DBusClient bus;
+	private DBusServer server;
+	private volatile String uniqueName;
+	
+	public FederationNode(String id, BusAddress bus, BusAddress address)
+	{
+		this(id, bus, DEFAULT_BUS_MECHANISMS, null, address, DEFAULT_MECHANISMS, null);
+	}
+	
+	/**
+	 * Create a new node.
+	 * 
+	 * @param id
+	 * 		identifier of the node, used when logging
+	 * @param bus
+	 * 		address of the local bus
+	 * @param busMechanisms
+	 * 		SASL mechanisms to authenticate with the local bus
+	 * @param busAuthentication
+	 * 		callback for the SASL mechanisms of the local bus
+	 * @param address
+	 * 		address to accept links from other nodes on, {@code null} if the
+	 * 		node only connects to its peers
+	 * @param mechanisms
+	 * 		SASL mechanisms for links
+	 * @param authentication
+	 * 		callback for the SASL mechanisms of links
+	 */
+	public FederationNode(String id,
+			BusAddress bus, String[] busMechanisms, CallbackHandler busAuthentication,
+			BusAddress address, String[] mechanisms, CallbackHandler authentication)
+	{
+		this.id = id;
+		this.busAddress = bus;
+		this.busMechanisms = busMechanisms;
+		this.busAuthentication = busAuthentication;
+		this.address = address;
+		this.mechanisms = mechanisms;
+		this.authentication = authentication;
+		
+		endian = Endian.BIG;
+		
+		exports = new CopyOnWriteArraySet<String>();
+		signals = new CopyOnWriteArrayList<MatchRule>();
+		peers = new CopyOnWriteArrayList<BusAddress>();
+		
+		links = new ConcurrentHashMap<Channel, Link>();
+		owners = new ConcurrentHashMap<String, Link>();
+		inbound = new ConcurrentHashMap<Long, Link.Origin>();
+		
+		linkChain = new HandlerChain();
+		linkChain.addHandler(new LinkHandler());
+		
+		outgoing = new CopyOnWriteArrayList<DBusClient>();
+	}
+	
+	/**
+	 * Export a name of the local bus to the other nodes. Must be called
+	 * before {@link #start()}.
+	 * 
+	 * @param name
+	 */
+	public void exportName(String name)
+	{
+		exports.add(name);
+	}
+	
+	/**
+	 * Forward signals on the local bus that match the given rule to the
+	 * other nodes. Must be called before {@link #start()}.
+	 * 
+	 * @param rule
+	 */
+	public void exportSignals(MatchRule rule)
+	{
+		signals.add(rule);
+	}
+	
+	/**
+	 * Add a node to link with when started.
+	 * 
+	 * @param address
+	 */
+	public void addPeer(BusAddress address)
+	{
+		peers.add(address);
+	}
+	
+	public String getId()
+	{
+		return id;
+	}
+	
+	/**
+	 * Get the unique name of this node on the local bus.
+	 * 
+	 * @return
+	 */
+	public String getUniqueName()
+	{
+		return uniqueName;
+	}
+	
+	/**
+	 * Get the port links are accepted on when using TCP.
+	 * 
+	 * @return
+	 */
+	public int getLocalPort()
+	{
+		return server == null ? -1 : server.getLocalPort();
+	}
+	
+	/**
+	 * Get the number of links to other nodes.
+	 * 
+	 * @return
+	 */
+	public int getLinkCount()
+	{
+		return links.size();
+	}
+	
+	/**
+	 * Get the names of other nodes that are currently made available on the
+	 * local bus.
+	 * 
+	 * @return
+	 */
+	public Set<String> getRemoteNames()
+	{
+		return Collections.unmodifiableSet(new HashSet<String>(owners.keySet()));
+	}
+	
+	/**
+	 * Connect to the local bus, start accepting links and connect to the
+	 * peers of this node.
+	 * 
+	 * @throws IOException
+	 */
+	public void start()
+		throws IOException
+	{
+		HandlerChain busChain = new HandlerChain();
+		busChain.addHandler(new BusHandler());
+		
+		bus = new DBusClient(busAddress, busChain, busMechanisms, busAuthentication);
+		bus.setReconnect(false);
+		bus.connect();
+		
+		uniqueName = (String) callBus("Hello", null).get(0);
+		
+		for(MatchRule rule : signals)
+		{
+			callBus("AddMatch", "s", rule.getRule());
+		}
+		
+		if(address != null)
+		{
+			server = new DBusServer(address, linkChain, mechanisms, authentication);
+			server.addClientListener(this);
+			server.start();
+		}
+		
+		for(BusAddress peer : peers)
+		{
+			DBusClient client = new DBusClient(peer, linkChain, mechanisms, authentication);
+			
+			// Keep the order of the link and let the peer reconnect to us
+			client.setDispatchLanes(1);
+			client.setReconnect(false);
+			client.addClientListener(this);
+			client.connect();
+			
+			outgoing.add(client);
+			clientConnected(client);
+		}
+		
+		logger.info("Node {} started as {}", id, uniqueName);
+	}
+	
+	/**
+	 * Stop the node, closing all links and the connection to the local bus.
+	 * 
+	 * @throws IOException
+	 */
+	public void close()
+		throws IOException
+	{
+		if(server != null)
+		{
+			server.close();
+		}
+		
+		for(DBusClient client : outgoing)
+		{
+			client.disconnect();
+		}
+		
+		outgoing.clear();
+		
+		if(bus != null)
+		{
+			bus.disconnect();
+		}
+	}
+	
+	public void clientConnected(Channel channel)
+	{
+		Link link = getLink(channel);
+		
+		Message msg = createSignal(link.nextSerial(), "Announce", "sas",
+			id, exports.toArray(new String[exports.size()]));
+			
+		channel.sendMessage(msg);
+	}
+	
+	public void clientDisconnected(Channel channel)
+	{
+		Link link = links.remove(channel);
+		if(link == null)
+		{
+			return;
+		}
+		
+		logger.info("Link to {} was lost", link);
+		
+		for(String name : link.getNames())
+		{
+			if(owners.remove(name, link))
+			{
+				sendToBus("ReleaseName", "s", name);
+			}
+		}
+		
+		for(Link.Origin origin : link.clearPending())
+		{
+			sendError(origin.sender, origin.serial, "NoReply", "Link to " + link + " was lost");
+		}
+		
+		Iterator<Map.Entry<Long, Link.Origin>> it = inbound.entrySet().iterator();
+		while(it.hasNext())
+		{
+			if(it.next().getValue().link == link)
+			{
+				it.remove();
+			}
+		}
+	}
+	
+	private Link getLink(Channel channel)
+	{
+		Link link = links.get(channel);
+		if(link == null)
+		{
+			Link created = new Link(channel);
+			link = links.putIfAbsent(channel, created);
+			if(link == null)
+			{
+				link = created;
+			}
+		}
+		
+		return link;
+	}
+	
+	/**
+	 * Handle the names another node has announced, taking ownership of them
+	 * on the local bus.
+	 */
+	@SuppressWarnings("unchecked")
+	private void announced(Link link, Message message)
+	{
+		List<Object> args;
+		try
+		{
+			args = message.getBodyAsObjects();
+		}
+		catch(IOException e)
+		{
+			logger.warn("Invalid announcement from {}; {}", link, e.getMessage());
+			return;
+		}
+		
+		String node = (String) args.get(0);
+		Set<String> names = new HashSet<String>((List<String>) args.get(1));
+		link.setAnnounced(node, names);
+		
+		logger.info("Linked with {}, exporting {}", node, names);
+		
+		for(String name : names)
+		{
+			Link current = owners.putIfAbsent(name, link);
+			if(current == null)
+			{
+				sendToBus("RequestName", "su", name, new UInt32(FLAG_DO_NOT_QUEUE));
+			}
+			else if(current != link)
+			{
+				logger.warn("Name {} exported by both {} and {}, using {}", new Object[] { name, current, node, current });
+			}
+		}
+	}
+	
+	/**
+	 * Make a call to the bus and wait for the reply.
+	 */
+	private List<Object> callBus(String member, String signature, Object... values)
+		throws IOException
+	{
+		Message reply = bus.sendBlocking(createBusCall(member, signature, values));
+		if(reply == null)
+		{
+			throw new IOException("No reply to " + member + " from bus");
+		}
+		
+		List<Object> result = reply.getBodyAsObjects();
+		if(reply.getType() == Message.TYPE_ERROR)
+		{
+			throw new IOException(member + " failed; " + reply.getField(Message.FIELD_ERROR_NAME)
+				+ (result.isEmpty() ? "" : ": " + result.get(0)));
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Make a call to the bus without waiting for the reply.
+	 */
+	private void sendToBus(String member, String signature, Object... values)
+	{
+		bus.sendMessage(createBusCall(member, signature, values));
+	}
+	
+	private Message createBusCall(String member, String signature, Object... values)
+	{
+		Signature sig = signature == null ? null : Signature.parse(signature);
+		
+		Message msg = new Message(
+			endian,
+			Message.TYPE_METHOD_CALL,
+			0,
+			bus.nextSerial(),
+			sig == null ? new byte[0] : serialize(sig, values)
+		);
+		
+		msg.addField(Message.FIELD_PATH, new ObjectPath(BUS_PATH));
+		msg.addField(Message.FIELD_INTERFACE, BUS_NAME);
+		msg.addField(Message.FIELD_MEMBER, member);
+		msg.addField(Message.FIELD_DESTINATION, BUS_NAME);
+		
+		if(sig != null)
+		{
+			msg.addField(Message.FIELD_SIGNATURE, sig);
+		}
+		
+		return msg;
+	}
+	
+	private Message createSignal(long serial, String member, String signature, Object... values)
+	{
+		Signature sig = Signature.parse(signature);
+		
+		Message msg = new Message(
+			endian,
+			Message.TYPE_SIGNAL,
+			Message.FLAG_NO_REPLY_EXPECTED,
+			serial,
+			serialize(sig, values)
+		);
+		
+		msg.addField(Message.FIELD_PATH, new ObjectPath(PATH));
+		msg.addField(Message.FIELD_INTERFACE, INTERFACE);
+		msg.addField(Message.FIELD_MEMBER, member);
+		msg.addField(Message.FIELD_SIGNATURE, sig);
+		
+		return msg;
+	}
+	
+	/**
+	 * Send an error reply to a caller on the local bus.
+	 */
+	private void sendError(String destination, long replySerial, String error, String text)
+	{
+		Signature sig = Signature.parse("s");
+		
+		Message msg = new Message(
+			endian,
+			Message.TYPE_ERROR,
+			Message.FLAG_NO_REPLY_EXPECTED,
+			bus.nextSerial(),
+			serialize(sig, text)
+		);
+		
+		msg.addField(Message.FIELD_REPLY_SERIAL, new UInt32(replySerial));
+		msg.addField(Message.FIELD_ERROR_NAME, ERROR_PREFIX + error);
+		msg.addField(Message.FIELD_SIGNATURE, sig);
+		
+		if(destination != null)
+		{
+			msg.addField(Message.FIELD_DESTINATION, destination);
+		}
+		
+		bus.sendMessage(msg);
+	}
+	
+	private byte[] serialize(Signature sig, Object... values)
+	{
+		try
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			DBusOutputStream dbusOut = new DBusOutputStream(out);
+			dbusOut.setEndian(endian);
+			Marshalling.serialize(sig, values, dbusOut);
+			
+			return out.toByteArray();
+		}
+		catch(IOException e)
+		{
+			// Only happens if the values do not match the signature
+			throw new IllegalArgumentException("Unable to serialize " + sig.getValue() + "; " + e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Copy a message with a new serial. The body is shared with the original
+	 * message.
+	 */
+	private static Message copy(Message message, long serial)
+	{
+		Message copy = new Message(
+			message.getEndian(),
+			message.getType(),
+			message.getFlags(),
+			serial,
+			message.getBodyData(),
+			message.getBodyOffset(),
+			message.getBodyLength()
+		);
+		
+		copy.addFields(new ArrayList<Object>(message.getFields()));
+		
+		return copy;
+	}
+	
+	private static boolean expectsReply(Message message)
+	{
+		return (message.getFlags() & Message.FLAG_NO_REPLY_EXPECTED) == 0;
+	}
+	
+	private static long getReplySerial(Message message)
+	{
+		Object serial = message.getField(Message.FIELD_REPLY_SERIAL);
+		return serial instanceof Number ? ((Number) serial).longValue() : -1;
+	}
+	
+	/** Forwards messages from the local bus to other nodes. */
+	private class BusHandler
+		implements MessageHandler
+	{
+		public boolean handle(Message message, Channel connection)
+		{
+			switch(message.getType())
+			{
+				case Message.TYPE_METHOD_CALL:
+					forwardCall(message);
+					break;
+				case Message.TYPE_METHOD_RETURN:
+				case Message.TYPE_ERROR:
+					forwardReply(message);
+					break;
+				case Message.TYPE_SIGNAL:
+					forwardSignal(message);
+					break;
+			}
+			
+			return true;
+		}
+		
+		private void forwardCall(Message message)
+		{
+			String destination = (String) message.getField(Message.FIELD_DESTINATION);
+			String sender = (String) message.getField(Message.FIELD_SENDER);
+			
+			Link link = destination == null ? null : owners.get(destination);
+			if(link == null)
+			{
+				if(expectsReply(message))
+				{
+					sendError(sender, message.getSerial(), "ServiceUnknown",
+						"No node exports " + destination);
+				}
+				
+				return;
+			}
+			
+			long serial = link.nextSerial();
+			if(expectsReply(message))
+			{
+				link.addPending(serial, new Link.Origin(null, sender, message.getSerial()));
+			}
+			
+			link.getChannel().sendMessage(copy(message, serial));
+		}
+		
+		private void forwardReply(Message message)
+		{
+			Link.Origin origin = inbound.remove(getReplySerial(message));
+			if(origin == null)
+			{
+				// Reply to a call made by this node
+				return;
+			}
+			
+			Message copy = copy(message, origin.link.nextSerial());
+			copy.setField(Message.FIELD_REPLY_SERIAL, new UInt32(origin.serial));
+			
+			origin.link.getChannel().sendMessage(copy);
+		}
+		
+		private void forwardSignal(Message message)
+		{
+			String sender = (String) message.getField(Message.FIELD_SENDER);
+			
+			// Skip signals re-emitted by this node and those sent only to it
+			if(uniqueName.equals(sender)
+				|| message.getField(Message.FIELD_DESTINATION) != null)
+			{
+				return;
+			}
+			
+			for(Link link : links.values())
+			{
+				link.getChannel().sendMessage(copy(message, link.nextSerial()));
+			}
+		}
+	}
+	
+	/** Forwards messages from other nodes to the local bus. */
+	private class LinkHandler
+		implements MessageHandler
+	{
+		public boolean handle(Message message, Channel connection)
+		{
+			Link link = getLink(connection);
+			
+			switch(message.getType())
+			{
+				case Message.TYPE_METHOD_CALL:
+					{
+						long serial = bus.nextSerial();
+						if(expectsReply(message))
+						{
+							inbound.put(serial, new Link.Origin(link, null, message.getSerial()));
+						}
+						
+						bus.sendMessage(copy(message, serial));
+					}
+					break;
+				case Message.TYPE_METHOD_RETURN:
+				case Message.TYPE_ERROR:
+					{
+						Link.Origin origin = link.removePending(getReplySerial(message));
+						if(origin == null)
+						{
+							logger.debug("Dropping reply without call from {}; {}", link, message);
+							break;
+						}
+						
+						Message copy = copy(message, bus.nextSerial());
+						copy.setField(Message.FIELD_REPLY_SERIAL, new UInt32(origin.serial));
+						copy.setField(Message.FIELD_DESTINATION, origin.sender);
+						
+						bus.sendMessage(copy);
+					}
+					break;
+				case Message.TYPE_SIGNAL:
+					if(INTERFACE.equals(message.getField(Message.FIELD_INTERFACE))
+						&& "Announce".equals(message.getField(Message.FIELD_MEMBER)))
+					{
+						announced(link, message);
+					}
+					else
+					{
+						bus.sendMessage(copy(message, bus.nextSerial()));
+					}
+					break;
+			}
+			
+			return true;
+		}
+	}
+}
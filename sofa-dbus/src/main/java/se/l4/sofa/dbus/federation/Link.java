@@ -0,0 +1,122 @@
+package se.l4.sofa.dbus.federation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import se.l4.sofa.dbus.spi.Channel;
+
+/**
+ * Link to another node of a federation. All calls and signals between two
+ * nodes are multiplexed over a single link, which has its own serials that
+ * are mapped to and from the serials used on the local bus.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+class Link
+{
+	private final Channel channel;
+	private final AtomicLong serial;
+	
+	/** Calls sent over this link, by link serial, waiting for a reply */
+	private final ConcurrentMap<Long, Origin> pending;
+	
+	private volatile String node;
+	private volatile Set<String> names;
+	
+	public Link(Channel channel)
+	{
+		this.channel = channel;
+		
+		serial = new AtomicLong(1);
+		pending = new ConcurrentHashMap<Long, Origin>();
+		names = Collections.emptySet();
+	}
+	
+	public Channel getChannel()
+	{
+		return channel;
+	}
+	
+	public long nextSerial()
+	{
+		return serial.getAndIncrement();
+	}
+	
+	/**
+	 * Get the identifier of the node at the other end, {@code null} until
+	 * it has announced itself.
+	 * 
+	 * @return
+	 */
+	public String getNode()
+	{
+		return node;
+	}
+	
+	/**
+	 * Get the names exported by the node at the other end.
+	 * 
+	 * @return
+	 */
+	public Set<String> getNames()
+	{
+		return names;
+	}
+	
+	public void setAnnounced(String node, Set<String> names)
+	{
+		this.node = node;
+		this.names = Collections.unmodifiableSet(new HashSet<String>(names));
+	}
+	
+	public void addPending(long serial, Origin origin)
+	{
+		pending.put(serial, origin);
+	}
+	
+	public Origin removePending(long serial)
+	{
+		return pending.remove(serial);
+	}
+	
+	/**
+	 * Remove all calls waiting for a reply, used when the link is lost.
+	 * 
+	 * @return
+	 */
+	public List<Origin> clearPending()
+	{
+		List<Origin> result = new ArrayList<Origin>(pending.values());
+		pending.clear();
+		
+		return result;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return node == null ? channel.toString() : node;
+	}
+	
+	/** Where a forwarded call came from, used to route the reply back. */
+	static class Origin
+	{
+		final Link link;
+		final String sender;
+		final long serial;
+		
+		public Origin(Link link, String sender, long serial)
+		{
+			this.link = link;
+			this.sender = sender;
+			this.serial = serial;
+		}
+	}
+}
@@ -1,26 +1,52 @@
 package se.l4.sofa.dbus.io;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
-import se.l4.sofa.dbus.Holder;
+import se.l4.sofa.dbus.metrics.ConnectionMetrics;
 import se.l4.sofa.dbus.spi.Message;
+import se.l4.sofa.dbus.spi.SettableFuture;
+import se.l4.sofa.dbus.spi.Trace;
+import se.l4.sofa.dbus.spi.Tracing;
 
 /**
  * Helper class for blocking send/receive. This class is used so that we can
  * block a thread until a reply to the given message has been received, the
  * transport layer is still asynchronous.
  * 
+ * <p>
+ * Replies are tracked via futures that must be registered with
+ * {@link #register(long)} before the message is sent, replies that nobody
+ * is waiting for are dropped.
+ * 
  * @author Andreas Holstenson
  *
  */
 public class BlockingHelper
 {
-	private final Map<Long, Holder<Message>> locks;
+	private final Map<Long, PendingReply> pending;
+	private final ConnectionMetrics metrics;
 	
 	public BlockingHelper()
 	{
-		locks = new HashMap<Long, Holder<Message>>();
+		this(null);
+	}
+	
+	/**
+	 * Create a helper that records the time until a reply is received.
+	 * 
+	 * @param metrics
+	 * 		metrics to record reply latency in, may be {@code null}
+	 */
+	public BlockingHelper(ConnectionMetrics metrics)
+	{
+		this.metrics = metrics;
+		
+		pending = new HashMap<Long, PendingReply>();
 	}
 	
 	public boolean handle(Message message)
@@ -31,63 +57,167 @@ public class BlockingHelper
 		{
 			long serial = ((Number) serialObject).longValue();
 			
-			synchronized(locks)
+			PendingReply future;
+			synchronized(pending)
 			{
-				Holder<Message> h = locks.get(serial);
+				future = pending.remove(serial);
+			}
 				
-				if(h == null)
+			if(future != null)
+			{
+				if(metrics != null)
 				{
-					h = new Holder<Message>();
-					locks.put(serial, h);
+					metrics.replyReceived(System.nanoTime() - future.started);
 				}
 				
-				synchronized(h)
-				{
-					h.setValue(message);
-					h.notifyAll();
-				}
+				future.set(message);
 			}
 		}
 		
 		return false;
 	}
 	
-	public Message getReply(long serial)
+	/**
+	 * Register interest in the reply to the message with the given serial.
+	 * Must be called before the message is sent. Cancelling the returned
+	 * future stops waiting for the reply.
+	 * 
+	 * @param serial
+	 * @return
+	 * 		future that is completed when the reply is received
+	 */
+	public Future<Message> register(long serial)
 	{
-		Holder<Message> h;
-		synchronized(locks)
+		synchronized(pending)
 		{
-			h = locks.get(serial);
-			
-			if(h == null)
+			PendingReply future = pending.get(serial);
+			if(future == null)
 			{
-				h = new Holder<Message>();
-				locks.put(serial, h);
+				future = new PendingReply(serial);
+				pending.put(serial, future);
 			}
+			
+			return future;
 		}
+	}
+	
+	/**
+	 * Wait for the reply to the message with the given serial using a
+	 * future previously returned by {@link #register(long)}. The reply may
+	 * already have arrived in which case it is returned directly.
+	 * 
+	 * @param serial
+	 * @param future
+	 * @return
+	 * 		reply, or {@code null} if the thread was interrupted
+	 */
+	public Message getReply(long serial, Future<Message> future)
+	{
+		Trace trace = Tracing.begin(Trace.Kind.REPLY_WAIT);
 		
-		synchronized(h)
+		Message reply = null;
+		try
 		{
-			while(false == Thread.interrupted()
-				&& h.getValue() == null)
+			reply = future.get();
+			return reply;
+		}
+		catch(InterruptedException e)
+		{
+			synchronized(pending)
 			{
-				try
-				{
-					h.wait();
-				}
-				catch(InterruptedException e)
+				pending.remove(serial);
+			}
+			
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		catch(ExecutionException e)
+		{
+			return null;
+		}
+		finally
+		{
+			if(trace != null)
+			{
+				if(reply == null)
 				{
-					Thread.currentThread().interrupt();
-					return null;
+					trace.setDetail("No reply to " + serial);
 				}
+				
+				trace.end(reply);
 			}
+		}
+	}
+			
+	/**
+	 * Fail every reply that is currently being waited for, used when the
+	 * connection is lost as those replies will never arrive. Threads
+	 * waiting in {@link #getReply(long, Future)} receive {@code null}.
+	 * 
+	 * @param cause
+	 */
+	public void failAll(Throwable cause)
+	{
+		List<PendingReply> failed;
+		synchronized(pending)
+		{
+			failed = new ArrayList<PendingReply>(pending.values());
+			pending.clear();
+		}
+		
+		for(PendingReply future : failed)
+		{
+			future.setException(cause);
+		}
+	}
+	
+	/**
+	 * Get the number of replies that are currently being waited for.
+	 * 
+	 * @return
+	 */
+	public int getPendingCount()
+	{
+		synchronized(pending)
+		{
+			return pending.size();
+		}
+	}
+	
+	/**
+	 * Future for a reply that remembers when it was registered. Cancelling
+	 * it removes it from the pending replies.
+	 */
+	private class PendingReply
+		extends SettableFuture<Message>
+	{
+		private final long serial;
+		private final long started;
+		
+		public PendingReply(long serial)
+		{
+			this.serial = serial;
 			
-			synchronized(locks)
+			started = System.nanoTime();
+		}
+		
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning)
+		{
+			if(false == super.cancel(mayInterruptIfRunning))
+			{
+				return false;
+			}
+			
+			synchronized(pending)
 			{
-				locks.remove(serial);
+				if(pending.get(serial) == this)
+				{
+					pending.remove(serial);
+				}
 			}
 			
-			return h.getValue();
+			return true;
 		}
 	}
 }
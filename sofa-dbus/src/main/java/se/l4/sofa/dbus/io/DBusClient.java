@@ -1,9 +1,9 @@
 package se.l4.sofa.dbus.io;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
@@ -12,10 +12,9 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.security.auth.callback.CallbackHandler;
@@ -27,10 +26,18 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import se.l4.sofa.dbus.BusAddress;
+import se.l4.sofa.dbus.io.capture.FrameCapture;
+import se.l4.sofa.dbus.io.memory.MemorySocket;
+import se.l4.sofa.dbus.io.shm.SharedMemorySocket;
 import se.l4.sofa.dbus.io.unix.UnixSocket;
+import se.l4.sofa.dbus.metrics.ConnectionMetrics;
+import se.l4.sofa.dbus.metrics.Metered;
 import se.l4.sofa.dbus.spi.Channel;
+import se.l4.sofa.dbus.spi.ClientListener;
 import se.l4.sofa.dbus.spi.HandlerChain;
 import se.l4.sofa.dbus.spi.Message;
+import se.l4.sofa.dbus.spi.Trace;
+import se.l4.sofa.dbus.spi.Tracing;
 
 /**
  * Client handling for DBus, connects to a DBus server, performs authentication
@@ -41,7 +48,7 @@ import se.l4.sofa.dbus.spi.Message;
  *
  */
 public class DBusClient
-	implements Channel
+	implements Channel, Metered
 {
 	enum State
 	{
@@ -51,20 +58,39 @@ public class DBusClient
 		DONE
 	}
 	
+	/**
+	 * What incoming messages are ordered on when dispatched to the handler
+	 * chain.
+	 */
+	public enum DispatchKey
+	{
+		/** Messages from the same sender are handled in order. */
+		SENDER,
+		/** Messages for the same object path are handled in order. */
+		PATH
+	}
+	
 	private static final Logger logger = LoggerFactory.getLogger(DBusClient.class);
 	
 	private static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
 	
+	/** Used to give every client a unique name for its metrics */
+	private static final AtomicInteger ids = new AtomicInteger();
+	
 	private final BusAddress addr;
 	private final HandlerChain chain;
 	private final String[] mechanisms;
 	private final CallbackHandler handler;
 	private final BlockingQueue<Message> sendQueue;
 	private final BlockingHelper blocking;
+	private final ConnectionMetrics metrics;
+	private final AtomicInteger peakQueueDepth;
+	private final int id;
 	
 	private Map<String, Object> saslProperties;
 	
 	private Socket socket;
+	private Closeable localSocket;
 	private InputStream in;
 	private OutputStream out;
 	private String serverUuid;
@@ -76,8 +102,16 @@ public class DBusClient
 	private Thread writerThread;
 	private Thread readerThread;
 	private boolean connected;
+	private boolean reconnect;
+	
+	private final List<ClientListener> listeners;
 
-	private ExecutorService executor;
+	private int dispatchLanes;
+	private int dispatchQueueSize;
+	private DispatchKey dispatchKey;
+	
+	private FrameCapture capture;
+	private StripedExecutor executor;
 	
 	/**
 	 * Create a new client.
@@ -103,19 +137,35 @@ public class DBusClient
 		this.chain = chain;
 		this.sendQueue = new LinkedBlockingQueue<Message>();
 		
-		this.blocking = new BlockingHelper();
-		
-		this.executor = Executors.newFixedThreadPool(2, new ThreadFactory()
+		id = ids.incrementAndGet();
+		peakQueueDepth = new AtomicInteger();
+		metrics = new ConnectionMetrics(String.valueOf(addr), null, new ConnectionMetrics.Gauges()
 		{
-			private AtomicInteger count = new AtomicInteger();
+			public int getQueueDepth()
+			{
+				return sendQueue.size();
+			}
+			
+			public int getPeakQueueDepth()
+			{
+				return peakQueueDepth.get();
+			}
 			
-			public Thread newThread(Runnable r)
+			public int getPendingReplies()
 			{
-				return new Thread(r, "dbus-client-" + count.incrementAndGet());
+				return blocking.getPendingCount();
 			}
 		});
 		
+		this.blocking = new BlockingHelper(metrics);
+		
+		dispatchLanes = Runtime.getRuntime().availableProcessors();
+		dispatchQueueSize = Integer.MAX_VALUE;
+		dispatchKey = DispatchKey.SENDER;
+		
 		saslProperties = new HashMap<String, Object>();
+		listeners = new CopyOnWriteArrayList<ClientListener>();
+		reconnect = true;
 		
 		// Start serial at one
 		serial = 1;
@@ -143,6 +193,128 @@ public class DBusClient
 		return saslProperties.get(prop);
 	}
 	
+	/**
+	 * Set the number of threads used to dispatch incoming messages. Must be
+	 * called before {@link #connect()}.
+	 * 
+	 * @param lanes
+	 */
+	public void setDispatchLanes(int lanes)
+	{
+		this.dispatchLanes = lanes;
+	}
+	
+	/**
+	 * Set the maximum number of messages waiting to be handled per dispatch
+	 * thread. When a thread is full no more messages are read from the
+	 * connection until there is room. Handlers that make blocking calls
+	 * should not be used with small queues as the reply can not be read
+	 * while the reader is waiting. Must be called before {@link #connect()}.
+	 * 
+	 * @param size
+	 */
+	public void setDispatchQueueSize(int size)
+	{
+		this.dispatchQueueSize = size;
+	}
+	
+	/**
+	 * Set what incoming messages are ordered on. Must be called before
+	 * {@link #connect()}.
+	 * 
+	 * @param key
+	 */
+	public void setDispatchKey(DispatchKey key)
+	{
+		this.dispatchKey = key;
+	}
+	
+	/**
+	 * Set if the client should reconnect when the connection is lost,
+	 * defaults to {@code true}. Clients that keep state tied to the
+	 * connection, such as relays, should turn it off and listen for the
+	 * disconnect instead.
+	 * 
+	 * @param reconnect
+	 */
+	public void setReconnect(boolean reconnect)
+	{
+		this.reconnect = reconnect;
+	}
+	
+	/**
+	 * Capture every frame read and written by this client, such as with a
+	 * {@link se.l4.sofa.dbus.io.capture.PcapRingCapture}. Takes effect on
+	 * the next connect.
+	 * 
+	 * @param capture
+	 * 		capture, {@code null} to stop capturing
+	 */
+	public void setCapture(FrameCapture capture)
+	{
+		this.capture = capture;
+	}
+	
+	/**
+	 * Add a listener that is notified when this client has been
+	 * disconnected and will not reconnect.
+	 * 
+	 * @param listener
+	 */
+	public void addClientListener(ClientListener listener)
+	{
+		listeners.add(listener);
+	}
+	
+	public void removeClientListener(ClientListener listener)
+	{
+		listeners.remove(listener);
+	}
+	
+	/**
+	 * Get the number of messages waiting to be handled by each dispatch
+	 * thread.
+	 * 
+	 * @return
+	 * 		queue depth per thread, empty if not connected
+	 */
+	public int[] getDispatchQueueDepths()
+	{
+		StripedExecutor executor = this.executor;
+		return executor == null ? new int[0] : executor.getQueueDepths();
+	}
+	
+	/**
+	 * Get the number of messages waiting to be written to the server.
+	 * 
+	 * @return
+	 */
+	public int getSendQueueDepth()
+	{
+		return sendQueue.size();
+	}
+	
+	/**
+	 * Get the metrics of this client, registered as an MBean while the
+	 * client is connected.
+	 * 
+	 * @return
+	 */
+	public ConnectionMetrics getMetrics()
+	{
+		return metrics;
+	}
+	
+	/**
+	 * Get the number of method calls that are waiting for a reply.
+	 * 
+	 * @return
+	 */
+	public int getPendingReplies()
+	{
+		return blocking.getPendingCount();
+	}
+	
 	/**
 	 * Connect and authenticate with the DBus server.
 	 * 
@@ -199,12 +371,47 @@ public class DBusClient
 			
 			UnixSocket socket = new UnixSocket(conn);
 			socket.connect();
+			localSocket = socket;
 			
 			in = socket.getInputStream();
 			out = socket.getOutputStream();
 			
 			name = abstractPath == null ? normalPath : "abstract:" + abstractPath;
 		}
+		else if("memory".equals(proto))
+		{
+			String memoryName = addr.getParameter("name");
+			if(memoryName == null)
+			{
+				throw new IllegalArgumentException("Memory connection, requires a name");
+			}
+			
+			MemorySocket socket = MemorySocket.connect(memoryName);
+			localSocket = socket;
+			
+			in = socket.getInputStream();
+			out = socket.getOutputStream();
+			
+			name = socket.toString();
+		}
+		else if("shm".equals(proto))
+		{
+			String path = addr.getParameter("path");
+			if(path == null)
+			{
+				throw new IllegalArgumentException("Shared memory connection, requires a path");
+			}
+			
+			int size = addr.getIntParameter("size");
+			SharedMemorySocket socket = SharedMemorySocket.connect(path, 
+				size > 0 ? size : SharedMemorySocket.DEFAULT_BUFFER_SIZE);
+			localSocket = socket;
+			
+			in = socket.getInputStream();
+			out = socket.getOutputStream();
+			
+			name = socket.toString();
+		}
 		else
 		{
 			throw new IllegalArgumentException("Unknown transport " + proto);
@@ -212,13 +419,21 @@ public class DBusClient
 		
 		negotiate();
 		
+		if(executor == null)
+		{
+			executor = new StripedExecutor("dbus-client", dispatchLanes, dispatchQueueSize);
+		}
+		
 		// If negotiation succeeded start the connection handling
 		DBusMessenger messenger = new DBusMessenger(in, out);
+		messenger.setMetrics(metrics);
+		messenger.setCapture(capture);
 		
 		MessageWriter writer = new MessageWriter(messenger, sendQueue);
 		MessageReader reader = new MessageReader(this, messenger, chain, blocking);
 		
 		connected = true;
+		metrics.register("DBusClient", String.valueOf(id));
 		
 		writerThread = new Thread(writer, "dbus-sender [" + name + "]");
 		writerThread.start();
@@ -227,19 +442,45 @@ public class DBusClient
 	}
 	
 	/**
-	 * Attempt reconnected if we are still supposed to be connected.
-	 * 
-	 * @throws IOException
+	 * Attempt reconnected if we are still supposed to be connected. Called
+	 * by the reader or writer thread when the connection fails, the old
+	 * transport and its other thread are shut down before connecting again.
 	 */
-	private void reconnect()
+	private synchronized void reconnect()
 	{
 		if(false == connected)
 		{
 			return;
 		}
 		
+		Thread current = Thread.currentThread();
+		if(current != readerThread && current != writerThread)
+		{
+			// Thread of a connection that has already been replaced
+			return;
+		}
+		
+		if(false == reconnect)
+		{
+			try
+			{
+				disconnect();
+			}
+			catch(IOException e)
+			{
+			}
+			
+			return;
+		}
+		
 		logger.debug("Requesting reconnection with server");
 		
+		closeTransport();
+		
+		// Replies to calls sent on the old connection will never arrive
+		blocking.failAll(new IOException("Connection to server was lost"));
+		
+		metrics.reconnected();
 		try
 		{
 			connect();
@@ -258,6 +499,43 @@ public class DBusClient
 		}
 	}
 	
+	/**
+	 * Close the current transport and stop its reader and writer, except
+	 * for the calling thread which is expected to exit by itself.
+	 */
+	private void closeTransport()
+	{
+		try
+		{
+			if(socket != null)
+			{
+				socket.close();
+				socket = null;
+			}
+			
+			if(localSocket != null)
+			{
+				localSocket.close();
+				localSocket = null;
+			}
+		}
+		catch(IOException e)
+		{
+			logger.debug("Error while closing transport; " + e.getMessage(), e);
+		}
+		
+		Thread current = Thread.currentThread();
+		if(writerThread != null && writerThread != current)
+		{
+			writerThread.interrupt();
+		}
+		
+		if(readerThread != null && readerThread != current)
+		{
+			readerThread.interrupt();
+		}
+	}
+	
 	/**
 	 * Disconnect from the DBus server.
 	 * 
@@ -266,23 +544,57 @@ public class DBusClient
 	public void disconnect()
 		throws IOException
 	{
-		connected = false;
+		boolean wasConnected;
+		synchronized(this)
+		{
+			wasConnected = connected;
+			connected = false;
 		
-		socket.close();
-		socket = null;
+			if(socket != null)
+			{
+				socket.close();
+				socket = null;
+			}
+			
+			if(localSocket != null)
+			{
+				localSocket.close();
+				localSocket = null;
+			}
+			
+			if(writerThread != null)
+			{
+				writerThread.interrupt();
+				readerThread.interrupt();
+			}
+			
+			if(executor != null)
+			{
+				executor.shutdown();
+				executor = null;
+			}
+			
+			if(sc != null)
+			{
+				sc.dispose();
+			}
+		}
 		
-		writerThread.interrupt();
-		readerThread.interrupt();
+		blocking.failAll(new IOException("Disconnected from server"));
+		metrics.unregister();
 		
-		if(sc != null)
+		if(wasConnected)
 		{
-			sc.dispose();
+			for(ClientListener listener : listeners)
+			{
+				listener.clientDisconnected(this);
+			}
 		}
 	}
 	
 	public boolean isConnected()
 	{
-		return socket != null;
+		return socket != null || localSocket != null;
 	}
 	
 	/**
@@ -311,16 +623,12 @@ public class DBusClient
 		
 		sendSaslCommand("AUTH");
 		
-		BufferedReader reader = new BufferedReader(
-			new InputStreamReader(in)
-		);
-		
 		sc = null;
 		List<String> validMechanisms = new LinkedList<String>();
 		
 		String line;
 		_outer:
-		while((line = reader.readLine()) != null)
+		while((line = readLine()) != null)
 		{
 			logger.debug("S: {}", line);
 			logger.trace("State {}", state);
@@ -354,6 +662,11 @@ public class DBusClient
 							disconnect();
 							break _outer;
 						}
+						else if(sc.isComplete())
+						{
+							// Mechanism only needed the initial response
+							state = State.WAITING_FOR_OK;
+						}
 					}
 					else
 					{
@@ -377,6 +690,10 @@ public class DBusClient
 							disconnect();
 							break _outer;
 						}
+						else if(sc.isComplete())
+						{
+							state = State.WAITING_FOR_OK;
+						}
 					}
 					else if(line.startsWith("DATA"))
 					{
@@ -455,9 +772,14 @@ public class DBusClient
 		{
 			String mechanism = mechanisms.remove(0);
 			
+			// EXTERNAL sends the authorization id, which must be our user id
+			String authorizationId = "EXTERNAL".equals(mechanism) && UnixSocket.isAvailable()
+				? String.valueOf(UnixSocket.getUid())
+				: "unknown";
+				
 			sc = Sasl.createSaslClient(
 				new String[] { mechanism },
-				"unknown", 
+				authorizationId, 
 				"dbus",
 				hostname,
 				saslProperties,
@@ -489,6 +811,40 @@ public class DBusClient
 			
 			return sc;
 		}
+		
+		return null;
+	}
+	
+	/**
+	 * Read a single line of the authentication protocol. Reads byte by
+	 * byte so that no data after the line, such as a line feed that arrives
+	 * separately or the first message, is consumed.
+	 * 
+	 * @return
+	 * 		line without line ending, {@code null} if the stream ended
+	 * @throws IOException
+	 */
+	private String readLine()
+		throws IOException
+	{
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while((b = in.read()) != -1)
+		{
+			if(b == '\n')
+			{
+				byte[] data = line.toByteArray();
+				int length = data.length;
+				if(length > 0 && data[length - 1] == '\r')
+				{
+					length--;
+				}
+				
+				return new String(data, 0, length, "US-ASCII");
+			}
+			
+			line.write(b);
+		}
 
 		return null;
 	}
@@ -511,15 +867,36 @@ public class DBusClient
 
 	public void sendMessage(Message message)
 	{
+		Trace trace = Tracing.begin(Trace.Kind.QUEUE_WAIT);
+		if(trace != null)
+		{
+			message.setQueueTrace(trace);
+		}
+		
 		sendQueue.add(message);
+		
+		int depth = sendQueue.size();
+		int peak = peakQueueDepth.get();
+		while(depth > peak && false == peakQueueDepth.compareAndSet(peak, depth))
+		{
+			peak = peakQueueDepth.get();
+		}
 	}
 	
 	public Message sendBlocking(Message message)
 	{
-		long serial = message.getSerial();
+		// Use the registered future, the reply might arrive before we wait
+		Future<Message> future = sendAsync(message);
+		
+		return blocking.getReply(message.getSerial(), future);
+	}
+	
+	public Future<Message> sendAsync(Message message)
+	{
+		Future<Message> future = blocking.register(message.getSerial());
 		sendMessage(message);
 		
-		return blocking.getReply(serial);
+		return future;
 	}
 	
 	private class MessageReader
@@ -550,7 +927,11 @@ public class DBusClient
 					final Message msg = messenger.readMessage();
 					blocking.handle(msg);
 					
-					executor.execute(new Runnable()
+					Object key = dispatchKey == DispatchKey.PATH
+						? msg.getField(Message.FIELD_PATH)
+						: msg.getField(Message.FIELD_SENDER);
+					
+					executor.execute(key, new Runnable()
 					{
 						public void run()
 						{
@@ -559,6 +940,11 @@ public class DBusClient
 					});
 				}
 			}
+			catch(InterruptedException e)
+			{
+				// Disconnected while waiting for a dispatch thread
+				Thread.currentThread().interrupt();
+			}
 			catch(IOException e)
 			{
 				logger.error("Error while reading message; " + e.getMessage(), e);
@@ -589,9 +975,15 @@ public class DBusClient
 				try
 				{
 					msg = queue.take();
-					logger.debug("Sending {}", msg);
+					write(msg);
+					
+					// Write everything queued before flushing so that bursts share a write
+					while((msg = queue.poll()) != null)
+					{
+						write(msg);
+					}
 					
-					messenger.writeMessage(msg);
+					messenger.flush();
 				}
 				catch(InterruptedException e)
 				{
@@ -602,11 +994,25 @@ public class DBusClient
 				{
 					logger.error("Caught IOException while writing message;" + e.getMessage(), e);
 					
-					// Attempt reconnection
+					// Attempt reconnection, a new writer is started if it succeeds
 					reconnect();
+					return;
 				}
 			}
 		}
+		
+		private void write(Message msg)
+			throws IOException
+		{
+			Trace trace = msg.getQueueTrace();
+			if(trace != null)
+			{
+				msg.setQueueTrace(null);
+				trace.end(msg);
+			}
+			
+			messenger.writeMessage(msg, false);
+		}
 	}
 	
 }
@@ -1,5 +1,9 @@
 package se.l4.sofa.dbus.io;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -8,11 +12,15 @@ import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import se.l4.sofa.dbus.io.capture.FrameCapture;
+import se.l4.sofa.dbus.metrics.ConnectionMetrics;
 import se.l4.sofa.dbus.spi.Endian;
 import se.l4.sofa.dbus.spi.Marshalling;
 import se.l4.sofa.dbus.spi.Message;
 import se.l4.sofa.dbus.spi.Signature;
 import se.l4.sofa.dbus.spi.Struct;
+import se.l4.sofa.dbus.spi.Trace;
+import se.l4.sofa.dbus.spi.Tracing;
 
 /**
  * Messenger class that is used to send and receive messages.
@@ -27,22 +35,147 @@ public class DBusMessenger
 	private static final int PROTOCOL_VERSION = 1;
 	private static final Signature HEADER_SIG = Signature.parse("a(yv)");
 	
-	private final DBusInputStream in;
+	/** Fixed part of the header, up to and including the length of the fields */
+	private static final int PREFIX_LENGTH = 16;
+	/** Size of the write buffer, larger frames are written directly */
+	private static final int BUFFER_SIZE = 8192;
+	/** Maximum length of a message as defined by the specification */
+	private static final long MAX_MESSAGE_LENGTH = 134217728;
+	
+	private final InputStream in;
 	private final DBusOutputStream out;
 	
+	private final byte[] prefix;
+	
+	private ConnectionMetrics metrics;
+	private FrameCapture capture;
+	
 	public DBusMessenger(InputStream in, OutputStream out)
 	{
-		this.in = new DBusInputStream(in);
-		this.out = new DBusOutputStream(out);
+		this.in = in;
+		this.out = new DBusOutputStream(out == null ? null : new BufferedOutputStream(out, BUFFER_SIZE));
+		
+		prefix = new byte[PREFIX_LENGTH];
+	}
+	
+	/**
+	 * Set the metrics that messages read and written should be recorded
+	 * in. Must be set before the messenger is used.
+	 * 
+	 * @param metrics
+	 */
+	public void setMetrics(ConnectionMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Set where frames read and written should be captured.
+	 * 
+	 * @param capture
+	 * 		capture, {@code null} to stop capturing
+	 */
+	public void setCapture(FrameCapture capture)
+	{
+		this.capture = capture;
 	}
 	
 	public synchronized void writeMessage(Message m)
 		throws IOException
+	{
+		writeMessage(m, true);
+	}
+	
+	/**
+	 * Write a message, optionally leaving it buffered so that several
+	 * messages can be sent with a single write. Call {@link #flush()} after
+	 * the last message.
+	 * 
+	 * @param m
+	 * @param flush
+	 * 		if the stream should be flushed after writing
+	 * @throws IOException
+	 */
+	public synchronized void writeMessage(Message m, boolean flush)
+		throws IOException
 	{
 		logger.debug("Writing message {}", m);
 		
-		out.resetBytesWritten();
-//		out.writePad(8);
+		Trace trace = Tracing.begin(Trace.Kind.MESSAGE_WRITTEN);
+		
+		byte[] frame = m.getEncoded();
+		if(frame == null)
+		{
+			long start = System.nanoTime();
+			frame = encode(m);
+			
+			if(metrics != null)
+			{
+				metrics.messageEncoded(System.nanoTime() - start);
+			}
+		}
+		
+		out.write(frame);
+		m.setTransferTime(System.nanoTime());
+		
+		if(capture != null)
+		{
+			capture.capture(frame, FrameCapture.Direction.OUTBOUND);
+		}
+		
+		if(trace != null)
+		{
+			trace.setSize(frame.length);
+			trace.end(m);
+		}
+		
+		if(metrics != null)
+		{
+			metrics.messageWritten(m.getType(), frame.length);
+		}
+		
+		if(flush)
+		{
+			out.flush();
+		}
+	}
+	
+	/**
+	 * Flush any buffered messages.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void flush()
+		throws IOException
+	{
+		out.flush();
+	}
+	
+	/**
+	 * Get the encoded frame of a message, encoding it if it has not already
+	 * been encoded. The frame is stored in the message so that a message
+	 * sent to several peers is only encoded once.
+	 * 
+	 * @param m
+	 * @return
+	 * 		encoded frame, must not be modified
+	 * @throws IOException
+	 */
+	public static byte[] encode(Message m)
+		throws IOException
+	{
+		byte[] encoded = m.getEncoded();
+		if(encoded != null)
+		{
+			return encoded;
+		}
+		
+		Trace trace = Tracing.begin(Trace.Kind.ENCODE);
+		
+		int bodyLength = m.getBodyLength();
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(bodyLength + 128);
+		DBusOutputStream out = new DBusOutputStream(bytes);
 		
 		// Write endian and update stream to use the endian of the message
 		Endian endian = m.getEndian();
@@ -65,46 +198,57 @@ public class DBusMessenger
 		out.writeByte(m.getFlags());
 		out.writeByte(PROTOCOL_VERSION);
 
-		
 		// Length of message
-		byte[] body = m.getBody();
-		out.writeUInt32(body.length);
+		out.writeUInt32(bodyLength);
 		
 		// Serial
 		out.writeUInt32(m.getSerial());
 		
 		// Write fields
-//		out.writeUInt32(0);
-//		out.writePad(8);
 		List<Struct> fields = m.getFields();
 		Marshalling.serialize(HEADER_SIG, new Object[] { fields }, out);
 		
 		// Padding
 		out.writePad(8);
-//		long bytesWritten = out.getBytesWritten();
-//		int toWrite = 8 - (int) (bytesWritten % 8);
-//		System.out.println(bytesWritten + " " + toWrite);
-//		
-//		if(toWrite < 8)
-//		{
-//			out.write(new byte[toWrite]);
-//		}
-//		
-		// Write body
-		out.write(body);
 		
-		// Ensure that we flush
+		// Write body
+		out.write(m.getBodyData(), m.getBodyOffset(), bodyLength);
 		out.flush();
+		
+		encoded = bytes.toByteArray();
+		m.setEncoded(encoded);
+		
+		if(trace != null)
+		{
+			trace.setSize(encoded.length);
+			trace.setDetail("frame");
+			trace.end(m);
+		}
+		
+		return encoded;
 	}
 	
+	/**
+	 * Read the next message. The whole frame is read before the header is
+	 * decoded and is kept as the encoded form of the message, so a message
+	 * that is forwarded without changes is written exactly as it was read.
+	 * The body is never decoded or copied here, the message refers to it
+	 * within the frame.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
 	public Message readMessage()
 		throws IOException
 	{
-		in.resetBytesRead();
+		byte[] prefix = this.prefix;
+		readFully(prefix, 0, PREFIX_LENGTH);
+		
+		// Started after the first bytes so that idle time is not included
+		Trace trace = Tracing.begin(Trace.Kind.MESSAGE_READ);
 		
-		char c = (char) in.readByte();
-		Endian endian = null;
-		switch(c)
+		Endian endian;
+		switch(prefix[0])
 		{
 			case 'l':
 				endian = Endian.LITTLE;
@@ -113,28 +257,102 @@ public class DBusMessenger
 				endian = Endian.BIG;
 				break;
 			default:
-				throw new IOException("Unknown endian " + c);
+				throw new IOException("Unknown endian " + (char) prefix[0]);
+		}
+		
+		long bodyLength = getUInt32(prefix, 4, endian);
+		long fieldsLength = getUInt32(prefix, 12, endian);
+		
+		// Fields start after the array length and are padded to 8 bytes
+		long headerLength = (PREFIX_LENGTH + fieldsLength + 7) & ~7L;
+		long length = headerLength + bodyLength;
+		if(length > MAX_MESSAGE_LENGTH)
+		{
+			throw new IOException("Message of " + length + " bytes exceeds maximum of " + MAX_MESSAGE_LENGTH);
+		}
+		
+		byte[] frame = new byte[(int) length];
+		System.arraycopy(prefix, 0, frame, 0, PREFIX_LENGTH);
+		readFully(frame, PREFIX_LENGTH, frame.length - PREFIX_LENGTH);
+		
+		if(capture != null)
+		{
+			capture.capture(frame, FrameCapture.Direction.INBOUND);
 		}
 		
-		in.setEndian(endian);
+		long start = System.nanoTime();
+		Trace decodeTrace = Tracing.begin(Trace.Kind.DECODE);
 		
-		int type = in.readByte();
-		int flags = in.readByte();
-		int protocolVersion = in.readByte();
-		long length = in.readUInt32();
-		long serial = in.readUInt32();
+		DBusInputStream header = new DBusInputStream(
+			new ByteArrayInputStream(frame, 0, (int) headerLength)
+		);
+		header.setEndian(endian);
 		
-		List<Object> fields = Marshalling.deserialize(HEADER_SIG, in);
+		header.readByte();
+		int type = header.readByte();
+		int flags = header.readByte();
+		header.readByte();
+		header.readUInt32();
+		long serial = header.readUInt32();
 		
-		in.readPad(8);
-		byte[] data = new byte[(int) length];
-		in.read(data);
+		List<Object> fields = Marshalling.deserialize(HEADER_SIG, header);
 		
-		Message msg = new Message(endian, type, flags, serial, data);
+		header.readPad(8);
+		
+		Message msg = new Message(endian, type, flags, serial,
+			frame, (int) headerLength, (int) bodyLength);
 		msg.addFields((List<Object>) fields.get(0));
+		msg.setEncoded(frame);
+		msg.setTransferTime(start);
+		
+		if(decodeTrace != null)
+		{
+			decodeTrace.setSize((int) headerLength);
+			decodeTrace.setDetail("header");
+			decodeTrace.end(msg);
+		}
+		
+		if(trace != null)
+		{
+			trace.setSize(frame.length);
+			trace.end(msg);
+		}
+		
+		if(metrics != null)
+		{
+			metrics.messageRead(type, frame.length, System.nanoTime() - start);
+		}
 		
 		logger.debug("Read message {}", msg);
 		
 		return msg;
 	}
+	
+	private void readFully(byte[] b, int offset, int length)
+		throws IOException
+	{
+		while(length > 0)
+		{
+			int n = in.read(b, offset, length);
+			if(n < 0)
+			{
+				throw new EOFException();
+			}
+			
+			offset += n;
+			length -= n;
+		}
+	}
+	
+	private static long getUInt32(byte[] b, int offset, Endian endian)
+	{
+		long b0 = b[offset] & 0xff;
+		long b1 = b[offset + 1] & 0xff;
+		long b2 = b[offset + 2] & 0xff;
+		long b3 = b[offset + 3] & 0xff;
+		
+		return endian == Endian.LITTLE
+			? b0 | (b1 << 8) | (b2 << 16) | (b3 << 24)
+			: (b0 << 24) | (b1 << 16) | (b2 << 8) | b3;
+	}
 }
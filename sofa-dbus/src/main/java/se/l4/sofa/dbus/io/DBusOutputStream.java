@@ -81,6 +81,13 @@ public class DBusOutputStream
 		bytesWritten += len;
 	}
 	
+	@Override
+	public void flush()
+		throws IOException
+	{
+		stream.flush();
+	}
+	
 	@Override
 	public void write(byte[] b) throws IOException
 	{
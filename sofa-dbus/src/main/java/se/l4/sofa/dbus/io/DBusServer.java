@@ -1,20 +1,24 @@
 package se.l4.sofa.dbus.io;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Future;
 
 import javax.security.auth.callback.CallbackHandler;
 import javax.security.sasl.Sasl;
@@ -25,9 +29,22 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import se.l4.sofa.dbus.BusAddress;
+import se.l4.sofa.dbus.io.capture.FrameCapture;
+import se.l4.sofa.dbus.io.memory.MemoryServerSocket;
+import se.l4.sofa.dbus.io.memory.MemorySocket;
+import se.l4.sofa.dbus.io.sasl.ExternalServer;
+import se.l4.sofa.dbus.io.shm.SharedMemoryServerSocket;
+import se.l4.sofa.dbus.io.shm.SharedMemorySocket;
+import se.l4.sofa.dbus.io.unix.PeerCredentials;
+import se.l4.sofa.dbus.io.unix.UnixServerSocket;
+import se.l4.sofa.dbus.io.unix.UnixSocket;
+import se.l4.sofa.dbus.metrics.ConnectionMetrics;
+import se.l4.sofa.dbus.metrics.Metered;
 import se.l4.sofa.dbus.spi.Channel;
+import se.l4.sofa.dbus.spi.ClientListener;
 import se.l4.sofa.dbus.spi.HandlerChain;
 import se.l4.sofa.dbus.spi.Message;
+import se.l4.sofa.dbus.spi.ServerChannel;
 
 /**
  * Simple server implementation that just starts a single thread for receiving
@@ -37,7 +54,7 @@ import se.l4.sofa.dbus.spi.Message;
  *
  */
 public class DBusServer
-	implements Runnable, Channel
+	implements Runnable, ServerChannel, Metered
 {
 	private enum State
 	{
@@ -50,19 +67,43 @@ public class DBusServer
 	
 	private static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
 	
+	/** Used to give every server a unique name for its metrics */
+	private static final AtomicInteger ids = new AtomicInteger();
+	
+	/**
+	 * Metrics of a client are only updated by the threads serving it, the
+	 * totals of the server are striped fully.
+	 */
+	private static final int CLIENT_METRICS_STRIPES = 2;
+	
 	private final String[] mechanisms;
 	private final CallbackHandler handler;
 	private final BusAddress addr;
 	private final String uuid;
 	private final HandlerChain chain;
+	private final ConnectionMetrics metrics;
+	private final int id;
+	private final AtomicInteger clientIds;
 	
 	private Thread ownThread;
+	private ServerSocket serverSocket;
+	private UnixServerSocket unixServerSocket;
+	private MemoryServerSocket memoryServerSocket;
+	private SharedMemoryServerSocket sharedMemoryServerSocket;
 	
 	private Map<String, Object> saslProperties;
 	
 	private long serial;
 	
-	private List<Channel> clients;
+	private final List<Channel> clients;
+	private final List<ClientListener> listeners;
+	
+	private int maxQueuedMessages;
+	private long maxQueuedBytes;
+	private OutboundQueue.Policy slowClientPolicy;
+	private long slowClientGrace;
+	
+	private FrameCapture capture;
 	
 	public DBusServer(BusAddress addr, HandlerChain chain,
 			String[] mechanisms, CallbackHandler handler)
@@ -79,7 +120,152 @@ public class DBusServer
 		
 		serial = 1;
 		
-		clients = new LinkedList<Channel>();
+		clients = new CopyOnWriteArrayList<Channel>();
+		listeners = new CopyOnWriteArrayList<ClientListener>();
+		
+		slowClientPolicy = OutboundQueue.Policy.BLOCK;
+		slowClientGrace = 5000;
+		
+		id = ids.incrementAndGet();
+		clientIds = new AtomicInteger();
+		metrics = new ConnectionMetrics(String.valueOf(addr), null, new ConnectionMetrics.Gauges()
+		{
+			public int getQueueDepth()
+			{
+				int result = 0;
+				for(Channel c : clients)
+				{
+					result += ((ClientHandler) c).queue.getMessageCount();
+				}
+				
+				return result;
+			}
+			
+			public int getPeakQueueDepth()
+			{
+				int result = 0;
+				for(Channel c : clients)
+				{
+					result = Math.max(result, ((ClientHandler) c).queue.getPeakMessageCount());
+				}
+				
+				return result;
+			}
+			
+			public int getPendingReplies()
+			{
+				int result = 0;
+				for(Channel c : clients)
+				{
+					result += ((ClientHandler) c).blocking.getPendingCount();
+				}
+				
+				return result;
+			}
+		});
+	}
+	
+	/**
+	 * Get the metrics of this server, these are the totals of all clients
+	 * that have been connected. The queue depth and pending replies are
+	 * summed over the connected clients and the peak queue depth is the
+	 * highest of any connected client. Every client also has its own
+	 * metrics registered while it is connected.
+	 * 
+	 * @return
+	 */
+	public ConnectionMetrics getMetrics()
+	{
+		return metrics;
+	}
+	
+	/**
+	 * Set the limits for messages waiting to be written to a single client.
+	 * Only applies to clients that connect after the limits are set.
+	 * 
+	 * @param messages
+	 * 		maximum number of messages, {@code 0} for no limit
+	 * @param bytes
+	 * 		maximum number of encoded bytes, {@code 0} for no limit
+	 */
+	public void setClientQueueLimits(int messages, long bytes)
+	{
+		if(messages < 0 || bytes < 0)
+		{
+			throw new IllegalArgumentException("Limits can not be negative");
+		}
+		
+		this.maxQueuedMessages = messages;
+		this.maxQueuedBytes = bytes;
+	}
+	
+	/**
+	 * Set what happens when a client reaches its queue limits. Defaults to
+	 * blocking the sender.
+	 * 
+	 * @param policy
+	 * @param graceMillis
+	 * 		time a client may stay over its limits before being disconnected,
+	 * 		only used with {@link OutboundQueue.Policy#DISCONNECT}
+	 */
+	public void setSlowClientPolicy(OutboundQueue.Policy policy, long graceMillis)
+	{
+		if(policy == null)
+		{
+			throw new IllegalArgumentException("A policy is required");
+		}
+		
+		this.slowClientPolicy = policy;
+		this.slowClientGrace = graceMillis;
+	}
+	
+	/**
+	 * Capture every frame read and written by clients of this server, such
+	 * as with a {@link se.l4.sofa.dbus.io.capture.PcapRingCapture}. Only
+	 * applies to clients that connect after the capture is set.
+	 * 
+	 * @param capture
+	 * 		capture shared by all clients, {@code null} to stop capturing
+	 */
+	public void setCapture(FrameCapture capture)
+	{
+		this.capture = capture;
+	}
+	
+	/**
+	 * Get the outbound queues of the clients with the most bytes waiting to
+	 * be written, worst first.
+	 * 
+	 * @param count
+	 * 		maximum number of queues to return
+	 * @return
+	 */
+	public List<OutboundQueue> getWorstClientQueues(int count)
+	{
+		List<OutboundQueue> result = new ArrayList<OutboundQueue>();
+		for(Channel c : clients)
+		{
+			result.add(((ClientHandler) c).queue);
+		}
+		
+		Collections.sort(result, new Comparator<OutboundQueue>()
+		{
+			public int compare(OutboundQueue o1, OutboundQueue o2)
+			{
+				long b1 = o1.getByteCount();
+				long b2 = o2.getByteCount();
+				if(b1 != b2)
+				{
+					return b1 > b2 ? -1 : 1;
+				}
+				
+				long d1 = o1.getDropped();
+				long d2 = o2.getDropped();
+				return d1 == d2 ? 0 : (d1 > d2 ? -1 : 1);
+			}
+		});
+		
+		return result.size() > count ? result.subList(0, count) : result;
 	}
 	
 	public boolean isConnected()
@@ -87,18 +273,45 @@ public class DBusServer
 		return ownThread != null;
 	}
 	
+	/**
+	 * Bind the server and start accepting clients in a separate thread.
+	 * 
+	 * @throws IOException
+	 * 		if unable to bind
+	 */
 	public void start()
+		throws IOException
 	{
+		bind();
+		
 		ownThread = new Thread(this, "dbus-server");
 		ownThread.start();
 	}
 	
-	public void run()
+	/**
+	 * Bind the server to the address it was created with.
+	 * 
+	 * @throws IOException
+	 */
+	private void bind()
+		throws IOException
 	{
 		String proto = addr.getProtocol();
 		if("tcp".equals(proto))
 		{
-			runTCP();
+			bindTCP();
+		}
+		else if("unix".equals(proto))
+		{
+			bindUnix();
+		}
+		else if("memory".equals(proto))
+		{
+			bindMemory();
+		}
+		else if("shm".equals(proto))
+		{
+			bindSharedMemory();
 		}
 		else
 		{
@@ -106,7 +319,8 @@ public class DBusServer
 		}
 	}
 	
-	public void runTCP()
+	private void bindTCP()
+		throws IOException
 	{
 		String hostname = addr.getParameter("host");
 		int port = addr.getIntParameter("port");
@@ -116,25 +330,114 @@ public class DBusServer
 			throw new IllegalArgumentException("No valid port specified");
 		}
 		
+		serverSocket = new ServerSocket();
+		if(hostname != null)
+		{
+			serverSocket.bind(new InetSocketAddress(hostname, port));
+		}
+		else
+		{
+			serverSocket.bind(new InetSocketAddress(port));
+		}
+	}
+	
+	private void bindUnix()
+		throws IOException
+	{
+		String abstractPath = addr.getParameter("abstract");
+		String normalPath = addr.getParameter("path");
+		
+		String path;
+		if(abstractPath != null)
+		{
+			path = "\0" + abstractPath; // Linux abstract path
+		}
+		else if(normalPath != null)
+		{
+			path = normalPath;
+		}
+		else
+		{
+			throw new IllegalArgumentException("Unix server, requires socket in either path or abstract variable");
+		}
+		
+		UnixServerSocket socket = new UnixServerSocket(path);
+		socket.bind();
+		
+		unixServerSocket = socket;
+	}
+	
+	private void bindMemory()
+		throws IOException
+	{
+		String name = addr.getParameter("name");
+		if(name == null)
+		{
+			throw new IllegalArgumentException("Memory server, requires a name");
+		}
+		
+		MemoryServerSocket socket = new MemoryServerSocket(name);
+		socket.bind();
+		
+		memoryServerSocket = socket;
+	}
+	
+	private void bindSharedMemory()
+		throws IOException
+	{
+		String path = addr.getParameter("path");
+		if(path == null)
+		{
+			throw new IllegalArgumentException("Shared memory server, requires a path");
+		}
+		
+		SharedMemoryServerSocket socket = new SharedMemoryServerSocket(path);
+		socket.bind();
+		
+		sharedMemoryServerSocket = socket;
+	}
+	
+	/**
+	 * Get the port the server is listening on, useful when the server was
+	 * started with port 0.
+	 * 
+	 * @return
+	 * 		port, or {@code -1} if not bound
+	 */
+	public int getLocalPort()
+	{
+		return serverSocket == null ? -1 : serverSocket.getLocalPort();
+	}
+	
+	/**
+	 * Get the UUID of this server, sent to clients during authentication.
+	 * 
+	 * @return
+	 */
+	public String getUuid()
+	{
+		return uuid;
+	}
+	
+	public void run()
+	{
 		try
 		{
-			ServerSocket socket = new ServerSocket();
-			if(hostname != null)
-			{
-				socket.bind(new InetSocketAddress(hostname, port));
-			}
-			else
+			if(serverSocket == null && unixServerSocket == null 
+				&& memoryServerSocket == null && sharedMemoryServerSocket == null)
 			{
-				socket.bind(new InetSocketAddress(port));
+				bind();
 			}
 			
+			metrics.register("DBusServer", String.valueOf(id));
+			
 			while(false == Thread.interrupted())
 			{
 				try
 				{
-					Socket client = socket.accept();
+					Endpoint client = accept();
 					
-					logger.info("New client {}", client.getInetAddress());
+					logger.info("New client {}", client);
 					
 					ClientHandler handler 
 						= new ClientHandler(client, chain, mechanisms);
@@ -145,28 +448,118 @@ public class DBusServer
 				}
 				catch(IOException e)
 				{
+					if(isClosed())
+					{
+						break;
+					}
+					
 					logger.error("Could not accept incoming connetion; " + e.getMessage(), e);
 				}
 			}
 		}
 		catch(IOException e)
 		{
-			e.printStackTrace();
+			logger.error("Unable to start server; " + e.getMessage(), e);
+		}
+		finally
+		{
+			metrics.unregister();
+		}
+	}
+	
+	private Endpoint accept()
+		throws IOException
+	{
+		if(unixServerSocket != null)
+		{
+			return new UnixEndpoint(unixServerSocket.accept());
+		}
+		else if(memoryServerSocket != null)
+		{
+			return new MemoryEndpoint(memoryServerSocket.accept());
+		}
+		else if(sharedMemoryServerSocket != null)
+		{
+			return new SharedMemoryEndpoint(sharedMemoryServerSocket.accept());
+		}
+		
+		return new TcpEndpoint(serverSocket.accept());
+	}
+	
+	private boolean isClosed()
+	{
+		if(unixServerSocket != null)
+		{
+			return unixServerSocket.isClosed();
+		}
+		else if(memoryServerSocket != null)
+		{
+			return memoryServerSocket.isClosed();
+		}
+		else if(sharedMemoryServerSocket != null)
+		{
+			return sharedMemoryServerSocket.isClosed();
 		}
+		
+		return serverSocket.isClosed();
 	}
 	
 	public void close()
 		throws IOException
 	{
+		if(serverSocket != null)
+		{
+			serverSocket.close();
+		}
+		
+		if(unixServerSocket != null)
+		{
+			unixServerSocket.close();
+		}
+		
+		if(memoryServerSocket != null)
+		{
+			memoryServerSocket.close();
+		}
+		
+		if(sharedMemoryServerSocket != null)
+		{
+			sharedMemoryServerSocket.close();
+		}
+		
+		/*
+		 * Interrupt after closing so that accept sees the socket as closed
+		 * when interrupted and stops without reporting an error.
+		 */
 		if(ownThread != null)
 		{
 			ownThread.interrupt();
 		}
+		
+		for(Channel c : clients)
+		{
+			((ClientHandler) c).disconnect();
+		}
+		
+		metrics.unregister();
+	}
+	
+	private void clientConnected(Channel c)
+	{
+		for(ClientListener listener : listeners)
+		{
+			listener.clientConnected(c);
+		}
 	}
 	
 	private void clientDisconnected(Channel c)
 	{
 		clients.remove(c);
+		
+		for(ClientListener listener : listeners)
+		{
+			listener.clientDisconnected(c);
+		}
 	}
 	
 	public List<Channel> getClients()
@@ -174,17 +567,81 @@ public class DBusServer
 		return clients;
 	}
 	
+	/**
+	 * Disconnect one of the clients of this server.
+	 * 
+	 * @param client
+	 */
+	public void disconnect(Channel client)
+	{
+		if(client instanceof ClientHandler && clients.contains(client))
+		{
+			((ClientHandler) client).disconnect();
+		}
+	}
+	
+	public void addClientListener(ClientListener listener)
+	{
+		listeners.add(listener);
+	}
+	
+	public void removeClientListener(ClientListener listener)
+	{
+		listeners.remove(listener);
+	}
+	
 	public void sendMessage(Message message)
 	{
+		try
+		{
+			// Encode once, the frame is then shared by all client writers
+			if(message.getEncoded() == null)
+			{
+				long start = System.nanoTime();
+				DBusMessenger.encode(message);
+				metrics.messageEncoded(System.nanoTime() - start);
+			}
+		}
+		catch(IOException e)
+		{
+			logger.error("Unable to encode message " + message + "; " + e.getMessage(), e);
+			return;
+		}
+		
 		for(Channel c : clients)
 		{
 			c.sendMessage(message);
 		}
 	}
 	
+	/**
+	 * Send a message and wait for the reply. Only supported if a single
+	 * client is connected, such as when used for a peer-to-peer connection.
+	 */
 	public Message sendBlocking(Message message)
 	{
-		throw new IllegalStateException("DBus server does not support sending blocking messages to all clients");
+		return getSingleClient().sendBlocking(message);
+	}
+	
+	/**
+	 * Send a message and return a future for the reply. Only supported if a
+	 * single client is connected.
+	 */
+	public Future<Message> sendAsync(Message message)
+	{
+		return getSingleClient().sendAsync(message);
+	}
+	
+	private Channel getSingleClient()
+	{
+		Iterator<Channel> it = clients.iterator();
+		Channel client = it.hasNext() ? it.next() : null;
+		if(client == null || it.hasNext())
+		{
+			throw new IllegalStateException("DBus server can only wait for replies when exactly one client is connected");
+		}
+		
+		return client;
 	}
 	
 	public long nextSerial()
@@ -193,14 +650,16 @@ public class DBusServer
 	}
 	
 	private class ClientHandler
-		implements Channel, Runnable
+		implements Channel, Runnable, Metered
 	{
-		private Socket socket;
+		private Endpoint socket;
 		private final String[] mechanisms;
 		private final HandlerChain chain;
 		
-		private final BlockingQueue<Message> sendQueue;
+		private final OutboundQueue queue;
 		private final BlockingHelper blocking;
+		private final ConnectionMetrics clientMetrics;
+		private final String clientId;
 		
 		private InputStream in;
 		private OutputStream out;
@@ -209,14 +668,34 @@ public class DBusServer
 		private Thread writerThread;
 		private Thread readerThread;
 		
-		public ClientHandler(Socket socket, HandlerChain chain, String[] mechanisms)
+		public ClientHandler(Endpoint socket, HandlerChain chain, String[] mechanisms)
 		{
 			this.socket = socket;
 			this.mechanisms = mechanisms;
 			this.chain = chain;
-			sendQueue = new LinkedBlockingQueue<Message>();
+			queue = new OutboundQueue(socket.toString(), maxQueuedMessages, 
+				maxQueuedBytes, slowClientPolicy, slowClientGrace);
+			
+			clientId = id + "." + clientIds.incrementAndGet();
+			clientMetrics = new ConnectionMetrics(socket.toString(), metrics, new ConnectionMetrics.Gauges()
+			{
+				public int getQueueDepth()
+				{
+					return queue.getMessageCount();
+				}
+				
+				public int getPeakQueueDepth()
+				{
+					return queue.getPeakMessageCount();
+				}
+				
+				public int getPendingReplies()
+				{
+					return blocking.getPendingCount();
+				}
+			}, CLIENT_METRICS_STRIPES);
 			
-			this.blocking = new BlockingHelper();
+			this.blocking = new BlockingHelper(clientMetrics);
 			
 			// Our serials start at 1
 			serial = 1;
@@ -227,6 +706,11 @@ public class DBusServer
 			return socket != null;
 		}
 		
+		public ConnectionMetrics getMetrics()
+		{
+			return clientMetrics;
+		}
+		
 		public void start()
 		{
 			readerThread = new Thread(this, "dbus-reader [" + socket + "]");
@@ -235,31 +719,67 @@ public class DBusServer
 		
 		public void sendMessage(Message message)
 		{
-			sendQueue.add(message);
+			boolean keep;
+			try
+			{
+				keep = queue.put(message);
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+			
+			if(false == keep && isConnected())
+			{
+				logger.warn("Disconnecting slow client {}", queue);
+				disconnect();
+			}
 		}
 		
 		public Message sendBlocking(Message message)
 		{
-			long serial = message.getSerial();
+			// Use the registered future, the reply might arrive before we wait
+			Future<Message> future = sendAsync(message);
+			
+			return blocking.getReply(message.getSerial(), future);
+		}
+		
+		public Future<Message> sendAsync(Message message)
+		{
+			Future<Message> future = blocking.register(message.getSerial());
 			sendMessage(message);
 			
-			return blocking.getReply(serial);
+			return future;
 		}
 		
 		public void disconnect()
 		{
-			try
+			Endpoint socket;
+			synchronized(this)
 			{
-				socket.close();
+				if(this.socket == null)
+				{
+					return;
+				}
+				
+				socket = this.socket;
+				this.socket = null;
 			}
-			catch(IOException e)
+			
+			socket.close();
+			
+			queue.close();
+			
+			if(writerThread != null)
 			{
+				writerThread.interrupt();
 			}
 			
-			writerThread.interrupt();
 			readerThread.interrupt();
 			
-			socket = null;
+			blocking.failAll(new IOException("Client disconnected"));
+			clientMetrics.unregister();
 			
 			// Notify server we have disconnected
 			clientDisconnected(this);
@@ -270,15 +790,24 @@ public class DBusServer
 			try
 			{
 				// First step is to negotiate
-				negotiate();
+				if(false == negotiate())
+				{
+					disconnect();
+					return;
+				}
 
 				// If negotation worked, start a write thread
 				DBusMessenger messenger = new DBusMessenger(in, out);
+				messenger.setMetrics(clientMetrics);
+				messenger.setCapture(capture);
 				
-				MessageWriter writer = new MessageWriter(messenger, sendQueue);
+				MessageWriter writer = new MessageWriter(messenger, queue);
 				writerThread = new Thread(writer, "dbus-sender [" + socket + "]");
 				writerThread.start();
 				
+				clientMetrics.register("ClientHandler", clientId);
+				clientConnected(this);
+				
 				// This thread is now the read thread
 				while(false == Thread.interrupted())
 				{
@@ -288,9 +817,18 @@ public class DBusServer
 					chain.handle(msg, ClientHandler.this);
 				}
 			}
+			catch(EOFException e)
+			{
+				logger.debug("Client disconnected");
+				
+				disconnect();
+			}
 			catch(IOException e)
 			{
-				logger.error("Caught IOException while reading message; " + e.getMessage(), e);
+				if(isConnected())
+				{
+					logger.error("Caught IOException while reading message; " + e.getMessage(), e);
+				}
 				
 				disconnect();
 			}
@@ -301,7 +839,14 @@ public class DBusServer
 			return serial++;
 		}
 		
-		private void negotiate()
+		/**
+		 * Perform authentication of the client.
+		 * 
+		 * @return
+		 * 		{@code true} if the client sent {@code BEGIN}
+		 * @throws IOException
+		 */
+		private boolean negotiate()
 			throws IOException
 		{
 			this.in = socket.getInputStream();
@@ -331,22 +876,16 @@ public class DBusServer
 			if(nul != 0)
 			{
 				// Disconnect if first byte is not NUL
-				socket.close();
-				return;
+				return false;
 			}
 			
-			BufferedReader reader = new BufferedReader(
-				new InputStreamReader(in)
-			);
-			
 			SaslServer sasl = null;
 			
 			String[] data;
 			byte[] response;
 			
 			String line;
-			_outer:
-			while((line = reader.readLine()) != null)
+			while((line = readLine()) != null)
 			{
 				logger.debug("C: {}", line);
 				logger.trace("State {}", state);
@@ -372,7 +911,7 @@ public class DBusServer
 							data[1], 
 							"dbus", 
 							"", 
-							saslProperties, 
+							getSaslProperties(), 
 							handler
 						);
 						
@@ -467,7 +1006,7 @@ public class DBusServer
 						
 						if(line.equals("BEGIN"))
 						{
-							break _outer;
+							return true;
 						}
 						else if(line.equals("CANCEL"))
 						{
@@ -482,6 +1021,61 @@ public class DBusServer
 						break;
 				}
 			}
+			
+			return false;
+		}
+		
+		/**
+		 * Get the properties for the SASL server, including the user id of
+		 * the peer if the transport knows it.
+		 * 
+		 * @return
+		 */
+		private Map<String, Object> getSaslProperties()
+		{
+			PeerCredentials credentials = socket.getCredentials();
+			if(credentials == null)
+			{
+				return saslProperties;
+			}
+			
+			Map<String, Object> result = new HashMap<String, Object>(saslProperties);
+			result.put(ExternalServer.PEER_UID, String.valueOf(credentials.getUid()));
+			
+			return result;
+		}
+		
+		/**
+		 * Read a single line of the authentication protocol. Reads byte by
+		 * byte so that no data after {@code BEGIN} is consumed.
+		 * 
+		 * @return
+		 * 		line without line ending, {@code null} if the stream ended
+		 * @throws IOException
+		 */
+		private String readLine()
+			throws IOException
+		{
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			int b;
+			while((b = in.read()) != -1)
+			{
+				if(b == '\n')
+				{
+					byte[] data = line.toByteArray();
+					int length = data.length;
+					if(length > 0 && data[length - 1] == '\r')
+					{
+						length--;
+					}
+					
+					return new String(data, 0, length, "US-ASCII");
+				}
+				
+				line.write(b);
+			}
+			
+			return null;
 		}
 		
 		private void sendSaslCommand(String s)
@@ -513,9 +1107,9 @@ public class DBusServer
 		implements Runnable
 	{
 		private final DBusMessenger messenger;
-		private final BlockingQueue<Message> queue;
+		private final OutboundQueue queue;
 		
-		public MessageWriter(DBusMessenger messenger, BlockingQueue<Message> queue)
+		public MessageWriter(DBusMessenger messenger, OutboundQueue queue)
 		{
 			this.messenger = messenger;
 			this.queue = queue;
@@ -529,7 +1123,15 @@ public class DBusServer
 				try
 				{
 					msg = queue.take();
-					messenger.writeMessage(msg);
+					messenger.writeMessage(msg, false);
+					
+					// Write everything queued before flushing so that bursts share a write
+					while((msg = queue.poll()) != null)
+					{
+						messenger.writeMessage(msg, false);
+					}
+					
+					messenger.flush();
 				}
 				catch(InterruptedException e)
 				{
@@ -544,4 +1146,201 @@ public class DBusServer
 		}
 	}
 	
+	/** Connection to a client, independent of transport. */
+	private interface Endpoint
+	{
+		InputStream getInputStream()
+			throws IOException;
+			
+		OutputStream getOutputStream()
+			throws IOException;
+			
+		/**
+		 * Get the credentials of the client if the transport supports it.
+		 * 
+		 * @return
+		 * 		credentials, or {@code null} if unknown
+		 */
+		PeerCredentials getCredentials();
+		
+		void close();
+	}
+	
+	private static class TcpEndpoint
+		implements Endpoint
+	{
+		private final Socket socket;
+		
+		public TcpEndpoint(Socket socket)
+		{
+			this.socket = socket;
+		}
+		
+		public InputStream getInputStream()
+			throws IOException
+		{
+			return socket.getInputStream();
+		}
+		
+		public OutputStream getOutputStream()
+			throws IOException
+		{
+			return socket.getOutputStream();
+		}
+		
+		public PeerCredentials getCredentials()
+		{
+			return null;
+		}
+		
+		public void close()
+		{
+			try
+			{
+				socket.close();
+			}
+			catch(IOException e)
+			{
+			}
+		}
+		
+		@Override
+		public String toString()
+		{
+			return socket.toString();
+		}
+	}
+	
+	private static class UnixEndpoint
+		implements Endpoint
+	{
+		private final UnixSocket socket;
+		private final PeerCredentials credentials;
+		
+		public UnixEndpoint(UnixSocket socket)
+		{
+			this.socket = socket;
+			
+			PeerCredentials credentials;
+			try
+			{
+				credentials = socket.getPeerCredentials();
+			}
+			catch(IOException e)
+			{
+				logger.debug("Unable to get peer credentials; {}", e.getMessage());
+				credentials = null;
+			}
+			
+			this.credentials = credentials;
+		}
+		
+		public InputStream getInputStream()
+		{
+			return socket.getInputStream();
+		}
+		
+		public OutputStream getOutputStream()
+		{
+			return socket.getOutputStream();
+		}
+		
+		public PeerCredentials getCredentials()
+		{
+			return credentials;
+		}
+		
+		public void close()
+		{
+			try
+			{
+				socket.close();
+			}
+			catch(IOException e)
+			{
+			}
+		}
+		
+		@Override
+		public String toString()
+		{
+			return credentials == null 
+				? "unix"
+				: "unix[pid=" + credentials.getPid() + ", uid=" + credentials.getUid() + "]";
+		}
+	}
+	
+	private static class MemoryEndpoint
+		implements Endpoint
+	{
+		private final MemorySocket socket;
+		
+		public MemoryEndpoint(MemorySocket socket)
+		{
+			this.socket = socket;
+		}
+		
+		public InputStream getInputStream()
+		{
+			return socket.getInputStream();
+		}
+		
+		public OutputStream getOutputStream()
+		{
+			return socket.getOutputStream();
+		}
+		
+		public PeerCredentials getCredentials()
+		{
+			return null;
+		}
+		
+		public void close()
+		{
+			socket.close();
+		}
+		
+		@Override
+		public String toString()
+		{
+			return socket.toString();
+		}
+	}
+	
+	private static class SharedMemoryEndpoint
+		implements Endpoint
+	{
+		private final SharedMemorySocket socket;
+		
+		public SharedMemoryEndpoint(SharedMemorySocket socket)
+		{
+			this.socket = socket;
+		}
+		
+		public InputStream getInputStream()
+		{
+			return socket.getInputStream();
+		}
+		
+		public OutputStream getOutputStream()
+		{
+			return socket.getOutputStream();
+		}
+		
+		public PeerCredentials getCredentials()
+		{
+			return null;
+		}
+		
+		public void close()
+		{
+			socket.close();
+		}
+		
+		@Override
+		public String toString()
+		{
+			return socket.toString();
+		}
+	}
 }
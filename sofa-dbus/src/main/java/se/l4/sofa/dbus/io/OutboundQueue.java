@@ -0,0 +1,361 @@
+package se.l4.sofa.dbus.io;
+
+import java.io.IOException;
+import java.util.LinkedList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.l4.sofa.dbus.spi.Message;
+import se.l4.sofa.dbus.spi.Trace;
+import se.l4.sofa.dbus.spi.Tracing;
+
+/**
+ * Queue of messages waiting to be written to a single client, with limits
+ * on the number of messages and the number of encoded bytes it may hold.
+ * What happens when a limit is reached is decided by a {@link Policy}.
+ * 
+ * <p>
+ * Messages are encoded when queued so that their size is known, the writer
+ * then reuses the encoded frame.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class OutboundQueue
+{
+	/** What to do when a client does not keep up. */
+	public enum Policy
+	{
+		/** Block the thread sending the message until there is room. */
+		BLOCK,
+		/** 
+		 * Drop signals when the queue is full, method calls, replies and
+		 * errors are always queued.
+		 */
+		DROP_SIGNALS,
+		/** 
+		 * Queue everything but disconnect the client if it stays over its
+		 * limits for longer than the grace period.
+		 */
+		DISCONNECT
+	}
+	
+	private static final Logger logger = LoggerFactory.getLogger(OutboundQueue.class);
+	
+	private final String name;
+	private final int maxMessages;
+	private final long maxBytes;
+	private final Policy policy;
+	private final long graceMillis;
+	
+	private final LinkedList<Entry> queue;
+	
+	private long bytes;
+	private long peakBytes;
+	private int peakMessages;
+	private long dropped;
+	private long blockedMillis;
+	private long overSince;
+	private boolean closed;
+	
+	/**
+	 * Create a new queue.
+	 * 
+	 * @param name
+	 * 		name of the client, used for logging and metrics
+	 * @param maxMessages
+	 * 		maximum number of queued messages, {@code 0} for no limit
+	 * @param maxBytes
+	 * 		maximum number of queued bytes, {@code 0} for no limit
+	 * @param policy
+	 * 		what to do when a limit is reached
+	 * @param graceMillis
+	 * 		time a client may stay over its limits with
+	 * 		{@link Policy#DISCONNECT}
+	 */
+	public OutboundQueue(String name, int maxMessages, long maxBytes, 
+			Policy policy, long graceMillis)
+	{
+		if(maxMessages < 0 || maxBytes < 0)
+		{
+			throw new IllegalArgumentException("Limits can not be negative");
+		}
+		
+		if(policy == null)
+		{
+			throw new IllegalArgumentException("A policy is required");
+		}
+		
+		this.name = name;
+		this.maxMessages = maxMessages;
+		this.maxBytes = maxBytes;
+		this.policy = policy;
+		this.graceMillis = graceMillis;
+		
+		queue = new LinkedList<Entry>();
+	}
+	
+	/**
+	 * Queue a message for writing.
+	 * 
+	 * @param message
+	 * @return
+	 * 		{@code false} if the client should be disconnected
+	 * @throws InterruptedException
+	 * 		if interrupted while blocked waiting for room
+	 */
+	boolean put(Message message)
+		throws InterruptedException
+	{
+		int size;
+		try
+		{
+			size = DBusMessenger.encode(message).length;
+		}
+		catch(IOException e)
+		{
+			logger.error("Unable to encode " + message + "; " + e.getMessage(), e);
+			return true;
+		}
+		
+		synchronized(this)
+		{
+			if(closed)
+			{
+				return false;
+			}
+			
+			if(isFull(size))
+			{
+				switch(policy)
+				{
+					case BLOCK:
+						long start = System.currentTimeMillis();
+						while(isFull(size) && false == closed)
+						{
+							wait();
+						}
+						
+						blockedMillis += System.currentTimeMillis() - start;
+						
+						if(closed)
+						{
+							return false;
+						}
+						
+						break;
+					case DROP_SIGNALS:
+						if(message.getType() == Message.TYPE_SIGNAL)
+						{
+							dropped++;
+							return true;
+						}
+						
+						break;
+					case DISCONNECT:
+						long now = System.currentTimeMillis();
+						if(overSince == 0)
+						{
+							overSince = now;
+						}
+						else if(now - overSince > graceMillis)
+						{
+							logger.warn("{} has been over its queue limits for {} ms", name, now - overSince);
+							return false;
+						}
+						
+						break;
+				}
+			}
+			
+			queue.addLast(new Entry(message, size, Tracing.begin(Trace.Kind.QUEUE_WAIT)));
+			bytes += size;
+			
+			if(bytes > peakBytes)
+			{
+				peakBytes = bytes;
+			}
+			
+			if(queue.size() > peakMessages)
+			{
+				peakMessages = queue.size();
+			}
+			
+			notifyAll();
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Check if a message of the given size would put the queue over its
+	 * limits. An empty queue always accepts a message so that a single large
+	 * message can not block forever.
+	 * 
+	 * @param size
+	 * @return
+	 */
+	private boolean isFull(int size)
+	{
+		if(queue.isEmpty())
+		{
+			return false;
+		}
+		
+		return (maxMessages > 0 && queue.size() >= maxMessages)
+			|| (maxBytes > 0 && bytes + size > maxBytes);
+	}
+	
+	/**
+	 * Wait for the next message to write.
+	 * 
+	 * @return
+	 * @throws InterruptedException
+	 */
+	synchronized Message take()
+		throws InterruptedException
+	{
+		while(queue.isEmpty())
+		{
+			wait();
+		}
+		
+		return remove();
+	}
+	
+	/**
+	 * Get the next message to write without waiting.
+	 * 
+	 * @return
+	 * 		message, or {@code null} if the queue is empty
+	 */
+	synchronized Message poll()
+	{
+		return queue.isEmpty() ? null : remove();
+	}
+	
+	private Message remove()
+	{
+		Entry e = queue.removeFirst();
+		bytes -= e.size;
+		
+		if(e.trace != null)
+		{
+			e.trace.setSize(e.size);
+			e.trace.end(e.message);
+		}
+		
+		if(false == isFull(0))
+		{
+			overSince = 0;
+		}
+		
+		notifyAll();
+		
+		return e.message;
+	}
+	
+	/**
+	 * Close the queue, waking up any blocked senders.
+	 */
+	synchronized void close()
+	{
+		closed = true;
+		queue.clear();
+		bytes = 0;
+		
+		notifyAll();
+	}
+	
+	/**
+	 * Get the name of the client this queue belongs to.
+	 * 
+	 * @return
+	 */
+	public String getName()
+	{
+		return name;
+	}
+	
+	/**
+	 * Get the number of messages waiting to be written.
+	 * 
+	 * @return
+	 */
+	public synchronized int getMessageCount()
+	{
+		return queue.size();
+	}
+	
+	/**
+	 * Get the number of encoded bytes waiting to be written.
+	 * 
+	 * @return
+	 */
+	public synchronized long getByteCount()
+	{
+		return bytes;
+	}
+	
+	/**
+	 * Get the highest number of messages that have been queued at once.
+	 * 
+	 * @return
+	 */
+	public synchronized int getPeakMessageCount()
+	{
+		return peakMessages;
+	}
+	
+	/**
+	 * Get the highest number of bytes that have been queued at once.
+	 * 
+	 * @return
+	 */
+	public synchronized long getPeakByteCount()
+	{
+		return peakBytes;
+	}
+	
+	/**
+	 * Get the number of signals dropped because the queue was full.
+	 * 
+	 * @return
+	 */
+	public synchronized long getDropped()
+	{
+		return dropped;
+	}
+	
+	/**
+	 * Get the total time senders have been blocked waiting for room.
+	 * 
+	 * @return
+	 */
+	public synchronized long getBlockedMillis()
+	{
+		return blockedMillis;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "OutboundQueue[" + name + ", messages=" + getMessageCount() 
+			+ ", bytes=" + getByteCount() + ", dropped=" + getDropped() + "]";
+	}
+	
+	private static class Entry
+	{
+		private final Message message;
+		private final int size;
+		private final Trace trace;
+		
+		public Entry(Message message, int size, Trace trace)
+		{
+			this.message = message;
+			this.size = size;
+			this.trace = trace;
+		}
+	}
+}
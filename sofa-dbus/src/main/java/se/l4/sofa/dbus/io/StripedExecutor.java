@@ -0,0 +1,173 @@
+package se.l4.sofa.dbus.io;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executor that runs tasks on a fixed number of lanes, each lane being a
+ * single thread with its own queue. Tasks are assigned to a lane based on a
+ * key, tasks with the same key are always run in the order they were
+ * submitted while tasks with different keys can run in parallel.
+ * 
+ * <p>
+ * Lanes can be bounded in which case {@link #execute(Object, Runnable)}
+ * blocks until there is room in the queue of the lane.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class StripedExecutor
+{
+	private static final Logger logger = LoggerFactory.getLogger(StripedExecutor.class);
+	
+	private final Lane[] lanes;
+	
+	/**
+	 * Create a new executor.
+	 * 
+	 * @param name
+	 * 		prefix used for the name of the lane threads
+	 * @param laneCount
+	 * 		number of lanes
+	 * @param queueSize
+	 * 		maximum number of tasks waiting in every lane
+	 */
+	public StripedExecutor(String name, int laneCount, int queueSize)
+	{
+		if(laneCount < 1)
+		{
+			throw new IllegalArgumentException("At least one lane is required");
+		}
+		
+		if(queueSize < 1)
+		{
+			throw new IllegalArgumentException("Queue size must be at least 1");
+		}
+		
+		lanes = new Lane[laneCount];
+		for(int i=0; i<laneCount; i++)
+		{
+			lanes[i] = new Lane(name + "-" + (i + 1), queueSize);
+			lanes[i].thread.start();
+		}
+	}
+	
+	/**
+	 * Run the given task on the lane for the given key. Blocks if the lane
+	 * is full.
+	 * 
+	 * @param key
+	 * 		key used to select lane, {@code null} always selects the first
+	 * 		lane
+	 * @param task
+	 * @throws InterruptedException
+	 * 		if interrupted while waiting for room in the lane
+	 */
+	public void execute(Object key, Runnable task)
+		throws InterruptedException
+	{
+		lanes[laneFor(key)].queue.put(task);
+	}
+	
+	/**
+	 * Get the index of the lane used for the given key.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public int laneFor(Object key)
+	{
+		if(key == null)
+		{
+			return 0;
+		}
+		
+		int h = key.hashCode();
+		// Spread the bits, same as HashMap does
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		
+		return (h & 0x7fffffff) % lanes.length;
+	}
+	
+	/**
+	 * Get the number of lanes.
+	 * 
+	 * @return
+	 */
+	public int getLaneCount()
+	{
+		return lanes.length;
+	}
+	
+	/**
+	 * Get the number of tasks waiting in each lane.
+	 * 
+	 * @return
+	 */
+	public int[] getQueueDepths()
+	{
+		int[] result = new int[lanes.length];
+		for(int i=0; i<lanes.length; i++)
+		{
+			result[i] = lanes[i].queue.size();
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Stop all lanes, tasks that have not been started are discarded.
+	 */
+	public void shutdown()
+	{
+		for(Lane lane : lanes)
+		{
+			lane.thread.interrupt();
+		}
+	}
+	
+	/** Single lane with its own thread and queue. */
+	private static class Lane
+		implements Runnable
+	{
+		private final BlockingQueue<Runnable> queue;
+		private final Thread thread;
+		
+		public Lane(String name, int queueSize)
+		{
+			queue = new LinkedBlockingQueue<Runnable>(queueSize);
+			
+			thread = new Thread(this, name);
+			thread.setDaemon(true);
+		}
+		
+		public void run()
+		{
+			while(false == Thread.interrupted())
+			{
+				Runnable task;
+				try
+				{
+					task = queue.take();
+				}
+				catch(InterruptedException e)
+				{
+					break;
+				}
+				
+				try
+				{
+					task.run();
+				}
+				catch(RuntimeException e)
+				{
+					logger.error("Task failed; " + e.getMessage(), e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package se.l4.sofa.dbus.io.capture;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import se.l4.sofa.dbus.io.DBusMessenger;
+import se.l4.sofa.dbus.spi.Channel;
+import se.l4.sofa.dbus.spi.Message;
+
+/**
+ * Replays a capture written by {@link PcapRingCapture} over a channel, such
+ * as a {@link se.l4.sofa.dbus.io.DBusClient} connected to a server or a
+ * client connected to a {@link se.l4.sofa.dbus.io.DBusServer}. Frames are
+ * sent exactly as captured without being encoded again.
+ * 
+ * <p>
+ * Only method calls and signals are replayed by default, replies and
+ * errors are only meaningful to whoever made the original calls. Serials
+ * are kept as captured, so replies to replayed calls are not matched to
+ * anything and are dropped by the channel.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class CaptureReplay
+{
+	private final File file;
+	
+	private double speed;
+	private boolean replies;
+	
+	public CaptureReplay(File file)
+	{
+		this.file = file;
+		
+		speed = 1;
+	}
+	
+	/**
+	 * Set the speed of the replay relative to the capture, {@code 1} keeps
+	 * the original timing, {@code 10} replays ten times faster and
+	 * {@code 0} sends frames as fast as possible.
+	 * 
+	 * @param speed
+	 */
+	public void setSpeed(double speed)
+	{
+		if(speed < 0)
+		{
+			throw new IllegalArgumentException("Speed can not be negative");
+		}
+		
+		this.speed = speed;
+	}
+	
+	/**
+	 * Set if method returns and errors should be replayed as well.
+	 * 
+	 * @param replies
+	 */
+	public void setReplies(boolean replies)
+	{
+		this.replies = replies;
+	}
+	
+	/**
+	 * Replay the capture over the given channel.
+	 * 
+	 * @param channel
+	 * @return
+	 * 		number of frames sent
+	 * @throws IOException
+	 * 		if the capture can not be read
+	 * @throws InterruptedException
+	 * 		if interrupted while waiting to send the next frame
+	 */
+	public int replay(Channel channel)
+		throws IOException, InterruptedException
+	{
+		PcapReader reader = new PcapReader(new BufferedInputStream(new FileInputStream(file)));
+		try
+		{
+			long first = -1;
+			long start = System.nanoTime();
+			int sent = 0;
+			
+			PcapReader.Frame frame;
+			while((frame = reader.next()) != null)
+			{
+				Message message = decode(frame.getData());
+				int type = message.getType();
+				if(false == replies 
+					&& (type == Message.TYPE_METHOD_RETURN || type == Message.TYPE_ERROR))
+				{
+					continue;
+				}
+				
+				if(first < 0)
+				{
+					first = frame.getTimestamp();
+				}
+				
+				if(speed > 0)
+				{
+					long due = (long) ((frame.getTimestamp() - first) / speed);
+					long wait = due - (System.nanoTime() - start);
+					if(wait > 0)
+					{
+						TimeUnit.NANOSECONDS.sleep(wait);
+					}
+				}
+				
+				channel.sendMessage(message);
+				sent++;
+			}
+			
+			return sent;
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+	
+	/**
+	 * Decode the header of a frame, the frame is kept as the encoded form
+	 * of the message so it is written unchanged.
+	 * 
+	 * @param frame
+	 * @return
+	 * @throws IOException
+	 */
+	private static Message decode(byte[] frame)
+		throws IOException
+	{
+		DBusMessenger messenger = new DBusMessenger(new ByteArrayInputStream(frame), null);
+		return messenger.readMessage();
+	}
+}
@@ -0,0 +1,31 @@
+package se.l4.sofa.dbus.io.capture;
+
+/**
+ * Receiver of the raw frames read and written by a
+ * {@link se.l4.sofa.dbus.io.DBusMessenger}. Called on the reading and
+ * writing threads, so it must be quick and must not keep or modify the
+ * frame.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public interface FrameCapture
+{
+	/** Direction of a captured frame. */
+	enum Direction
+	{
+		/** Frame read from the connection */
+		INBOUND,
+		/** Frame written to the connection */
+		OUTBOUND
+	}
+	
+	/**
+	 * Capture a frame.
+	 * 
+	 * @param frame
+	 * 		encoded message exactly as read or written
+	 * @param direction
+	 */
+	void capture(byte[] frame, Direction direction);
+}
@@ -0,0 +1,166 @@
+package se.l4.sofa.dbus.io.capture;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reader of pcap captures of D-Bus frames, such as those written by
+ * {@link PcapRingCapture}. Captures with either byte order and with micro
+ * or nanosecond timestamps are supported.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class PcapReader
+{
+	/** A captured frame. */
+	public static class Frame
+	{
+		private final long timestamp;
+		private final byte[] data;
+		
+		public Frame(long timestamp, byte[] data)
+		{
+			this.timestamp = timestamp;
+			this.data = data;
+		}
+		
+		/**
+		 * Get when the frame was captured, in nanoseconds since the epoch.
+		 * 
+		 * @return
+		 */
+		public long getTimestamp()
+		{
+			return timestamp;
+		}
+		
+		/**
+		 * Get the frame exactly as it was captured.
+		 * 
+		 * @return
+		 */
+		public byte[] getData()
+		{
+			return data;
+		}
+	}
+	
+	private final InputStream in;
+	private final byte[] header;
+	
+	private final boolean swapped;
+	private final long fractionNanos;
+	
+	/**
+	 * Create a reader, reading and checking the file header.
+	 * 
+	 * @param in
+	 * @throws IOException
+	 * 		if the stream is not a capture of D-Bus frames
+	 */
+	public PcapReader(InputStream in)
+		throws IOException
+	{
+		this.in = in;
+		
+		header = new byte[PcapRingCapture.FILE_HEADER];
+		readFully(header, 0, header.length);
+		
+		int magic = getInt(header, 0, false);
+		if(magic == PcapRingCapture.MAGIC_NANOS || magic == PcapRingCapture.MAGIC_MICROS)
+		{
+			swapped = false;
+		}
+		else
+		{
+			magic = Integer.reverseBytes(magic);
+			if(magic != PcapRingCapture.MAGIC_NANOS && magic != PcapRingCapture.MAGIC_MICROS)
+			{
+				throw new IOException("Not a pcap capture");
+			}
+			
+			swapped = true;
+		}
+		
+		fractionNanos = magic == PcapRingCapture.MAGIC_NANOS ? 1 : 1000;
+		
+		int linkType = getInt(header, 20, swapped);
+		if(linkType != PcapRingCapture.LINKTYPE_DBUS)
+		{
+			throw new IOException("Capture has link type " + linkType 
+				+ ", expected D-Bus (" + PcapRingCapture.LINKTYPE_DBUS + ")");
+		}
+	}
+	
+	/**
+	 * Read the next frame.
+	 * 
+	 * @return
+	 * 		frame, or {@code null} if there are no more frames
+	 * @throws IOException
+	 */
+	public Frame next()
+		throws IOException
+	{
+		byte[] record = new byte[PcapRingCapture.RECORD_HEADER];
+		int n = in.read(record);
+		if(n < 0)
+		{
+			return null;
+		}
+		
+		if(n < record.length)
+		{
+			readFully(record, n, record.length - n);
+		}
+		
+		long seconds = getInt(record, 0, swapped) & 0xffffffffL;
+		long fraction = getInt(record, 4, swapped) & 0xffffffffL;
+		int length = getInt(record, 8, swapped);
+		int original = getInt(record, 12, swapped);
+		
+		if(length != original)
+		{
+			throw new IOException("Frame was truncated when captured, " + length + " of " + original + " bytes");
+		}
+		
+		byte[] data = new byte[length];
+		readFully(data, 0, length);
+		
+		return new Frame(seconds * 1000000000 + fraction * fractionNanos, data);
+	}
+	
+	private void readFully(byte[] b, int offset, int length)
+		throws IOException
+	{
+		while(length > 0)
+		{
+			int n = in.read(b, offset, length);
+			if(n < 0)
+			{
+				throw new EOFException();
+			}
+			
+			offset += n;
+			length -= n;
+		}
+	}
+	
+	private static int getInt(byte[] b, int offset, boolean swapped)
+	{
+		int value = (b[offset] & 0xff) 
+			| (b[offset + 1] & 0xff) << 8 
+			| (b[offset + 2] & 0xff) << 16 
+			| (b[offset + 3] & 0xff) << 24;
+			
+		return swapped ? Integer.reverseBytes(value) : value;
+	}
+	
+	public void close()
+		throws IOException
+	{
+		in.close();
+	}
+}
@@ -0,0 +1,331 @@
+package se.l4.sofa.dbus.io.capture;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.EnumSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Capture that writes frames to a memory mapped file in pcap format with
+ * link type {@value #LINKTYPE_DBUS}, so that captures can be opened in
+ * Wireshark. Capturing a frame copies it into the mapping without any
+ * system calls.
+ * 
+ * <p>
+ * The file has a fixed size and is used as a ring, when it is full the
+ * oldest frames are overwritten. Until the ring has wrapped the file is a
+ * valid capture followed by unused space. Use {@link #writeTo(OutputStream)}
+ * or {@link #snapshot(File)} to get a valid capture of the current content
+ * at any time, {@link #close()} rewrites the file in order and trims it.
+ * 
+ * <p>
+ * Timestamps have nanosecond resolution. Frames larger than the ring are
+ * dropped.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class PcapRingCapture
+	implements FrameCapture
+{
+	/** Link type of D-Bus messages, see tcpdump.org/linktypes.html */
+	public static final int LINKTYPE_DBUS = 231;
+	
+	/** Magic of captures with nanosecond timestamps */
+	static final int MAGIC_NANOS = 0xa1b23c4d;
+	/** Magic of captures with microsecond timestamps */
+	static final int MAGIC_MICROS = 0xa1b2c3d4;
+	
+	static final int FILE_HEADER = 24;
+	static final int RECORD_HEADER = 16;
+	
+	private static final Logger logger = LoggerFactory.getLogger(PcapRingCapture.class);
+	
+	private final File file;
+	private final RandomAccessFile raf;
+	private final MappedByteBuffer buffer;
+	private final int capacity;
+	private final EnumSet<Direction> directions;
+	
+	/** Wall clock in nanoseconds at {@link #nanoBase} */
+	private final long wallBase;
+	private final long nanoBase;
+	
+	/** Where the next record is written */
+	private int head;
+	/** Oldest record, only ahead of head if wrapped */
+	private int tail;
+	/** End of the records from tail when wrapped */
+	private int limit;
+	private boolean wrapped;
+	
+	private long captured;
+	private long dropped;
+	private boolean closed;
+	
+	/**
+	 * Create a capture of frames in both directions.
+	 * 
+	 * @param file
+	 * 		file to write to, replaced if it exists
+	 * @param capacity
+	 * 		size of the file in bytes
+	 * @throws IOException
+	 */
+	public PcapRingCapture(File file, int capacity)
+		throws IOException
+	{
+		this(file, capacity, EnumSet.allOf(Direction.class));
+	}
+	
+	/**
+	 * Create a capture of frames in the given directions. A capture of
+	 * outbound frames from a client can be replayed to a server with
+	 * {@link CaptureReplay}.
+	 * 
+	 * @param file
+	 * 		file to write to, replaced if it exists
+	 * @param capacity
+	 * 		size of the file in bytes
+	 * @param directions
+	 * 		directions to capture
+	 * @throws IOException
+	 */
+	public PcapRingCapture(File file, int capacity, EnumSet<Direction> directions)
+		throws IOException
+	{
+		if(capacity <= FILE_HEADER + RECORD_HEADER)
+		{
+			throw new IllegalArgumentException("Capacity must be larger than " 
+				+ (FILE_HEADER + RECORD_HEADER) + " bytes");
+		}
+		
+		this.file = file;
+		this.capacity = capacity;
+		this.directions = EnumSet.copyOf(directions);
+		
+		raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0);
+		raf.setLength(capacity);
+		
+		buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		
+		buffer.putInt(0, MAGIC_NANOS);
+		buffer.putShort(4, (short) 2);
+		buffer.putShort(6, (short) 4);
+		buffer.putInt(8, 0);
+		buffer.putInt(12, 0);
+		buffer.putInt(16, capacity - FILE_HEADER - RECORD_HEADER);
+		buffer.putInt(20, LINKTYPE_DBUS);
+		
+		head = FILE_HEADER;
+		tail = FILE_HEADER;
+		
+		wallBase = System.currentTimeMillis() * 1000000;
+		nanoBase = System.nanoTime();
+	}
+	
+	public void capture(byte[] frame, Direction direction)
+	{
+		if(false == directions.contains(direction))
+		{
+			return;
+		}
+		
+		long now = wallBase + (System.nanoTime() - nanoBase);
+		int length = RECORD_HEADER + frame.length;
+		
+		synchronized(this)
+		{
+			if(closed)
+			{
+				return;
+			}
+			
+			if(length > capacity - FILE_HEADER)
+			{
+				dropped++;
+				return;
+			}
+			
+			makeRoom(length);
+			
+			buffer.putInt(head, (int) (now / 1000000000));
+			buffer.putInt(head + 4, (int) (now % 1000000000));
+			buffer.putInt(head + 8, frame.length);
+			buffer.putInt(head + 12, frame.length);
+			buffer.position(head + RECORD_HEADER);
+			buffer.put(frame);
+			
+			head += length;
+			captured++;
+		}
+	}
+	
+	/**
+	 * Make room for a record at the head, wrapping and dropping the oldest
+	 * records as needed.
+	 * 
+	 * @param length
+	 */
+	private void makeRoom(int length)
+	{
+		if(head + length > capacity)
+		{
+			/*
+			 * Records after the tail are older than those before the head
+			 * and would be overwritten out of order, drop them.
+			 */
+			limit = head;
+			tail = FILE_HEADER;
+			head = FILE_HEADER;
+			wrapped = true;
+		}
+		
+		while(wrapped && tail < head + length)
+		{
+			tail += RECORD_HEADER + buffer.getInt(tail + 8);
+			if(tail >= limit)
+			{
+				wrapped = false;
+				tail = FILE_HEADER;
+				limit = 0;
+			}
+		}
+	}
+	
+	/**
+	 * Write a valid capture of the frames currently in the ring, oldest
+	 * first.
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out)
+		throws IOException
+	{
+		byte[] data;
+		synchronized(this)
+		{
+			data = contents();
+		}
+		
+		out.write(data);
+		out.flush();
+	}
+	
+	/**
+	 * Write a valid capture of the frames currently in the ring to a file.
+	 * 
+	 * @param target
+	 * @throws IOException
+	 */
+	public void snapshot(File target)
+		throws IOException
+	{
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(target));
+		try
+		{
+			writeTo(out);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+	
+	/**
+	 * Get the file header and all records in order.
+	 * 
+	 * @return
+	 */
+	private byte[] contents()
+	{
+		int oldLap = wrapped ? limit - tail : 0;
+		byte[] data = new byte[FILE_HEADER + oldLap + head - FILE_HEADER];
+		
+		buffer.position(0);
+		buffer.get(data, 0, FILE_HEADER);
+		
+		if(wrapped)
+		{
+			buffer.position(tail);
+			buffer.get(data, FILE_HEADER, oldLap);
+		}
+		
+		buffer.position(FILE_HEADER);
+		buffer.get(data, FILE_HEADER + oldLap, head - FILE_HEADER);
+		
+		return data;
+	}
+	
+	/**
+	 * Stop capturing and rewrite the file so that it only contains the
+	 * frames in the ring, oldest first.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void close()
+		throws IOException
+	{
+		if(closed)
+		{
+			return;
+		}
+		
+		closed = true;
+		
+		byte[] data = contents();
+		buffer.position(0);
+		buffer.put(data);
+		buffer.force();
+		
+		try
+		{
+			raf.setLength(data.length);
+		}
+		catch(IOException e)
+		{
+			// Some platforms do not allow truncating a mapped file
+			logger.warn("Unable to trim capture " + file + "; " + e.getMessage(), e);
+		}
+		
+		raf.close();
+	}
+	
+	public File getFile()
+	{
+		return file;
+	}
+	
+	/**
+	 * Get the number of frames that have been captured, including those
+	 * that have since been overwritten.
+	 * 
+	 * @return
+	 */
+	public synchronized long getCaptured()
+	{
+		return captured;
+	}
+	
+	/**
+	 * Get the number of frames that were too large for the ring.
+	 * 
+	 * @return
+	 */
+	public synchronized long getDropped()
+	{
+		return dropped;
+	}
+}
@@ -0,0 +1,359 @@
+package se.l4.sofa.dbus.io.memory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded byte buffer shared between exactly one writing thread and one
+ * reading thread. Positions only ever grow and are published through atomic
+ * counters, so neither side takes a lock. A side that can not make progress
+ * spins briefly and then parks until the other side wakes it.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class ByteRing
+{
+	private static final int SPINS = 100;
+	
+	private final byte[] buffer;
+	private final int mask;
+	
+	/** Position of the next byte to read, only written by the reader. */
+	private final AtomicLong head;
+	/** Position of the next byte to write, only written by the writer. */
+	private final AtomicLong tail;
+	
+	private volatile Thread waitingReader;
+	private volatile Thread waitingWriter;
+	
+	private volatile boolean closed;
+	
+	private final InputStream in;
+	private final OutputStream out;
+	
+	/**
+	 * Create a new ring, the capacity is rounded up to the nearest power of
+	 * two.
+	 * 
+	 * @param capacity
+	 */
+	public ByteRing(int capacity)
+	{
+		if(capacity <= 0)
+		{
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		
+		int size = Integer.highestOneBit(capacity);
+		if(size < capacity)
+		{
+			size <<= 1;
+		}
+		
+		buffer = new byte[size];
+		mask = size - 1;
+		
+		head = new AtomicLong();
+		tail = new AtomicLong();
+		
+		in = new RingInputStream();
+		out = new RingOutputStream();
+	}
+	
+	public int getCapacity()
+	{
+		return buffer.length;
+	}
+	
+	/**
+	 * Get the number of bytes that are waiting to be read.
+	 * 
+	 * @return
+	 */
+	public int available()
+	{
+		return (int) (tail.get() - head.get());
+	}
+	
+	/**
+	 * Get a stream that reads from this ring, may only be used by a single
+	 * thread at a time.
+	 * 
+	 * @return
+	 */
+	public InputStream getInputStream()
+	{
+		return in;
+	}
+	
+	/**
+	 * Get a stream that writes to this ring, may only be used by a single
+	 * thread at a time.
+	 * 
+	 * @return
+	 */
+	public OutputStream getOutputStream()
+	{
+		return out;
+	}
+	
+	/**
+	 * Close the ring. Bytes already written can still be read, after which
+	 * the reader sees end of stream. Any further writes fail.
+	 */
+	public void close()
+	{
+		closed = true;
+		
+		unpark(waitingReader);
+		unpark(waitingWriter);
+	}
+	
+	public boolean isClosed()
+	{
+		return closed;
+	}
+	
+	/**
+	 * Write all of the given bytes, waiting for the reader if the ring is
+	 * full.
+	 * 
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @throws IOException
+	 * 		if the ring is closed
+	 */
+	public void write(byte[] data, int offset, int length)
+		throws IOException
+	{
+		int capacity = buffer.length;
+		while(length > 0)
+		{
+			if(closed)
+			{
+				throw new IOException("Ring is closed");
+			}
+			
+			long t = tail.get();
+			int free = capacity - (int) (t - head.get());
+			if(free == 0)
+			{
+				awaitSpace();
+				continue;
+			}
+			
+			int n = Math.min(free, length);
+			int idx = (int) t & mask;
+			int first = Math.min(n, capacity - idx);
+			
+			System.arraycopy(data, offset, buffer, idx, first);
+			if(first < n)
+			{
+				System.arraycopy(data, offset + first, buffer, 0, n - first);
+			}
+			
+			tail.set(t + n);
+			unpark(waitingReader);
+			
+			offset += n;
+			length -= n;
+		}
+	}
+	
+	/**
+	 * Read at least one byte, waiting for the writer if the ring is empty.
+	 * 
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return
+	 * 		number of bytes read, or {@code -1} if the ring is closed and
+	 * 		empty
+	 * @throws IOException
+	 */
+	public int read(byte[] data, int offset, int length)
+		throws IOException
+	{
+		if(length == 0)
+		{
+			return 0;
+		}
+		
+		long h = head.get();
+		int available = (int) (tail.get() - h);
+		if(available == 0)
+		{
+			available = awaitData(h);
+			if(available == 0)
+			{
+				return -1;
+			}
+		}
+		
+		int capacity = buffer.length;
+		int n = Math.min(available, length);
+		int idx = (int) h & mask;
+		int first = Math.min(n, capacity - idx);
+		
+		System.arraycopy(buffer, idx, data, offset, first);
+		if(first < n)
+		{
+			System.arraycopy(buffer, 0, data, offset + first, n - first);
+		}
+		
+		head.set(h + n);
+		unpark(waitingWriter);
+		
+		return n;
+	}
+	
+	private void awaitSpace()
+		throws IOException
+	{
+		int capacity = buffer.length;
+		for(int i=0; i<SPINS; i++)
+		{
+			if(closed || tail.get() - head.get() < capacity)
+			{
+				return;
+			}
+		}
+		
+		waitingWriter = Thread.currentThread();
+		try
+		{
+			// The flag is set before checking again so that a read in between is not missed
+			while(false == closed && tail.get() - head.get() == capacity)
+			{
+				LockSupport.park();
+				
+				if(Thread.interrupted())
+				{
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for space");
+				}
+			}
+		}
+		finally
+		{
+			waitingWriter = null;
+		}
+	}
+	
+	private int awaitData(long h)
+		throws IOException
+	{
+		for(int i=0; i<SPINS; i++)
+		{
+			int available = (int) (tail.get() - h);
+			if(available > 0 || closed)
+			{
+				return available;
+			}
+		}
+		
+		waitingReader = Thread.currentThread();
+		try
+		{
+			while(true)
+			{
+				int available = (int) (tail.get() - h);
+				if(available > 0)
+				{
+					return available;
+				}
+				
+				if(closed)
+				{
+					// A final write may have happened before close
+					return (int) (tail.get() - h);
+				}
+				
+				LockSupport.park();
+				
+				if(Thread.interrupted())
+				{
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for data");
+				}
+			}
+		}
+		finally
+		{
+			waitingReader = null;
+		}
+	}
+	
+	private static void unpark(Thread thread)
+	{
+		if(thread != null)
+		{
+			LockSupport.unpark(thread);
+		}
+	}
+	
+	private class RingInputStream
+		extends InputStream
+	{
+		private final byte[] single = new byte[1];
+		
+		@Override
+		public int read()
+			throws IOException
+		{
+			int n = ByteRing.this.read(single, 0, 1);
+			return n < 0 ? -1 : single[0] & 0xff;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len)
+			throws IOException
+		{
+			return ByteRing.this.read(b, off, len);
+		}
+		
+		@Override
+		public int available()
+		{
+			return ByteRing.this.available();
+		}
+		
+		@Override
+		public void close()
+		{
+			ByteRing.this.close();
+		}
+	}
+	
+	private class RingOutputStream
+		extends OutputStream
+	{
+		private final byte[] single = new byte[1];
+		
+		@Override
+		public void write(int b)
+			throws IOException
+		{
+			single[0] = (byte) b;
+			ByteRing.this.write(single, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len)
+			throws IOException
+		{
+			ByteRing.this.write(b, off, len);
+		}
+		
+		@Override
+		public void close()
+		{
+			ByteRing.this.close();
+		}
+	}
+}
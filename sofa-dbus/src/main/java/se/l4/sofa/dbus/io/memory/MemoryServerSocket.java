@@ -0,0 +1,153 @@
+package se.l4.sofa.dbus.io.memory;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Server side of an in-memory connection. Servers are registered by name
+ * within the JVM and clients connect with {@link MemorySocket#connect(String)}.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class MemoryServerSocket
+{
+	private static final ConcurrentMap<String, MemoryServerSocket> servers
+		= new ConcurrentHashMap<String, MemoryServerSocket>();
+		
+	/** Queued in place of a connection to wake up a thread in accept. */
+	private static final MemorySocket CLOSED = new MemorySocket(null, null, null);
+	
+	private final String name;
+	private final BlockingQueue<MemorySocket> pending;
+	
+	private volatile boolean bound;
+	private volatile boolean closed;
+	
+	public MemoryServerSocket(String name)
+	{
+		if(name == null || name.length() == 0)
+		{
+			throw new IllegalArgumentException("Memory server requires a name");
+		}
+		
+		this.name = name;
+		pending = new LinkedBlockingQueue<MemorySocket>();
+	}
+	
+	static MemoryServerSocket lookup(String name)
+	{
+		return servers.get(name);
+	}
+	
+	public String getName()
+	{
+		return name;
+	}
+	
+	/**
+	 * Register the server so that clients can connect to it.
+	 * 
+	 * @throws IOException
+	 * 		if another server is already bound to the name
+	 */
+	public void bind()
+		throws IOException
+	{
+		if(closed)
+		{
+			throw new IOException("Socket is closed");
+		}
+		
+		if(servers.putIfAbsent(name, this) != null)
+		{
+			throw new IOException("Memory server already bound to " + name);
+		}
+		
+		bound = true;
+	}
+	
+	synchronized void enqueue(MemorySocket socket)
+		throws IOException
+	{
+		if(closed)
+		{
+			throw new IOException("Memory server " + name + " is closed");
+		}
+		
+		pending.add(socket);
+	}
+	
+	/**
+	 * Wait for the next incoming connection.
+	 * 
+	 * @return
+	 * @throws IOException
+	 * 		if the socket is closed or the thread is interrupted
+	 */
+	public MemorySocket accept()
+		throws IOException
+	{
+		if(false == bound)
+		{
+			throw new IOException("Socket is not bound");
+		}
+		
+		MemorySocket socket;
+		try
+		{
+			socket = pending.take();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for connection");
+		}
+		
+		if(socket == CLOSED)
+		{
+			// Let other threads in accept see it as well
+			pending.add(CLOSED);
+			throw new IOException("Socket is closed");
+		}
+		
+		return socket;
+	}
+	
+	/**
+	 * Unregister the server, connections that have not been accepted are
+	 * closed.
+	 */
+	public synchronized void close()
+	{
+		if(closed)
+		{
+			return;
+		}
+		
+		closed = true;
+		servers.remove(name, this);
+		
+		MemorySocket socket;
+		while((socket = pending.poll()) != null)
+		{
+			socket.close();
+		}
+		
+		pending.add(CLOSED);
+	}
+	
+	public boolean isClosed()
+	{
+		return closed;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "memory:name=" + name;
+	}
+}
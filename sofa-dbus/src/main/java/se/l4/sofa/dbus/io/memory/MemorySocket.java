@@ -0,0 +1,110 @@
+package se.l4.sofa.dbus.io.memory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * One end of an in-memory connection. Each direction is backed by its own
+ * {@link ByteRing} so that the reading and writing thread of a connection
+ * never contend with each other.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class MemorySocket
+	implements Closeable
+{
+	/** Default capacity of each direction of a connection. */
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+	
+	private final String name;
+	private final ByteRing in;
+	private final ByteRing out;
+	
+	MemorySocket(String name, ByteRing in, ByteRing out)
+	{
+		this.name = name;
+		this.in = in;
+		this.out = out;
+	}
+	
+	/**
+	 * Connect to the server bound to the given name.
+	 * 
+	 * @param name
+	 * @return
+	 * @throws IOException
+	 * 		if no server is bound to the name
+	 */
+	public static MemorySocket connect(String name)
+		throws IOException
+	{
+		return connect(name, DEFAULT_BUFFER_SIZE);
+	}
+	
+	/**
+	 * Connect to the server bound to the given name.
+	 * 
+	 * @param name
+	 * @param bufferSize
+	 * 		capacity of each direction of the connection
+	 * @return
+	 * @throws IOException
+	 * 		if no server is bound to the name
+	 */
+	public static MemorySocket connect(String name, int bufferSize)
+		throws IOException
+	{
+		MemoryServerSocket server = MemoryServerSocket.lookup(name);
+		if(server == null)
+		{
+			throw new IOException("No memory server bound to " + name);
+		}
+		
+		ByteRing toServer = new ByteRing(bufferSize);
+		ByteRing toClient = new ByteRing(bufferSize);
+		
+		MemorySocket client = new MemorySocket(name, toClient, toServer);
+		server.enqueue(new MemorySocket(name, toServer, toClient));
+		
+		return client;
+	}
+	
+	public String getName()
+	{
+		return name;
+	}
+	
+	public InputStream getInputStream()
+	{
+		return in.getInputStream();
+	}
+	
+	public OutputStream getOutputStream()
+	{
+		return out.getOutputStream();
+	}
+	
+	/**
+	 * Close both directions of the connection, the other end will see end of
+	 * stream once it has read what was already written.
+	 */
+	public void close()
+	{
+		in.close();
+		out.close();
+	}
+	
+	public boolean isClosed()
+	{
+		return out.isClosed();
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "memory:name=" + name;
+	}
+}
@@ -0,0 +1,75 @@
+package se.l4.sofa.dbus.io.sasl;
+
+import javax.security.sasl.SaslClient;
+import javax.security.sasl.SaslException;
+
+/**
+ * Implementation of the ANONYMOUS mechanism for {@code javax.security.sasl}.
+ * Sends a trace string and is then done, no credentials are involved.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class Anonymous
+	implements SaslClient
+{
+	public static final String NAME = "ANONYMOUS";
+	
+	private static final String TRACE = "sofa-dbus";
+	
+	private boolean complete;
+	
+	public Anonymous()
+	{
+	}
+	
+	public void dispose()
+		throws SaslException
+	{
+	}
+	
+	public byte[] evaluateChallenge(byte[] challenge)
+		throws SaslException
+	{
+		if(complete)
+		{
+			throw new SaslException("Authentication is done");
+		}
+		
+		complete = true;
+		
+		return TRACE.getBytes();
+	}
+	
+	public String getMechanismName()
+	{
+		return NAME;
+	}
+	
+	public Object getNegotiatedProperty(String propName)
+	{
+		return null;
+	}
+	
+	public boolean hasInitialResponse()
+	{
+		return true;
+	}
+	
+	public boolean isComplete()
+	{
+		return complete;
+	}
+	
+	public byte[] unwrap(byte[] incoming, int offset, int len)
+		throws SaslException
+	{
+		throw new IllegalStateException("ANONYMOUS does not support integrity or privacy");
+	}
+	
+	public byte[] wrap(byte[] outgoing, int offset, int len)
+		throws SaslException
+	{
+		throw new IllegalStateException("ANONYMOUS does not support integrity or privacy");
+	}
+}
@@ -0,0 +1,73 @@
+package se.l4.sofa.dbus.io.sasl;
+
+import javax.security.sasl.SaslException;
+import javax.security.sasl.SaslServer;
+
+/**
+ * Server side of the ANONYMOUS mechanism, accepts any client. Only use this
+ * for buses where every client that can reach the server is trusted, such
+ * as a bus that is embedded within the same process.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class AnonymousServer
+	implements SaslServer
+{
+	private boolean complete;
+	
+	public AnonymousServer()
+	{
+	}
+	
+	public void dispose()
+		throws SaslException
+	{
+	}
+	
+	public byte[] evaluateResponse(byte[] response)
+		throws SaslException
+	{
+		if(complete)
+		{
+			throw new SaslException("Authentication is done");
+		}
+		
+		// The response is an optional trace string that we do not use
+		complete = true;
+		
+		return null;
+	}
+	
+	public String getAuthorizationID()
+	{
+		return "anonymous";
+	}
+	
+	public String getMechanismName()
+	{
+		return Anonymous.NAME;
+	}
+	
+	public Object getNegotiatedProperty(String propName)
+	{
+		return null;
+	}
+	
+	public boolean isComplete()
+	{
+		return complete;
+	}
+	
+	public byte[] unwrap(byte[] incoming, int offset, int len)
+		throws SaslException
+	{
+		throw new IllegalStateException("ANONYMOUS does not support integrity or privacy");
+	}
+	
+	public byte[] wrap(byte[] outgoing, int offset, int len)
+		throws SaslException
+	{
+		throw new IllegalStateException("ANONYMOUS does not support integrity or privacy");
+	}
+}
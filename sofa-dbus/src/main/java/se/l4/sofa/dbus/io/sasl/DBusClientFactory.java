@@ -27,6 +27,10 @@ public class DBusClientFactory
 			{
 				return new DBusCookieSha1();
 			}
+			else if(Anonymous.NAME.equals(s))
+			{
+				return new Anonymous();
+			}
 		}
 		
 		return null;
@@ -34,6 +38,6 @@ public class DBusClientFactory
 
 	public String[] getMechanismNames(Map<String, ?> props)
 	{
-		return new String[] { DBusCookieSha1.NAME };
+		return new String[] { DBusCookieSha1.NAME, Anonymous.NAME };
 	}
 }
\ No newline at end of file
@@ -8,9 +8,12 @@ public class DBusSaslProvider
 
 	public DBusSaslProvider()
 	{
-		super("DBus SASL", 0.1, "Provider of DBUS_COOKIE_SHA1 for SASL");
+		super("DBus SASL", 0.1, "Provider of DBUS_COOKIE_SHA1, ANONYMOUS and EXTERNAL for SASL");
 		
 		put("SaslClientFactory.DBUS_COOKIE_SHA1", "se.l4.sofa.dbus.io.sasl.DBusClientFactory");
+		put("SaslClientFactory.ANONYMOUS", "se.l4.sofa.dbus.io.sasl.DBusClientFactory");
+		put("SaslServerFactory.ANONYMOUS", "se.l4.sofa.dbus.io.sasl.DBusServerFactory");
+		put("SaslServerFactory.EXTERNAL", "se.l4.sofa.dbus.io.sasl.DBusServerFactory");
 	}
 	
 }
@@ -0,0 +1,41 @@
+package se.l4.sofa.dbus.io.sasl;
+
+import java.util.Map;
+
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.sasl.SaslException;
+import javax.security.sasl.SaslServer;
+import javax.security.sasl.SaslServerFactory;
+
+/**
+ * Factory for custom DBus SASL-servers.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class DBusServerFactory
+	implements SaslServerFactory
+{
+	public SaslServer createSaslServer(String mechanism, String protocol,
+			String serverName, Map<String, ?> props, CallbackHandler cbh)
+		throws SaslException
+	{
+		if(Anonymous.NAME.equals(mechanism))
+		{
+			return new AnonymousServer();
+		}
+		else if(ExternalServer.NAME.equals(mechanism))
+		{
+			// Only possible if the transport knows who the peer is
+			Object uid = props == null ? null : props.get(ExternalServer.PEER_UID);
+			return uid == null ? null : new ExternalServer(uid.toString());
+		}
+		
+		return null;
+	}
+	
+	public String[] getMechanismNames(Map<String, ?> props)
+	{
+		return new String[] { Anonymous.NAME, ExternalServer.NAME };
+	}
+}
@@ -0,0 +1,104 @@
+package se.l4.sofa.dbus.io.sasl;
+
+import java.io.UnsupportedEncodingException;
+
+import javax.security.sasl.SaslException;
+import javax.security.sasl.SaslServer;
+
+/**
+ * Server side of the EXTERNAL mechanism. The identity of the client is
+ * taken from the transport, for UNIX sockets this is the user id of the
+ * peer as reported by the kernel. The client may send the user id it
+ * claims to be, authentication only succeeds if it matches.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class ExternalServer
+	implements SaslServer
+{
+	/** Name of the mechanism. */
+	public static final String NAME = "EXTERNAL";
+	/** 
+	 * SASL property containing the user id of the peer, as a string. The
+	 * mechanism is unavailable if this property is not set.
+	 */
+	public static final String PEER_UID = "se.l4.sofa.dbus.sasl.peerUid";
+	
+	private final String uid;
+	
+	private boolean complete;
+	
+	public ExternalServer(String uid)
+	{
+		this.uid = uid;
+	}
+	
+	public void dispose()
+		throws SaslException
+	{
+	}
+	
+	public byte[] evaluateResponse(byte[] response)
+		throws SaslException
+	{
+		if(complete)
+		{
+			throw new SaslException("Authentication is done");
+		}
+		
+		if(response != null && response.length > 0)
+		{
+			String claimed;
+			try
+			{
+				claimed = new String(response, "US-ASCII");
+			}
+			catch(UnsupportedEncodingException e)
+			{
+				throw new SaslException("Unable to decode response", e);
+			}
+			
+			if(false == uid.equals(claimed))
+			{
+				throw new SaslException("Client claimed to be " + claimed + " but is " + uid);
+			}
+		}
+		
+		complete = true;
+		
+		return null;
+	}
+	
+	public String getAuthorizationID()
+	{
+		return uid;
+	}
+	
+	public String getMechanismName()
+	{
+		return NAME;
+	}
+	
+	public Object getNegotiatedProperty(String propName)
+	{
+		return null;
+	}
+	
+	public boolean isComplete()
+	{
+		return complete;
+	}
+	
+	public byte[] unwrap(byte[] incoming, int offset, int len)
+		throws SaslException
+	{
+		throw new IllegalStateException("EXTERNAL does not support integrity or privacy");
+	}
+	
+	public byte[] wrap(byte[] outgoing, int offset, int len)
+		throws SaslException
+	{
+		throw new IllegalStateException("EXTERNAL does not support integrity or privacy");
+	}
+}
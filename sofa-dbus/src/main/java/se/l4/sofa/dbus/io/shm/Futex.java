@@ -0,0 +1,184 @@
+package se.l4.sofa.dbus.io.shm;
+
+import java.nio.ByteBuffer;
+
+import com.sun.jna.Library;
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+
+/**
+ * Access to Linux futexes via JNA, used to wake a thread waiting on a word
+ * in shared memory from another process. Futexes are only available on
+ * Linux and only on the architectures listed here, callers must check
+ * {@link #isAvailable()} and fall back to polling.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+class Futex
+{
+	/**
+	 * Facade to {@code libc}, only {@code syscall} is used as there is no
+	 * wrapper for futexes.
+	 */
+	public static interface FutexLibC
+		extends Library
+	{
+		/**
+		 * Call {@code futex} through {@code syscall}.
+		 * 
+		 * @param number
+		 * 		number of the futex system call
+		 * @param address
+		 * 		address of the futex word
+		 * @param op
+		 * @param value
+		 * @param timeout
+		 * 		relative timeout for {@link Futex#FUTEX_WAIT}, a
+		 * 		{@code struct timespec}
+		 * @param address2
+		 * @param value3
+		 * @return
+		 */
+		int syscall(NativeLong number, Pointer address, int op, int value,
+			Pointer timeout, Pointer address2, int value3);
+	}
+	
+	private static final int FUTEX_WAIT = 0;
+	private static final int FUTEX_WAKE = 1;
+	
+	private static final String[] LIBRARY_NAMES = { "c", "libc.so.6" };
+	
+	private static final FutexLibC LIB;
+	private static final NativeLong SYS_FUTEX;
+	
+	static
+	{
+		FutexLibC lib = null;
+		long number = futexNumber();
+		if(number >= 0)
+		{
+			for(String name : LIBRARY_NAMES)
+			{
+				try
+				{
+					lib = (FutexLibC) Native.loadLibrary(name, FutexLibC.class);
+					break;
+				}
+				catch(Throwable t)
+				{
+					lib = null;
+				}
+			}
+		}
+		
+		LIB = lib;
+		SYS_FUTEX = new NativeLong(number);
+	}
+	
+	private Futex()
+	{
+	}
+	
+	private static long futexNumber()
+	{
+		if(false == System.getProperty("os.name").startsWith("Linux"))
+		{
+			return -1;
+		}
+		
+		String arch = System.getProperty("os.arch");
+		if("amd64".equals(arch) || "x86_64".equals(arch))
+		{
+			return 202;
+		}
+		else if("i386".equals(arch) || "x86".equals(arch))
+		{
+			return 240;
+		}
+		else if("aarch64".equals(arch))
+		{
+			return 98;
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Check if futexes can be used.
+	 * 
+	 * @return
+	 */
+	public static boolean isAvailable()
+	{
+		return LIB != null;
+	}
+	
+	/**
+	 * Get a pointer to the given offset of a direct buffer.
+	 * 
+	 * @param buffer
+	 * @param offset
+	 * @return
+	 */
+	public static Pointer pointer(ByteBuffer buffer, int offset)
+	{
+		return Native.getDirectBufferPointer(buffer).share(offset);
+	}
+	
+	/**
+	 * Create a {@code struct timespec} for use with
+	 * {@link #await(Pointer, int, Pointer)}. A plain pointer is used instead
+	 * of a structure so that nothing needs to be read back after waiting.
+	 * 
+	 * @param nanos
+	 * @return
+	 */
+	public static Pointer timeout(long nanos)
+	{
+		int size = NativeLong.SIZE;
+		Memory memory = new Memory(2 * size);
+		if(size == 8)
+		{
+			memory.setLong(0, nanos / 1000000000L);
+			memory.setLong(size, nanos % 1000000000L);
+		}
+		else
+		{
+			memory.setInt(0, (int) (nanos / 1000000000L));
+			memory.setInt(size, (int) (nanos % 1000000000L));
+		}
+		
+		return memory;
+	}
+	
+	/**
+	 * Wait until woken as long as the word at the address has the expected
+	 * value. Returns directly if the value differs, and may return early
+	 * for other reasons so callers must check their condition again.
+	 * 
+	 * @param address
+	 * @param expected
+	 * @param timeout
+	 * 		maximum time to wait, created via {@link #timeout(long)}
+	 */
+	public static void await(Pointer address, int expected, Pointer timeout)
+	{
+		LIB.syscall(SYS_FUTEX, address, FUTEX_WAIT, expected, timeout, null, 0);
+	}
+	
+	/**
+	 * Wake threads waiting on the word at the given address, in any
+	 * process.
+	 * 
+	 * @param address
+	 * @param count
+	 * 		maximum number of threads to wake
+	 */
+	public static void wake(Pointer address, int count)
+	{
+		LIB.syscall(SYS_FUTEX, address, FUTEX_WAKE, count, null, null, 0);
+	}
+}
@@ -0,0 +1,236 @@
+package se.l4.sofa.dbus.io.shm;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.LinkedList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server side of connections over shared memory. The server owns a
+ * directory, which should be on a memory backed file system such as
+ * {@code /dev/shm}, and holds a lock on a file in it while bound. Clients
+ * create connection files in the directory which are picked up by
+ * {@link #accept()}. Access is controlled by the permissions of the
+ * directory.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class SharedMemoryServerSocket
+{
+	private static final Logger logger = LoggerFactory.getLogger(SharedMemoryServerSocket.class);
+	
+	static final String LOCK_FILE = "server.lock";
+	
+	private static final long MAX_POLL_INTERVAL = 10;
+	
+	private static final FileFilter CONNECTIONS = new FileFilter()
+	{
+		public boolean accept(File file)
+		{
+			return file.getName().endsWith(SharedMemorySocket.CONNECTION_SUFFIX);
+		}
+	};
+	
+	private final String path;
+	private final File dir;
+	private final LinkedList<File> pending;
+	
+	private RandomAccessFile lockFile;
+	private FileLock lock;
+	
+	private volatile boolean closed;
+	
+	public SharedMemoryServerSocket(String path)
+	{
+		if(path == null || path.length() == 0)
+		{
+			throw new IllegalArgumentException("Shared memory server requires a path");
+		}
+		
+		this.path = path;
+		dir = new File(path);
+		pending = new LinkedList<File>();
+	}
+	
+	public String getPath()
+	{
+		return path;
+	}
+	
+	/**
+	 * Bind the server to its directory, creating it if needed. Connection
+	 * files left over from an earlier server that did not shut down are
+	 * removed.
+	 * 
+	 * @throws IOException
+	 * 		if another server is bound to the directory
+	 */
+	public synchronized void bind()
+		throws IOException
+	{
+		if(closed)
+		{
+			throw new IOException("Socket is closed");
+		}
+		
+		if(false == dir.isDirectory() && false == dir.mkdirs())
+		{
+			throw new IOException("Unable to create directory " + path);
+		}
+		
+		RandomAccessFile raf = new RandomAccessFile(new File(dir, LOCK_FILE), "rw");
+		FileLock lock;
+		try
+		{
+			lock = raf.getChannel().tryLock();
+		}
+		catch(OverlappingFileLockException e)
+		{
+			lock = null;
+		}
+		
+		if(lock == null)
+		{
+			raf.close();
+			throw new IOException("Shared memory server already bound to " + path);
+		}
+		
+		lockFile = raf;
+		this.lock = lock;
+		
+		removeConnectionFiles();
+	}
+	
+	/**
+	 * Wait for the next incoming connection. The directory is polled, more
+	 * often right after a connection has been accepted.
+	 * 
+	 * @return
+	 * @throws IOException
+	 * 		if the socket is closed or the thread is interrupted
+	 */
+	public SharedMemorySocket accept()
+		throws IOException
+	{
+		if(lock == null)
+		{
+			throw new IOException("Socket is not bound");
+		}
+		
+		long interval = 1;
+		while(false == closed)
+		{
+			if(pending.isEmpty())
+			{
+				File[] files = dir.listFiles(CONNECTIONS);
+				if(files != null)
+				{
+					for(File f : files)
+					{
+						pending.add(f);
+					}
+				}
+			}
+			
+			while(false == pending.isEmpty())
+			{
+				File file = pending.removeFirst();
+				try
+				{
+					return SharedMemorySocket.accept(path, file);
+				}
+				catch(IOException e)
+				{
+					logger.warn("Ignoring connection; {}", e.getMessage());
+				}
+				finally
+				{
+					file.delete();
+				}
+			}
+			
+			try
+			{
+				Thread.sleep(interval);
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for connection");
+			}
+			
+			interval = Math.min(MAX_POLL_INTERVAL, interval * 2);
+		}
+		
+		throw new IOException("Socket is closed");
+	}
+	
+	/**
+	 * Unbind the server, removing its lock file and the directory if it is
+	 * empty.
+	 */
+	public synchronized void close()
+	{
+		if(closed)
+		{
+			return;
+		}
+		
+		closed = true;
+		
+		if(lock != null)
+		{
+			try
+			{
+				lock.release();
+				lockFile.close();
+			}
+			catch(IOException e)
+			{
+				logger.debug("Unable to release lock; {}", e.getMessage());
+			}
+			
+			new File(dir, LOCK_FILE).delete();
+			removeConnectionFiles();
+			
+			dir.delete();
+		}
+	}
+	
+	public boolean isClosed()
+	{
+		return closed;
+	}
+	
+	private void removeConnectionFiles()
+	{
+		File[] files = dir.listFiles();
+		if(files == null)
+		{
+			return;
+		}
+		
+		for(File f : files)
+		{
+			String name = f.getName();
+			if(name.endsWith(SharedMemorySocket.CONNECTION_SUFFIX)
+				|| name.endsWith(SharedMemorySocket.TEMP_SUFFIX))
+			{
+				f.delete();
+			}
+		}
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "shm:path=" + path;
+	}
+}
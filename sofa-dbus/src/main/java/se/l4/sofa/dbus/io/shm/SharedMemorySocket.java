@@ -0,0 +1,260 @@
+package se.l4.sofa.dbus.io.shm;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+
+/**
+ * One end of a connection over shared memory. A connection is a memory
+ * mapped file holding a small header followed by two {@link SharedRing}s,
+ * one for each direction:
+ * 
+ * <pre>
+ * 0    magic (int)
+ * 4    capacity of each ring (int)
+ * 8    accepted flag (int, set by the server)
+ * 64   ring from client to server
+ * ...  ring from server to client
+ * </pre>
+ * 
+ * The client creates the file in the directory of the server and waits for
+ * the server to accept it. The server removes the file once it has mapped
+ * it, so nothing is left behind when the connection ends.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class SharedMemorySocket
+	implements Closeable
+{
+	/** Default capacity of each direction of a connection. */
+	public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+	
+	static final int MAGIC = 0x53484d31;
+	static final int MAX_BUFFER_SIZE = 64 * 1024 * 1024;
+	
+	static final String CONNECTION_SUFFIX = ".conn";
+	static final String TEMP_SUFFIX = ".tmp";
+	
+	private static final int OFFSET_MAGIC = 0;
+	private static final int OFFSET_CAPACITY = 4;
+	private static final int OFFSET_ACCEPTED = 8;
+	private static final int OFFSET_RINGS = 64;
+	
+	private static final long CONNECT_TIMEOUT = 5000;
+	
+	private final String path;
+	private final SharedRing in;
+	private final SharedRing out;
+	
+	SharedMemorySocket(String path, ByteBuffer buffer, int capacity, boolean server)
+	{
+		this.path = path;
+		
+		ByteBuffer b = buffer.duplicate().order(buffer.order());
+		b.position(OFFSET_RINGS);
+		SharedRing toServer = new SharedRing(b, capacity);
+		
+		b.position(OFFSET_RINGS + SharedRing.sizeOf(capacity));
+		SharedRing toClient = new SharedRing(b, capacity);
+		
+		in = server ? toServer : toClient;
+		out = server ? toClient : toServer;
+	}
+	
+	/**
+	 * Connect to the server listening in the given directory.
+	 * 
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 * 		if no server is listening or if it does not accept the connection
+	 */
+	public static SharedMemorySocket connect(String path)
+		throws IOException
+	{
+		return connect(path, DEFAULT_BUFFER_SIZE);
+	}
+	
+	/**
+	 * Connect to the server listening in the given directory.
+	 * 
+	 * @param path
+	 * @param bufferSize
+	 * 		capacity of each direction, rounded up to a power of two
+	 * @return
+	 * @throws IOException
+	 * 		if no server is listening or if it does not accept the connection
+	 */
+	public static SharedMemorySocket connect(String path, int bufferSize)
+		throws IOException
+	{
+		if(bufferSize <= 0 || bufferSize > MAX_BUFFER_SIZE)
+		{
+			throw new IllegalArgumentException("Invalid buffer size " + bufferSize);
+		}
+		
+		File dir = new File(path);
+		if(false == new File(dir, SharedMemoryServerSocket.LOCK_FILE).exists())
+		{
+			throw new IOException("No shared memory server at " + path);
+		}
+		
+		int capacity = Integer.highestOneBit(bufferSize);
+		if(capacity < bufferSize)
+		{
+			capacity <<= 1;
+		}
+		
+		String id = UUID.randomUUID().toString();
+		File temp = new File(dir, id + TEMP_SUFFIX);
+		File file = new File(dir, id + CONNECTION_SUFFIX);
+		
+		MappedByteBuffer buffer = map(temp, sizeOf(capacity));
+		buffer.putInt(OFFSET_CAPACITY, capacity);
+		buffer.putInt(OFFSET_MAGIC, MAGIC);
+		
+		// The server only looks at complete files
+		if(false == temp.renameTo(file))
+		{
+			temp.delete();
+			throw new IOException("Unable to create connection in " + path);
+		}
+		
+		SharedMemorySocket socket = new SharedMemorySocket(path, buffer, capacity, false);
+		
+		long timeout = System.currentTimeMillis() + CONNECT_TIMEOUT;
+		while(buffer.getInt(OFFSET_ACCEPTED) == 0)
+		{
+			if(System.currentTimeMillis() > timeout)
+			{
+				socket.close();
+				file.delete();
+				
+				throw new IOException("Shared memory server at " + path + " did not accept connection");
+			}
+			
+			try
+			{
+				Thread.sleep(1);
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				
+				socket.close();
+				file.delete();
+				
+				throw new IOException("Interrupted while connecting to " + path);
+			}
+		}
+		
+		return socket;
+	}
+	
+	/**
+	 * Accept a connection file created by a client.
+	 * 
+	 * @param path
+	 * 		path of the server
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 * 		if the file is not a valid connection
+	 */
+	static SharedMemorySocket accept(String path, File file)
+		throws IOException
+	{
+		long length = file.length();
+		if(length < OFFSET_RINGS)
+		{
+			throw new IOException("Connection file " + file + " is too small");
+		}
+		
+		MappedByteBuffer buffer = map(file, (int) length);
+		int capacity = buffer.getInt(OFFSET_CAPACITY);
+		
+		if(buffer.getInt(OFFSET_MAGIC) != MAGIC
+			|| capacity <= 0
+			|| capacity > MAX_BUFFER_SIZE
+			|| Integer.bitCount(capacity) != 1
+			|| length != sizeOf(capacity))
+		{
+			throw new IOException("Connection file " + file + " is invalid");
+		}
+		
+		SharedMemorySocket socket = new SharedMemorySocket(path, buffer, capacity, true);
+		buffer.putInt(OFFSET_ACCEPTED, 1);
+		
+		return socket;
+	}
+	
+	private static int sizeOf(int capacity)
+	{
+		return OFFSET_RINGS + 2 * SharedRing.sizeOf(capacity);
+	}
+	
+	private static MappedByteBuffer map(File file, int size)
+		throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			raf.setLength(size);
+			
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			buffer.order(ByteOrder.nativeOrder());
+			
+			// The mapping stays valid after the file is closed
+			return buffer;
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+	
+	public String getPath()
+	{
+		return path;
+	}
+	
+	public InputStream getInputStream()
+	{
+		return in.getInputStream();
+	}
+	
+	public OutputStream getOutputStream()
+	{
+		return out.getOutputStream();
+	}
+	
+	/**
+	 * Close both directions of the connection, the other end will see end of
+	 * stream once it has read what was already written.
+	 */
+	public void close()
+	{
+		in.close();
+		out.close();
+	}
+	
+	public boolean isClosed()
+	{
+		return out.isClosed();
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "shm:path=" + path;
+	}
+}
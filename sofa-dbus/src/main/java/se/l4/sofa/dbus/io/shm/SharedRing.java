@@ -0,0 +1,486 @@
+package se.l4.sofa.dbus.io.shm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+import com.sun.jna.Pointer;
+
+/**
+ * Single-producer/single-consumer byte ring stored in a shared buffer, such
+ * as a memory mapped file, so that the producer and consumer can live in
+ * different processes. All state, including the read and write positions,
+ * is kept in the buffer:
+ * 
+ * <pre>
+ * 0    read position (long, written by the consumer)
+ * 64   write position (long, written by the producer)
+ * 128  closed flag (int, written by either side)
+ * 132  consumer waiting flag (int)
+ * 136  producer waiting flag (int)
+ * 192  data
+ * </pre>
+ * 
+ * The positions are on separate cache lines so that the two sides do not
+ * invalidate each other on every update. They are read and written as
+ * volatile longs at their address via {@link UnsafeAccess}, which keeps
+ * them atomic and ordered with the data for the other process. Buffers
+ * that are not direct, or JVMs without {@code sun.misc.Unsafe}, fall back
+ * to accesses through the buffer ordered by a volatile field, which is
+ * only enough within a process or on x86.
+ * 
+ * <p>
+ * A side that can not make progress spins and then yields, so a busy
+ * connection never needs a system call to wake the other side. After that
+ * it sets its waiting flag and sleeps on it with a futex, and the other
+ * side wakes it after the next update. Where futexes are not available
+ * it instead sleeps for increasing intervals.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class SharedRing
+{
+	/** Size of the header before the data of a ring. */
+	public static final int HEADER_SIZE = 192;
+	
+	private static final int HEAD = 0;
+	private static final int TAIL = 64;
+	private static final int CLOSED = 128;
+	private static final int READER_WAITING = 132;
+	private static final int WRITER_WAITING = 136;
+	
+	private static final int SPINS = 1000;
+	private static final int YIELDS = 100;
+	private static final long MAX_SLEEP = 1000000;
+	/** Longest time to wait on a futex before checking for interrupts */
+	private static final long MAX_WAIT = 10000000;
+	
+	/** Timeout of futex waits, created when first needed */
+	private static Pointer maxWait;
+	
+	private final ByteBuffer header;
+	private final ByteBuffer data;
+	private final int capacity;
+	private final int mask;
+	
+	/** Address of the header, or {@code -1} if accessed through the buffer */
+	private final long address;
+	/** Futex words of the two sides, {@code null} if futexes are not used */
+	private final Pointer readerWaiting;
+	private final Pointer writerWaiting;
+	
+	/**
+	 * Written after publishing and read before observing a position when
+	 * the header is accessed through the buffer, the fences of these
+	 * accesses keep the buffer accesses in order.
+	 */
+	private volatile int fence;
+	
+	private final InputStream in;
+	private final OutputStream out;
+	
+	/**
+	 * Create a ring over the given buffer, starting at its current position.
+	 * 
+	 * @param buffer
+	 * @param capacity
+	 * 		size of the data area, must be a power of two
+	 */
+	public SharedRing(ByteBuffer buffer, int capacity)
+	{
+		if(capacity <= 0 || Integer.bitCount(capacity) != 1)
+		{
+			throw new IllegalArgumentException("Capacity must be a power of two");
+		}
+		
+		int start = buffer.position();
+		if(buffer.limit() - start < HEADER_SIZE + capacity)
+		{
+			throw new IllegalArgumentException("Buffer is too small for ring");
+		}
+		
+		ByteBuffer b = buffer.duplicate();
+		b.order(buffer.order());
+		b.limit(start + HEADER_SIZE);
+		header = b.slice().order(buffer.order());
+		
+		b = buffer.duplicate();
+		b.position(start + HEADER_SIZE);
+		b.limit(start + HEADER_SIZE + capacity);
+		data = b.slice();
+		
+		this.capacity = capacity;
+		mask = capacity - 1;
+		
+		boolean direct = header.isDirect();
+		address = direct && UnsafeAccess.isAvailable() ? UnsafeAccess.address(header) : -1;
+		
+		if(address >= 0 && Futex.isAvailable())
+		{
+			readerWaiting = Futex.pointer(header, READER_WAITING);
+			writerWaiting = Futex.pointer(header, WRITER_WAITING);
+		}
+		else
+		{
+			readerWaiting = null;
+			writerWaiting = null;
+		}
+		
+		in = new RingInputStream();
+		out = new RingOutputStream();
+	}
+	
+	/**
+	 * Get the total size needed for a ring with the given capacity.
+	 * 
+	 * @param capacity
+	 * @return
+	 */
+	public static int sizeOf(int capacity)
+	{
+		return HEADER_SIZE + capacity;
+	}
+	
+	public int getCapacity()
+	{
+		return capacity;
+	}
+	
+	public int available()
+	{
+		return (int) (load(TAIL) - load(HEAD));
+	}
+	
+	public InputStream getInputStream()
+	{
+		return in;
+	}
+	
+	public OutputStream getOutputStream()
+	{
+		return out;
+	}
+	
+	/**
+	 * Mark the ring as closed, seen by both sides.
+	 */
+	public void close()
+	{
+		storeInt(CLOSED, 1);
+		
+		wake(READER_WAITING, readerWaiting);
+		wake(WRITER_WAITING, writerWaiting);
+	}
+	
+	public boolean isClosed()
+	{
+		return loadInt(CLOSED) != 0;
+	}
+	
+	/**
+	 * Write all of the given bytes, waiting for the consumer if the ring is
+	 * full.
+	 * 
+	 * @param b
+	 * @param offset
+	 * @param length
+	 * @throws IOException
+	 * 		if the ring is closed
+	 */
+	public void write(byte[] b, int offset, int length)
+		throws IOException
+	{
+		int idle = 0;
+		while(length > 0)
+		{
+			if(isClosed())
+			{
+				throw new IOException("Ring is closed");
+			}
+			
+			long t = load(TAIL);
+			int free = capacity - (int) (t - load(HEAD));
+			if(free == 0)
+			{
+				backoff(idle++, WRITER_WAITING, writerWaiting, HEAD, t - capacity);
+				continue;
+			}
+			
+			idle = 0;
+			
+			int n = Math.min(free, length);
+			int idx = (int) t & mask;
+			int first = Math.min(n, capacity - idx);
+			
+			data.position(idx);
+			data.put(b, offset, first);
+			if(first < n)
+			{
+				data.position(0);
+				data.put(b, offset + first, n - first);
+			}
+			
+			store(TAIL, t + n);
+			wake(READER_WAITING, readerWaiting);
+			
+			offset += n;
+			length -= n;
+		}
+	}
+	
+	/**
+	 * Read at least one byte, waiting for the producer if the ring is empty.
+	 * 
+	 * @param b
+	 * @param offset
+	 * @param length
+	 * @return
+	 * 		number of bytes read, or {@code -1} if the ring is closed and
+	 * 		empty
+	 * @throws IOException
+	 */
+	public int read(byte[] b, int offset, int length)
+		throws IOException
+	{
+		if(length == 0)
+		{
+			return 0;
+		}
+		
+		long h = load(HEAD);
+		int available;
+		int idle = 0;
+		while(true)
+		{
+			available = (int) (load(TAIL) - h);
+			if(available > 0)
+			{
+				break;
+			}
+			
+			if(isClosed())
+			{
+				// Check again as a final write may have happened before close
+				available = (int) (load(TAIL) - h);
+				if(available == 0)
+				{
+					return -1;
+				}
+				
+				break;
+			}
+			
+			backoff(idle++, READER_WAITING, readerWaiting, TAIL, h);
+		}
+		
+		int n = Math.min(available, length);
+		int idx = (int) h & mask;
+		int first = Math.min(n, capacity - idx);
+		
+		data.position(idx);
+		data.get(b, offset, first);
+		if(first < n)
+		{
+			data.position(0);
+			data.get(b, offset + first, n - first);
+		}
+		
+		store(HEAD, h + n);
+		wake(WRITER_WAITING, writerWaiting);
+		
+		return n;
+	}
+	
+	/**
+	 * Read a position written by the other side. The volatile read keeps the
+	 * load from being reordered with later accesses or hoisted out of a loop.
+	 */
+	private long load(int index)
+	{
+		if(address >= 0)
+		{
+			return UnsafeAccess.getLongVolatile(address + index);
+		}
+		
+		int unused = fence;
+		return header.getLong(index);
+	}
+	
+	/**
+	 * Publish a position, the volatile write makes sure the data written
+	 * before is visible first and that the position is not buffered.
+	 */
+	private void store(int index, long value)
+	{
+		if(address >= 0)
+		{
+			UnsafeAccess.putLongVolatile(address + index, value);
+			return;
+		}
+		
+		fence = 0;
+		header.putLong(index, value);
+		fence = 0;
+	}
+	
+	private int loadInt(int index)
+	{
+		if(address >= 0)
+		{
+			return UnsafeAccess.getIntVolatile(address + index);
+		}
+		
+		int unused = fence;
+		return header.getInt(index);
+	}
+	
+	private void storeInt(int index, int value)
+	{
+		if(address >= 0)
+		{
+			UnsafeAccess.putIntVolatile(address + index, value);
+			return;
+		}
+		
+		fence = 0;
+		header.putInt(index, value);
+		fence = 0;
+	}
+	
+	/**
+	 * Wake the other side if it is waiting on the given flag. The position
+	 * has been stored before this is called, so a side that sets its flag
+	 * after this check will see the new position before it sleeps.
+	 */
+	private void wake(int flag, Pointer futex)
+	{
+		if(futex != null && loadInt(flag) != 0)
+		{
+			storeInt(flag, 0);
+			Futex.wake(futex, Integer.MAX_VALUE);
+		}
+	}
+	
+	/**
+	 * Wait for the other side to change a position.
+	 * 
+	 * @param idle
+	 * 		number of times the caller has waited without progress
+	 * @param flag
+	 * 		waiting flag of the calling side
+	 * @param futex
+	 * 		futex of the flag, {@code null} to sleep instead
+	 * @param index
+	 * 		position the caller waits on
+	 * @param observed
+	 * 		value of the position when the caller last checked it
+	 * @throws IOException
+	 */
+	private static synchronized Pointer getMaxWait()
+	{
+		if(maxWait == null)
+		{
+			maxWait = Futex.timeout(MAX_WAIT);
+		}
+		
+		return maxWait;
+	}
+	
+	private void backoff(int idle, int flag, Pointer futex, int index, long observed)
+		throws IOException
+	{
+		if(idle < SPINS)
+		{
+			return;
+		}
+		else if(idle < SPINS + YIELDS)
+		{
+			Thread.yield();
+		}
+		else if(futex != null)
+		{
+			// The flag is set before checking again so that an update in between is not missed
+			storeInt(flag, 1);
+			if(load(index) == observed && false == isClosed())
+			{
+				Futex.await(futex, 1, getMaxWait());
+			}
+			
+			storeInt(flag, 0);
+		}
+		else
+		{
+			long sleep = Math.min(MAX_SLEEP, 1000L << Math.min(10, idle - SPINS - YIELDS));
+			LockSupport.parkNanos(sleep);
+		}
+		
+		if(Thread.interrupted())
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for shared ring");
+		}
+	}
+	
+	private class RingInputStream
+		extends InputStream
+	{
+		private final byte[] single = new byte[1];
+		
+		@Override
+		public int read()
+			throws IOException
+		{
+			int n = SharedRing.this.read(single, 0, 1);
+			return n < 0 ? -1 : single[0] & 0xff;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len)
+			throws IOException
+		{
+			return SharedRing.this.read(b, off, len);
+		}
+		
+		@Override
+		public int available()
+		{
+			return SharedRing.this.available();
+		}
+		
+		@Override
+		public void close()
+		{
+			SharedRing.this.close();
+		}
+	}
+	
+	private class RingOutputStream
+		extends OutputStream
+	{
+		private final byte[] single = new byte[1];
+		
+		@Override
+		public void write(int b)
+			throws IOException
+		{
+			single[0] = (byte) b;
+			SharedRing.this.write(single, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len)
+			throws IOException
+		{
+			SharedRing.this.write(b, off, len);
+		}
+		
+		@Override
+		public void close()
+		{
+			SharedRing.this.close();
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package se.l4.sofa.dbus.io.shm;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Volatile access to memory by address via {@code sun.misc.Unsafe}. Used
+ * for the positions of {@link SharedRing}s, which are shared with other
+ * processes and so can not be ordered by Java fields. Accesses through this
+ * class are atomic and ordered like volatile fields on every platform,
+ * including 64-bit values on 32-bit JVMs.
+ * 
+ * <p>
+ * Unsafe is looked up by name and called reflectively so that compiling
+ * does not depend on internal API.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+class UnsafeAccess
+{
+	private static final Object UNSAFE;
+	private static final long ADDRESS_OFFSET;
+	
+	private static final Method GET_LONG;
+	private static final Method GET_LONG_VOLATILE;
+	private static final Method PUT_LONG_VOLATILE;
+	private static final Method GET_INT_VOLATILE;
+	private static final Method PUT_INT_VOLATILE;
+	
+	static
+	{
+		Object unsafe = null;
+		long offset = -1;
+		Method getLong = null;
+		Method getLongVolatile = null;
+		Method putLongVolatile = null;
+		Method getIntVolatile = null;
+		Method putIntVolatile = null;
+		try
+		{
+			Class<?> type = Class.forName("sun.misc.Unsafe");
+			Field field = type.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+			
+			Method fieldOffset = type.getMethod("objectFieldOffset", Field.class);
+			offset = (Long) fieldOffset.invoke(unsafe, Buffer.class.getDeclaredField("address"));
+			
+			getLong = type.getMethod("getLong", Object.class, long.class);
+			getLongVolatile = type.getMethod("getLongVolatile", Object.class, long.class);
+			putLongVolatile = type.getMethod("putLongVolatile", Object.class, long.class, long.class);
+			getIntVolatile = type.getMethod("getIntVolatile", Object.class, long.class);
+			putIntVolatile = type.getMethod("putIntVolatile", Object.class, long.class, int.class);
+		}
+		catch(Throwable t)
+		{
+			unsafe = null;
+		}
+		
+		UNSAFE = unsafe;
+		ADDRESS_OFFSET = offset;
+		GET_LONG = getLong;
+		GET_LONG_VOLATILE = getLongVolatile;
+		PUT_LONG_VOLATILE = putLongVolatile;
+		GET_INT_VOLATILE = getIntVolatile;
+		PUT_INT_VOLATILE = putIntVolatile;
+	}
+	
+	private UnsafeAccess()
+	{
+	}
+	
+	/**
+	 * Check if memory can be accessed by address.
+	 * 
+	 * @return
+	 */
+	public static boolean isAvailable()
+	{
+		return UNSAFE != null;
+	}
+	
+	/**
+	 * Get the address of the first byte of a direct buffer.
+	 * 
+	 * @param buffer
+	 * @return
+	 */
+	public static long address(ByteBuffer buffer)
+	{
+		if(false == buffer.isDirect())
+		{
+			throw new IllegalArgumentException("Buffer is not direct");
+		}
+		
+		return (Long) invoke(GET_LONG, buffer, ADDRESS_OFFSET);
+	}
+	
+	public static long getLongVolatile(long address)
+	{
+		return (Long) invoke(GET_LONG_VOLATILE, null, address);
+	}
+	
+	public static void putLongVolatile(long address, long value)
+	{
+		invoke(PUT_LONG_VOLATILE, null, address, value);
+	}
+	
+	public static int getIntVolatile(long address)
+	{
+		return (Integer) invoke(GET_INT_VOLATILE, null, address);
+	}
+	
+	public static void putIntVolatile(long address, int value)
+	{
+		invoke(PUT_INT_VOLATILE, null, address, value);
+	}
+	
+	private static Object invoke(Method method, Object... args)
+	{
+		try
+		{
+			return method.invoke(UNSAFE, args);
+		}
+		catch(IllegalAccessException e)
+		{
+			throw new IllegalStateException("Unable to access memory; " + e.getMessage(), e);
+		}
+		catch(InvocationTargetException e)
+		{
+			throw new IllegalStateException("Unable to access memory; " + e.getCause().getMessage(), e.getCause());
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package se.l4.sofa.dbus.io.unix;
+
+/**
+ * Credentials of the process on the other side of a UNIX socket, as
+ * reported by the kernel.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class PeerCredentials
+{
+	private final int pid;
+	private final int uid;
+	private final int gid;
+	
+	public PeerCredentials(int pid, int uid, int gid)
+	{
+		this.pid = pid;
+		this.uid = uid;
+		this.gid = gid;
+	}
+	
+	/**
+	 * Get the process id of the peer.
+	 * 
+	 * @return
+	 */
+	public int getPid()
+	{
+		return pid;
+	}
+	
+	/**
+	 * Get the user id of the peer.
+	 * 
+	 * @return
+	 */
+	public int getUid()
+	{
+		return uid;
+	}
+	
+	/**
+	 * Get the group id of the peer.
+	 * 
+	 * @return
+	 */
+	public int getGid()
+	{
+		return gid;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "PeerCredentials[pid=" + pid + ", uid=" + uid + ", gid=" + gid + "]";
+	}
+}
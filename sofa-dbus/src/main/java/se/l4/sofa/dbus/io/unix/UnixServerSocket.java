@@ -0,0 +1,173 @@
+package se.l4.sofa.dbus.io.unix;
+
+import java.io.IOException;
+
+import com.sun.jna.Native;
+
+import se.l4.sofa.dbus.io.unix.UnixSocket.SocketLibC;
+import se.l4.sofa.dbus.io.unix.UnixSocket.SocketLibC.SocketAddressUn;
+
+/**
+ * Server side of a local UNIX socket, binds to a path and accepts incoming
+ * connections as {@link UnixSocket}s. Paths starting with a NUL byte are
+ * bound in the abstract namespace (Linux only) and do not create a file.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class UnixServerSocket
+{
+	private static final int DEFAULT_BACKLOG = 50;
+	
+	private final String path;
+	
+	private int socket;
+	private volatile boolean closed;
+	
+	public UnixServerSocket(String path)
+	{
+		if(false == UnixSocket.isAvailable())
+		{
+			throw new IllegalStateException("Can not create UNIX socket; Native library is unavailable");
+		}
+		
+		this.path = path;
+		socket = -1;
+	}
+	
+	/**
+	 * Get the path this socket is bound to.
+	 * 
+	 * @return
+	 */
+	public String getPath()
+	{
+		return path;
+	}
+	
+	/**
+	 * Bind the socket and start listening for connections.
+	 * 
+	 * @throws IOException
+	 */
+	public void bind()
+		throws IOException
+	{
+		bind(DEFAULT_BACKLOG);
+	}
+	
+	/**
+	 * Bind the socket and start listening for connections.
+	 * 
+	 * @param backlog
+	 * 		maximum number of connections waiting to be accepted
+	 * @throws IOException
+	 * 		if unable to bind, such as if the path already exists
+	 */
+	public void bind(int backlog)
+		throws IOException
+	{
+		SocketLibC lib = UnixSocket.LIB;
+		
+		int fd = lib.socket(SocketLibC.PF_LOCAL, SocketLibC.SOCK_STREAM, 0);
+		if(fd < 0)
+		{
+			throw new IOException("Unable to create UNIX socket; "
+				+ UnixSocketMessages.getMessage(Native.getLastError()));
+		}
+		
+		try
+		{
+			SocketAddressUn addr = new SocketAddressUn();
+			int length = UnixSocket.createAddress(path, addr);
+			
+			if(lib.bind(fd, addr, length) < 0)
+			{
+				throw new IOException("Unable to bind UNIX socket to " + path + "; "
+					+ UnixSocketMessages.getMessage(Native.getLastError()));
+			}
+			
+			if(lib.listen(fd, backlog) < 0)
+			{
+				throw new IOException("Unable to listen on UNIX socket; "
+					+ UnixSocketMessages.getMessage(Native.getLastError()));
+			}
+		}
+		catch(IOException e)
+		{
+			lib.close(fd);
+			throw e;
+		}
+		
+		socket = fd;
+	}
+	
+	/**
+	 * Wait for a client to connect.
+	 * 
+	 * @return
+	 * 		socket connected to the client
+	 * @throws IOException
+	 * 		if unable to accept or if the socket has been closed
+	 */
+	public UnixSocket accept()
+		throws IOException
+	{
+		if(socket < 0)
+		{
+			throw new IOException("Socket is not bound");
+		}
+		
+		int client = UnixSocket.LIB.accept(socket, null, null);
+		if(client < 0)
+		{
+			if(closed)
+			{
+				throw new IOException("Socket closed");
+			}
+			
+			throw new IOException("Unable to accept connection; "
+				+ UnixSocketMessages.getMessage(Native.getLastError()));
+		}
+		
+		return new UnixSocket(client);
+	}
+	
+	/**
+	 * Check if this socket has been closed.
+	 * 
+	 * @return
+	 */
+	public boolean isClosed()
+	{
+		return closed;
+	}
+	
+	/**
+	 * Close the socket, waking up any thread blocked in {@link #accept()}.
+	 * Sockets bound to a file remove the file.
+	 */
+	public void close()
+	{
+		if(closed)
+		{
+			return;
+		}
+		
+		closed = true;
+		
+		if(socket >= 0)
+		{
+			SocketLibC lib = UnixSocket.LIB;
+			
+			// Closing does not wake up accept on Linux, shutdown does
+			lib.shutdown(socket, SocketLibC.SHUT_RDWR);
+			lib.close(socket);
+			
+			if(path.charAt(0) != 0)
+			{
+				lib.unlink(path);
+			}
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package se.l4.sofa.dbus.io.unix;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -10,13 +11,16 @@ import java.nio.channels.WritableByteChannel;
 
 import com.sun.jna.Library;
 import com.sun.jna.Native;
+import com.sun.jna.Pointer;
 import com.sun.jna.Structure;
+import com.sun.jna.ptr.IntByReference;
 
 import se.l4.sofa.dbus.io.unix.UnixSocket.SocketLibC.SocketAddressUn;
 
 /**
- * Unix socket implementation using JNA. Currently only supports reading from
- * a local UNIX socket.
+ * Unix socket implementation using JNA. Connects to a local UNIX socket,
+ * sockets accepted by a {@link UnixServerSocket} are also represented by
+ * this class.
  * 
  * <p>
  * This class is tested on UNIX systems that are using 
@@ -27,6 +31,7 @@ import se.l4.sofa.dbus.io.unix.UnixSocket.SocketLibC.SocketAddressUn;
  *
  */
 public class UnixSocket
+	implements Closeable
 {
 	/**
 	 * Native facade to {@code libc} that we use to create our own socket. Just
@@ -53,6 +58,14 @@ public class UnixSocket
 		/** Socket style of Raw. */
 		public static final int SOCK_RAW = 3;
 
+		/** Level for options of the socket itself. */
+		public static final int SOL_SOCKET = 1;
+		/** Option for credentials of the peer (Linux). */
+		public static final int SO_PEERCRED = 17;
+		
+		/** Shut down both reading and writing. */
+		public static final int SHUT_RDWR = 2;
+		
 		/**
 		 * Create a socket.
 		 * 
@@ -82,6 +95,80 @@ public class UnixSocket
 		 * @return
 		 */
 		int connect(int socket, SocketAddressUn address, int addressLen);
+		
+		/**
+		 * Bind a socket to an address.
+		 * 
+		 * @param socket
+		 * 		socket file descriptor
+		 * @param address
+		 * 		address
+		 * @param addressLen
+		 * 		length of {@code address}
+		 * @return
+		 * 		zero on success, -1 if error
+		 */
+		int bind(int socket, SocketAddressUn address, int addressLen);
+		
+		/**
+		 * Start listening for connections on a bound socket.
+		 * 
+		 * @param socket
+		 * @param backlog
+		 * 		maximum number of pending connections
+		 * @return
+		 */
+		int listen(int socket, int backlog);
+		
+		/**
+		 * Accept a connection, blocks until a client connects.
+		 * 
+		 * @param socket
+		 * @param address
+		 * 		address of the client, may be {@code null}
+		 * @param addressLen
+		 * 		length of address, may be {@code null}
+		 * @return
+		 * 		file descriptor of new socket, or -1 if error
+		 */
+		int accept(int socket, Pointer address, Pointer addressLen);
+		
+		/**
+		 * Get an option of the socket.
+		 * 
+		 * @param socket
+		 * @param level
+		 * @param name
+		 * @param value
+		 * @param valueLen
+		 * @return
+		 */
+		int getsockopt(int socket, int level, int name, Structure value, IntByReference valueLen);
+		
+		/**
+		 * Shut down reading and/or writing of a socket, wakes up threads
+		 * blocked in {@link #accept(int, Pointer, Pointer)}.
+		 * 
+		 * @param socket
+		 * @param how
+		 * @return
+		 */
+		int shutdown(int socket, int how);
+		
+		/**
+		 * Remove a file.
+		 * 
+		 * @param path
+		 * @return
+		 */
+		int unlink(String path);
+		
+		/**
+		 * Get the user id of the current process.
+		 * 
+		 * @return
+		 */
+		int getuid();
 
 		/**
 		 * Receive data from the socket.
@@ -128,10 +215,31 @@ public class UnixSocket
 
 			public byte[] sun_path = new byte[LENGTH - 2];
 		}
+		
+		/**
+		 * Credentials of a peer, same as {@code struct ucred}.
+		 * 
+		 * @author Andreas Holstenson
+		 * 
+		 */
+		public static class UCred
+			extends Structure
+		{
+			public int pid;
+			public int uid;
+			public int gid;
+		}
 	}
 	
+	/**
+	 * Names to try when loading the library. On some systems, such as
+	 * newer versions of glibc, {@code libc.so} is a linker script and the
+	 * library must be loaded by its versioned name.
+	 */
+	private static final String[] LIBRARY_NAMES = { "c", "libc.so.6" };
+	
 	/** Library instance. */
-	private static final SocketLibC LIB;
+	static final SocketLibC LIB;
 
 	/** Path where to connect. */
 	private final String path;
@@ -145,14 +253,18 @@ public class UnixSocket
 	/** Static loading of library. */
 	static
 	{
-		SocketLibC lib;
-		try
+		SocketLibC lib = null;
+		for(String name : LIBRARY_NAMES)
 		{
-			lib = (SocketLibC) Native.loadLibrary("c", SocketLibC.class);
-		}
-		catch(Throwable t)
-		{
-			lib = null;
+			try
+			{
+				lib = (SocketLibC) Native.loadLibrary(name, SocketLibC.class);
+				break;
+			}
+			catch(Throwable t)
+			{
+				lib = null;
+			}
 		}
 		
 		LIB = lib;
@@ -179,18 +291,51 @@ public class UnixSocket
 		this.path = path;
 	}
 	
-	public void connect()
-		throws IOException
+	/**
+	 * Create a socket for a connection that has already been established,
+	 * such as one returned by {@link UnixServerSocket#accept()}.
+	 * 
+	 * @param socket
+	 * 		file descriptor
+	 */
+	UnixSocket(int socket)
 	{
-		socket = LIB.socket(SocketLibC.PF_LOCAL, SocketLibC.SOCK_STREAM, 0);
-		if(socket < 0)
+		this.path = null;
+		this.socket = socket;
+		
+		channel = new UnixSocketChannel(socket);
+	}
+	
+	/**
+	 * Get the user id of the current process.
+	 * 
+	 * @return
+	 */
+	public static int getUid()
+	{
+		if(false == isAvailable())
 		{
-			throw new IOException("Unable to create UNIX socket; "
-				+ UnixSocketMessages.getMessage(Native.getLastError()));
+			throw new IllegalStateException("Native library is unavailable");
 		}
-
-		// Start setting up socket address
-		SocketAddressUn addr = new SocketAddressUn();
+		
+		return LIB.getuid();
+	}
+	
+	/**
+	 * Create the address for the given path. Paths starting with a NUL
+	 * byte are abstract.
+	 * 
+	 * @param path
+	 * @param addr
+	 * 		address to fill in
+	 * @return
+	 * 		length of the address
+	 * @throws IOException
+	 * 		if the path is too long
+	 */
+	static int createAddress(String path, SocketAddressUn addr)
+		throws IOException
+	{
 		addr.sun_family = SocketLibC.PF_LOCAL;
 		
 		// Check size, just to make sure
@@ -200,22 +345,37 @@ public class UnixSocket
 		if(pathLen >= addr.sun_path.length)
 		{
 			throw new IOException("Unable to open UNIX socket, given path too "
-					+ "long (max: " + (pathLen - 1) + "); Path: " + path);
+					+ "long (max: " + (addr.sun_path.length - 1) + "); Path: " + path);
 		}
 		
-		// Copy path into addr and then connect
-		int length = 0;
+		System.arraycopy(pathBytes, 0, addr.sun_path, 0, pathLen);
+		
+		// Abstract addresses are not NUL-terminated, their length is exact
 		boolean abstractPath = pathBytes[0] == 0;
-		if(abstractPath)
+		return abstractPath ? 2 + pathLen : addr.size();
+	}
+	
+	public void connect()
+		throws IOException
+	{
+		socket = LIB.socket(SocketLibC.PF_LOCAL, SocketLibC.SOCK_STREAM, 0);
+		if(socket < 0)
 		{
-			addr.sun_path = pathBytes;
-//			System.arraycopy(pathBytes, 0, addr.sun_path, 0, pathLen);
-			length = 2 + pathBytes.length;
+			throw new IOException("Unable to create UNIX socket; "
+				+ UnixSocketMessages.getMessage(Native.getLastError()));
 		}
-		else
+
+		// Start setting up socket address
+		SocketAddressUn addr = new SocketAddressUn();
+		int length;
+		try
 		{
-			System.arraycopy(pathBytes, 0, addr.sun_path, 0, pathLen);
-			length = addr.size();
+			length = createAddress(path, addr);
+		}
+		catch(IOException e)
+		{
+			LIB.close(socket);
+			throw e;
 		}
 		
 		try
@@ -253,6 +413,8 @@ public class UnixSocket
 		{
 			if(socket >= 0)
 			{
+				// Wake up any thread blocked reading from the socket
+				LIB.shutdown(socket, SocketLibC.SHUT_RDWR);
 				LIB.close(socket);
 			}
 		}
@@ -263,6 +425,33 @@ public class UnixSocket
 		}
 	}
 	
+	/**
+	 * Get the credentials of the process on the other side of the socket.
+	 * Only supported on Linux.
+	 * 
+	 * @return
+	 * @throws IOException
+	 * 		if the credentials could not be retrieved
+	 */
+	public PeerCredentials getPeerCredentials()
+		throws IOException
+	{
+		SocketLibC.UCred cred = new SocketLibC.UCred();
+		IntByReference length = new IntByReference(cred.size());
+		
+		int status = LIB.getsockopt(socket, SocketLibC.SOL_SOCKET, 
+			SocketLibC.SO_PEERCRED, cred, length);
+			
+		if(status < 0)
+		{
+			throw new IOException("Unable to get peer credentials; "
+				+ UnixSocketMessages.getMessage(Native.getLastError()));
+		}
+		
+		cred.read();
+		return new PeerCredentials(cred.pid, cred.uid, cred.gid);
+	}
+	
 	/**
 	 * Retrieve a channel that can be used for communicating with this socket.
 	 * 
@@ -310,7 +499,8 @@ public class UnixSocket
 				return 0;
 			}
 			
-			int read = LIB.recv(socket, dst, dst.remaining(), 0);
+			// JNA passes the start of the array, ignoring the position
+			int read = LIB.recv(socket, dst.slice(), dst.remaining(), 0);
 			
 			if(read >= 0)
 			{
@@ -329,7 +519,8 @@ public class UnixSocket
 		
 		public int write(ByteBuffer src) throws IOException
 		{
-			int written = LIB.send(socket, src, src.remaining(), 0);
+			// JNA passes the start of the array, ignoring the position
+			int written = LIB.send(socket, src.slice(), src.remaining(), 0);
 			
 			if(written >= 0)
 			{
@@ -385,23 +576,30 @@ public class UnixSocket
 		{
 			int i = read(data);
 			
-			return i != 1 ? -1 : data[0];
+			return i != 1 ? -1 : data[0] & 0xff;
 		}
 		
 		@Override
 		public int read(byte[] b)
 			throws IOException
 		{
-			ByteBuffer buf = ByteBuffer.wrap(b);
-			return channel.read(buf);
+			return read(b, 0, b.length);
 		}
 		
 		@Override
 		public int read(byte[] b, int off, int len)
 			throws IOException
 		{
+			if(len == 0)
+			{
+				return 0;
+			}
+			
 			ByteBuffer buf = ByteBuffer.wrap(b, off, len);
-			return channel.read(buf);
+			int read = channel.read(buf);
+			
+			// recv returns zero when the other side has closed the socket
+			return read == 0 ? -1 : read;
 		}
 	}
 	
@@ -429,16 +627,19 @@ public class UnixSocket
 		public void write(byte[] b)
 			throws IOException
 		{
-			ByteBuffer buf = ByteBuffer.wrap(b);
-			channel.write(buf);
+			write(b, 0, b.length);
 		}
 		
 		@Override
 		public void write(byte[] b, int off, int len)
 			throws IOException
 		{
+			// send may write less than requested
 			ByteBuffer buf = ByteBuffer.wrap(b, off, len);
-			channel.write(buf);
+			while(buf.hasRemaining())
+			{
+				channel.write(buf);
+			}
 		}
 	}
 }
@@ -0,0 +1,364 @@
+package se.l4.sofa.dbus.match;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import se.l4.sofa.dbus.MatchRule;
+
+/**
+ * Index of match rules that avoids evaluating every rule for every message.
+ * Each rule is placed in a single bucket based on its most selective header
+ * constraint, in order: exact {@code path}, {@code member},
+ * {@code path_namespace}, {@code interface} and {@code sender}. Rules
+ * without any of these are kept in a wildcard bucket. Within a bucket rules
+ * with an {@code arg0} constraint are indexed on its value, so the body of a
+ * message is only decoded when it reaches a bucket that has such rules. When
+ * looking up a message only the buckets that can match it are visited and
+ * every candidate is then fully verified with its {@link RuleMatcher}.
+ * 
+ * <p>
+ * Rules with a well-known {@code sender} are indexed on the name, the owner
+ * of every such name is resolved when looking up a message.
+ * 
+ * <p>
+ * Lookups do not lock and can run concurrently with modifications.
+ * 
+ * @author Andreas Holstenson
+ * 
+ * @param <T>
+ * 		type of value associated with every rule
+ */
+public class MatchRuleIndex<T>
+{
+	private final ConcurrentMap<String, Bucket<T>> byPath;
+	private final ConcurrentMap<String, Bucket<T>> byMember;
+	private final ConcurrentMap<String, Bucket<T>> byPathNamespace;
+	private final ConcurrentMap<String, Bucket<T>> byInterface;
+	private final ConcurrentMap<String, Bucket<T>> bySender;
+	private final ConcurrentMap<String, Bucket<T>> bySenderName;
+	private final Bucket<T> wildcard;
+	
+	private int size;
+	
+	public MatchRuleIndex()
+	{
+		byPath = new ConcurrentHashMap<String, Bucket<T>>();
+		byMember = new ConcurrentHashMap<String, Bucket<T>>();
+		byPathNamespace = new ConcurrentHashMap<String, Bucket<T>>();
+		byInterface = new ConcurrentHashMap<String, Bucket<T>>();
+		bySender = new ConcurrentHashMap<String, Bucket<T>>();
+		bySenderName = new ConcurrentHashMap<String, Bucket<T>>();
+		wildcard = new Bucket<T>();
+	}
+	
+	/**
+	 * Add a rule to the index.
+	 * 
+	 * @param rule
+	 * @param value
+	 * 		value to return when the rule matches
+	 */
+	public synchronized void add(MatchRule rule, T value)
+	{
+		Entry<T> entry = new Entry<T>(new RuleMatcher(rule), value);
+		
+		ConcurrentMap<String, Bucket<T>> buckets = bucketsFor(rule);
+		Bucket<T> bucket = wildcard;
+		if(buckets != null)
+		{
+			String key = keyFor(rule);
+			bucket = buckets.get(key);
+			if(bucket == null)
+			{
+				bucket = new Bucket<T>();
+				buckets.put(key, bucket);
+			}
+		}
+		
+		bucket.add(entry, rule.getArgs().get(0));
+		size++;
+	}
+	
+	/**
+	 * Remove a single occurrence of the given rule and value.
+	 * 
+	 * @param rule
+	 * @param value
+	 * @return
+	 * 		{@code true} if the rule was found
+	 */
+	public synchronized boolean remove(MatchRule rule, T value)
+	{
+		ConcurrentMap<String, Bucket<T>> buckets = bucketsFor(rule);
+		String key = keyFor(rule);
+		
+		Bucket<T> bucket = buckets == null ? wildcard : buckets.get(key);
+		if(bucket == null || false == bucket.remove(rule, value, rule.getArgs().get(0)))
+		{
+			return false;
+		}
+		
+		if(buckets != null && bucket.isEmpty())
+		{
+			buckets.remove(key);
+		}
+		
+		size--;
+		return true;
+	}
+	
+	/**
+	 * Get the number of rules in the index.
+	 * 
+	 * @return
+	 */
+	public synchronized int size()
+	{
+		return size;
+	}
+	
+	/**
+	 * Find the values of all rules that match the given message.
+	 * 
+	 * @param target
+	 * 		message to match
+	 * @param resolver
+	 * 		resolver for well-known sender names, may be {@code null}
+	 * @param result
+	 * 		collection that matching values are added to, a value is added
+	 * 		once for every rule that matched
+	 */
+	public void find(MatchTarget target, NameResolver resolver, 
+			Collection<? super T> result)
+	{
+		String path = target.getPath();
+		if(path != null)
+		{
+			collect(byPath.get(path), target, resolver, result);
+			
+			if(false == byPathNamespace.isEmpty())
+			{
+				// Visit the path and all of its ancestors
+				String current = path;
+				while(true)
+				{
+					collect(byPathNamespace.get(current), target, resolver, result);
+					
+					int idx = current.lastIndexOf('/');
+					if(idx <= 0)
+					{
+						if(current.length() > 1)
+						{
+							collect(byPathNamespace.get("/"), target, resolver, result);
+						}
+						
+						break;
+					}
+					
+					current = current.substring(0, idx);
+				}
+			}
+		}
+		
+		String member = target.getMember();
+		if(member != null)
+		{
+			collect(byMember.get(member), target, resolver, result);
+		}
+		
+		String dbusInterface = target.getInterface();
+		if(dbusInterface != null)
+		{
+			collect(byInterface.get(dbusInterface), target, resolver, result);
+		}
+		
+		String sender = target.getSender();
+		if(sender != null)
+		{
+			collect(bySender.get(sender), target, resolver, result);
+		}
+		
+		if(false == bySenderName.isEmpty())
+		{
+			for(Map.Entry<String, Bucket<T>> e : bySenderName.entrySet())
+			{
+				String name = e.getKey();
+				if(sender == null || resolver == null || name.equals(sender)
+					|| sender.equals(resolver.getNameOwner(name)))
+				{
+					// Sender has been checked, no need to resolve it again per rule
+					collect(e.getValue(), target, null, result);
+				}
+			}
+		}
+		
+		collect(wildcard, target, resolver, result);
+	}
+	
+	private void collect(Bucket<T> bucket, MatchTarget target, 
+			NameResolver resolver, Collection<? super T> result)
+	{
+		if(bucket == null)
+		{
+			return;
+		}
+		
+		collect(bucket.entries, target, resolver, result);
+		
+		if(false == bucket.byArg0.isEmpty())
+		{
+			// Only decode the body when there are rules that need it
+			String arg0 = target.getStringArg(0);
+			if(arg0 != null)
+			{
+				collect(bucket.byArg0.get(arg0), target, resolver, result);
+			}
+		}
+	}
+	
+	private void collect(List<Entry<T>> entries, MatchTarget target, 
+			NameResolver resolver, Collection<? super T> result)
+	{
+		if(entries == null)
+		{
+			return;
+		}
+		
+		for(Entry<T> entry : entries)
+		{
+			if(entry.matcher.matches(target, resolver))
+			{
+				result.add(entry.value);
+			}
+		}
+	}
+	
+	private ConcurrentMap<String, Bucket<T>> bucketsFor(MatchRule rule)
+	{
+		if(rule.getPath() != null)
+		{
+			return byPath;
+		}
+		else if(rule.getMember() != null)
+		{
+			return byMember;
+		}
+		else if(rule.getPathNamespace() != null)
+		{
+			return byPathNamespace;
+		}
+		else if(rule.getInterface() != null)
+		{
+			return byInterface;
+		}
+		else if(rule.getSender() != null)
+		{
+			return rule.getSender().startsWith(":") ? bySender : bySenderName;
+		}
+		
+		return null;
+	}
+	
+	private String keyFor(MatchRule rule)
+	{
+		if(rule.getPath() != null)
+		{
+			return rule.getPath();
+		}
+		else if(rule.getMember() != null)
+		{
+			return rule.getMember();
+		}
+		else if(rule.getPathNamespace() != null)
+		{
+			return rule.getPathNamespace();
+		}
+		else if(rule.getInterface() != null)
+		{
+			return rule.getInterface();
+		}
+		else if(rule.getSender() != null)
+		{
+			return rule.getSender();
+		}
+		
+		return null;
+	}
+	
+	/** Rules sharing the same key, split on their {@code arg0} constraint. */
+	private static class Bucket<T>
+	{
+		private final List<Entry<T>> entries;
+		private final ConcurrentMap<String, List<Entry<T>>> byArg0;
+		
+		public Bucket()
+		{
+			entries = new CopyOnWriteArrayList<Entry<T>>();
+			byArg0 = new ConcurrentHashMap<String, List<Entry<T>>>();
+		}
+		
+		public void add(Entry<T> entry, String arg0)
+		{
+			if(arg0 == null)
+			{
+				entries.add(entry);
+				return;
+			}
+			
+			List<Entry<T>> list = byArg0.get(arg0);
+			if(list == null)
+			{
+				list = new CopyOnWriteArrayList<Entry<T>>();
+				byArg0.put(arg0, list);
+			}
+			
+			list.add(entry);
+		}
+		
+		public boolean remove(MatchRule rule, T value, String arg0)
+		{
+			List<Entry<T>> list = arg0 == null ? entries : byArg0.get(arg0);
+			if(list == null)
+			{
+				return false;
+			}
+			
+			for(Entry<T> entry : list)
+			{
+				if(entry.value.equals(value) && entry.matcher.getRule().equals(rule))
+				{
+					list.remove(entry);
+					if(arg0 != null && list.isEmpty())
+					{
+						byArg0.remove(arg0);
+					}
+					
+					return true;
+				}
+			}
+			
+			return false;
+		}
+		
+		public boolean isEmpty()
+		{
+			return entries.isEmpty() && byArg0.isEmpty();
+		}
+	}
+	
+	private static class Entry<T>
+	{
+		private final RuleMatcher matcher;
+		private final T value;
+		
+		public Entry(RuleMatcher matcher, T value)
+		{
+			this.matcher = matcher;
+			this.value = value;
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package se.l4.sofa.dbus.match;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.l4.sofa.dbus.spi.Message;
+import se.l4.sofa.dbus.spi.ObjectPath;
+import se.l4.sofa.dbus.spi.Struct;
+import se.l4.sofa.dbus.spi.Variant;
+
+/**
+ * Message that is being matched against rules. The header fields are read
+ * once and the body is only decoded if a rule with argument constraints is
+ * evaluated, after which the decoded arguments are shared by all rules.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class MatchTarget
+{
+	private static final Logger logger = LoggerFactory.getLogger(MatchTarget.class);
+	
+	private static final Object[] NO_ARGS = new Object[0];
+	
+	private final Message message;
+	private final int type;
+	
+	private String sender;
+	private String dbusInterface;
+	private String member;
+	private String path;
+	private String destination;
+	
+	private Object[] args;
+	
+	/**
+	 * Create a target for the given message.
+	 * 
+	 * @param message
+	 */
+	public MatchTarget(Message message)
+	{
+		this.message = message;
+		this.type = message.getType();
+		
+		for(Struct s : message.getFields())
+		{
+			Object[] data = s.getData();
+			Object value = ((Variant) data[1]).getValue();
+			
+			switch(((Number) data[0]).intValue())
+			{
+				case Message.FIELD_SENDER:
+					sender = (String) value;
+					break;
+				case Message.FIELD_INTERFACE:
+					dbusInterface = (String) value;
+					break;
+				case Message.FIELD_MEMBER:
+					member = (String) value;
+					break;
+				case Message.FIELD_PATH:
+					path = ((ObjectPath) value).getPath();
+					break;
+				case Message.FIELD_DESTINATION:
+					destination = (String) value;
+					break;
+			}
+		}
+	}
+	
+	/**
+	 * Create a target for a message that has not been encoded, such as a
+	 * signal that is delivered locally.
+	 * 
+	 * @param type
+	 * @param sender
+	 * @param dbusInterface
+	 * @param member
+	 * @param path
+	 * @param destination
+	 * @param args
+	 */
+	public MatchTarget(int type, String sender, String dbusInterface, 
+			String member, String path, String destination, Object[] args)
+	{
+		this.message = null;
+		this.type = type;
+		this.sender = sender;
+		this.dbusInterface = dbusInterface;
+		this.member = member;
+		this.path = path;
+		this.destination = destination;
+		this.args = args == null ? NO_ARGS : args;
+	}
+	
+	public int getType()
+	{
+		return type;
+	}
+	
+	public String getSender()
+	{
+		return sender;
+	}
+	
+	public String getInterface()
+	{
+		return dbusInterface;
+	}
+	
+	public String getMember()
+	{
+		return member;
+	}
+	
+	public String getPath()
+	{
+		return path;
+	}
+	
+	public String getDestination()
+	{
+		return destination;
+	}
+	
+	/**
+	 * Get the arguments of the message, decoding the body if needed.
+	 * 
+	 * @return
+	 * 		arguments, empty if the body could not be decoded
+	 */
+	public Object[] getArgs()
+	{
+		if(args == null)
+		{
+			try
+			{
+				List<Object> list = message.getBodyAsObjects();
+				args = list.toArray();
+			}
+			catch(IOException e)
+			{
+				logger.warn("Unable to decode body of " + message + "; " + e.getMessage());
+				args = NO_ARGS;
+			}
+		}
+		
+		return args;
+	}
+	
+	/**
+	 * Get the argument at the given index if it is a string.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public String getStringArg(int index)
+	{
+		Object[] args = getArgs();
+		if(index < args.length && args[index] instanceof String)
+		{
+			return (String) args[index];
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Get the argument at the given index if it is a string or an object
+	 * path.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public String getPathArg(int index)
+	{
+		Object[] args = getArgs();
+		if(index < args.length)
+		{
+			Object o = args[index];
+			if(o instanceof String)
+			{
+				return (String) o;
+			}
+			else if(o instanceof ObjectPath)
+			{
+				return ((ObjectPath) o).getPath();
+			}
+		}
+		
+		return null;
+	}
+}
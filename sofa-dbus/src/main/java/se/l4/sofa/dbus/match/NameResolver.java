@@ -0,0 +1,20 @@
+package se.l4.sofa.dbus.match;
+
+/**
+ * Resolves well-known names to the unique name of their current owner, used
+ * when matching rules with a well-known {@code sender}.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public interface NameResolver
+{
+	/**
+	 * Get the unique name of the current owner of the given name.
+	 * 
+	 * @param name
+	 * @return
+	 * 		unique name, or {@code null} if the name has no owner
+	 */
+	String getNameOwner(String name);
+}
@@ -0,0 +1,220 @@
+package se.l4.sofa.dbus.match;
+
+import java.util.Map;
+
+import se.l4.sofa.dbus.MatchRule;
+import se.l4.sofa.dbus.spi.Message;
+
+/**
+ * Compiled form of a {@link MatchRule}. All the parts of the rule are
+ * prepared up front so that matching a message does not allocate and only
+ * decodes the body if the rule has argument constraints.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class RuleMatcher
+{
+	private final MatchRule rule;
+	
+	private final int type;
+	private final String sender;
+	private final boolean uniqueSender;
+	private final String dbusInterface;
+	private final String member;
+	private final String path;
+	private final String pathNamespace;
+	private final String pathNamespacePrefix;
+	private final String destination;
+	
+	private final int[] argIndexes;
+	private final String[] argValues;
+	private final int[] argPathIndexes;
+	private final String[] argPathValues;
+	
+	public RuleMatcher(MatchRule rule)
+	{
+		this.rule = rule;
+		
+		type = getType(rule.getType());
+		sender = rule.getSender();
+		uniqueSender = sender != null && sender.startsWith(":");
+		dbusInterface = rule.getInterface();
+		member = rule.getMember();
+		path = rule.getPath();
+		pathNamespace = rule.getPathNamespace();
+		pathNamespacePrefix = pathNamespace == null || "/".equals(pathNamespace)
+			? "/"
+			: pathNamespace + "/";
+		destination = rule.getDestination();
+		
+		Map<Integer, String> args = rule.getArgs();
+		argIndexes = new int[args.size()];
+		argValues = new String[args.size()];
+		int i = 0;
+		for(Map.Entry<Integer, String> e : args.entrySet())
+		{
+			argIndexes[i] = e.getKey();
+			argValues[i] = e.getValue();
+			i++;
+		}
+		
+		Map<Integer, String> argPaths = rule.getArgPaths();
+		argPathIndexes = new int[argPaths.size()];
+		argPathValues = new String[argPaths.size()];
+		i = 0;
+		for(Map.Entry<Integer, String> e : argPaths.entrySet())
+		{
+			argPathIndexes[i] = e.getKey();
+			argPathValues[i] = e.getValue();
+			i++;
+		}
+	}
+	
+	private static int getType(String type)
+	{
+		if(type == null)
+		{
+			return Message.TYPE_INVALID;
+		}
+		else if("signal".equals(type))
+		{
+			return Message.TYPE_SIGNAL;
+		}
+		else if("method_call".equals(type))
+		{
+			return Message.TYPE_METHOD_CALL;
+		}
+		else if("method_return".equals(type))
+		{
+			return Message.TYPE_METHOD_RETURN;
+		}
+		else if("error".equals(type))
+		{
+			return Message.TYPE_ERROR;
+		}
+		
+		throw new IllegalArgumentException("Invalid message type " + type);
+	}
+	
+	/**
+	 * Get the rule this matcher was compiled from.
+	 * 
+	 * @return
+	 */
+	public MatchRule getRule()
+	{
+		return rule;
+	}
+	
+	/**
+	 * Check if the given message matches this rule.
+	 * 
+	 * @param target
+	 * 		message to check
+	 * @param resolver
+	 * 		resolver for well-known sender names, {@code null} if they can
+	 * 		not be resolved in which case they are assumed to match as the
+	 * 		bus has already filtered on them
+	 * @return
+	 */
+	public boolean matches(MatchTarget target, NameResolver resolver)
+	{
+		if(type != Message.TYPE_INVALID && type != target.getType())
+		{
+			return false;
+		}
+		
+		if(false == matchesHeader(target, resolver))
+		{
+			return false;
+		}
+		
+		return matchesArgs(target);
+	}
+	
+	private boolean matchesHeader(MatchTarget target, NameResolver resolver)
+	{
+		if(sender != null)
+		{
+			String targetSender = target.getSender();
+			if(targetSender != null && false == sender.equals(targetSender))
+			{
+				if(uniqueSender)
+				{
+					return false;
+				}
+				else if(resolver != null
+					&& false == targetSender.equals(resolver.getNameOwner(sender)))
+				{
+					return false;
+				}
+			}
+		}
+		
+		if((dbusInterface != null && false == dbusInterface.equals(target.getInterface()))
+			|| (member != null && false == member.equals(target.getMember()))
+			|| (destination != null && false == destination.equals(target.getDestination()))
+			|| (path != null && false == path.equals(target.getPath())))
+		{
+			return false;
+		}
+		
+		if(pathNamespace != null)
+		{
+			String targetPath = target.getPath();
+			if(targetPath == null 
+				|| (false == targetPath.equals(pathNamespace)
+					&& false == targetPath.startsWith(pathNamespacePrefix)))
+			{
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	private boolean matchesArgs(MatchTarget target)
+	{
+		for(int i=0, n=argIndexes.length; i<n; i++)
+		{
+			if(false == argValues[i].equals(target.getStringArg(argIndexes[i])))
+			{
+				return false;
+			}
+		}
+		
+		for(int i=0, n=argPathIndexes.length; i<n; i++)
+		{
+			String value = target.getPathArg(argPathIndexes[i]);
+			if(value == null || false == pathMatches(argPathValues[i], value))
+			{
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Check if a path matches an {@code argNpath} constraint. Paths match if
+	 * they are equal or if one of them ends with a slash and is a prefix of
+	 * the other.
+	 * 
+	 * @param rule
+	 * @param value
+	 * @return
+	 */
+	private static boolean pathMatches(String rule, String value)
+	{
+		return rule.equals(value)
+			|| (rule.endsWith("/") && value.startsWith(rule))
+			|| (value.endsWith("/") && rule.startsWith(value));
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "RuleMatcher[" + rule.getRule() + "]";
+	}
+}
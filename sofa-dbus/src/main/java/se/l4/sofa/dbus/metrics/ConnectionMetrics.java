@@ -0,0 +1,525 @@
+package se.l4.sofa.dbus.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.l4.sofa.dbus.spi.Message;
+
+/**
+ * Metrics of a single connection, exposed through JMX when
+ * {@link #register(String, String)} is called. Recording only updates striped
+ * counters so it is cheap enough to always be enabled.
+ * 
+ * <p>
+ * Metrics can have a parent that receives everything recorded, this is
+ * used to let a server keep totals for all of its clients.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class ConnectionMetrics
+	implements ConnectionMetricsMBean
+{
+	/**
+	 * Values that are read from the connection when requested instead of
+	 * being recorded.
+	 */
+	public interface Gauges
+	{
+		int getQueueDepth();
+		
+		int getPeakQueueDepth();
+		
+		int getPendingReplies();
+	}
+	
+	public static final String DOMAIN = "se.l4.sofa.dbus";
+	
+	private static final Logger logger = LoggerFactory.getLogger(ConnectionMetrics.class);
+	
+	/** Message types are 1 to 4, anything else is counted as 0 */
+	private static final int TYPES = 5;
+	
+	private final String name;
+	private final ConnectionMetrics parent;
+	private final Gauges gauges;
+	
+	private final StripedCounter[] messagesIn;
+	private final StripedCounter[] messagesOut;
+	private final StripedCounter[] bytesIn;
+	private final StripedCounter[] bytesOut;
+	
+	private final LatencyHistogram replyLatency;
+	private final StripedCounter encoded;
+	private final StripedCounter encodeNanos;
+	private final StripedCounter decoded;
+	private final StripedCounter decodeNanos;
+	private final StripedCounter reconnects;
+	private final StripedCounter slowDispatches;
+	
+	private final InvocationMetrics invocations;
+	
+	private ObjectName objectName;
+	private ObjectName invocationsName;
+	
+	/**
+	 * Create metrics for a connection.
+	 * 
+	 * @param name
+	 * 		name of the connection, such as its address
+	 * @param parent
+	 * 		metrics that should also receive everything recorded, may be
+	 * 		{@code null}
+	 * @param gauges
+	 */
+	public ConnectionMetrics(String name, ConnectionMetrics parent, Gauges gauges)
+	{
+		this(name, parent, gauges, StripedCounter.STRIPES);
+	}
+	
+	/**
+	 * Create metrics for a connection with the given number of stripes per
+	 * counter. Metrics of a single client of a server are only updated by
+	 * the few threads serving it, and a server can have many clients, so
+	 * they should use few stripes and leave striping to the totals of the
+	 * server.
+	 * 
+	 * @param name
+	 * 		name of the connection, such as its address
+	 * @param parent
+	 * 		metrics that should also receive everything recorded, may be
+	 * 		{@code null}
+	 * @param gauges
+	 * @param stripes
+	 * 		number of stripes used by every counter, see
+	 * 		{@link StripedCounter#StripedCounter(int)}
+	 */
+	public ConnectionMetrics(String name, ConnectionMetrics parent, Gauges gauges, int stripes)
+	{
+		this.name = name;
+		this.parent = parent;
+		this.gauges = gauges;
+		
+		messagesIn = counters(stripes);
+		messagesOut = counters(stripes);
+		bytesIn = counters(stripes);
+		bytesOut = counters(stripes);
+		
+		replyLatency = new LatencyHistogram(stripes);
+		encoded = new StripedCounter(stripes);
+		encodeNanos = new StripedCounter(stripes);
+		decoded = new StripedCounter(stripes);
+		decodeNanos = new StripedCounter(stripes);
+		reconnects = new StripedCounter(stripes);
+		slowDispatches = new StripedCounter(stripes);
+		
+		invocations = new InvocationMetrics();
+	}
+	
+	private static StripedCounter[] counters(int stripes)
+	{
+		StripedCounter[] result = new StripedCounter[TYPES];
+		for(int i=0; i<TYPES; i++)
+		{
+			result[i] = new StripedCounter(stripes);
+		}
+		
+		return result;
+	}
+	
+	private static int index(int type)
+	{
+		return type > 0 && type < TYPES ? type : 0;
+	}
+	
+	/**
+	 * Record that a message was read.
+	 * 
+	 * @param type
+	 * 		type of message
+	 * @param bytes
+	 * 		size of the encoded message
+	 * @param decodeNanos
+	 * 		time spent decoding the header
+	 */
+	public void messageRead(int type, int bytes, long decodeNanos)
+	{
+		int idx = index(type);
+		messagesIn[idx].increment();
+		bytesIn[idx].add(bytes);
+		decoded.increment();
+		this.decodeNanos.add(decodeNanos);
+		
+		if(parent != null)
+		{
+			parent.messageRead(type, bytes, decodeNanos);
+		}
+	}
+	
+	/**
+	 * Record that a message was written.
+	 * 
+	 * @param type
+	 * 		type of message
+	 * @param bytes
+	 * 		size of the encoded message
+	 */
+	public void messageWritten(int type, int bytes)
+	{
+		int idx = index(type);
+		messagesOut[idx].increment();
+		bytesOut[idx].add(bytes);
+		
+		if(parent != null)
+		{
+			parent.messageWritten(type, bytes);
+		}
+	}
+	
+	/**
+	 * Record that a message was encoded.
+	 * 
+	 * @param nanos
+	 * 		time spent encoding
+	 */
+	public void messageEncoded(long nanos)
+	{
+		encoded.increment();
+		encodeNanos.add(nanos);
+		
+		if(parent != null)
+		{
+			parent.messageEncoded(nanos);
+		}
+	}
+	
+	/**
+	 * Record the time between sending a method call and receiving its
+	 * reply.
+	 * 
+	 * @param nanos
+	 */
+	public void replyReceived(long nanos)
+	{
+		replyLatency.record(nanos);
+		
+		if(parent != null)
+		{
+			parent.replyReceived(nanos);
+		}
+	}
+	
+	public void reconnected()
+	{
+		reconnects.increment();
+		
+		if(parent != null)
+		{
+			parent.reconnected();
+		}
+	}
+	
+	/**
+	 * Record that a handler took longer than allowed by a
+	 * {@link HandlerWatchdog}.
+	 */
+	public void slowDispatch()
+	{
+		slowDispatches.increment();
+		
+		if(parent != null)
+		{
+			parent.slowDispatch();
+		}
+	}
+	
+	public LatencyHistogram getReplyLatency()
+	{
+		return replyLatency;
+	}
+	
+	/**
+	 * Get the metrics kept per method and signal. These are registered
+	 * together with the connection metrics, but are not passed on to the
+	 * parent.
+	 * 
+	 * @return
+	 */
+	public InvocationMetrics getInvocations()
+	{
+		return invocations;
+	}
+	
+	/**
+	 * Register these metrics with the platform MBean server. Failing to
+	 * register is logged and otherwise ignored.
+	 * 
+	 * @param type
+	 * 		type of connection, such as {@code DBusClient}
+	 * @param id
+	 * 		identifier that is unique for the type
+	 */
+	public synchronized void register(String type, String id)
+	{
+		if(objectName != null)
+		{
+			return;
+		}
+		
+		try
+		{
+			String base = DOMAIN + ":type=" + type + ",id=" + id 
+				+ ",name=" + ObjectName.quote(name);
+				
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName on = new ObjectName(base);
+			server.registerMBean(this, on);
+			objectName = on;
+			
+			ObjectName ion = new ObjectName(base + ",metrics=Invocations");
+			server.registerMBean(invocations, ion);
+			invocationsName = ion;
+		}
+		catch(Exception e)
+		{
+			logger.warn("Unable to register metrics for " + name + "; " + e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Remove these metrics from the platform MBean server if they have been
+	 * registered.
+	 */
+	public synchronized void unregister()
+	{
+		if(objectName == null)
+		{
+			return;
+		}
+		
+		try
+		{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if(server.isRegistered(objectName))
+			{
+				server.unregisterMBean(objectName);
+			}
+			
+			if(invocationsName != null && server.isRegistered(invocationsName))
+			{
+				server.unregisterMBean(invocationsName);
+			}
+		}
+		catch(Exception e)
+		{
+			logger.warn("Unable to unregister metrics for " + name + "; " + e.getMessage(), e);
+		}
+		
+		objectName = null;
+		invocationsName = null;
+	}
+	
+	/**
+	 * Get the name these metrics are registered under.
+	 * 
+	 * @return
+	 * 		name, or {@code null} if not registered
+	 */
+	public synchronized ObjectName getObjectName()
+	{
+		return objectName;
+	}
+	
+	public String getName()
+	{
+		return name;
+	}
+	
+	public long getMethodCallsIn()
+	{
+		return messagesIn[Message.TYPE_METHOD_CALL].get();
+	}
+	
+	public long getMethodCallsOut()
+	{
+		return messagesOut[Message.TYPE_METHOD_CALL].get();
+	}
+	
+	public long getMethodReturnsIn()
+	{
+		return messagesIn[Message.TYPE_METHOD_RETURN].get();
+	}
+	
+	public long getMethodReturnsOut()
+	{
+		return messagesOut[Message.TYPE_METHOD_RETURN].get();
+	}
+	
+	public long getErrorsIn()
+	{
+		return messagesIn[Message.TYPE_ERROR].get();
+	}
+	
+	public long getErrorsOut()
+	{
+		return messagesOut[Message.TYPE_ERROR].get();
+	}
+	
+	public long getSignalsIn()
+	{
+		return messagesIn[Message.TYPE_SIGNAL].get();
+	}
+	
+	public long getSignalsOut()
+	{
+		return messagesOut[Message.TYPE_SIGNAL].get();
+	}
+	
+	public long getMethodCallBytesIn()
+	{
+		return bytesIn[Message.TYPE_METHOD_CALL].get();
+	}
+	
+	public long getMethodCallBytesOut()
+	{
+		return bytesOut[Message.TYPE_METHOD_CALL].get();
+	}
+	
+	public long getMethodReturnBytesIn()
+	{
+		return bytesIn[Message.TYPE_METHOD_RETURN].get();
+	}
+	
+	public long getMethodReturnBytesOut()
+	{
+		return bytesOut[Message.TYPE_METHOD_RETURN].get();
+	}
+	
+	public long getErrorBytesIn()
+	{
+		return bytesIn[Message.TYPE_ERROR].get();
+	}
+	
+	public long getErrorBytesOut()
+	{
+		return bytesOut[Message.TYPE_ERROR].get();
+	}
+	
+	public long getSignalBytesIn()
+	{
+		return bytesIn[Message.TYPE_SIGNAL].get();
+	}
+	
+	public long getSignalBytesOut()
+	{
+		return bytesOut[Message.TYPE_SIGNAL].get();
+	}
+	
+	public long getBytesIn()
+	{
+		return sum(bytesIn);
+	}
+	
+	public long getBytesOut()
+	{
+		return sum(bytesOut);
+	}
+	
+	private static long sum(StripedCounter[] counters)
+	{
+		long result = 0;
+		for(StripedCounter c : counters)
+		{
+			result += c.get();
+		}
+		
+		return result;
+	}
+	
+	public int getQueueDepth()
+	{
+		return gauges == null ? 0 : gauges.getQueueDepth();
+	}
+	
+	public int getPeakQueueDepth()
+	{
+		return gauges == null ? 0 : gauges.getPeakQueueDepth();
+	}
+	
+	public int getPendingReplies()
+	{
+		return gauges == null ? 0 : gauges.getPendingReplies();
+	}
+	
+	public long getReplies()
+	{
+		return replyLatency.getCount();
+	}
+	
+	public double getReplyLatencyMean()
+	{
+		return replyLatency.getMean() / 1000.0;
+	}
+	
+	public long getReplyLatency50th()
+	{
+		return replyLatency.getValueAtPercentile(50) / 1000;
+	}
+	
+	public long getReplyLatency99th()
+	{
+		return replyLatency.getValueAtPercentile(99) / 1000;
+	}
+	
+	public long getReplyLatency999th()
+	{
+		return replyLatency.getValueAtPercentile(99.9) / 1000;
+	}
+	
+	public long getReplyLatencyMax()
+	{
+		return replyLatency.getMax() / 1000;
+	}
+	
+	public long[] getReplyLatencyBuckets()
+	{
+		return replyLatency.getBuckets();
+	}
+	
+	public long getEncoded()
+	{
+		return encoded.get();
+	}
+	
+	public double getEncodeTimeMean()
+	{
+		long count = encoded.get();
+		return count == 0 ? 0 : encodeNanos.get() / 1000.0 / count;
+	}
+	
+	public long getDecoded()
+	{
+		return decoded.get();
+	}
+	
+	public double getDecodeTimeMean()
+	{
+		long count = decoded.get();
+		return count == 0 ? 0 : decodeNanos.get() / 1000.0 / count;
+	}
+	
+	public long getReconnects()
+	{
+		return reconnects.get();
+	}
+	
+	public long getSlowDispatches()
+	{
+		return slowDispatches.get();
+	}
+}
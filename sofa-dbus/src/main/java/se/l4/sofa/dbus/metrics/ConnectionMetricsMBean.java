@@ -0,0 +1,102 @@
+package se.l4.sofa.dbus.metrics;
+
+/**
+ * Management interface of {@link ConnectionMetrics}. Counters are totals
+ * since the connection was created, durations are in microseconds.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public interface ConnectionMetricsMBean
+{
+	String getName();
+	
+	long getMethodCallsIn();
+	
+	long getMethodCallsOut();
+	
+	long getMethodReturnsIn();
+	
+	long getMethodReturnsOut();
+	
+	long getErrorsIn();
+	
+	long getErrorsOut();
+	
+	long getSignalsIn();
+	
+	long getSignalsOut();
+	
+	long getMethodCallBytesIn();
+	
+	long getMethodCallBytesOut();
+	
+	long getMethodReturnBytesIn();
+	
+	long getMethodReturnBytesOut();
+	
+	long getErrorBytesIn();
+	
+	long getErrorBytesOut();
+	
+	long getSignalBytesIn();
+	
+	long getSignalBytesOut();
+	
+	long getBytesIn();
+	
+	long getBytesOut();
+	
+	/**
+	 * Number of messages waiting to be written.
+	 */
+	int getQueueDepth();
+	
+	/**
+	 * Highest number of messages that have been waiting to be written.
+	 */
+	int getPeakQueueDepth();
+	
+	/**
+	 * Number of method calls waiting for a reply.
+	 */
+	int getPendingReplies();
+	
+	long getReplies();
+	
+	double getReplyLatencyMean();
+	
+	long getReplyLatency50th();
+	
+	long getReplyLatency99th();
+	
+	long getReplyLatency999th();
+	
+	long getReplyLatencyMax();
+	
+	/**
+	 * Number of replies per power of two nanoseconds, see
+	 * {@link LatencyHistogram}.
+	 */
+	long[] getReplyLatencyBuckets();
+	
+	/**
+	 * Number of messages encoded by this connection, messages sent to
+	 * several clients are only encoded once.
+	 */
+	long getEncoded();
+	
+	double getEncodeTimeMean();
+	
+	long getDecoded();
+	
+	double getDecodeTimeMean();
+	
+	long getReconnects();
+	
+	/**
+	 * Number of messages whose handlers were reported as slow by a
+	 * {@link HandlerWatchdog}.
+	 */
+	long getSlowDispatches();
+}
@@ -0,0 +1,423 @@
+package se.l4.sofa.dbus.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.l4.sofa.dbus.spi.Channel;
+import se.l4.sofa.dbus.spi.HandlerChain;
+import se.l4.sofa.dbus.spi.Message;
+import se.l4.sofa.dbus.spi.MessageHandler;
+
+/**
+ * Watchdog for handlers that take too long. Handlers are run on the reader
+ * thread of a connection, so a handler that blocks stops the connection
+ * from reading anything else. When set on a {@link HandlerChain} every
+ * message being handled is tracked and a background thread reports those
+ * that run for longer than the threshold, together with the stack of the
+ * thread running the handler.
+ * 
+ * <p>
+ * Every slow dispatch is reported once while it is still running and once
+ * more when it finishes. If the channel keeps {@link ConnectionMetrics} the
+ * slow dispatch is also counted there.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class HandlerWatchdog
+	implements HandlerWatchdogMBean
+{
+	/**
+	 * A message that is being handled.
+	 */
+	public static class Dispatch
+	{
+		private final Message message;
+		private final Channel channel;
+		private final Thread thread;
+		private final long started;
+		
+		private volatile MessageHandler handler;
+		private volatile boolean slow;
+		
+		private Dispatch(Message message, Channel channel)
+		{
+			this.message = message;
+			this.channel = channel;
+			
+			thread = Thread.currentThread();
+			started = System.nanoTime();
+		}
+		
+		/**
+		 * Set the handler that is currently being run.
+		 * 
+		 * @param handler
+		 */
+		public void setHandler(MessageHandler handler)
+		{
+			this.handler = handler;
+		}
+		
+		public MessageHandler getHandler()
+		{
+			return handler;
+		}
+		
+		public Message getMessage()
+		{
+			return message;
+		}
+		
+		public Channel getChannel()
+		{
+			return channel;
+		}
+		
+		public Thread getThread()
+		{
+			return thread;
+		}
+		
+		/**
+		 * Get the time in nanoseconds this message has been handled for.
+		 * 
+		 * @return
+		 */
+		public long getElapsed()
+		{
+			return System.nanoTime() - started;
+		}
+		
+		/**
+		 * Get if this dispatch has been reported as slow.
+		 * 
+		 * @return
+		 */
+		public boolean isSlow()
+		{
+			return slow;
+		}
+		
+		@Override
+		public String toString()
+		{
+			MessageHandler h = handler;
+			return (h == null ? "<none>" : h.getClass().getName())
+				+ " on " + thread.getName() + " for "
+				+ TimeUnit.NANOSECONDS.toMillis(getElapsed()) + " ms handling " + message;
+		}
+	}
+	
+	private static final Logger logger = LoggerFactory.getLogger(HandlerWatchdog.class);
+	
+	/** Shortest time between two checks */
+	private static final long MIN_INTERVAL = 10;
+	
+	private final String name;
+	private final ConcurrentMap<Dispatch, Dispatch> running;
+	
+	private final AtomicLong slowDispatches;
+	private final AtomicLong longest;
+	
+	private volatile long threshold;
+	private volatile boolean closed;
+	
+	private final Thread thread;
+	private ObjectName objectName;
+	
+	/**
+	 * Create a watchdog and start its background thread.
+	 * 
+	 * @param name
+	 * 		name of the watchdog, used for its thread and when registering
+	 * 		with JMX
+	 * @param threshold
+	 * 		time after which a handler is considered slow
+	 * @param unit
+	 */
+	public HandlerWatchdog(String name, long threshold, TimeUnit unit)
+	{
+		if(threshold <= 0)
+		{
+			throw new IllegalArgumentException("Threshold must be positive, was " + threshold);
+		}
+		
+		this.name = name;
+		this.threshold = unit.toNanos(threshold);
+		
+		running = new ConcurrentHashMap<Dispatch, Dispatch>();
+		slowDispatches = new AtomicLong();
+		longest = new AtomicLong();
+		
+		thread = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				watch();
+			}
+		}, "dbus-handler-watchdog [" + name + "]");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Start tracking a message that is about to be handled.
+	 * 
+	 * @param message
+	 * @param channel
+	 * @return
+	 * 		dispatch that must be passed to {@link #end(Dispatch)}
+	 */
+	public Dispatch begin(Message message, Channel channel)
+	{
+		Dispatch dispatch = new Dispatch(message, channel);
+		running.put(dispatch, dispatch);
+		return dispatch;
+	}
+	
+	/**
+	 * Stop tracking a message, reporting how long it took if it was slow.
+	 * 
+	 * @param dispatch
+	 */
+	public void end(Dispatch dispatch)
+	{
+		running.remove(dispatch);
+		
+		if(dispatch.slow)
+		{
+			long elapsed = dispatch.getElapsed();
+			updateLongest(elapsed);
+			
+			logger.warn("Slow handler finished after "
+				+ TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms; " + dispatch);
+		}
+	}
+	
+	private void watch()
+	{
+		while(false == closed)
+		{
+			try
+			{
+				long interval = Math.max(MIN_INTERVAL, TimeUnit.NANOSECONDS.toMillis(threshold) / 4);
+				Thread.sleep(interval);
+			}
+			catch(InterruptedException e)
+			{
+				continue;
+			}
+			
+			check();
+		}
+	}
+	
+	/**
+	 * Report every dispatch that has passed the threshold and has not
+	 * been reported yet. Called regularly by the background thread.
+	 */
+	public void check()
+	{
+		long limit = threshold;
+		for(Dispatch dispatch : running.keySet())
+		{
+			long elapsed = dispatch.getElapsed();
+			if(elapsed < limit || dispatch.slow)
+			{
+				continue;
+			}
+			
+			dispatch.slow = true;
+			slowDispatches.incrementAndGet();
+			updateLongest(elapsed);
+			
+			if(dispatch.channel instanceof Metered)
+			{
+				((Metered) dispatch.channel).getMetrics().slowDispatch();
+			}
+			
+			Throwable stack = new Throwable("Stack of " + dispatch.thread.getName());
+			stack.setStackTrace(dispatch.thread.getStackTrace());
+			logger.warn("Slow handler; " + dispatch, stack);
+		}
+	}
+	
+	private void updateLongest(long elapsed)
+	{
+		while(true)
+		{
+			long current = longest.get();
+			if(elapsed <= current || longest.compareAndSet(current, elapsed))
+			{
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Get the messages that are currently being handled.
+	 * 
+	 * @return
+	 */
+	public List<Dispatch> getRunning()
+	{
+		return new ArrayList<Dispatch>(running.keySet());
+	}
+	
+	/**
+	 * Stop the background thread and unregister from JMX.
+	 */
+	public void close()
+	{
+		closed = true;
+		thread.interrupt();
+		
+		unregister();
+	}
+	
+	/**
+	 * Register this watchdog with the platform MBean server. Failing to
+	 * register is logged and otherwise ignored.
+	 */
+	public synchronized void register()
+	{
+		if(objectName != null)
+		{
+			return;
+		}
+		
+		try
+		{
+			ObjectName on = new ObjectName(ConnectionMetrics.DOMAIN
+				+ ":type=HandlerWatchdog,name=" + ObjectName.quote(name));
+				
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+			objectName = on;
+		}
+		catch(Exception e)
+		{
+			logger.warn("Unable to register watchdog " + name + "; " + e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Remove this watchdog from the platform MBean server if it has been
+	 * registered.
+	 */
+	public synchronized void unregister()
+	{
+		if(objectName == null)
+		{
+			return;
+		}
+		
+		try
+		{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if(server.isRegistered(objectName))
+			{
+				server.unregisterMBean(objectName);
+			}
+		}
+		catch(Exception e)
+		{
+			logger.warn("Unable to unregister watchdog " + name + "; " + e.getMessage(), e);
+		}
+		
+		objectName = null;
+	}
+	
+	/**
+	 * Get the name this watchdog is registered under.
+	 * 
+	 * @return
+	 * 		name, or {@code null} if not registered
+	 */
+	public synchronized ObjectName getObjectName()
+	{
+		return objectName;
+	}
+	
+	public String getName()
+	{
+		return name;
+	}
+	
+	public long getThresholdMillis()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(threshold);
+	}
+	
+	public void setThresholdMillis(long threshold)
+	{
+		if(threshold <= 0)
+		{
+			throw new IllegalArgumentException("Threshold must be positive, was " + threshold);
+		}
+		
+		this.threshold = TimeUnit.MILLISECONDS.toNanos(threshold);
+	}
+	
+	public long getSlowDispatches()
+	{
+		return slowDispatches.get();
+	}
+	
+	public long getLongestMillis()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(longest.get());
+	}
+	
+	public int getRunningCount()
+	{
+		return running.size();
+	}
+	
+	public int getSlowCount()
+	{
+		int result = 0;
+		for(Dispatch dispatch : running.keySet())
+		{
+			if(dispatch.slow)
+			{
+				result++;
+			}
+		}
+		
+		return result;
+	}
+	
+	public String[] describeSlow()
+	{
+		List<String> result = new ArrayList<String>();
+		for(Dispatch dispatch : running.keySet())
+		{
+			if(false == dispatch.slow)
+			{
+				continue;
+			}
+			
+			StringBuilder builder = new StringBuilder(dispatch.toString());
+			for(StackTraceElement e : dispatch.thread.getStackTrace())
+			{
+				builder.append("\n\tat ").append(e);
+			}
+			
+			result.add(builder.toString());
+		}
+		
+		return result.toArray(new String[result.size()]);
+	}
+}
@@ -0,0 +1,48 @@
+package se.l4.sofa.dbus.metrics;
+
+/**
+ * Management interface of {@link HandlerWatchdog}.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public interface HandlerWatchdogMBean
+{
+	String getName();
+	
+	/**
+	 * Time in milliseconds after which a handler is reported as slow.
+	 */
+	long getThresholdMillis();
+	
+	void setThresholdMillis(long threshold);
+	
+	/**
+	 * Number of dispatches that have been reported as slow.
+	 */
+	long getSlowDispatches();
+	
+	/**
+	 * Longest time in milliseconds a slow dispatch has been seen running.
+	 */
+	long getLongestMillis();
+	
+	/**
+	 * Number of messages currently being handled.
+	 */
+	int getRunningCount();
+	
+	/**
+	 * Number of messages currently being handled that have passed the
+	 * threshold.
+	 */
+	int getSlowCount();
+	
+	/**
+	 * Describe every message currently being handled that has passed the
+	 * threshold, including the stack of the thread handling it.
+	 * 
+	 * @return
+	 */
+	String[] describeSlow();
+}
@@ -0,0 +1,86 @@
+package se.l4.sofa.dbus.metrics;
+
+/**
+ * Time spent in the phases of a single method call or signal, filled in as
+ * the call progresses and then recorded with
+ * {@link MethodStats#record(long, Invocation, boolean)}. Phases that were not
+ * measured are negative.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class Invocation
+{
+	private long marshal;
+	private long queue;
+	private long wire;
+	private long handler;
+	
+	public Invocation()
+	{
+		queue = -1;
+		wire = -1;
+		handler = -1;
+	}
+	
+	/**
+	 * Add time spent converting and encoding or decoding arguments.
+	 * 
+	 * @param nanos
+	 */
+	public void addMarshal(long nanos)
+	{
+		marshal += nanos;
+	}
+	
+	/**
+	 * Set the time spent waiting in a queue, either waiting to be written or
+	 * waiting for a dispatch thread.
+	 * 
+	 * @param nanos
+	 */
+	public void setQueue(long nanos)
+	{
+		queue = nanos;
+	}
+	
+	/**
+	 * Set the time between a call being written and its reply being read.
+	 * 
+	 * @param nanos
+	 */
+	public void setWire(long nanos)
+	{
+		wire = nanos;
+	}
+	
+	/**
+	 * Add time spent in the method or listener that was invoked.
+	 * 
+	 * @param nanos
+	 */
+	public void addHandler(long nanos)
+	{
+		handler = handler < 0 ? nanos : handler + nanos;
+	}
+	
+	public long getMarshal()
+	{
+		return marshal;
+	}
+	
+	public long getQueue()
+	{
+		return queue;
+	}
+	
+	public long getWire()
+	{
+		return wire;
+	}
+	
+	public long getHandler()
+	{
+		return handler;
+	}
+}
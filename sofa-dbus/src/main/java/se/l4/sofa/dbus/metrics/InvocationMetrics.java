@@ -0,0 +1,213 @@
+package se.l4.sofa.dbus.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+/**
+ * Latency and errors per method and signal for a connection. Stats are
+ * kept separately for methods called through proxies, exported methods
+ * invoked by others and signals delivered to listeners.
+ * 
+ * <p>
+ * Looking up the stats of a method does not allocate once the method has
+ * been seen, recording follows the rules of {@link LatencyHistogram}.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class InvocationMetrics
+	implements InvocationMetricsMBean
+{
+	private static final String[] ITEMS = {
+		"kind", "name", "count", "errors", "totalMillis", "meanMicros", "p99Micros", "maxMicros",
+		"marshalMicros", "queueMicros", "wireMicros", "handlerMicros"
+	};
+	
+	private static final CompositeType ROW_TYPE;
+	private static final TabularType TABLE_TYPE;
+	
+	static
+	{
+		try
+		{
+			OpenType<?>[] types = {
+				SimpleType.STRING, SimpleType.STRING, SimpleType.LONG, SimpleType.LONG,
+				SimpleType.DOUBLE, SimpleType.DOUBLE, SimpleType.LONG, SimpleType.LONG,
+				SimpleType.DOUBLE, SimpleType.DOUBLE, SimpleType.DOUBLE, SimpleType.DOUBLE
+			};
+			
+			ROW_TYPE = new CompositeType("Invocation", "Latency of a method or signal",
+				ITEMS, ITEMS, types);
+			TABLE_TYPE = new TabularType("Invocations", "Latency per method and signal",
+				ROW_TYPE, new String[] { "kind", "name" });
+		}
+		catch(OpenDataException e)
+		{
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+	
+	private final Map<MethodStats.Kind, ConcurrentMap<String, ConcurrentMap<String, MethodStats>>> stats;
+	
+	public InvocationMetrics()
+	{
+		stats = new EnumMap<MethodStats.Kind, ConcurrentMap<String, ConcurrentMap<String, MethodStats>>>(
+			MethodStats.Kind.class);
+			
+		for(MethodStats.Kind kind : MethodStats.Kind.values())
+		{
+			stats.put(kind, new ConcurrentHashMap<String, ConcurrentMap<String, MethodStats>>());
+		}
+	}
+	
+	/**
+	 * Get the stats of a method or signal, creating them if this is the
+	 * first time it is seen.
+	 * 
+	 * @param kind
+	 * @param interfaceName
+	 * 		interface of the method, may be {@code null}
+	 * @param member
+	 * @return
+	 */
+	public MethodStats get(MethodStats.Kind kind, String interfaceName, String member)
+	{
+		if(interfaceName == null)
+		{
+			interfaceName = "";
+		}
+		
+		if(member == null)
+		{
+			member = "";
+		}
+		
+		ConcurrentMap<String, ConcurrentMap<String, MethodStats>> byInterface = stats.get(kind);
+		ConcurrentMap<String, MethodStats> byMember = byInterface.get(interfaceName);
+		if(byMember == null)
+		{
+			byMember = new ConcurrentHashMap<String, MethodStats>();
+			ConcurrentMap<String, MethodStats> old = byInterface.putIfAbsent(interfaceName, byMember);
+			if(old != null)
+			{
+				byMember = old;
+			}
+		}
+		
+		MethodStats result = byMember.get(member);
+		if(result == null)
+		{
+			result = new MethodStats(kind, interfaceName, member);
+			MethodStats old = byMember.putIfAbsent(member, result);
+			if(old != null)
+			{
+				result = old;
+			}
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Get the stats of all methods and signals that have been seen.
+	 * 
+	 * @return
+	 */
+	public List<MethodStats> getAll()
+	{
+		List<MethodStats> result = new ArrayList<MethodStats>();
+		for(ConcurrentMap<String, ConcurrentMap<String, MethodStats>> byInterface : stats.values())
+		{
+			for(ConcurrentMap<String, MethodStats> byMember : byInterface.values())
+			{
+				result.addAll(byMember.values());
+			}
+		}
+		
+		return result;
+	}
+	
+	public int getMethodCount()
+	{
+		return getAll().size();
+	}
+	
+	public TabularData getInvocations()
+	{
+		TabularDataSupport table = new TabularDataSupport(TABLE_TYPE);
+		for(MethodStats s : getAll())
+		{
+			LatencyHistogram latency = s.getLatency();
+			Object[] values = {
+				s.getKind().name().toLowerCase(),
+				s.getName(),
+				s.getCount(),
+				s.getErrors(),
+				latency.getTotal() / 1000000.0,
+				latency.getMean() / 1000.0,
+				latency.getValueAtPercentile(99) / 1000,
+				latency.getMax() / 1000,
+				s.getPhase(MethodStats.Phase.MARSHAL).getMean() / 1000.0,
+				s.getPhase(MethodStats.Phase.QUEUE).getMean() / 1000.0,
+				s.getPhase(MethodStats.Phase.WIRE).getMean() / 1000.0,
+				s.getPhase(MethodStats.Phase.HANDLER).getMean() / 1000.0
+			};
+			
+			try
+			{
+				table.put(new CompositeDataSupport(ROW_TYPE, ITEMS, values));
+			}
+			catch(OpenDataException e)
+			{
+				throw new IllegalStateException("Invalid row " + s + "; " + e.getMessage(), e);
+			}
+		}
+		
+		return table;
+	}
+	
+	public String[] top(int count)
+	{
+		List<MethodStats> all = getAll();
+		final Map<MethodStats, Long> totals = new HashMap<MethodStats, Long>();
+		for(MethodStats s : all)
+		{
+			totals.put(s, s.getLatency().getTotal());
+		}
+		
+		Collections.sort(all, new Comparator<MethodStats>()
+		{
+			public int compare(MethodStats o1, MethodStats o2)
+			{
+				long t1 = totals.get(o1);
+				long t2 = totals.get(o2);
+				return t1 == t2 ? 0 : (t1 > t2 ? -1 : 1);
+			}
+		});
+		
+		int n = Math.min(count, all.size());
+		String[] result = new String[n];
+		for(int i=0; i<n; i++)
+		{
+			result[i] = all.get(i).toString();
+		}
+		
+		return result;
+	}
+}
@@ -0,0 +1,33 @@
+package se.l4.sofa.dbus.metrics;
+
+import javax.management.openmbean.TabularData;
+
+/**
+ * Management interface of {@link InvocationMetrics}.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public interface InvocationMetricsMBean
+{
+	/**
+	 * Number of methods and signals that have been seen.
+	 */
+	int getMethodCount();
+	
+	/**
+	 * One row per method or signal with counts and latencies in
+	 * microseconds, including the mean of every phase.
+	 */
+	TabularData getInvocations();
+	
+	/**
+	 * Describe the methods and signals that have spent the most time in
+	 * total, slowest first.
+	 * 
+	 * @param count
+	 * 		maximum number of methods to return
+	 * @return
+	 */
+	String[] top(int count);
+}
@@ -0,0 +1,181 @@
+package se.l4.sofa.dbus.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in nanoseconds with one bucket per power of two,
+ * bucket {@code i} counts durations from {@code 2^i} up to
+ * {@code 2^(i+1)} nanoseconds. Percentiles are reported as the upper bound
+ * of the bucket they fall in so they are never lower than the real value.
+ * 
+ * <p>
+ * Like {@link StripedCounter} the buckets are striped per thread and
+ * recording never locks. Every stripe is a row of {@link #BUCKETS} counts
+ * followed by the sum of the durations recorded in it.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class LatencyHistogram
+{
+	/** Number of buckets, the last one also holds everything above 2^40 ns */
+	public static final int BUCKETS = 41;
+	
+	/** Length of a stripe, the buckets followed by the total */
+	private static final int ROW = BUCKETS + 1;
+	
+	private final int mask;
+	private final AtomicLongArray counts;
+	private final AtomicLong max;
+	
+	public LatencyHistogram()
+	{
+		this(StripedCounter.STRIPES);
+	}
+	
+	/**
+	 * Create a histogram with fewer stripes than the default, for when a
+	 * large number of histograms are kept that are rarely updated at the
+	 * same time.
+	 * 
+	 * @param stripes
+	 * 		number of stripes, rounded down to a power of two and limited to
+	 * 		the number of stripes used by {@link StripedCounter}
+	 */
+	public LatencyHistogram(int stripes)
+	{
+		int n = 1;
+		while(n * 2 <= stripes && n * 2 <= StripedCounter.STRIPES)
+		{
+			n <<= 1;
+		}
+		
+		mask = n - 1;
+		counts = new AtomicLongArray(n * ROW);
+		max = new AtomicLong();
+	}
+	
+	/**
+	 * Record a duration.
+	 * 
+	 * @param nanos
+	 */
+	public void record(long nanos)
+	{
+		if(nanos < 0)
+		{
+			nanos = 0;
+		}
+		
+		int bucket = 63 - Long.numberOfLeadingZeros(nanos | 1);
+		if(bucket >= BUCKETS)
+		{
+			bucket = BUCKETS - 1;
+		}
+		
+		int row = (StripedCounter.stripe() & mask) * ROW;
+		counts.getAndIncrement(row + bucket);
+		counts.getAndAdd(row + BUCKETS, nanos);
+		
+		long current = max.get();
+		while(nanos > current && false == max.compareAndSet(current, nanos))
+		{
+			current = max.get();
+		}
+	}
+	
+	/**
+	 * Get the number of durations in every bucket.
+	 * 
+	 * @return
+	 */
+	public long[] getBuckets()
+	{
+		long[] result = new long[BUCKETS];
+		for(int row=0, n=counts.length(); row<n; row+=ROW)
+		{
+			for(int i=0; i<BUCKETS; i++)
+			{
+				result[i] += counts.get(row + i);
+			}
+		}
+		
+		return result;
+	}
+	
+	public long getCount()
+	{
+		long result = 0;
+		for(long c : getBuckets())
+		{
+			result += c;
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Get the sum of all recorded durations.
+	 * 
+	 * @return
+	 */
+	public long getTotal()
+	{
+		long result = 0;
+		for(int row=0, n=counts.length(); row<n; row+=ROW)
+		{
+			result += counts.get(row + BUCKETS);
+		}
+		
+		return result;
+	}
+	
+	public long getMax()
+	{
+		return max.get();
+	}
+	
+	public double getMean()
+	{
+		long count = getCount();
+		return count == 0 ? 0 : (double) getTotal() / count;
+	}
+	
+	/**
+	 * Get the duration below which the given percentage of durations fall.
+	 * 
+	 * @param percentile
+	 * 		percentile between 0 and 100
+	 * @return
+	 * 		upper bound of the bucket containing the percentile, never
+	 * 		more than the maximum recorded duration
+	 */
+	public long getValueAtPercentile(double percentile)
+	{
+		long[] buckets = getBuckets();
+		long count = 0;
+		for(long c : buckets)
+		{
+			count += c;
+		}
+		
+		if(count == 0)
+		{
+			return 0;
+		}
+		
+		long wanted = (long) Math.ceil(count * percentile / 100.0);
+		long seen = 0;
+		for(int i=0; i<BUCKETS; i++)
+		{
+			seen += buckets[i];
+			if(seen >= wanted && buckets[i] > 0)
+			{
+				return Math.min((1L << (i + 1)) - 1, getMax());
+			}
+		}
+		
+		return getMax();
+	}
+}
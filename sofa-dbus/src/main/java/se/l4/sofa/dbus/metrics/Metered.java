@@ -0,0 +1,19 @@
+package se.l4.sofa.dbus.metrics;
+
+/**
+ * Implemented by connections that keep {@link ConnectionMetrics}, lets
+ * handlers that only see a channel record into the metrics of the
+ * connection.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public interface Metered
+{
+	/**
+	 * Get the metrics of this connection.
+	 * 
+	 * @return
+	 */
+	ConnectionMetrics getMetrics();
+}
@@ -0,0 +1,178 @@
+package se.l4.sofa.dbus.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency and errors of a single method or signal, seen from one side of a
+ * connection.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class MethodStats
+{
+	public enum Kind
+	{
+		/** Method called through a proxy */
+		CALL,
+		/** Exported method invoked by a remote caller */
+		DISPATCH,
+		/** Signal delivered to local listeners */
+		SIGNAL
+	}
+	
+	public enum Phase
+	{
+		/** Converting and encoding or decoding arguments and results */
+		MARSHAL,
+		/** Waiting to be written or waiting for a dispatch thread */
+		QUEUE,
+		/** From a call being written until its reply is read */
+		WIRE,
+		/** Running the invoked method or the signal listeners */
+		HANDLER
+	}
+	
+	/** Histograms per method are rarely contended, keep them small */
+	private static final int STRIPES = 4;
+	
+	private final Kind kind;
+	private final String interfaceName;
+	private final String member;
+	
+	private final LatencyHistogram latency;
+	private final LatencyHistogram[] phases;
+	private final AtomicLong errors;
+	
+	public MethodStats(Kind kind, String interfaceName, String member)
+	{
+		this.kind = kind;
+		this.interfaceName = interfaceName;
+		this.member = member;
+		
+		latency = new LatencyHistogram(STRIPES);
+		phases = new LatencyHistogram[Phase.values().length];
+		for(int i=0; i<phases.length; i++)
+		{
+			phases[i] = new LatencyHistogram(STRIPES);
+		}
+		
+		errors = new AtomicLong();
+	}
+	
+	/**
+	 * Record a call.
+	 * 
+	 * @param total
+	 * 		time from start to end of the call
+	 * @param invocation
+	 * 		time spent in every phase
+	 * @param failed
+	 * 		if the call failed
+	 */
+	public void record(long total, Invocation invocation, boolean failed)
+	{
+		latency.record(total);
+		
+		phases[Phase.MARSHAL.ordinal()].record(invocation.getMarshal());
+		if(invocation.getQueue() >= 0)
+		{
+			phases[Phase.QUEUE.ordinal()].record(invocation.getQueue());
+		}
+		
+		if(invocation.getWire() >= 0)
+		{
+			phases[Phase.WIRE.ordinal()].record(invocation.getWire());
+		}
+		
+		if(invocation.getHandler() >= 0)
+		{
+			phases[Phase.HANDLER.ordinal()].record(invocation.getHandler());
+		}
+		
+		if(failed)
+		{
+			errors.incrementAndGet();
+		}
+	}
+	
+	public Kind getKind()
+	{
+		return kind;
+	}
+	
+	public String getInterfaceName()
+	{
+		return interfaceName;
+	}
+	
+	public String getMember()
+	{
+		return member;
+	}
+	
+	/**
+	 * Get the full name of the method or signal.
+	 * 
+	 * @return
+	 */
+	public String getName()
+	{
+		return interfaceName.length() == 0 ? member : interfaceName + "." + member;
+	}
+	
+	/**
+	 * Get the histogram of the total time of every call.
+	 * 
+	 * @return
+	 */
+	public LatencyHistogram getLatency()
+	{
+		return latency;
+	}
+	
+	/**
+	 * Get the histogram of a single phase. Only calls where the phase was
+	 * measured are counted.
+	 * 
+	 * @param phase
+	 * @return
+	 */
+	public LatencyHistogram getPhase(Phase phase)
+	{
+		return phases[phase.ordinal()];
+	}
+	
+	public long getCount()
+	{
+		return latency.getCount();
+	}
+	
+	public long getErrors()
+	{
+		return errors.get();
+	}
+	
+	@Override
+	public String toString()
+	{
+		StringBuilder builder = new StringBuilder();
+		builder.append(kind.name().toLowerCase()).append(' ').append(getName())
+			.append(": ").append(getCount()).append(" calls, ")
+			.append(getErrors()).append(" errors, mean ")
+			.append(String.format("%.1f", latency.getMean() / 1000.0)).append(" us, p99 ")
+			.append(latency.getValueAtPercentile(99) / 1000).append(" us");
+			
+		for(Phase phase : Phase.values())
+		{
+			LatencyHistogram h = phases[phase.ordinal()];
+			if(h.getCount() > 0)
+			{
+				builder.append(", ").append(phase.name().toLowerCase()).append(' ')
+					.append(String.format("%.1f", h.getMean() / 1000.0)).append(" us");
+			}
+		}
+		
+		return builder.toString();
+	}
+}
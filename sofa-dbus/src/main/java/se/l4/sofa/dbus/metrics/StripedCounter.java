@@ -0,0 +1,97 @@
+package se.l4.sofa.dbus.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that spreads updates over several cells so that threads updating
+ * it at the same time rarely touch the same cache line. Updates never lock,
+ * reading sums all the cells and is more expensive.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class StripedCounter
+{
+	/** Number of longs per cell, so that every cell is on its own cache line */
+	static final int PAD = 8;
+	/** Number of cells, a power of two */
+	static final int STRIPES;
+	
+	static
+	{
+		int cpus = Runtime.getRuntime().availableProcessors();
+		int stripes = 1;
+		while(stripes < cpus * 2 && stripes < 64)
+		{
+			stripes <<= 1;
+		}
+		
+		STRIPES = stripes;
+	}
+	
+	private final int mask;
+	private final AtomicLongArray cells;
+	
+	public StripedCounter()
+	{
+		this(STRIPES);
+	}
+	
+	/**
+	 * Create a counter with fewer stripes than the default, for when a large
+	 * number of counters are kept that are only updated by a few threads.
+	 * 
+	 * @param stripes
+	 * 		number of stripes, rounded down to a power of two and limited to
+	 * 		{@link #STRIPES}
+	 */
+	public StripedCounter(int stripes)
+	{
+		int n = 1;
+		while(n * 2 <= stripes && n * 2 <= STRIPES)
+		{
+			n <<= 1;
+		}
+		
+		mask = n - 1;
+		cells = new AtomicLongArray(n * PAD);
+	}
+	
+	/**
+	 * Get the stripe used by the calling thread.
+	 * 
+	 * @return
+	 */
+	static int stripe()
+	{
+		long id = Thread.currentThread().getId();
+		return (int) (id ^ (id >>> 16)) & (STRIPES - 1);
+	}
+	
+	public void increment()
+	{
+		cells.getAndIncrement((stripe() & mask) * PAD);
+	}
+	
+	public void add(long value)
+	{
+		cells.getAndAdd((stripe() & mask) * PAD, value);
+	}
+	
+	/**
+	 * Get the current value of the counter. Not atomic with respect to
+	 * concurrent updates.
+	 * 
+	 * @return
+	 */
+	public long get()
+	{
+		long result = 0;
+		for(int i=0, n=cells.length(); i<n; i+=PAD)
+		{
+			result += cells.get(i);
+		}
+		
+		return result;
+	}
+}
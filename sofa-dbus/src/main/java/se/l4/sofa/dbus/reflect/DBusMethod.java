@@ -17,6 +17,9 @@ import se.l4.sofa.dbus.In;
 import se.l4.sofa.dbus.Name;
 import se.l4.sofa.dbus.Out;
 import se.l4.sofa.dbus.io.DBusOutputStream;
+import se.l4.sofa.dbus.metrics.Invocation;
+import se.l4.sofa.dbus.metrics.InvocationMetrics;
+import se.l4.sofa.dbus.metrics.MethodStats;
 import se.l4.sofa.dbus.spi.Channel;
 import se.l4.sofa.dbus.spi.DBusHelper;
 import se.l4.sofa.dbus.spi.Endian;
@@ -24,6 +27,8 @@ import se.l4.sofa.dbus.spi.Marshalling;
 import se.l4.sofa.dbus.spi.Message;
 import se.l4.sofa.dbus.spi.ObjectPath;
 import se.l4.sofa.dbus.spi.Signature;
+import se.l4.sofa.dbus.spi.Trace;
+import se.l4.sofa.dbus.spi.Tracing;
 import se.l4.sofa.dbus.spi.Signature.SubSignature;
 
 /**
@@ -38,7 +43,6 @@ public class DBusMethod
 	private final String interfaceName;
 	private final String name;
 	
-	private final boolean needReply;
 	private final Method method;
 	
 	private Signature returnSignature;
@@ -66,9 +70,6 @@ public class DBusMethod
 		getRequestSignature(m);
 		getReturnSignature(m);
 		
-		needReply = m.getReturnType() != void.class 
-			|| returnIndexes.length > 0;
-		
 		boolean hasException = false;
 		for(Class<?> c : m.getExceptionTypes())
 		{
@@ -141,7 +142,7 @@ public class DBusMethod
 	 * @param c
 	 * 		channel to send message on
 	 * @param bus
-	 * 		bus name to send it to
+	 * 		bus name to send it to, {@code null} if sent directly to a peer
 	 * @param path
 	 * 		path on bus to send to
 	 * @param args
@@ -154,6 +155,58 @@ public class DBusMethod
 	public Object invoke(Channel c, Endian endian, String bus, String path, Object[] args)
 		throws Exception
 	{
+		return invoke(c, endian, bus, path, args, null);
+	}
+	
+	/**
+	 * Create a message to invoke this method and send it over the channel,
+	 * recording the time spent in every phase of the call.
+	 * 
+	 * @param c
+	 * 		channel to send message on
+	 * @param bus
+	 * 		bus name to send it to, {@code null} if sent directly to a peer
+	 * @param path
+	 * 		path on bus to send to
+	 * @param args
+	 * 		arguments of the method
+	 * @param metrics
+	 * 		metrics to record the call in, {@code null} if not recorded
+	 * @return
+	 * 		result retrieved if any, will be converted into a suitable type
+	 * @throws Exception
+	 * 		if unable to invoke the method for any reason
+	 */
+	public Object invoke(Channel c, Endian endian, String bus, String path, Object[] args, 
+			InvocationMetrics metrics)
+		throws Exception
+	{
+		long start = System.nanoTime();
+		Invocation invocation = metrics == null ? null : new Invocation();
+		boolean failed = true;
+		try
+		{
+			Object result = call(c, endian, bus, path, args, invocation);
+			failed = false;
+			return result;
+		}
+		finally
+		{
+			if(invocation != null)
+			{
+				MethodStats stats = metrics.get(MethodStats.Kind.CALL, interfaceName, name);
+				stats.record(System.nanoTime() - start, invocation, failed);
+			}
+		}
+	}
+	
+	private Object call(Channel c, Endian endian, String bus, String path, Object[] args,
+			Invocation invocation)
+		throws Exception
+	{
+		long start = System.nanoTime();
+		Trace trace = Tracing.begin(Trace.Kind.ENCODE);
+		
 		SubSignature[] subs = requestSignature.getSignatures();
 		// Build argument array for actual message
 		Object[] o = new Object[requestIndexes.length];
@@ -178,7 +231,12 @@ public class DBusMethod
 		int flags = 0;
 		
 		Message m = new Message(endian, Message.TYPE_METHOD_CALL, flags, serial, data);
-		m.addField(Message.FIELD_DESTINATION, bus);
+		if(bus != null)
+		{
+			// No destination when talking directly to a peer
+			m.addField(Message.FIELD_DESTINATION, bus);
+		}
+		
 		m.addField(Message.FIELD_PATH, new ObjectPath(path));
 		m.addField(Message.FIELD_MEMBER, name);
 		
@@ -188,8 +246,54 @@ public class DBusMethod
 			m.addField(Message.FIELD_SIGNATURE, requestSignature);
 		}
 		
+		if(trace != null)
+		{
+			trace.setSize(data.length);
+			trace.setDetail("arguments");
+			trace.end(m);
+		}
+		
+		long sent = System.nanoTime();
 		Message reply = c.sendBlocking(m);
-		return interpretReply(reply, args);
+		long received = System.nanoTime();
+		
+		if(invocation != null)
+		{
+			invocation.addMarshal(sent - start);
+			
+			/*
+			 * Use the transport timestamps when the channel sets them,
+			 * otherwise the whole round trip is counted as wire time.
+			 */
+			long written = m.getTransferTime();
+			long read = reply == null ? 0 : reply.getTransferTime();
+			if(written != 0 && read != 0 && written - sent >= 0 && read - written >= 0)
+			{
+				invocation.setQueue(written - sent);
+				invocation.setWire(read - written);
+			}
+			else
+			{
+				invocation.setWire(received - sent);
+			}
+		}
+		
+		if(reply == null)
+		{
+			throw new DBusException("No reply received for " + name + ", connection lost or interrupted");
+		}
+		
+		try
+		{
+			return interpretReply(reply, args);
+		}
+		finally
+		{
+			if(invocation != null)
+			{
+				invocation.addMarshal(System.nanoTime() - received);
+			}
+		}
 	}
 	
 	/**
@@ -235,15 +339,20 @@ public class DBusMethod
 				}
 				else
 				{
-					int idx = returnIndexes[i] + (voidReturn ? 0 : 1); 
+					int idx = returnIndexes[voidReturn ? i : i - 1];
 					Holder<Object> holder = (Holder<Object>) args[idx];
 					if(holder == null)
 					{
 						throw new IllegalArgumentException("Holder for @Out parameters can not be null");
 					}
 					
+					// Convert into the type of the holder
+					Type target = parameters[idx] instanceof ParameterizedType
+						? ((ParameterizedType) parameters[idx]).getActualTypeArguments()[0]
+						: Object.class;
+						
 					holder.setValue(
-						DBusConverter.convertFromDType(d, parameters[idx])
+						DBusConverter.convertFromDType(d, target)
 					);
 				}
 				
@@ -300,51 +409,96 @@ public class DBusMethod
 	public List<Object> invoke(Object instance, List<Object> data)
 		throws DBusException
 	{
-		Object[] args = new Object[data.size()];
+		return invoke(instance, data, null);
+	}
+	
+	/**
+	 * Invoke this method on a given object, recording the time spent
+	 * converting arguments and running the method.
+	 * 
+	 * @param instance
+	 * 		instance to invoke on
+	 * @param data
+	 * 		arguments to method
+	 * @param invocation
+	 * 		invocation to add time to, {@code null} if not recorded
+	 * @return
+	 * 		results of method
+	 * @throws DBusException
+	 * 		error to send back to the caller if unable to invoke the method
+	 */
+	public List<Object> invoke(Object instance, List<Object> data, Invocation invocation)
+		throws DBusException
+	{
+		long start = System.nanoTime();
+		
+		if(data.size() != requestIndexes.length)
+		{
+			throw new DBusException("Number of given arguments does not match number of in parameters in " + method);
+		}
+		
 		Type[] types = method.getGenericParameterTypes();
-		int i = 0;
-		int k = 0;
+		Object[] args = new Object[types.length];
+		
+		// @Out parameters get holders that the method sets
+		for(int idx : returnIndexes)
+		{
+			args[idx] = new Holder<Object>();
+		}
 		
-		int lastIdx = 0;
+		int k = 0;
 		for(Object o : data)
 		{
-			int idx = requestIndexes[k];
-			for(int j=lastIdx; j<idx; j++)
-			{
-				args[j] = new Holder<Object>();
-			}
-			
-			args[idx] = DBusConverter.convertFromDType(o, types[i]);
-			
-			k++; // k keeps track of request index
-			if(k > requestIndexes.length)
-			{
-				throw new DBusException("Number of given arguments does not match number of in parameters in " + method);
-			}
+			int idx = requestIndexes[k++];
+			args[idx] = DBusConverter.convertFromDType(o, types[idx]);
 		}
 		
 		try
 		{
 			// Then invoke the Java method
 			List<Object> result = new LinkedList<Object>(); 
-			Object methodData = method.invoke(instance, args);
+			long invokeStart = System.nanoTime();
+			Object methodData;
+			try
+			{
+				methodData = method.invoke(instance, args);
+			}
+			finally
+			{
+				long invokeEnd = System.nanoTime();
+				if(invocation != null)
+				{
+					invocation.addMarshal(invokeStart - start);
+					invocation.addHandler(invokeEnd - invokeStart);
+				}
+				
+				start = invokeEnd;
+			}
 			
 			SubSignature[] subs = returnSignature.getSignatures();
-			if(needReply)
+			int offset = 0;
+			if(method.getReturnType() != void.class)
 			{
 				result.add(
 					DBusConverter.convertToDType(methodData, subs[0])
 				);
+				
+				offset = 1;
 			}
 			
-			k = 0;
-			for(int n=returnIndexes.length; k<n; k++)
+			for(int i=0, n=returnIndexes.length; i<n; i++)
 			{
+				Holder<?> holder = (Holder<?>) args[returnIndexes[i]];
 				result.add(
-					DBusConverter.convertToDType(args[returnIndexes[k]], subs[k+1])
+					DBusConverter.convertToDType(holder.getValue(), subs[i + offset])
 				);
 			}
 			
+			if(invocation != null)
+			{
+				invocation.addMarshal(System.nanoTime() - start);
+			}
+			
 			return result;
 		}
 		catch(Throwable t)
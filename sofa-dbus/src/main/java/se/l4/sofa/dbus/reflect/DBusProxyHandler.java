@@ -21,6 +21,10 @@ import se.l4.sofa.dbus.Holder;
 import se.l4.sofa.dbus.Path;
 import se.l4.sofa.dbus.UnknownMethodException;
 import se.l4.sofa.dbus.io.DBusOutputStream;
+import se.l4.sofa.dbus.metrics.Invocation;
+import se.l4.sofa.dbus.metrics.InvocationMetrics;
+import se.l4.sofa.dbus.metrics.Metered;
+import se.l4.sofa.dbus.metrics.MethodStats;
 import se.l4.sofa.dbus.spi.Channel;
 import se.l4.sofa.dbus.spi.DBusHelper;
 import se.l4.sofa.dbus.spi.Endian;
@@ -51,6 +55,8 @@ public class DBusProxyHandler
 	private final Map<String, ExportedInterface> paths;
 	private final Introspection introspection;
 	
+	private final InvocationMetrics invocations;
+	
 	public DBusProxyHandler(Connection connection, Endian endian, Channel channel)
 	{
 		this.connection = connection;
@@ -60,6 +66,22 @@ public class DBusProxyHandler
 		cache = new MethodCache();
 		paths = new HashMap<String, ExportedInterface>();
 		introspection = new Introspection();
+		
+		invocations = channel instanceof Metered
+			? ((Metered) channel).getMetrics().getInvocations()
+			: new InvocationMetrics();
+	}
+	
+	/**
+	 * Get the metrics of methods called through proxies and of exported
+	 * methods invoked by others. These are the metrics of the channel if it
+	 * keeps metrics.
+	 * 
+	 * @return
+	 */
+	public InvocationMetrics getInvocationMetrics()
+	{
+		return invocations;
 	}
 	
 	public void export(String path, Object o)
@@ -117,26 +139,37 @@ public class DBusProxyHandler
 				String sender = (String) message.getField(Message.FIELD_SENDER);
 				String destination = (String) message.getField(Message.FIELD_DESTINATION);
 				
-				// Make sure we only handle our own method calls
+				// Make sure we only handle our own method calls, peer-to-peer calls have no destination
 				Set<String> names = connection.getNames();
-				if(false == names.contains(destination))
+				if(destination != null && false == names.contains(destination))
 				{
 					return false;
 				}
 				
 				long serial = message.getSerial();
 				
+				long start = System.nanoTime();
+				Invocation invocation = new Invocation();
+				long transferTime = message.getTransferTime();
+				if(transferTime != 0 && start - transferTime >= 0)
+				{
+					invocation.setQueue(start - transferTime);
+				}
+				
 				ExportedInterface exported = paths.get(path.getPath());
+				DBusMethod target = exported == null ? null : exported.getMethod(member);
+				
+				boolean introspect = "Introspect".equals(member) 
+					&& (sig == null || sig.getSignatures().length == 0);
+					
+				if(exported != null && exported.getMethod("introspect", "") != null)
+				{
+					introspect = false;
+				}
+				
+				boolean failed = true;
 				try
 				{
-					boolean introspect = "Introspect".equals(member) 
-						&& (sig == null || sig.getSignatures().length == 0);
-					
-					if(exported != null && exported.getMethod("introspect", "") != null)
-					{
-						introspect = false;
-					}
-					
 					if(exported != null || introspect)
 					{
 						/*
@@ -144,7 +177,10 @@ public class DBusProxyHandler
 						 * attempt to handle the method call 
 						 */
 						
+						long decodeStart = System.nanoTime();
 						List<Object> data = message.getBodyAsObjects();
+						invocation.addMarshal(System.nanoTime() - decodeStart);
+						
 						Holder<Signature> returnSig = new Holder<Signature>();
 						
 						List<Object> result;
@@ -160,11 +196,13 @@ public class DBusProxyHandler
 									member, 
 									sig == null ? Signature.EMTPY_SIGNATURE : sig, 
 									data, 
-									returnSig
+									returnSig,
+									invocation
 							);
 						}
 						
 						// Let's marshall the result
+						long encodeStart = System.nanoTime();
 						ByteArrayOutputStream out = new ByteArrayOutputStream();
 						DBusOutputStream dbusOut = new DBusOutputStream(out);
 						dbusOut.setEndian(endian);
@@ -180,10 +218,16 @@ public class DBusProxyHandler
 						
 						msg.addField(Message.FIELD_REPLY_SERIAL, new UInt32(serial));
 						msg.addField(Message.FIELD_SIGNATURE, returnSig.getValue());
-						msg.addField(Message.FIELD_DESTINATION, sender);
+						if(sender != null)
+						{
+							msg.addField(Message.FIELD_DESTINATION, sender);
+						}
 		//					msg.addField(Message.FIELD_SENDER, sender);
 						
+						invocation.addMarshal(System.nanoTime() - encodeStart);
+						
 						channel.sendMessage(msg);
+						failed = false;
 					}
 					else
 					{
@@ -213,11 +257,28 @@ public class DBusProxyHandler
 						
 					msg.addField(Message.FIELD_REPLY_SERIAL, new UInt32(serial));
 					msg.addField(Message.FIELD_SIGNATURE, classSig);
-					msg.addField(Message.FIELD_DESTINATION, sender);
+					if(sender != null)
+					{
+						msg.addField(Message.FIELD_DESTINATION, sender);
+					}
+					
 					msg.addField(Message.FIELD_ERROR_NAME, DBusHelper.getNameForInterface(c));
 					
 					channel.sendMessage(msg);
 				}
+				finally
+				{
+					// Only record known methods, callers may send any name
+					if(target != null || introspect)
+					{
+						String interfaceName = target != null 
+							? target.getInterfaceName() 
+							: "org.freedesktop.DBus.Introspectable";
+							
+						invocations.get(MethodStats.Kind.DISPATCH, interfaceName, member)
+							.record(System.nanoTime() - start, invocation, failed);
+					}
+				}
 				
 				return true;
 			}
@@ -274,7 +335,7 @@ public class DBusProxyHandler
 			
 			try
 			{
-				return dbusMethod.invoke(channel, endian, bus, path, args);
+				return dbusMethod.invoke(channel, endian, bus, path, args, invocations);
 			}
 			catch(Exception e)
 			{
@@ -11,6 +11,7 @@ import se.l4.sofa.dbus.DBusException;
 import se.l4.sofa.dbus.DBusInterface;
 import se.l4.sofa.dbus.Holder;
 import se.l4.sofa.dbus.UnknownMethodException;
+import se.l4.sofa.dbus.metrics.Invocation;
 import se.l4.sofa.dbus.spi.DBusHelper;
 import se.l4.sofa.dbus.spi.Signature;
 
@@ -62,6 +63,19 @@ public class ExportedInterface
 		}
 	}
 	
+	/**
+	 * Locate a {@link DBusMethod} with the given name regardless of its
+	 * signature.
+	 * 
+	 * @param methodName
+	 * @return
+	 * 		method or {@code null} if not found
+	 */
+	public DBusMethod getMethod(String methodName)
+	{
+		return methods.get(methodName);
+	}
+	
 	/**
 	 * Locate a {@link DBusMethod} for a method with the given signature.
 	 * 
@@ -128,6 +142,30 @@ public class ExportedInterface
 			List<Object> data,
 			Holder<Signature> returnSig)
 		throws DBusException
+	{
+		return invoke(methodName, signature, data, returnSig, null);
+	}
+	
+	/**
+	 * Perform an invocation of a method, recording the time spent in the
+	 * method and converting its arguments.
+	 * 
+	 * @param methodName
+	 * @param signature
+	 * @param data
+	 * @param returnSig
+	 * @param invocation
+	 * 		invocation to add time to, {@code null} if not recorded
+	 * @return
+	 * @throws DBusException
+	 */
+	public List<Object> invoke(
+			String methodName, 
+			Signature signature, 
+			List<Object> data,
+			Holder<Signature> returnSig,
+			Invocation invocation)
+		throws DBusException
 	{
 		DBusMethod method = methods.get(methodName);
 		
@@ -145,6 +183,6 @@ public class ExportedInterface
 		}
 		
 		returnSig.setValue(method.getReturnSignature());
-		return method.invoke(instance, data);
+		return method.invoke(instance, data, invocation);
 	}
 }
@@ -0,0 +1,481 @@
+package se.l4.sofa.dbus.reflect;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.l4.sofa.dbus.DBus;
+import se.l4.sofa.dbus.DBusException;
+import se.l4.sofa.dbus.io.DBusOutputStream;
+import se.l4.sofa.dbus.spi.Channel;
+import se.l4.sofa.dbus.spi.Endian;
+import se.l4.sofa.dbus.spi.Marshalling;
+import se.l4.sofa.dbus.spi.Message;
+import se.l4.sofa.dbus.spi.ObjectPath;
+import se.l4.sofa.dbus.spi.SettableFuture;
+import se.l4.sofa.dbus.spi.Signature;
+
+/**
+ * Registry of match rules that have been sent to the bus. Identical rules are
+ * reference counted so that each rule is only added once. Registration is
+ * asynchronous, changes are collected and sent in batches from a background
+ * thread. When a channel is available all {@code AddMatch} and
+ * {@code RemoveMatch} calls in a batch are sent before waiting for any of the
+ * replies.
+ * 
+ * <p>
+ * A rule with a call in flight is not sent again until the reply has been
+ * received, changes made while waiting are reconciled when the reply
+ * arrives. This keeps the reference count of the bus balanced.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class MatchRegistry
+{
+	private static final Logger logger = LoggerFactory.getLogger(MatchRegistry.class);
+	
+	/** Time to wait for the bus to reply, same as the default in libdbus. */
+	private static final long REPLY_TIMEOUT = 25000;
+	
+	private static final String BUS_NAME = "org.freedesktop.DBus";
+	private static final ObjectPath BUS_PATH = new ObjectPath("/org/freedesktop/DBus");
+	private static final Signature RULE_SIGNATURE = Signature.parse("s");
+	
+	private final DBus dbus;
+	private final Channel channel;
+	private final Endian endian;
+	
+	private final Map<String, Rule> rules;
+	private final Set<Rule> dirty;
+	private final ExecutorService executor;
+	
+	private boolean flushScheduled;
+	
+	/**
+	 * Create a registry that sends rules via the given {@link DBus} proxy.
+	 * Calls are made from the background thread one at a time.
+	 * 
+	 * @param dbus
+	 * 		bus to register rules with, {@code null} if rules should never
+	 * 		be sent
+	 */
+	public MatchRegistry(DBus dbus)
+	{
+		this(dbus, null, null);
+	}
+	
+	/**
+	 * Create a registry that sends rules directly over the given channel,
+	 * allowing several calls to be in flight at once.
+	 * 
+	 * @param channel
+	 * @param endian
+	 */
+	public MatchRegistry(Channel channel, Endian endian)
+	{
+		this(null, channel, endian);
+	}
+	
+	private MatchRegistry(DBus dbus, Channel channel, Endian endian)
+	{
+		this.dbus = dbus;
+		this.channel = channel;
+		this.endian = endian == null ? Endian.BIG : endian;
+		
+		rules = new HashMap<String, Rule>();
+		dirty = new LinkedHashSet<Rule>();
+		
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "dbus-match-registry");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	
+	/**
+	 * Add a reference to the given rule, sending it to the bus if this is
+	 * the first reference.
+	 * 
+	 * @param rule
+	 * @return
+	 * 		future that completes when the rule is active on the bus
+	 */
+	public synchronized Future<Void> add(String rule)
+	{
+		Rule r = rules.get(rule);
+		if(r == null)
+		{
+			r = new Rule(rule);
+			rules.put(rule, r);
+		}
+		
+		r.references++;
+		if(r.references == 1)
+		{
+			if(r.future.isDone() && (r.state == State.INACTIVE || r.state == State.REMOVING))
+			{
+				// Previous registration failed or is being removed
+				r.future = new SettableFuture<Void>();
+			}
+			
+			markDirty(r);
+		}
+		
+		return r.future;
+	}
+	
+	/**
+	 * Remove a reference to the given rule, removing it from the bus if this
+	 * was the last reference.
+	 * 
+	 * @param rule
+	 */
+	public synchronized void remove(String rule)
+	{
+		Rule r = rules.get(rule);
+		if(r == null || r.references == 0)
+		{
+			return;
+		}
+		
+		r.references--;
+		if(r.references == 0)
+		{
+			markDirty(r);
+		}
+	}
+	
+	/**
+	 * Get the number of rules currently registered.
+	 * 
+	 * @return
+	 */
+	public synchronized int size()
+	{
+		return rules.size();
+	}
+	
+	/**
+	 * Stop the background thread of this registry, called when the
+	 * connection is closed. Rules are not removed from the bus.
+	 */
+	public void close()
+	{
+		executor.shutdown();
+	}
+	
+	private void markDirty(Rule r)
+	{
+		if(dbus == null && channel == null)
+		{
+			// Nothing to send to, the change is active directly
+			r.state = r.references > 0 ? State.ACTIVE : State.INACTIVE;
+			if(r.state == State.ACTIVE)
+			{
+				r.future.set(null);
+			}
+			else
+			{
+				rules.remove(r.rule);
+			}
+			
+			return;
+		}
+		
+		dirty.add(r);
+		
+		if(false == flushScheduled)
+		{
+			flushScheduled = true;
+			executor.execute(new Runnable()
+			{
+				public void run()
+				{
+					flush();
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Send all changes that have been queued since the last flush.
+	 */
+	private void flush()
+	{
+		List<Rule> toAdd = new ArrayList<Rule>();
+		List<Rule> toRemove = new ArrayList<Rule>();
+		
+		synchronized(this)
+		{
+			flushScheduled = false;
+			
+			for(Rule r : dirty)
+			{
+				if(r.state == State.ADDING || r.state == State.REMOVING)
+				{
+					// Reconciled when the reply arrives
+					continue;
+				}
+				
+				boolean wanted = r.references > 0;
+				if(wanted && r.state == State.INACTIVE)
+				{
+					r.state = State.ADDING;
+					toAdd.add(r);
+				}
+				else if(false == wanted && r.state == State.ACTIVE)
+				{
+					r.state = State.REMOVING;
+					toRemove.add(r);
+				}
+				else if(false == wanted)
+				{
+					// Added and removed before it was ever sent
+					rules.remove(r.rule);
+				}
+			}
+			
+			dirty.clear();
+		}
+		
+		if(toAdd.isEmpty() && toRemove.isEmpty())
+		{
+			return;
+		}
+		
+		logger.debug("Sending {} AddMatch and {} RemoveMatch calls", toAdd.size(), toRemove.size());
+		
+		if(channel != null)
+		{
+			sendPipelined(toAdd, toRemove);
+		}
+		else
+		{
+			sendSequential(toAdd, toRemove);
+		}
+	}
+	
+	private void sendSequential(List<Rule> toAdd, List<Rule> toRemove)
+	{
+		for(Rule r : toAdd)
+		{
+			try
+			{
+				dbus.addMatch(r.rule);
+				added(r, null);
+			}
+			catch(DBusException e)
+			{
+				added(r, e);
+			}
+		}
+		
+		for(Rule r : toRemove)
+		{
+			try
+			{
+				dbus.removeMatch(r.rule);
+				removed(r, null);
+			}
+			catch(DBusException e)
+			{
+				removed(r, e);
+			}
+		}
+	}
+	
+	private void sendPipelined(List<Rule> toAdd, List<Rule> toRemove)
+	{
+		// Send every call before waiting for the replies
+		List<Future<Message>> addReplies = new ArrayList<Future<Message>>(toAdd.size());
+		for(Rule r : toAdd)
+		{
+			addReplies.add(send("AddMatch", r.rule));
+		}
+		
+		List<Future<Message>> removeReplies = new ArrayList<Future<Message>>(toRemove.size());
+		for(Rule r : toRemove)
+		{
+			removeReplies.add(send("RemoveMatch", r.rule));
+		}
+		
+		for(int i=0, n=toAdd.size(); i<n; i++)
+		{
+			added(toAdd.get(i), await(addReplies.get(i)));
+		}
+		
+		for(int i=0, n=toRemove.size(); i<n; i++)
+		{
+			removed(toRemove.get(i), await(removeReplies.get(i)));
+		}
+	}
+	
+	private Future<Message> send(String member, String rule)
+	{
+		try
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			DBusOutputStream dbusOut = new DBusOutputStream(out);
+			dbusOut.setEndian(endian);
+			Marshalling.serialize(RULE_SIGNATURE, new Object[] { rule }, dbusOut);
+			
+			Message msg = new Message(
+				endian,
+				Message.TYPE_METHOD_CALL,
+				0,
+				channel.nextSerial(),
+				out.toByteArray()
+			);
+			
+			msg.addField(Message.FIELD_DESTINATION, BUS_NAME);
+			msg.addField(Message.FIELD_PATH, BUS_PATH);
+			msg.addField(Message.FIELD_INTERFACE, BUS_NAME);
+			msg.addField(Message.FIELD_MEMBER, member);
+			msg.addField(Message.FIELD_SIGNATURE, RULE_SIGNATURE);
+			
+			return channel.sendAsync(msg);
+		}
+		catch(IOException e)
+		{
+			SettableFuture<Message> future = new SettableFuture<Message>();
+			future.setException(e);
+			return future;
+		}
+	}
+	
+	/**
+	 * Wait for a reply and turn it into an exception if the call failed. The
+	 * reply is cancelled if it does not arrive in time so that the channel
+	 * stops waiting for it.
+	 * 
+	 * @param reply
+	 * @return
+	 * 		{@code null} if the call succeeded, otherwise the reason it failed
+	 */
+	private DBusException await(Future<Message> reply)
+	{
+		try
+		{
+			Message msg = reply.get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS);
+			if(msg.getType() == Message.TYPE_ERROR)
+			{
+				return new DBusException("Bus refused match rule; "
+					+ msg.getField(Message.FIELD_ERROR_NAME));
+			}
+			
+			return null;
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return new DBusException("Interrupted while waiting for reply");
+		}
+		catch(ExecutionException e)
+		{
+			return new DBusException(e.getCause());
+		}
+		catch(TimeoutException e)
+		{
+			reply.cancel(false);
+			return new DBusException("No reply from bus within " + REPLY_TIMEOUT + " ms");
+		}
+	}
+	
+	private void added(Rule r, DBusException e)
+	{
+		synchronized(this)
+		{
+			if(e == null)
+			{
+				r.state = State.ACTIVE;
+				r.future.set(null);
+			}
+			else
+			{
+				logger.warn("Unable to add match rule " + r.rule + "; " + e.getMessage());
+				
+				r.state = State.INACTIVE;
+				r.future.setException(e);
+			}
+			
+			if(r.references == 0)
+			{
+				// Removed while we were adding it
+				markDirty(r);
+			}
+		}
+	}
+	
+	private void removed(Rule r, DBusException e)
+	{
+		if(e != null)
+		{
+			logger.warn("Unable to remove match rule " + r.rule + "; " + e.getMessage());
+		}
+		
+		synchronized(this)
+		{
+			r.state = State.INACTIVE;
+			
+			if(r.references > 0)
+			{
+				// Added again while we were removing it, add() has replaced the future
+				markDirty(r);
+			}
+			else
+			{
+				r.future = new SettableFuture<Void>();
+				rules.remove(r.rule);
+			}
+		}
+	}
+	
+	private enum State
+	{
+		/** Not on the bus */
+		INACTIVE,
+		/** AddMatch has been sent, waiting for the reply */
+		ADDING,
+		/** Added to the bus */
+		ACTIVE,
+		/** RemoveMatch has been sent, waiting for the reply */
+		REMOVING
+	}
+	
+	/** Information about a single rule. */
+	private static class Rule
+	{
+		private final String rule;
+		private int references;
+		private State state;
+		private SettableFuture<Void> future;
+		
+		public Rule(String rule)
+		{
+			this.rule = rule;
+			
+			state = State.INACTIVE;
+			future = new SettableFuture<Void>();
+		}
+	}
+}
@@ -2,10 +2,13 @@ package se.l4.sofa.dbus.reflect;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,9 +16,17 @@ import org.slf4j.LoggerFactory;
 import se.l4.sofa.dbus.DBus;
 import se.l4.sofa.dbus.DBusException;
 import se.l4.sofa.dbus.DBusSignal;
+import se.l4.sofa.dbus.MatchRule;
 import se.l4.sofa.dbus.Name;
+import se.l4.sofa.dbus.SignalDelivery;
 import se.l4.sofa.dbus.SignalListener;
 import se.l4.sofa.dbus.io.DBusOutputStream;
+import se.l4.sofa.dbus.match.MatchTarget;
+import se.l4.sofa.dbus.match.RuleMatcher;
+import se.l4.sofa.dbus.metrics.Invocation;
+import se.l4.sofa.dbus.metrics.InvocationMetrics;
+import se.l4.sofa.dbus.metrics.Metered;
+import se.l4.sofa.dbus.metrics.MethodStats;
 import se.l4.sofa.dbus.spi.Channel;
 import se.l4.sofa.dbus.spi.DBusHelper;
 import se.l4.sofa.dbus.spi.Endian;
@@ -36,17 +47,82 @@ public class SignalMessageHandler
 {
 	private static final Logger logger = LoggerFactory.getLogger(SignalMessageHandler.class);
 	
-	private final List<SignalInfo> signals;
-	private final DBus dbus;
+	/** Index of signals, keyed on interface and then on member. */
+	private final ConcurrentMap<String, ConcurrentMap<String, SignalGroup>> signals;
+	private final MatchRegistry matches;
 
 	private final Endian endian;
 	
+	private volatile InvocationMetrics invocations;
+	
+	/**
+	 * Create a handler that registers match rules via the given
+	 * {@link DBus} instance.
+	 * 
+	 * @param dbus
+	 * 		bus to add match rules to, {@code null} if rules should not be
+	 * 		sent anywhere
+	 * @param endian
+	 */
 	public SignalMessageHandler(DBus dbus, Endian endian)
 	{
-		this.dbus = dbus;
+		this(new MatchRegistry(dbus), endian);
+		
+		invocations = new InvocationMetrics();
+	}
+	
+	/**
+	 * Create a handler that sends match rules to the bus over the given
+	 * channel.
+	 * 
+	 * @param channel
+	 * @param endian
+	 */
+	public SignalMessageHandler(Channel channel, Endian endian)
+	{
+		this(new MatchRegistry(channel, endian), endian);
+		
+		invocations = channel instanceof Metered
+			? ((Metered) channel).getMetrics().getInvocations()
+			: new InvocationMetrics();
+	}
+	
+	private SignalMessageHandler(MatchRegistry matches, Endian endian)
+	{
+		this.matches = matches;
 		this.endian = endian;
 		
-		signals = new CopyOnWriteArrayList<SignalInfo>();
+		signals = new ConcurrentHashMap<String, ConcurrentMap<String, SignalGroup>>();
+	}
+	
+	/**
+	 * Get the metrics of signals delivered to listeners.
+	 * 
+	 * @return
+	 */
+	public InvocationMetrics getInvocationMetrics()
+	{
+		return invocations;
+	}
+	
+	/**
+	 * Set the metrics that delivered signals are recorded in, used to share
+	 * metrics with the handler of method calls on the same connection.
+	 * 
+	 * @param invocations
+	 */
+	public void setInvocationMetrics(InvocationMetrics invocations)
+	{
+		this.invocations = invocations;
+	}
+	
+	/**
+	 * Release the resources of this handler, called when the connection is
+	 * closed.
+	 */
+	public void close()
+	{
+		matches.close();
 	}
 	
 	/**
@@ -60,57 +136,104 @@ public class SignalMessageHandler
 		if(type == Message.TYPE_SIGNAL)
 		{
 			// Signal, conversion is needed
-			ObjectPath path = (ObjectPath) message.getField(Message.FIELD_PATH);
-			String i = (String) message.getField(Message.FIELD_INTERFACE);
-			String name = (String) message.getField(Message.FIELD_MEMBER);
+			MatchTarget target = new MatchTarget(message);
+			String path = target.getPath();
+			
+			SignalGroup group = getGroup(target.getInterface(), target.getMember());
+			if(group == null)
+			{
+				return false;
+			}
+			
+			List<SignalInfo> matching = group.find(path);
+			if(matching.isEmpty())
+			{
+				return false;
+			}
+			
+			long start = System.nanoTime();
+			Invocation invocation = new Invocation();
+			long transferTime = message.getTransferTime();
+			if(transferTime != 0 && start - transferTime >= 0)
+			{
+				invocation.setQueue(start - transferTime);
+			}
 			
-			try
+			boolean failed = false;
+			Class<?> lastClass = null;
+			DBusSignal lastSignal = null;
+			for(SignalInfo si : matching)
 			{
-				Object[] data = null;
-				for(SignalInfo si : signals)
+				if(false == si.matcher.matches(target, null))
 				{
-					if(false == si.match(path, i, name))
-					{
-						continue;
-					}
-					
-					if(data == null)
+					continue;
+				}
+				
+				try
+				{
+					if(si.signal != lastClass)
 					{
-						List<Object> body = message.getBodyAsObjects();
-						data = body.toArray();
+						// The body is decoded once and shared with all listeners
+						long createStart = System.nanoTime();
+						lastClass = si.signal;
+						lastSignal = si.create(target.getArgs());
+						invocation.addMarshal(System.nanoTime() - createStart);
 					}
 					
-					try
+					if(lastSignal != null)
 					{
-						si.trigger(data);
-					}
-					catch(DBusException e)
-					{
-						logger.error("Unable to trigger signal; " + e.getMessage(), e);
+						long triggerStart = System.nanoTime();
+						si.trigger(path, lastSignal);
+						invocation.addHandler(System.nanoTime() - triggerStart);
 					}
 				}
+				catch(DBusException e)
+				{
+					failed = true;
+					logger.error("Unable to trigger signal; " + e.getMessage(), e);
+				}
 			}
-			catch(IOException e)
-			{
-				logger.error("Unable to convert body of message; " + e.getMessage(), e);
-			}
+			
+			invocations.get(MethodStats.Kind.SIGNAL, target.getInterface(), target.getMember())
+				.record(System.nanoTime() - start, invocation, failed);
 		}
 		
 		return false;
 	}
 	
+	/**
+	 * Get the group of signals for the given interface and member.
+	 * 
+	 * @param dbusInterface
+	 * @param member
+	 * @return
+	 * 		group or {@code null} if no listeners are registered
+	 */
+	private SignalGroup getGroup(String dbusInterface, String member)
+	{
+		if(dbusInterface == null || member == null)
+		{
+			return null;
+		}
+		
+		Map<String, SignalGroup> members = signals.get(dbusInterface);
+		return members == null ? null : members.get(member);
+	}
+	
 	/**
 	 * Add a new listener for a given signal without binding it to a path.
 	 * 
 	 * @param <T>
 	 * @param signal
 	 * @param listener
+	 * @return
+	 * 		future that completes when the match rule is active on the bus
 	 * @throws DBusException
 	 */
-	public <T extends DBusSignal> void addListener(Class<T> signal, SignalListener<T> listener)
+	public <T extends DBusSignal> Future<Void> addListener(Class<T> signal, SignalListener<T> listener)
 		throws DBusException
 	{
-		addListener(null, signal, listener);
+		return addListener((MatchRule) null, signal, listener);
 	}
 	
 	/**
@@ -123,36 +246,103 @@ public class SignalMessageHandler
 	 * 		class of signal
 	 * @param listener
 	 * 		listener to invoke when signal is received
+	 * @return
+	 * 		future that completes when the match rule is active on the bus
 	 * @throws DBusException
 	 * 		if unable to add listener
 	 */
-	public <T extends DBusSignal> void addListener(String path, Class<T> signal, SignalListener<T> listener)
+	public <T extends DBusSignal> Future<Void> addListener(String path, Class<T> signal, SignalListener<T> listener)
 		throws DBusException
 	{
+		return addListener(path == null ? null : new MatchRule().withPath(path), signal, listener);
+	}
+	
+	/**
+	 * Add a new listener for a given signal, only receiving signals that
+	 * match the given rule. The type, interface and member of the rule are
+	 * taken from the signal class. The rule is sent to the bus so that
+	 * signals that do not match are never delivered to this connection.
+	 * 
+	 * <p>
+	 * Registration of the rule with the bus is asynchronous, identical rules
+	 * are only registered once and rules added at the same time are sent
+	 * together. Wait on the returned future to be sure that no signals are
+	 * missed.
+	 * 
+	 * @param <T>
+	 * @param rule
+	 * 		rule that signals must match, {@code null} to receive all
+	 * 		signals of the given class
+	 * @param signal
+	 * 		class of signal
+	 * @param listener
+	 * 		listener to invoke when signal is received
+	 * @return
+	 * 		future that completes when the match rule is active on the bus
+	 * @throws DBusException
+	 * 		if unable to add listener
+	 */
+	public <T extends DBusSignal> Future<Void> addListener(MatchRule rule, Class<T> signal, SignalListener<T> listener)
+		throws DBusException
+	{
+		return addListener(rule, signal, listener, null);
+	}
+	
+	/**
+	 * Add a new listener for a given signal that is invoked according to the
+	 * given delivery options instead of directly on the thread that handles
+	 * messages.
+	 * 
+	 * @param <T>
+	 * @param rule
+	 * 		rule that signals must match, {@code null} to receive all
+	 * 		signals of the given class
+	 * @param signal
+	 * 		class of signal
+	 * @param listener
+	 * 		listener to invoke when signal is received
+	 * @param delivery
+	 * 		how signals are delivered, {@code null} to invoke the listener
+	 * 		directly
+	 * @return
+	 * 		future that completes when the match rule is active on the bus
+	 * @throws DBusException
+	 * 		if unable to add listener
+	 */
+	public <T extends DBusSignal> Future<Void> addListener(MatchRule rule, Class<T> signal, 
+			SignalListener<T> listener, SignalDelivery delivery)
+		throws DBusException
+	{
+		SignalInfo si = new SignalInfo(rule, signal);
+		
 		synchronized(signals)
 		{
-			boolean added = false;
-			for(SignalInfo si : signals)
+			ConcurrentMap<String, SignalGroup> members = signals.get(si.dbusInterface);
+			if(members == null)
 			{
-				if((path == null || path.equals(si.path)) && si.signal == signal)
-				{
-					added = true;
-					si.addListener(listener);
-					break;
-				}
+				members = new ConcurrentHashMap<String, SignalGroup>();
+				signals.put(si.dbusInterface, members);
 			}
 			
-			if(false == added)
+			SignalGroup group = members.get(si.name);
+			if(group == null)
 			{
-				SignalInfo si = new SignalInfo(path, signal);
-				si.addListener(listener);
-				signals.add(si);
+				group = new SignalGroup();
+				members.put(si.name, group);
+			}
 				
-				if(dbus != null)
-				{
-					dbus.addMatch(si.getMatchRule());
-				}
+			SignalInfo existing = group.get(si.rule, signal);
+			if(existing != null)
+			{
+				existing.addListener(listener, delivery);
+				return existing.registration;
 			}
+			
+			si.addListener(listener, delivery);
+			si.registration = matches.add(si.getMatchRule());
+			group.add(si);
+			
+			return si.registration;
 		}
 	}
 	
@@ -172,28 +362,65 @@ public class SignalMessageHandler
 	public <T extends DBusSignal> void removeListener(String path, Class<T> signal, SignalListener<T> listener)
 		throws DBusException
 	{
+		removeListener(path == null ? null : new MatchRule().withPath(path), signal, listener);
+	}
+	
+	/**
+	 * Remove a listener for a given signal and rule.
+	 * 
+	 * @param <T>
+	 * @param rule
+	 * 		rule the listener was added with, {@code null} if any
+	 * @param signal
+	 * 		class of signal
+	 * @param listener
+	 * 		listener that should be removed
+	 * @throws DBusException
+	 * 		if unable to remove listener
+	 */
+	public <T extends DBusSignal> void removeListener(MatchRule rule, Class<T> signal, SignalListener<T> listener)
+		throws DBusException
+	{
+		SignalInfo template = new SignalInfo(rule, signal);
+		
 		synchronized(signals)
 		{
-			Iterator<SignalInfo> it = signals.iterator();
-			while(it.hasNext())
+			ConcurrentMap<String, SignalGroup> members = signals.get(template.dbusInterface);
+			SignalGroup group = members == null ? null : members.get(template.name);
+			if(group == null)
 			{
-				SignalInfo si = it.next();
+				return;
+			}
 				
-				if((path == null || path.equals(si.path)) && si.signal == signal)
+			for(SignalInfo si : group.all())
+			{
+				if(si.signal != signal 
+					|| (rule != null && false == template.rule.equals(si.rule)))
 				{
-					si.removeListener(listener);
+					continue;
+				}
 					
-					if(si.listeners.isEmpty())
-					{
-						if(dbus != null)
-						{
-							dbus.removeMatch(si.getMatchRule());
-						}
+				if(false == si.removeListener(listener))
+				{
+					continue;
+				}
+				
+				if(si.listeners.isEmpty())
+				{
+					group.remove(si);
+					matches.remove(si.getMatchRule());
+				}
 						
-						it.remove();
-					}
+				break;
+			}
 					
-					break;
+			if(group.isEmpty())
+			{
+				members.remove(template.name);
+				
+				if(members.isEmpty())
+				{
+					signals.remove(template.dbusInterface);
 				}
 			}
 		}
@@ -209,16 +436,28 @@ public class SignalMessageHandler
 	{
 		String i = DBusHelper.getNameForInterface(signal.getClass().getDeclaringClass());
 		String name = DBusConverter.getMemberName(signal.getClass());
-		ObjectPath op = new ObjectPath(path);
 		
-		for(SignalInfo si : signals)
+		SignalGroup group = getGroup(i, name);
+		if(group == null)
 		{
-			if(false == si.match(op, i, name))
+			return;
+		}
+			
+		List<SignalInfo> matching = group.find(path);
+		if(matching.isEmpty())
+		{
+			return;
+		}
+		
+		MatchTarget target = new MatchTarget(Message.TYPE_SIGNAL, null, i, name, 
+			path, null, DBusConverter.getDataInClass(signal));
+			
+		for(SignalInfo si : matching)
+		{
+			if(si.matcher.matches(target, null))
 			{
-				continue;
+				si.trigger(path, signal);
 			}
-			
-			si.trigger(signal);
 		}
 	}
 	
@@ -269,19 +508,144 @@ public class SignalMessageHandler
 		}
 	}
 
+	/** 
+	 * Group of signals sharing the same interface and member, indexed on
+	 * their path.
+	 */
+	private static class SignalGroup
+	{
+		private final List<SignalInfo> anyPath;
+		private final ConcurrentMap<String, List<SignalInfo>> byPath;
+		
+		public SignalGroup()
+		{
+			anyPath = new CopyOnWriteArrayList<SignalInfo>();
+			byPath = new ConcurrentHashMap<String, List<SignalInfo>>();
+		}
+		
+		/**
+		 * Find all signals that should receive a signal sent from the given
+		 * path.
+		 * 
+		 * @param path
+		 * @return
+		 */
+		public List<SignalInfo> find(String path)
+		{
+			List<SignalInfo> specific = path == null ? null : byPath.get(path);
+			if(specific == null)
+			{
+				return anyPath;
+			}
+			else if(anyPath.isEmpty())
+			{
+				return specific;
+			}
+			
+			List<SignalInfo> result = new ArrayList<SignalInfo>(anyPath.size() + specific.size());
+			result.addAll(anyPath);
+			result.addAll(specific);
+			return result;
+		}
+		
+		/**
+		 * Get a signal registered with exactly the given rule.
+		 * 
+		 * @param rule
+		 * @param signal
+		 * @return
+		 */
+		public SignalInfo get(MatchRule rule, Class<?> signal)
+		{
+			String path = rule.getPath();
+			List<SignalInfo> list = path == null ? anyPath : byPath.get(path);
+			if(list != null)
+			{
+				for(SignalInfo si : list)
+				{
+					if(si.signal == signal && si.rule.equals(rule))
+					{
+						return si;
+					}
+				}
+			}
+			
+			return null;
+		}
+		
+		public List<SignalInfo> all()
+		{
+			List<SignalInfo> result = new ArrayList<SignalInfo>(anyPath);
+			for(List<SignalInfo> list : byPath.values())
+			{
+				result.addAll(list);
+			}
+			
+			return result;
+		}
+		
+		public void add(SignalInfo si)
+		{
+			if(si.path == null)
+			{
+				anyPath.add(si);
+			}
+			else
+			{
+				List<SignalInfo> list = byPath.get(si.path);
+				if(list == null)
+				{
+					list = new CopyOnWriteArrayList<SignalInfo>();
+					byPath.put(si.path, list);
+				}
+				
+				list.add(si);
+			}
+		}
+		
+		public void remove(SignalInfo si)
+		{
+			if(si.path == null)
+			{
+				anyPath.remove(si);
+			}
+			else
+			{
+				List<SignalInfo> list = byPath.get(si.path);
+				if(list != null)
+				{
+					list.remove(si);
+					
+					if(list.isEmpty())
+					{
+						byPath.remove(si.path);
+					}
+				}
+			}
+		}
+		
+		public boolean isEmpty()
+		{
+			return anyPath.isEmpty() && byPath.isEmpty();
+		}
+	}
+
 	/** Inner class with information about a signals listeners */
 	private static class SignalInfo
 	{
-		private String path;
-		private String dbusInterface;
-		private String name;
-		private Class<?> signal;
+		private final String path;
+		private final String dbusInterface;
+		private final String name;
+		private final Class<?> signal;
+		private final MatchRule rule;
+		private final RuleMatcher matcher;
 		
-		private List<SignalListener> listeners;
+		private final List<ListenerInfo> listeners;
+		private Future<Void> registration;
 		
-		public SignalInfo(Object path, Class<?> signal)
+		public SignalInfo(MatchRule rule, Class<?> signal)
 		{
-			listeners = new LinkedList<SignalListener>();
+			listeners = new CopyOnWriteArrayList<ListenerInfo>();
 			
 			this.signal = signal;
 			
@@ -297,58 +661,78 @@ public class SignalMessageHandler
 			name = signal.isAnnotationPresent(Name.class)
 				? signal.getAnnotation(Name.class).value()
 				: signal.getSimpleName();
+			
+			this.rule = (rule == null ? new MatchRule() : rule)
+				.withType("signal")
+				.withInterface(dbusInterface)
+				.withMember(name);
+			
+			path = this.rule.getPath();
+			matcher = new RuleMatcher(this.rule);
 		}
 		
-		public void addListener(SignalListener l)
-		{
-			listeners.add(l);
-		}
-		
-		public void removeListener(SignalListener l)
+		public void addListener(SignalListener l, SignalDelivery delivery)
 		{
-			listeners.remove(l);
+			listeners.add(new ListenerInfo(l, delivery));
 		}
 		
-		public boolean match(ObjectPath path, String dbusInterface, String name)
+		public boolean removeListener(SignalListener l)
 		{
-			if(this.path != null)
+			for(ListenerInfo info : listeners)
 			{
-				if(false == path.equals(path.getPath()))
+				if(info.listener.equals(l))
 				{
-					return false;
+					return listeners.remove(info);
 				}
 			}
 			
-			return this.dbusInterface.equals(dbusInterface)
-				&& this.name.equals(name);
+			return false;
 		}
 		
-		public void trigger(Object[] data)
+		public DBusSignal create(Object[] data)
 			throws DBusException
 		{
 			Object o = DBusConverter.create(signal, data);
 			if(o == null)
 			{
 				logger.error("Could not construct " + signal + " with " + data);
-				
-				return;
 			}
 			
-			trigger((DBusSignal) o);
+			return (DBusSignal) o;
 		}
 		
-		public void trigger(DBusSignal signal)
+		@SuppressWarnings("unchecked")
+		public void trigger(String path, DBusSignal signal)
 		{
-			for(SignalListener l : listeners)
+			for(ListenerInfo info : listeners)
 			{
-				l.signalReceived(signal);
+				if(info.delivery == null)
+				{
+					info.listener.signalReceived(signal);
+				}
+				else
+				{
+					info.delivery.deliver(info.listener, path, signal);
+				}
 			}
 		}
 		
 		public String getMatchRule()
 		{
-			return "type='signal',interface='" + dbusInterface + "',member='"
-				+ name + "'";
+			return rule.getRule();
+		}
+	}
+	
+	/** A listener and how signals should be delivered to it. */
+	private static class ListenerInfo
+	{
+		private final SignalListener listener;
+		private final SignalDelivery delivery;
+		
+		public ListenerInfo(SignalListener listener, SignalDelivery delivery)
+		{
+			this.listener = listener;
+			this.delivery = delivery;
 		}
 	}
 }
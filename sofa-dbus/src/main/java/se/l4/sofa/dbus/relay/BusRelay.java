@@ -0,0 +1,282 @@
+package se.l4.sofa.dbus.relay;
+
+import java.io.IOException;
+import java.security.Security;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.security.auth.callback.CallbackHandler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.l4.sofa.dbus.BusAddress;
+import se.l4.sofa.dbus.io.DBusClient;
+import se.l4.sofa.dbus.io.DBusServer;
+import se.l4.sofa.dbus.io.sasl.Anonymous;
+import se.l4.sofa.dbus.io.sasl.DBusSaslProvider;
+import se.l4.sofa.dbus.io.sasl.ExternalServer;
+import se.l4.sofa.dbus.spi.Channel;
+import se.l4.sofa.dbus.spi.ClientListener;
+import se.l4.sofa.dbus.spi.HandlerChain;
+import se.l4.sofa.dbus.spi.Message;
+import se.l4.sofa.dbus.spi.MessageHandler;
+
+/**
+ * Relay that lets peers reach a bus they can not connect to directly, such
+ * as remote agents reaching the system bus of a host over TCP.
+ * 
+ * <p>
+ * Every peer that connects to the relay gets its own connection to the
+ * upstream bus and frames are passed between the two as they were read.
+ * As the bus sees one connection per peer it assigns the unique name and
+ * sets the sender itself, and the serials of a peer are only ever used on
+ * its own connection, so no header field needs to be rewritten. Neither
+ * header nor body is encoded again and the body is never decoded.
+ * 
+ * <pre>
+ * BusRelay relay = new BusRelay(
+ * 	new BusAddress("tcp:host=0.0.0.0,port=4000"),
+ * 	new BusAddress("unix:path=/var/run/dbus/system_bus_socket")
+ * );
+ * relay.start();
+ * </pre>
+ * 
+ * <p>
+ * By default peers are authenticated with {@code ANONYMOUS} and the relay
+ * authenticates with the bus using {@code EXTERNAL}, so peers act with the
+ * credentials of the relay.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class BusRelay
+	implements MessageHandler, ClientListener
+{
+	static
+	{
+		// Register our own SASL mechanisms
+		Security.addProvider(new DBusSaslProvider());
+	}
+	
+	private static final Logger logger = LoggerFactory.getLogger(BusRelay.class);
+	
+	private static final String[] DEFAULT_MECHANISMS = { Anonymous.NAME };
+	private static final String[] DEFAULT_UPSTREAM_MECHANISMS = { ExternalServer.NAME };
+	
+	private final DBusServer server;
+	private final BusAddress upstream;
+	private final String[] upstreamMechanisms;
+	private final CallbackHandler upstreamAuthentication;
+	
+	private final ConcurrentMap<Channel, DBusClient> links;
+	
+	private final AtomicLong toUpstream;
+	private final AtomicLong toPeers;
+	
+	public BusRelay(BusAddress address, BusAddress upstream)
+	{
+		this(address, DEFAULT_MECHANISMS, null, upstream, DEFAULT_UPSTREAM_MECHANISMS, null);
+	}
+	
+	/**
+	 * Create a new relay.
+	 * 
+	 * @param address
+	 * 		address to listen on
+	 * @param mechanisms
+	 * 		SASL mechanisms that peers can use to authenticate
+	 * @param authentication
+	 * 		callback for the SASL mechanisms of peers
+	 * @param upstream
+	 * 		address of the bus to relay to
+	 * @param upstreamMechanisms
+	 * 		SASL mechanisms to authenticate with the bus
+	 * @param upstreamAuthentication
+	 * 		callback for the SASL mechanisms of the bus
+	 */
+	public BusRelay(BusAddress address, String[] mechanisms, CallbackHandler authentication,
+			BusAddress upstream, String[] upstreamMechanisms, CallbackHandler upstreamAuthentication)
+	{
+		this.upstream = upstream;
+		this.upstreamMechanisms = upstreamMechanisms;
+		this.upstreamAuthentication = upstreamAuthentication;
+		
+		HandlerChain chain = new HandlerChain();
+		chain.addHandler(this);
+		
+		server = new DBusServer(address, chain, mechanisms, authentication);
+		server.addClientListener(this);
+		
+		links = new ConcurrentHashMap<Channel, DBusClient>();
+		
+		toUpstream = new AtomicLong();
+		toPeers = new AtomicLong();
+	}
+	
+	/**
+	 * Start accepting peers.
+	 * 
+	 * @throws IOException
+	 * 		if unable to bind to the address
+	 */
+	public void start()
+		throws IOException
+	{
+		server.start();
+	}
+	
+	/**
+	 * Stop the relay, disconnecting all peers and their upstream connections.
+	 * 
+	 * @throws IOException
+	 */
+	public void close()
+		throws IOException
+	{
+		server.close();
+	}
+	
+	/**
+	 * Get the port the relay is listening on when using TCP.
+	 * 
+	 * @return
+	 */
+	public int getLocalPort()
+	{
+		return server.getLocalPort();
+	}
+	
+	/**
+	 * Get the number of peers currently relayed.
+	 * 
+	 * @return
+	 */
+	public int getPeerCount()
+	{
+		return links.size();
+	}
+	
+	/**
+	 * Get the number of messages forwarded from peers to the bus.
+	 * 
+	 * @return
+	 */
+	public long getUpstreamMessages()
+	{
+		return toUpstream.get();
+	}
+	
+	/**
+	 * Get the number of messages forwarded from the bus to peers.
+	 * 
+	 * @return
+	 */
+	public long getPeerMessages()
+	{
+		return toPeers.get();
+	}
+	
+	public void clientConnected(Channel peer)
+	{
+		DBusClient client = new DBusClient(upstream, createChain(peer),
+			upstreamMechanisms, upstreamAuthentication);
+			
+		// Forward in the order read and leave reconnecting to the peer
+		client.setDispatchLanes(1);
+		client.setReconnect(false);
+		client.addClientListener(new UpstreamListener(peer));
+		
+		try
+		{
+			client.connect();
+		}
+		catch(IOException e)
+		{
+			logger.warn("Unable to connect to " + upstream + " for peer; " + e.getMessage(), e);
+			
+			server.disconnect(peer);
+			return;
+		}
+		
+		links.put(peer, client);
+		
+		logger.debug("Relaying {} to {}", peer, upstream);
+	}
+	
+	public void clientDisconnected(Channel peer)
+	{
+		DBusClient client = links.remove(peer);
+		if(client == null)
+		{
+			return;
+		}
+		
+		try
+		{
+			client.disconnect();
+		}
+		catch(IOException e)
+		{
+			logger.debug("Error while disconnecting upstream; {}", e.getMessage());
+		}
+	}
+	
+	public boolean handle(Message message, Channel peer)
+	{
+		DBusClient client = links.get(peer);
+		if(client == null)
+		{
+			logger.debug("Dropping message from peer without upstream {}", message);
+			return true;
+		}
+		
+		toUpstream.incrementAndGet();
+		client.sendMessage(message);
+		
+		return true;
+	}
+	
+	private HandlerChain createChain(final Channel peer)
+	{
+		HandlerChain chain = new HandlerChain();
+		chain.addHandler(new MessageHandler()
+		{
+			public boolean handle(Message message, Channel connection)
+			{
+				toPeers.incrementAndGet();
+				peer.sendMessage(message);
+				
+				return true;
+			}
+		});
+		
+		return chain;
+	}
+	
+	/** Disconnects a peer when its upstream connection is lost. */
+	private class UpstreamListener
+		implements ClientListener
+	{
+		private final Channel peer;
+		
+		public UpstreamListener(Channel peer)
+		{
+			this.peer = peer;
+		}
+		
+		public void clientConnected(Channel client)
+		{
+		}
+		
+		public void clientDisconnected(Channel client)
+		{
+			if(links.remove(peer) != null)
+			{
+				logger.debug("Upstream of {} was lost, disconnecting", peer);
+				server.disconnect(peer);
+			}
+		}
+	}
+}
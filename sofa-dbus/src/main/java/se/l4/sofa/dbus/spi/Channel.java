@@ -1,5 +1,7 @@
 package se.l4.sofa.dbus.spi;
 
+import java.util.concurrent.Future;
+
 public interface Channel
 {
 	/**
@@ -21,6 +23,19 @@ public interface Channel
 	 */
 	Message sendBlocking(Message message);
 	
+	/**
+	 * Send a message and return a future that is completed when its reply
+	 * is received. This allows several calls to be in flight at the same
+	 * time. Do not use this method for messages that are flagged
+	 * {@link Message#FLAG_NO_REPLY_EXPECTED}.
+	 * 
+	 * @param message
+	 * 		message to send
+	 * @return
+	 * 		future completed with the reply to the message
+	 */
+	Future<Message> sendAsync(Message message);
+	
 	/**
 	 * Retrieve the next serial to use with messages.
 	 * 
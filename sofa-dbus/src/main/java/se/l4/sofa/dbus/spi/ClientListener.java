@@ -0,0 +1,25 @@
+package se.l4.sofa.dbus.spi;
+
+/**
+ * Listener for clients connecting to and disconnecting from a
+ * {@link ServerChannel}.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public interface ClientListener
+{
+	/**
+	 * A client has connected and been authenticated.
+	 * 
+	 * @param client
+	 */
+	void clientConnected(Channel client);
+	
+	/**
+	 * A client has disconnected.
+	 * 
+	 * @param client
+	 */
+	void clientDisconnected(Channel client);
+}
@@ -1,23 +1,47 @@
 package se.l4.sofa.dbus.spi;
 
+import se.l4.sofa.dbus.metrics.HandlerWatchdog;
+
 /**
  * A chain of handlers for messages received over a DBus connection, forwards
  * messages to {@link MessageHandler}. Add handlers via {@link #addHandler(MessageHandler)}
  * and use {@link #handle(Message, Channel)} to let the chain handle a
  * message.
  * 
+ * <p>
+ * Handlers are run on the thread calling {@link #handle(Message, Channel)},
+ * set a {@link HandlerWatchdog} to have handlers that run for too long
+ * reported.
+ * 
  * @author Andreas Holstenson
  *
  */
 public class HandlerChain
 {
 	private MessageHandler[] handlers;
+	private volatile HandlerWatchdog watchdog;
 	
 	public HandlerChain()
 	{
 		handlers = new MessageHandler[0];
 	}
 	
+	/**
+	 * Set the watchdog that should track messages handled by this chain.
+	 * 
+	 * @param watchdog
+	 * 		watchdog to use, or {@code null} to stop tracking
+	 */
+	public void setWatchdog(HandlerWatchdog watchdog)
+	{
+		this.watchdog = watchdog;
+	}
+	
+	public HandlerWatchdog getWatchdog()
+	{
+		return watchdog;
+	}
+	
 	/**
 	 * Add a handler to the chain.
 	 * 
@@ -41,11 +65,38 @@ public class HandlerChain
 	 */
 	public void handle(Message msg, Channel connection)
 	{
-		for(MessageHandler handler : handlers)
+		Trace trace = Tracing.begin(Trace.Kind.HANDLER);
+		HandlerWatchdog watchdog = this.watchdog;
+		HandlerWatchdog.Dispatch dispatch = watchdog == null ? null : watchdog.begin(msg, connection);
+		
+		MessageHandler handledBy = null;
+		try
 		{
-			if(handler.handle(msg, connection))
+			for(MessageHandler handler : handlers)
+			{
+				if(dispatch != null)
+				{
+					dispatch.setHandler(handler);
+				}
+				
+				if(handler.handle(msg, connection))
+				{
+					handledBy = handler;
+					return;
+				}
+			}
+		}
+		finally
+		{
+			if(dispatch != null)
+			{
+				watchdog.end(dispatch);
+			}
+			
+			if(trace != null)
 			{
-				return;
+				trace.setDetail(handledBy == null ? null : handledBy.getClass().getName());
+				trace.end(msg);
 			}
 		}
 	}
@@ -2,6 +2,7 @@ package se.l4.sofa.dbus.spi;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -37,22 +38,60 @@ public class Message
 	public static final int FIELD_SENDER = 7;
 	public static final int FIELD_SIGNATURE = 8;
 	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
 	private final Endian endian;
 	private final int type;
 	private final int flags;
 	private final long serial;
 	private final List<Struct> fields;
 	
+	/** Array the body is stored in, may be the frame the message was read as */
 	private final byte[] body;
+	private final int bodyOffset;
+	private final int bodyLength;
+	
+	/** Encoded frame, shared by all writers, reset when fields change */
+	private volatile byte[] encoded;
+	
+	/** When the message was last written or was read, from System.nanoTime() */
+	private volatile long transferTime;
+	
+	/** Trace of the message waiting in a writer queue, if traced */
+	private volatile Trace queueTrace;
 	
 	public Message(Endian endian, int type, int flags, long serial,
 			byte[] body)
+	{
+		this(endian, type, flags, serial, body, 0, body.length);
+	}
+	
+	/**
+	 * Create a message with a body that is part of a larger array, such as
+	 * the frame the message was read as. The array is shared and must not be
+	 * modified.
+	 * 
+	 * @param endian
+	 * @param type
+	 * @param flags
+	 * @param serial
+	 * @param data
+	 * 		array the body is stored in
+	 * @param offset
+	 * 		offset of the body in {@code data}
+	 * @param length
+	 * 		length of the body
+	 */
+	public Message(Endian endian, int type, int flags, long serial,
+			byte[] data, int offset, int length)
 	{
 		this.endian = endian;
 		this.type = type;
 		this.flags = flags;
 		this.serial = serial;
-		this.body = body;
+		this.body = data;
+		this.bodyOffset = offset;
+		this.bodyLength = length;
 		
 		fields = new ArrayList<Struct>(8);
 	}
@@ -98,15 +137,55 @@ public class Message
 	}
 	
 	/**
-	 * Get the raw data of the body.
+	 * Get the raw data of the body. If the body is part of a larger array,
+	 * such as for messages that have been read from a stream, this creates
+	 * a copy. Use {@link #getBodyData()} to avoid copying.
 	 * 
 	 * @return
 	 */
 	public byte[] getBody()
+	{
+		if(bodyOffset == 0 && bodyLength == body.length)
+		{
+			return body;
+		}
+		
+		byte[] result = new byte[bodyLength];
+		System.arraycopy(body, bodyOffset, result, 0, bodyLength);
+		return result;
+	}
+	
+	/**
+	 * Get the array the body is stored in, the body starts at
+	 * {@link #getBodyOffset()}. The array must not be modified.
+	 * 
+	 * @return
+	 */
+	public byte[] getBodyData()
 	{
 		return body;
 	}
 	
+	/**
+	 * Get the offset of the body within {@link #getBodyData()}.
+	 * 
+	 * @return
+	 */
+	public int getBodyOffset()
+	{
+		return bodyOffset;
+	}
+	
+	/**
+	 * Get the length of the body in bytes.
+	 * 
+	 * @return
+	 */
+	public int getBodyLength()
+	{
+		return bodyLength;
+	}
+	
 	/**
 	 * Add a new header field.
 	 * 
@@ -117,6 +196,190 @@ public class Message
 	{
 		Struct s = new Struct(field, new Variant(data));
 		fields.add(s);
+		encoded = null;
+	}
+	
+	/**
+	 * Set a header field, replacing any existing value for the field. Used
+	 * when routing messages, such as when a bus sets the sender. Adding a
+	 * string field to a message that has been encoded updates the encoded
+	 * frame, so a routed message does not need to be encoded again.
+	 * 
+	 * @param field
+	 * @param data
+	 */
+	public void setField(int field, Object data)
+	{
+		for(int i=0, n=fields.size(); i<n; i++)
+		{
+			if(fields.get(i).getData()[0].equals(field))
+			{
+				fields.set(i, new Struct(field, new Variant(data)));
+				encoded = null;
+				return;
+			}
+		}
+		
+		byte[] frame = encoded;
+		if(frame != null && data instanceof String && isStringField(field))
+		{
+			/*
+			 * The field is new and goes last, so it can be appended to the
+			 * fields of the frame without encoding the message again.
+			 */
+			fields.add(new Struct(field, new Variant(data)));
+			encoded = appendStringField(frame, field, (String) data);
+			return;
+		}
+		
+		addField(field, data);
+	}
+	
+	private static boolean isStringField(int field)
+	{
+		switch(field)
+		{
+			case FIELD_INTERFACE:
+			case FIELD_MEMBER:
+			case FIELD_ERROR_NAME:
+			case FIELD_DESTINATION:
+			case FIELD_SENDER:
+				return true;
+			default:
+				return false;
+		}
+	}
+	
+	/**
+	 * Create a copy of an encoded frame with a string field added after the
+	 * existing header fields. The body is moved so that it still starts at
+	 * an 8-byte boundary.
+	 * 
+	 * @param frame
+	 * @param field
+	 * @param value
+	 * @return
+	 */
+	private static byte[] appendStringField(byte[] frame, int field, String value)
+	{
+		boolean little = frame[0] == 'l';
+		byte[] data = value.getBytes(UTF8);
+		
+		int fieldsLength = getInt(frame, 12, little);
+		int entryStart = align8(16 + fieldsLength);
+		int bodyStart = entryStart;
+		int bodyLength = frame.length - bodyStart;
+		
+		// Struct of code and variant: y, signature "s", padding to 4, string
+		int newFieldsLength = entryStart - 16 + 8 + data.length + 1;
+		int newBodyStart = align8(16 + newFieldsLength);
+		
+		byte[] result = new byte[newBodyStart + bodyLength];
+		System.arraycopy(frame, 0, result, 0, entryStart);
+		putInt(result, 12, newFieldsLength, little);
+		
+		result[entryStart] = (byte) field;
+		result[entryStart + 1] = 1;
+		result[entryStart + 2] = 's';
+		putInt(result, entryStart + 4, data.length, little);
+		System.arraycopy(data, 0, result, entryStart + 8, data.length);
+		
+		System.arraycopy(frame, bodyStart, result, newBodyStart, bodyLength);
+		
+		return result;
+	}
+	
+	private static int align8(int offset)
+	{
+		return (offset + 7) & ~7;
+	}
+	
+	private static int getInt(byte[] b, int offset, boolean little)
+	{
+		int b0 = b[offset] & 0xff;
+		int b1 = b[offset + 1] & 0xff;
+		int b2 = b[offset + 2] & 0xff;
+		int b3 = b[offset + 3] & 0xff;
+		
+		return little
+			? b0 | (b1 << 8) | (b2 << 16) | (b3 << 24)
+			: (b0 << 24) | (b1 << 16) | (b2 << 8) | b3;
+	}
+	
+	private static void putInt(byte[] b, int offset, int value, boolean little)
+	{
+		for(int i=0; i<4; i++)
+		{
+			int shift = little ? i * 8 : (3 - i) * 8;
+			b[offset + i] = (byte) (value >>> shift);
+		}
+	}
+	
+	/**
+	 * Get the encoded frame of this message if it has been encoded and no
+	 * fields have been changed since.
+	 * 
+	 * @return
+	 * 		encoded frame, {@code null} if not encoded
+	 */
+	public byte[] getEncoded()
+	{
+		return encoded;
+	}
+	
+	/**
+	 * Set the encoded frame of this message. The frame is shared between
+	 * everyone that sends the message and must not be modified.
+	 * 
+	 * @param encoded
+	 */
+	public void setEncoded(byte[] encoded)
+	{
+		this.encoded = encoded;
+	}
+	
+	/**
+	 * Get when this message was last written to a connection or when it was
+	 * read from one, as given by {@link System#nanoTime()}.
+	 * 
+	 * @return
+	 * 		time of transfer, {@code 0} if the message has not been
+	 * 		transferred
+	 */
+	public long getTransferTime()
+	{
+		return transferTime;
+	}
+	
+	/**
+	 * Set when this message was written or read.
+	 * 
+	 * @param transferTime
+	 */
+	public void setTransferTime(long transferTime)
+	{
+		this.transferTime = transferTime;
+	}
+	
+	/**
+	 * Get the trace started when this message was queued for writing.
+	 * 
+	 * @return
+	 * 		trace, or {@code null} if not traced
+	 */
+	public Trace getQueueTrace()
+	{
+		return queueTrace;
+	}
+	
+	/**
+	 * Set the trace to end when this message is taken from a writer queue.
+	 * 
+	 * @param queueTrace
+	 */
+	public void setQueueTrace(Trace queueTrace)
+	{
+		this.queueTrace = queueTrace;
 	}
 	
 	/**
@@ -150,6 +413,8 @@ public class Message
 				}
 			}
 		}
+		
+		encoded = null;
 	}
 	
 	/**
@@ -179,7 +444,7 @@ public class Message
 	 */
 	private DBusInputStream getBodyAsStream()
 	{
-		ByteArrayInputStream in = new ByteArrayInputStream(body);
+		ByteArrayInputStream in = new ByteArrayInputStream(body, bodyOffset, bodyLength);
 		DBusInputStream dbusIn = new DBusInputStream(in);
 		dbusIn.setEndian(endian);
 		
@@ -204,8 +469,19 @@ public class Message
 		}
 		else
 		{
+			Trace trace = Tracing.begin(Trace.Kind.DECODE);
+			
 			DBusInputStream in = getBodyAsStream();
-			return Marshalling.deserialize(sig, in);
+			List<Object> result = Marshalling.deserialize(sig, in);
+			
+			if(trace != null)
+			{
+				trace.setSize(bodyLength);
+				trace.setDetail("body");
+				trace.end(this);
+			}
+			
+			return result;
 		}
 	}
 	
@@ -265,7 +541,7 @@ public class Message
 			.append(", serial=")
 			.append(serial)
 			.append(", length=")
-			.append(body.length)
+			.append(bodyLength)
 			.append(", fields=")
 			.append(fields)
 			.append("]");
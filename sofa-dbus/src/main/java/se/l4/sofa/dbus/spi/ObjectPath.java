@@ -27,4 +27,30 @@ public class ObjectPath
 	{
 		return "ObjectPath[" + path + "]";
 	}
+	
+	@Override
+	public int hashCode()
+	{
+		return path == null ? 0 : path.hashCode();
+	}
+	
+	@Override
+	public boolean equals(Object obj)
+	{
+		if(this == obj)
+			return true;
+		if(obj == null)
+			return false;
+		if(getClass() != obj.getClass())
+			return false;
+		ObjectPath other = (ObjectPath) obj;
+		if(path == null)
+		{
+			if(other.path != null)
+				return false;
+		}
+		else if(!path.equals(other.path))
+			return false;
+		return true;
+	}
 }
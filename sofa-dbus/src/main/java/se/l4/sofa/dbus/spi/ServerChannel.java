@@ -13,4 +13,18 @@ public interface ServerChannel
 	extends Channel
 {
 	List<Channel> getClients();
+	
+	/**
+	 * Add a listener that is notified when clients connect and disconnect.
+	 * 
+	 * @param listener
+	 */
+	void addClientListener(ClientListener listener);
+	
+	/**
+	 * Remove a previously added listener.
+	 * 
+	 * @param listener
+	 */
+	void removeClientListener(ClientListener listener);
 }
@@ -0,0 +1,142 @@
+package se.l4.sofa.dbus.spi;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * {@link Future} that is completed by calling {@link #set(Object)} or
+ * {@link #setException(Throwable)}. Used for replies and other results that
+ * are produced by the I/O threads of a connection.
+ * 
+ * @author Andreas Holstenson
+ * 
+ * @param <T>
+ */
+public class SettableFuture<T>
+	implements Future<T>
+{
+	private boolean done;
+	private boolean cancelled;
+	private T value;
+	private Throwable exception;
+	
+	public SettableFuture()
+	{
+	}
+	
+	/**
+	 * Complete this future with the given value. Has no effect if the
+	 * future is already done.
+	 * 
+	 * @param value
+	 * @return
+	 * 		{@code true} if the future was completed by this call
+	 */
+	public synchronized boolean set(T value)
+	{
+		if(done)
+		{
+			return false;
+		}
+		
+		this.value = value;
+		done = true;
+		notifyAll();
+		
+		return true;
+	}
+	
+	/**
+	 * Complete this future with an exception. Has no effect if the future
+	 * is already done.
+	 * 
+	 * @param t
+	 * @return
+	 * 		{@code true} if the future was completed by this call
+	 */
+	public synchronized boolean setException(Throwable t)
+	{
+		if(done)
+		{
+			return false;
+		}
+		
+		this.exception = t;
+		done = true;
+		notifyAll();
+		
+		return true;
+	}
+	
+	public synchronized boolean cancel(boolean mayInterruptIfRunning)
+	{
+		if(done)
+		{
+			return false;
+		}
+		
+		cancelled = true;
+		done = true;
+		notifyAll();
+		
+		return true;
+	}
+	
+	public synchronized boolean isCancelled()
+	{
+		return cancelled;
+	}
+	
+	public synchronized boolean isDone()
+	{
+		return done;
+	}
+	
+	public synchronized T get()
+		throws InterruptedException, ExecutionException
+	{
+		while(false == done)
+		{
+			wait();
+		}
+		
+		return result();
+	}
+	
+	public synchronized T get(long timeout, TimeUnit unit)
+		throws InterruptedException, ExecutionException, TimeoutException
+	{
+		long end = System.nanoTime() + unit.toNanos(timeout);
+		while(false == done)
+		{
+			long left = end - System.nanoTime();
+			if(left <= 0)
+			{
+				throw new TimeoutException();
+			}
+			
+			TimeUnit.NANOSECONDS.timedWait(this, left);
+		}
+		
+		return result();
+	}
+	
+	private T result()
+		throws ExecutionException
+	{
+		if(cancelled)
+		{
+			throw new CancellationException();
+		}
+		
+		if(exception != null)
+		{
+			throw new ExecutionException(exception);
+		}
+		
+		return value;
+	}
+}
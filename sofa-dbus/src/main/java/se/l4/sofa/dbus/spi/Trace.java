@@ -0,0 +1,55 @@
+package se.l4.sofa.dbus.spi;
+
+/**
+ * A single traced operation, started with {@link Tracer#begin(Trace.Kind)}
+ * and finished with {@link #end(Message)}. The tracer decides if the trace
+ * is kept, usually based on how long it took.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public interface Trace
+{
+	/** Operations that are traced. */
+	enum Kind
+	{
+		/** Reading and decoding a message, after its first bytes arrived */
+		MESSAGE_READ,
+		/** Writing a message to a connection, including encoding it */
+		MESSAGE_WRITTEN,
+		/** Encoding a frame or the arguments of a method call */
+		ENCODE,
+		/** Decoding the header or the body of a message */
+		DECODE,
+		/** Waiting in a writer queue */
+		QUEUE_WAIT,
+		/** Waiting for the reply to a method call */
+		REPLY_WAIT,
+		/** Running the handlers of a received message */
+		HANDLER
+	}
+	
+	/**
+	 * Set the size in bytes of the message or data the trace is about.
+	 * 
+	 * @param size
+	 */
+	void setSize(int size);
+	
+	/**
+	 * Set a short description of what was traced, such as the class of the
+	 * handler that handled a message.
+	 * 
+	 * @param detail
+	 */
+	void setDetail(String detail);
+	
+	/**
+	 * End the trace.
+	 * 
+	 * @param message
+	 * 		message the trace is about, may be {@code null} if no message
+	 * 		is available, such as when waiting for a reply was interrupted
+	 */
+	void end(Message message);
+}
@@ -0,0 +1,24 @@
+package se.l4.sofa.dbus.spi;
+
+/**
+ * Receiver of traces from the I/O path, installed with
+ * {@link Tracing#setTracer(Tracer)}. Tracers are called on the threads that
+ * read, write and dispatch messages and must be cheap, especially when a
+ * kind of trace is not wanted.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public interface Tracer
+{
+	/**
+	 * Start tracing an operation.
+	 * 
+	 * @param kind
+	 * 		kind of operation
+	 * @return
+	 * 		trace to end when the operation is done, {@code null} if this
+	 * 		kind of operation is not traced
+	 */
+	Trace begin(Trace.Kind kind);
+}
@@ -0,0 +1,84 @@
+package se.l4.sofa.dbus.spi;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holder of the {@link Tracer} used by all connections. No tracer is
+ * installed by default, in which case tracing only costs a volatile read.
+ * 
+ * <p>
+ * A tracer can be installed at startup by setting the system property
+ * {@value #PROPERTY} to the name of a class implementing {@link Tracer}
+ * with a public no-argument constructor.
+ * 
+ * @author Andreas Holstenson
+ * 
+ */
+public class Tracing
+{
+	public static final String PROPERTY = "se.l4.sofa.dbus.tracer";
+	
+	private static final Logger logger = LoggerFactory.getLogger(Tracing.class);
+	
+	private static volatile Tracer tracer = load();
+	
+	private Tracing()
+	{
+	}
+	
+	private static Tracer load()
+	{
+		String name = System.getProperty(PROPERTY);
+		if(name == null || name.length() == 0)
+		{
+			return null;
+		}
+		
+		try
+		{
+			return (Tracer) Class.forName(name).getDeclaredConstructor().newInstance();
+		}
+		catch(Exception e)
+		{
+			logger.warn("Unable to create tracer " + name + "; " + e.getMessage(), e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Set the tracer to use.
+	 * 
+	 * @param tracer
+	 * 		tracer, {@code null} to stop tracing
+	 */
+	public static void setTracer(Tracer tracer)
+	{
+		Tracing.tracer = tracer;
+	}
+	
+	/**
+	 * Get the tracer in use.
+	 * 
+	 * @return
+	 * 		tracer or {@code null} if not tracing
+	 */
+	public static Tracer getTracer()
+	{
+		return tracer;
+	}
+	
+	/**
+	 * Start tracing an operation if a tracer is installed.
+	 * 
+	 * @param kind
+	 * @return
+	 * 		trace to end when the operation is done, {@code null} if not
+	 * 		traced
+	 */
+	public static Trace begin(Trace.Kind kind)
+	{
+		Tracer t = tracer;
+		return t == null ? null : t.begin(kind);
+	}
+}
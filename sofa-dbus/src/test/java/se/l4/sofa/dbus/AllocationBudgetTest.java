@@ -0,0 +1,345 @@
+package se.l4.sofa.dbus;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import se.l4.sofa.dbus.daemon.BusDaemon;
+import se.l4.sofa.dbus.daemon.BusDaemonTest.Echo;
+import se.l4.sofa.dbus.io.DBusClient;
+import se.l4.sofa.dbus.io.DBusMessenger;
+import se.l4.sofa.dbus.io.DBusOutputStream;
+import se.l4.sofa.dbus.io.DBusServer;
+import se.l4.sofa.dbus.io.sasl.DBusSaslProvider;
+import se.l4.sofa.dbus.spi.Channel;
+import se.l4.sofa.dbus.spi.ClientListener;
+import se.l4.sofa.dbus.spi.DictEntry;
+import se.l4.sofa.dbus.spi.Endian;
+import se.l4.sofa.dbus.spi.HandlerChain;
+import se.l4.sofa.dbus.spi.Marshalling;
+import se.l4.sofa.dbus.spi.Message;
+import se.l4.sofa.dbus.spi.MessageHandler;
+import se.l4.sofa.dbus.spi.ObjectPath;
+import se.l4.sofa.dbus.spi.Signature;
+import se.l4.sofa.dbus.spi.Variant;
+
+/**
+ * Budgets for the number of bytes allocated by common operations. A test
+ * failing here means that a change made a hot path allocate more, if the
+ * increase is intended the budget should be raised together with the
+ * change. Budgets are set about a quarter above what is measured on a
+ * 64-bit HotSpot JVM.
+ * 
+ * <p>
+ * Allocations are measured with {@code com.sun.management.ThreadMXBean},
+ * the tests pass without checking anything on JVMs that do not support it.
+ */
+@Test
+public class AllocationBudgetTest
+{
+	static
+	{
+		// Clients and servers are used directly, without a connection
+		Security.addProvider(new DBusSaslProvider());
+	}
+	
+	private static final String[] ANONYMOUS = { "ANONYMOUS" };
+	
+	private static final int WARMUP = 2000;
+	private static final int ITERATIONS = 2000;
+	
+	/** Encoding a method call with a string and a small dictionary */
+	private static final long ENCODE_CALL_BUDGET = 6500;
+	/** Reading and decoding a PropertiesChanged signal */
+	private static final long DECODE_SIGNAL_BUDGET = 7500;
+	/** A proxy call through a bus on the in-JVM transport, all threads */
+	private static final long PROXY_CALL_BUDGET = 26000;
+	/** A signal broadcast by a server to four clients, all threads */
+	private static final long BROADCAST_BUDGET = 19000;
+	
+	public void testEncodeCall()
+		throws Exception
+	{
+		final Signature sig = Signature.parse("sa{sv}");
+		final Object[] args = { "se.l4.sofa.Device", properties() };
+		
+		long allocated = measure(false, new Operation()
+		{
+			public void run()
+				throws Exception
+			{
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				DBusOutputStream dbusOut = new DBusOutputStream(out);
+				dbusOut.setEndian(Endian.LITTLE);
+				Marshalling.serialize(sig, args, dbusOut);
+				
+				Message msg = new Message(Endian.LITTLE, Message.TYPE_METHOD_CALL, 0, 1, out.toByteArray());
+				msg.addField(Message.FIELD_PATH, new ObjectPath("/se/l4/sofa/devices/0"));
+				msg.addField(Message.FIELD_INTERFACE, "org.freedesktop.DBus.Properties");
+				msg.addField(Message.FIELD_MEMBER, "SetAll");
+				msg.addField(Message.FIELD_DESTINATION, "se.l4.sofa.Devices");
+				msg.addField(Message.FIELD_SIGNATURE, sig);
+				
+				DBusMessenger.encode(msg);
+			}
+		});
+		
+		assertBudget("Encoding a method call", allocated, ENCODE_CALL_BUDGET);
+	}
+	
+	public void testDecodeSignal()
+		throws Exception
+	{
+		Signature sig = Signature.parse("sa{sv}as");
+		List<String> invalidated = new ArrayList<String>();
+		invalidated.add("Status");
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DBusOutputStream dbusOut = new DBusOutputStream(out);
+		dbusOut.setEndian(Endian.LITTLE);
+		Marshalling.serialize(sig, new Object[] { "se.l4.sofa.Device", properties(), invalidated }, dbusOut);
+		
+		Message msg = new Message(Endian.LITTLE, Message.TYPE_SIGNAL, Message.FLAG_NO_REPLY_EXPECTED, 1, out.toByteArray());
+		msg.addField(Message.FIELD_PATH, new ObjectPath("/se/l4/sofa/devices/0"));
+		msg.addField(Message.FIELD_INTERFACE, "org.freedesktop.DBus.Properties");
+		msg.addField(Message.FIELD_MEMBER, "PropertiesChanged");
+		msg.addField(Message.FIELD_SENDER, ":1.42");
+		msg.addField(Message.FIELD_SIGNATURE, sig);
+		
+		final byte[] frame = DBusMessenger.encode(msg);
+		
+		long allocated = measure(false, new Operation()
+		{
+			public void run()
+				throws Exception
+			{
+				Message read = new DBusMessenger(new ByteArrayInputStream(frame), null).readMessage();
+				read.getBodyAsObjects();
+			}
+		});
+		
+		assertBudget("Decoding a signal", allocated, DECODE_SIGNAL_BUDGET);
+	}
+	
+	public void testProxyCall()
+		throws Exception
+	{
+		String address = "memory:name=allocation-" + System.nanoTime();
+		BusDaemon daemon = new BusDaemon(address);
+		daemon.start();
+		try
+		{
+			BusConnection service = new BusConnection(new BusAddress(address), ANONYMOUS, null);
+			service.connect();
+			service.getDBus().requestName("se.l4.sofa.Echo", 0);
+			service.export("/echo", new Echo()
+			{
+				public String echo(String value)
+				{
+					return value;
+				}
+			});
+			
+			BusConnection client = new BusConnection(new BusAddress(address), ANONYMOUS, null);
+			client.connect();
+			
+			final Echo echo = client.get("se.l4.sofa.Echo", "/echo", Echo.class);
+			
+			long allocated = measure(true, new Operation()
+			{
+				public void run()
+					throws Exception
+				{
+					echo.echo("allocation");
+				}
+			});
+			
+			assertBudget("Proxy call through the bus", allocated, PROXY_CALL_BUDGET);
+		}
+		finally
+		{
+			daemon.close();
+		}
+	}
+	
+	public void testBroadcast()
+		throws Exception
+	{
+		BusAddress address = new BusAddress("memory:name=allocation-" + System.nanoTime());
+		final DBusServer server = new DBusServer(address, new HandlerChain(), ANONYMOUS, null);
+		
+		final Semaphore accepted = new Semaphore(0);
+		server.addClientListener(new ClientListener()
+		{
+			public void clientConnected(Channel client)
+			{
+				accepted.release();
+			}
+			
+			public void clientDisconnected(Channel client)
+			{
+			}
+		});
+		server.start();
+		
+		int clients = 4;
+		final Semaphore received = new Semaphore(0);
+		List<DBusClient> connected = new ArrayList<DBusClient>();
+		try
+		{
+			for(int i=0; i<clients; i++)
+			{
+				HandlerChain chain = new HandlerChain();
+				chain.addHandler(new MessageHandler()
+				{
+					public boolean handle(Message message, Channel channel)
+					{
+						received.release();
+						return true;
+					}
+				});
+				
+				DBusClient client = new DBusClient(address, chain, ANONYMOUS, null);
+				client.setReconnect(false);
+				client.connect();
+				connected.add(client);
+			}
+			
+			assert accepted.tryAcquire(clients, 5, TimeUnit.SECONDS) : "Clients were not accepted";
+			
+			final Signature sig = Signature.parse("s");
+			final byte[] body = { 5, 0, 0, 0, 'h', 'e', 'l', 'l', 'o', 0 };
+			final int expected = clients;
+			
+			long allocated = measure(true, new Operation()
+			{
+				public void run()
+					throws Exception
+				{
+					Message msg = new Message(Endian.LITTLE, Message.TYPE_SIGNAL, Message.FLAG_NO_REPLY_EXPECTED,
+						server.nextSerial(), body);
+					msg.addField(Message.FIELD_PATH, new ObjectPath("/se/l4/sofa"));
+					msg.addField(Message.FIELD_INTERFACE, "se.l4.sofa.Test");
+					msg.addField(Message.FIELD_MEMBER, "Changed");
+					msg.addField(Message.FIELD_SIGNATURE, sig);
+					
+					server.sendMessage(msg);
+					
+					if(false == received.tryAcquire(expected, 5, TimeUnit.SECONDS))
+					{
+						throw new IOException("Broadcast was not received by all clients");
+					}
+				}
+			});
+			
+			assertBudget("Broadcast to " + clients + " clients", allocated, BROADCAST_BUDGET);
+		}
+		finally
+		{
+			for(DBusClient client : connected)
+			{
+				client.disconnect();
+			}
+			
+			server.close();
+		}
+	}
+	
+	private static List<DictEntry> properties()
+	{
+		List<DictEntry> result = new ArrayList<DictEntry>();
+		result.add(new DictEntry("Name", new Variant(Signature.parse("s"), "sensor")));
+		result.add(new DictEntry("Value", new Variant(Signature.parse("i"), 42)));
+		result.add(new DictEntry("Enabled", new Variant(Signature.parse("b"), true)));
+		
+		return result;
+	}
+	
+	private static void assertBudget(String operation, long allocated, long budget)
+	{
+		if(allocated < 0)
+		{
+			// Not supported by this JVM
+			return;
+		}
+		
+		assert allocated <= budget
+			: operation + " allocated " + allocated + " bytes, budget is " + budget;
+	}
+	
+	/**
+	 * Measure the average number of bytes allocated by an operation, after
+	 * running it enough to be compiled.
+	 * 
+	 * @param allThreads
+	 * 		if allocations by every thread should be counted, for operations
+	 * 		that involve reader and writer threads
+	 * @param operation
+	 * @return
+	 * 		bytes per operation, {@code -1} if unable to measure
+	 * @throws Exception
+	 */
+	private static long measure(boolean allThreads, Operation operation)
+		throws Exception
+	{
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(false == bean instanceof com.sun.management.ThreadMXBean)
+		{
+			return -1;
+		}
+		
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		if(false == threads.isThreadAllocatedMemorySupported()
+			|| false == threads.isThreadAllocatedMemoryEnabled())
+		{
+			return -1;
+		}
+		
+		for(int i=0; i<WARMUP; i++)
+		{
+			operation.run();
+		}
+		
+		long[] ids = allThreads
+			? bean.getAllThreadIds()
+			: new long[] { Thread.currentThread().getId() };
+			
+		long before = sum(threads.getThreadAllocatedBytes(ids));
+		for(int i=0; i<ITERATIONS; i++)
+		{
+			operation.run();
+		}
+		
+		long after = sum(threads.getThreadAllocatedBytes(ids));
+		
+		return (after - before) / ITERATIONS;
+	}
+	
+	private static long sum(long[] values)
+	{
+		long result = 0;
+		for(long v : values)
+		{
+			if(v > 0)
+			{
+				result += v;
+			}
+		}
+		
+		return result;
+	}
+	
+	private interface Operation
+	{
+		void run()
+			throws Exception;
+	}
+}
@@ -0,0 +1,60 @@
+package se.l4.sofa.dbus;
+
+import org.testng.annotations.Test;
+
+@Test
+public class MatchRuleTest
+{
+	public void testEmpty()
+	{
+		assert "".equals(new MatchRule().getRule());
+	}
+	
+	public void testSignal()
+	{
+		MatchRule rule = new MatchRule()
+			.withType("signal")
+			.withInterface("org.freedesktop.DBus")
+			.withMember("NameOwnerChanged")
+			.withPath("/org/freedesktop/DBus")
+			.withSender("org.freedesktop.DBus")
+			.withArg(0, "com.example");
+			
+		check(rule, "type='signal',sender='org.freedesktop.DBus'," 
+			+ "interface='org.freedesktop.DBus',member='NameOwnerChanged',"
+			+ "path='/org/freedesktop/DBus',arg0='com.example'");
+	}
+	
+	public void testArgOrder()
+	{
+		MatchRule rule = new MatchRule()
+			.withArgPath(2, "/a/")
+			.withArg(10, "ten")
+			.withArg(1, "one");
+			
+		check(rule, "arg1='one',arg10='ten',arg2path='/a/'");
+	}
+	
+	public void testEscape()
+	{
+		check(new MatchRule().withArg(0, "it's"), "arg0='it'\\''s'");
+	}
+	
+	@Test(expectedExceptions=IllegalArgumentException.class)
+	public void testPathAndNamespace()
+	{
+		new MatchRule().withPath("/a").withPathNamespace("/a");
+	}
+	
+	@Test(expectedExceptions=IllegalArgumentException.class)
+	public void testArgIndex()
+	{
+		new MatchRule().withArg(64, "invalid");
+	}
+	
+	private void check(MatchRule rule, String expected)
+	{
+		assert expected.equals(rule.getRule())
+			: "Expected " + expected + ", got " + rule.getRule();
+	}
+}
@@ -0,0 +1,180 @@
+package se.l4.sofa.dbus;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import se.l4.sofa.dbus.io.DBusClient;
+import se.l4.sofa.dbus.io.DBusServer;
+import se.l4.sofa.dbus.spi.Channel;
+
+@Test
+public class PeerConnectionTest
+{
+	@Name("se.l4.sofa.dbus.Greeter")
+	public interface Greeter
+		extends DBusInterface
+	{
+		class Greeted implements DBusSignal
+		{
+			@StructPosition(0)
+			private final String name;
+			
+			public Greeted(String name)
+			{
+				this.name = name;
+			}
+			
+			public String getName()
+			{
+				return name;
+			}
+		}
+		
+		@Name("Greet")
+		String greet(String name)
+			throws DBusException;
+	}
+	
+	private static class GreeterImpl
+		implements Greeter
+	{
+		private final String prefix;
+		
+		public GreeterImpl(String prefix)
+		{
+			this.prefix = prefix;
+		}
+		
+		public String greet(String name)
+		{
+			return prefix + name;
+		}
+	}
+	
+	public void testCallsAndSignals()
+		throws Exception
+	{
+		String[] mechanisms = { "ANONYMOUS" };
+		PeerConnection server = new PeerConnection(
+			new BusAddress("tcp:host=localhost,port=0,listen=true"), mechanisms, null);
+		server.connect();
+		
+		try
+		{
+			server.export("/greeter", new GreeterImpl("Hello "));
+			
+			int port = ((DBusServer) server.getConnection()).getLocalPort();
+			PeerConnection client = new PeerConnection(
+				new BusAddress("tcp:host=localhost,port=" + port), mechanisms, null);
+			client.connect();
+			client.export("/greeter", new GreeterImpl("Hi "));
+			
+			final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+			server.addSignalListener(Greeter.Greeted.class, new SignalListener<Greeter.Greeted>()
+			{
+				public void signalReceived(Greeter.Greeted signal)
+				{
+					received.add(signal.getName());
+				}
+			});
+			
+			// Client to listening side
+			Greeter greeter = client.get(null, "/greeter", Greeter.class);
+			assert "Hello peer".equals(greeter.greet("peer"));
+			
+			// Listening side back to its single client
+			Greeter back = server.get(null, "/greeter", Greeter.class);
+			assert "Hi server".equals(back.greet("server"));
+			
+			client.sendSignal("/greeter", new Greeter.Greeted("signal"));
+			assert "signal".equals(received.poll(5, TimeUnit.SECONDS));
+		}
+		finally
+		{
+			((DBusServer) server.getConnection()).close();
+		}
+	}
+	
+	public void testPendingCallFailsOnDisconnect()
+		throws Exception
+	{
+		String[] mechanisms = { "ANONYMOUS" };
+		PeerConnection server = new PeerConnection(
+			new BusAddress("tcp:host=localhost,port=0,listen=true"), mechanisms, null);
+		server.connect();
+		
+		final CountDownLatch release = new CountDownLatch(1);
+		try
+		{
+			server.export("/greeter", new Greeter()
+			{
+				public String greet(String name)
+					throws DBusException
+				{
+					try
+					{
+						release.await(10, TimeUnit.SECONDS);
+					}
+					catch(InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+					}
+					
+					return name;
+				}
+			});
+			
+			DBusServer listening = (DBusServer) server.getConnection();
+			PeerConnection client = new PeerConnection(
+				new BusAddress("tcp:host=localhost,port=" + listening.getLocalPort()), mechanisms, null);
+			client.connect();
+			
+			DBusClient channel = (DBusClient) client.getConnection();
+			channel.setReconnect(false);
+			
+			final Greeter greeter = client.get(null, "/greeter", Greeter.class);
+			final BlockingQueue<Object> result = new LinkedBlockingQueue<Object>();
+			Thread caller = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						result.add(greeter.greet("never"));
+					}
+					catch(Exception e)
+					{
+						result.add(e);
+					}
+				}
+			});
+			caller.start();
+			
+			long end = System.currentTimeMillis() + 5000;
+			while(channel.getPendingReplies() == 0 && System.currentTimeMillis() < end)
+			{
+				Thread.sleep(10);
+			}
+			
+			assert channel.getPendingReplies() == 1 : "Call was never sent";
+			
+			for(Channel c : listening.getClients())
+			{
+				listening.disconnect(c);
+			}
+			
+			Object value = result.poll(5, TimeUnit.SECONDS);
+			assert value instanceof DBusException : "Call did not fail, got " + value;
+			assert channel.getPendingReplies() == 0;
+		}
+		finally
+		{
+			release.countDown();
+			((DBusServer) server.getConnection()).close();
+		}
+	}
+}
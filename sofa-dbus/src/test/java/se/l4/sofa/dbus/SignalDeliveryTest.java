@@ -0,0 +1,176 @@
+package se.l4.sofa.dbus;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import se.l4.sofa.dbus.SignalDelivery.Overflow;
+
+@Test
+public class SignalDeliveryTest
+{
+	public void testOrderedDelivery()
+	{
+		ManualExecutor executor = new ManualExecutor();
+		SignalDelivery delivery = new SignalDelivery(executor);
+		Collector c = new Collector();
+		
+		delivery.deliver(c, "/a", new Value(1));
+		delivery.deliver(c, "/a", new Value(2));
+		
+		assert c.received.isEmpty() : "Listener invoked on calling thread";
+		assert delivery.getQueueDepth() == 2;
+		
+		executor.runAll();
+		
+		assert c.received.size() == 2;
+		assert c.received.get(0).value == 1 && c.received.get(1).value == 2;
+		assert delivery.getDelivered() == 2;
+		assert delivery.getQueueDepth() == 0;
+	}
+	
+	public void testDropOldest()
+	{
+		ManualExecutor executor = new ManualExecutor();
+		SignalDelivery delivery = new SignalDelivery(executor)
+			.setQueueSize(2, Overflow.DROP_OLDEST);
+		Collector c = new Collector();
+		
+		for(int i=1; i<=5; i++)
+		{
+			delivery.deliver(c, "/a", new Value(i));
+		}
+		
+		executor.runAll();
+		
+		assert delivery.getDropped() == 3 : "Expected 3 drops, got " + delivery.getDropped();
+		assert delivery.getMaxQueueDepth() == 2;
+		assert c.received.size() == 2;
+		assert c.received.get(0).value == 4 && c.received.get(1).value == 5;
+	}
+	
+	public void testDropNewest()
+	{
+		ManualExecutor executor = new ManualExecutor();
+		SignalDelivery delivery = new SignalDelivery(executor)
+			.setQueueSize(2, Overflow.DROP_NEWEST);
+		Collector c = new Collector();
+		
+		for(int i=1; i<=5; i++)
+		{
+			delivery.deliver(c, "/a", new Value(i));
+		}
+		
+		executor.runAll();
+		
+		assert delivery.getDropped() == 3;
+		assert c.received.get(0).value == 1 && c.received.get(1).value == 2;
+	}
+	
+	public void testConflation()
+	{
+		ManualExecutor executor = new ManualExecutor();
+		SignalDelivery delivery = new SignalDelivery(executor)
+			.setConflating(true);
+		Collector c = new Collector();
+		
+		for(int i=1; i<=100; i++)
+		{
+			delivery.deliver(c, "/a", new Value(i));
+			delivery.deliver(c, "/b", new Value(-i));
+		}
+		
+		assert delivery.getQueueDepth() == 2;
+		
+		executor.runAll();
+		
+		assert c.received.size() == 2 : "Expected one signal per path, got " + c.received.size();
+		assert c.received.get(0).value == 100 && c.received.get(1).value == -100;
+		assert delivery.getConflated() == 198;
+	}
+	
+	public void testClose()
+		throws Exception
+	{
+		SignalDelivery delivery = new SignalDelivery();
+		final CountDownLatch received = new CountDownLatch(1);
+		delivery.deliver(new SignalListener<Value>()
+		{
+			public void signalReceived(Value signal)
+			{
+				received.countDown();
+			}
+		}, "/a", new Value(1));
+		
+		assert received.await(5, TimeUnit.SECONDS);
+		
+		delivery.close();
+		assert ((ExecutorService) delivery.getExecutor()).awaitTermination(5, TimeUnit.SECONDS);
+		
+		// Signals delivered after closing are dropped
+		delivery.deliver(new Collector(), "/a", new Value(2));
+		assert delivery.getDropped() == 1;
+	}
+	
+	public void testCloseLeavesExecutor()
+	{
+		ManualExecutor executor = new ManualExecutor();
+		SignalDelivery delivery = new SignalDelivery(executor);
+		Collector c = new Collector();
+		
+		delivery.deliver(c, "/a", new Value(1));
+		delivery.close();
+		executor.runAll();
+		
+		assert c.received.isEmpty();
+		assert delivery.getDropped() == 1;
+	}
+	
+	public static class Value
+		implements DBusSignal
+	{
+		private final int value;
+		
+		public Value(int value)
+		{
+			this.value = value;
+		}
+	}
+	
+	private static class Collector
+		implements SignalListener<Value>
+	{
+		private final List<Value> received = new ArrayList<Value>();
+		
+		public void signalReceived(Value signal)
+		{
+			received.add(signal);
+		}
+	}
+	
+	/** Executor that runs tasks when asked to. */
+	private static class ManualExecutor
+		implements Executor
+	{
+		private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+		
+		public void execute(Runnable command)
+		{
+			tasks.add(command);
+		}
+		
+		public void runAll()
+		{
+			while(false == tasks.isEmpty())
+			{
+				tasks.removeFirst().run();
+			}
+		}
+	}
+}
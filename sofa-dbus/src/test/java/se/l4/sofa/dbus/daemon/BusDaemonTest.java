@@ -0,0 +1,340 @@
+package se.l4.sofa.dbus.daemon;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import se.l4.sofa.dbus.BusAddress;
+import se.l4.sofa.dbus.BusConnection;
+import se.l4.sofa.dbus.DBus;
+import se.l4.sofa.dbus.DBusException;
+import se.l4.sofa.dbus.DBusInterface;
+import se.l4.sofa.dbus.DBusSignal;
+import se.l4.sofa.dbus.MatchRule;
+import se.l4.sofa.dbus.Name;
+import se.l4.sofa.dbus.SignalListener;
+import se.l4.sofa.dbus.StructPosition;
+import se.l4.sofa.dbus.io.unix.UnixSocket;
+import se.l4.sofa.dbus.DBus.NameOwnerChanged;
+import se.l4.sofa.dbus.DBus.ReleaseNameResult;
+import se.l4.sofa.dbus.DBus.RequestNameResult;
+
+@Test
+public class BusDaemonTest
+{
+	@Name("se.l4.sofa.dbus.daemon.Echo")
+	public interface Echo
+		extends DBusInterface
+	{
+		class Echoed implements DBusSignal
+		{
+			@StructPosition(0)
+			private final String value;
+			
+			public Echoed(String value)
+			{
+				this.value = value;
+			}
+			
+			public String getValue()
+			{
+				return value;
+			}
+		}
+		
+		@Name("Echo")
+		String echo(String value)
+			throws DBusException;
+	}
+	
+	public void testHelloAndNames()
+		throws Exception
+	{
+		BusDaemon daemon = start();
+		try
+		{
+			BusConnection a = connect(daemon);
+			BusConnection b = connect(daemon);
+			
+			assert a.getFirstName().startsWith(":1.");
+			assert false == a.getFirstName().equals(b.getFirstName());
+			
+			DBus dbus = a.getDBus();
+			assert dbus.requestName("se.l4.sofa.Test", 0) == RequestNameResult.PRIMARY_OWNER;
+			assert dbus.requestName("se.l4.sofa.Test", 0) == RequestNameResult.REPLY_ALREADY_OWNER;
+			assert b.getDBus().requestName("se.l4.sofa.Test", 4) == RequestNameResult.REPLY_EXISTS;
+			
+			assert a.getFirstName().equals(b.getDBus().getNameOwner("se.l4.sofa.Test"));
+			assert b.getDBus().nameHasOwner("se.l4.sofa.Test");
+		}
+		finally
+		{
+			daemon.close();
+		}
+	}
+	
+	public void testMethodCallRouting()
+		throws Exception
+	{
+		BusDaemon daemon = start();
+		try
+		{
+			BusConnection a = connect(daemon);
+			BusConnection b = connect(daemon);
+			
+			a.getDBus().requestName("se.l4.sofa.Echo", 0);
+			a.export("/echo", new Echo()
+			{
+				public String echo(String value)
+				{
+					return value;
+				}
+			});
+			
+			// The name is added to the connection when NameAcquired arrives
+			for(int i=0; i<100 && false == a.getNames().contains("se.l4.sofa.Echo"); i++)
+			{
+				Thread.sleep(10);
+			}
+			
+			Echo echo = b.get("se.l4.sofa.Echo", "/echo", Echo.class);
+			assert "hello".equals(echo.echo("hello"));
+		}
+		finally
+		{
+			daemon.close();
+		}
+	}
+	
+	public void testSignalFanOut()
+		throws Exception
+	{
+		BusDaemon daemon = start();
+		try
+		{
+			BusConnection a = connect(daemon);
+			BusConnection b = connect(daemon);
+			BusConnection c = connect(daemon);
+			
+			Collector<Echo.Echoed> onB = new Collector<Echo.Echoed>();
+			Collector<Echo.Echoed> onC = new Collector<Echo.Echoed>();
+			b.addSignalListener(Echo.Echoed.class, onB).get(5, TimeUnit.SECONDS);
+			c.addSignalListener(new MatchRule().withArg(0, "other"), Echo.Echoed.class, onC)
+				.get(5, TimeUnit.SECONDS);
+				
+			a.sendSignal("/echo", new Echo.Echoed("one"));
+			a.sendSignal("/echo", new Echo.Echoed("other"));
+			
+			Echo.Echoed first = onB.next();
+			assert first != null && "one".equals(first.getValue());
+			
+			Echo.Echoed other = onC.next();
+			assert other != null && "other".equals(other.getValue()) : "Daemon did not filter on argument";
+		}
+		finally
+		{
+			daemon.close();
+		}
+	}
+	
+	public void testNameOwnerChanged()
+		throws Exception
+	{
+		BusDaemon daemon = start();
+		try
+		{
+			BusConnection a = connect(daemon);
+			BusConnection b = connect(daemon);
+			
+			Collector<NameOwnerChanged> changes = new Collector<NameOwnerChanged>();
+			b.addSignalListener(new MatchRule().withArg(0, "se.l4.sofa.Owned"),
+				NameOwnerChanged.class, changes).get(5, TimeUnit.SECONDS);
+				
+			a.getDBus().requestName("se.l4.sofa.Owned", 0);
+			NameOwnerChanged acquired = changes.next();
+			assert acquired != null;
+			assert "".equals(acquired.getOldOwner());
+			assert a.getFirstName().equals(acquired.getNewOwner());
+			
+			assert a.getDBus().releaseName("se.l4.sofa.Owned") == ReleaseNameResult.RELEASED;
+			NameOwnerChanged released = changes.next();
+			assert released != null;
+			assert "".equals(released.getNewOwner());
+			assert false == b.getDBus().nameHasOwner("se.l4.sofa.Owned");
+		}
+		finally
+		{
+			daemon.close();
+		}
+	}
+	
+	public void testReplaceWhileQueued()
+		throws Exception
+	{
+		BusDaemon daemon = start();
+		try
+		{
+			BusConnection a = connect(daemon);
+			BusConnection b = connect(daemon);
+			
+			// Allow replacement
+			assert a.getDBus().requestName("se.l4.sofa.Replaced", 1) == RequestNameResult.PRIMARY_OWNER;
+			assert b.getDBus().requestName("se.l4.sofa.Replaced", 0) == RequestNameResult.REPLY_IN_QUEUE;
+			
+			// Replace existing
+			assert b.getDBus().requestName("se.l4.sofa.Replaced", 2) == RequestNameResult.PRIMARY_OWNER;
+			assert b.getFirstName().equals(daemon.getNameOwner("se.l4.sofa.Replaced"));
+			assert daemon.getNamesOf(b.getFirstName()).size() == 1 
+				: "Names of replacing peer were " + daemon.getNamesOf(b.getFirstName());
+				
+			assert b.getDBus().releaseName("se.l4.sofa.Replaced") == ReleaseNameResult.RELEASED;
+			assert a.getFirstName().equals(daemon.getNameOwner("se.l4.sofa.Replaced"));
+			assert daemon.getNamesOf(b.getFirstName()).isEmpty()
+				: "Released name still held by " + daemon.getNamesOf(b.getFirstName());
+		}
+		finally
+		{
+			daemon.close();
+		}
+	}
+	
+	public void testUnixExternal()
+		throws Exception
+	{
+		// EXTERNAL relies on SO_PEERCRED which is only supported on Linux
+		if(false == System.getProperty("os.name").startsWith("Linux"))
+		{
+			return;
+		}
+		
+		assert UnixSocket.isAvailable() : "UNIX sockets are not available, libc could not be loaded";
+		
+		String address = "unix:abstract=sofa-dbus-test-" + System.nanoTime();
+		BusDaemon daemon = new BusDaemon(new BusAddress(address), new String[] { "EXTERNAL" }, null);
+		daemon.start();
+		try
+		{
+			BusConnection a = new BusConnection(new BusAddress(address), new String[] { "EXTERNAL" }, null);
+			a.connect();
+			
+			assert a.getFirstName().startsWith(":1.");
+			assert a.getDBus().nameHasOwner(a.getFirstName());
+		}
+		finally
+		{
+			daemon.close();
+		}
+	}
+	
+	public void testMemoryTransport()
+		throws Exception
+	{
+		String address = "memory:name=sofa-dbus-test-" + System.nanoTime();
+		BusDaemon daemon = new BusDaemon(address);
+		daemon.start();
+		try
+		{
+			BusConnection a = new BusConnection(new BusAddress(address), new String[] { "ANONYMOUS" }, null);
+			a.connect();
+			BusConnection b = new BusConnection(new BusAddress(address), new String[] { "ANONYMOUS" }, null);
+			b.connect();
+			
+			a.getDBus().requestName("se.l4.sofa.Echo", 0);
+			a.export("/echo", new Echo()
+			{
+				public String echo(String value)
+				{
+					return value;
+				}
+			});
+			
+			Echo echo = b.get("se.l4.sofa.Echo", "/echo", Echo.class);
+			assert "memory".equals(echo.echo("memory"));
+		}
+		finally
+		{
+			daemon.close();
+		}
+	}
+	
+	public void testDisconnectStopsMatchRegistry()
+		throws Exception
+	{
+		BusDaemon daemon = start();
+		try
+		{
+			int before = countThreads("dbus-match-registry");
+			
+			BusConnection a = connect(daemon);
+			a.addSignalListener(NameOwnerChanged.class, new Collector<NameOwnerChanged>())
+				.get(5, TimeUnit.SECONDS);
+			assert countThreads("dbus-match-registry") == before + 1;
+			
+			a.disconnect();
+			
+			long deadline = System.currentTimeMillis() + 5000;
+			while(countThreads("dbus-match-registry") > before && System.currentTimeMillis() < deadline)
+			{
+				Thread.sleep(10);
+			}
+			
+			assert countThreads("dbus-match-registry") == before : "Registry thread is still running";
+		}
+		finally
+		{
+			daemon.close();
+		}
+	}
+	
+	private static int countThreads(String name)
+	{
+		int result = 0;
+		for(Thread t : Thread.getAllStackTraces().keySet())
+		{
+			if(name.equals(t.getName()) && t.isAlive())
+			{
+				result++;
+			}
+		}
+		
+		return result;
+	}
+	
+	private BusDaemon start()
+		throws Exception
+	{
+		BusDaemon daemon = new BusDaemon("tcp:host=localhost,port=0");
+		daemon.start();
+		
+		return daemon;
+	}
+	
+	private BusConnection connect(BusDaemon daemon)
+		throws Exception
+	{
+		BusAddress address = new BusAddress("tcp:host=localhost,port=" + daemon.getLocalPort());
+		BusConnection c = new BusConnection(address, new String[] { "ANONYMOUS" }, null);
+		c.connect();
+		
+		return c;
+	}
+	
+	private static class Collector<T extends DBusSignal>
+		implements SignalListener<T>
+	{
+		private final BlockingQueue<T> received = new LinkedBlockingQueue<T>();
+		
+		public void signalReceived(T signal)
+		{
+			received.add(signal);
+		}
+		
+		public T next()
+			throws InterruptedException
+		{
+			return received.poll(5, TimeUnit.SECONDS);
+		}
+	}
+}
@@ -0,0 +1,401 @@
+package se.l4.sofa.dbus.federation;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+import se.l4.sofa.dbus.BusAddress;
+import se.l4.sofa.dbus.BusConnection;
+import se.l4.sofa.dbus.DBusException;
+import se.l4.sofa.dbus.MatchRule;
+import se.l4.sofa.dbus.SignalListener;
+import se.l4.sofa.dbus.daemon.BusDaemon;
+import se.l4.sofa.dbus.daemon.BusDaemonTest.Echo;
+
+@Test
+public class FederationTest
+{
+	private static final String[] ANONYMOUS = { "ANONYMOUS" };
+	private static final String NAME_PREFIX = "se.l4.sofa.Echo.";
+	
+	public void testFederation()
+		throws Exception
+	{
+		String busA = "memory:name=federation-a-" + System.nanoTime();
+		String busB = "memory:name=federation-b-" + System.nanoTime();
+		
+		BusDaemon daemonA = new BusDaemon(busA);
+		daemonA.start();
+		BusDaemon daemonB = new BusDaemon(busB);
+		daemonB.start();
+		
+		FederationNode nodeA = new FederationNode("a", new BusAddress(busA), ANONYMOUS, null,
+			new BusAddress("tcp:host=localhost,port=0"), ANONYMOUS, null);
+		FederationNode nodeB = new FederationNode("b", new BusAddress(busB), ANONYMOUS, null,
+			null, ANONYMOUS, null);
+		try
+		{
+			BusConnection service = new BusConnection(new BusAddress(busA), ANONYMOUS, null);
+			service.connect();
+			service.getDBus().requestName("se.l4.sofa.Echo", 0);
+			service.export("/echo", new Echo()
+			{
+				public String echo(String value)
+					throws DBusException
+				{
+					return value;
+				}
+			});
+			
+			nodeA.exportName("se.l4.sofa.Echo");
+			nodeA.exportSignals(new MatchRule().withType("signal").withInterface("se.l4.sofa.dbus.daemon.Echo"));
+			nodeA.start();
+			
+			nodeB.addPeer(new BusAddress("tcp:host=localhost,port=" + nodeA.getLocalPort()));
+			nodeB.start();
+			
+			BusConnection client = new BusConnection(new BusAddress(busB), ANONYMOUS, null);
+			client.connect();
+			
+			// Wait for the announcement to reach the other node
+			long end = System.currentTimeMillis() + 5000;
+			while(false == client.getDBus().nameHasOwner("se.l4.sofa.Echo")
+				&& System.currentTimeMillis() < end)
+			{
+				Thread.sleep(10);
+			}
+			
+			assert nodeB.getRemoteNames().contains("se.l4.sofa.Echo");
+			assert nodeA.getLinkCount() == 1 && nodeB.getLinkCount() == 1;
+			
+			Echo echo = client.get("se.l4.sofa.Echo", "/echo", Echo.class);
+			for(int i=0; i<100; i++)
+			{
+				assert ("call " + i).equals(echo.echo("call " + i));
+			}
+			
+			final BlockingQueue<Echo.Echoed> received = new LinkedBlockingQueue<Echo.Echoed>();
+			client.addSignalListener(Echo.Echoed.class, new SignalListener<Echo.Echoed>()
+			{
+				public void signalReceived(Echo.Echoed signal)
+				{
+					received.add(signal);
+				}
+			}).get(5, TimeUnit.SECONDS);
+			
+			service.sendSignal("/echo", new Echo.Echoed("federated"));
+			
+			Echo.Echoed signal = received.poll(5, TimeUnit.SECONDS);
+			assert signal != null && "federated".equals(signal.getValue()) : "Signal was not forwarded";
+		}
+		finally
+		{
+			nodeB.close();
+			nodeA.close();
+			daemonB.close();
+			daemonA.close();
+		}
+	}
+	
+	/**
+	 * Run three nodes in their own processes, linked to each other. Calls
+	 * are made between every pair of nodes and a signal emitted on one bus
+	 * must reach the two other buses exactly once, without being sent back
+	 * by the nodes that re-emitted it.
+	 */
+	public void testThreeProcesses()
+		throws Exception
+	{
+		List<NodeProcess> nodes = new ArrayList<NodeProcess>();
+		try
+		{
+			NodeProcess n1 = new NodeProcess("n1");
+			nodes.add(n1);
+			NodeProcess n2 = new NodeProcess("n2", n1.port);
+			nodes.add(n2);
+			NodeProcess n3 = new NodeProcess("n3", n1.port, n2.port);
+			nodes.add(n3);
+			
+			// Wait for every node to see the names of the two others
+			for(NodeProcess node : nodes)
+			{
+				long end = System.currentTimeMillis() + 10000;
+				while(false == "2".equals(node.command("NAMES"))
+					&& System.currentTimeMillis() < end)
+				{
+					Thread.sleep(20);
+				}
+				
+				assert "2".equals(node.command("NAMES")) : "Node " + node.id + " did not see all names";
+			}
+			
+			for(NodeProcess caller : nodes)
+			{
+				for(NodeProcess callee : nodes)
+				{
+					if(caller == callee)
+					{
+						continue;
+					}
+					
+					String result = caller.command("CALL " + NAME_PREFIX + callee.id + " from-" + caller.id);
+					assert (callee.id + ":from-" + caller.id).equals(result)
+						: caller.id + " calling " + callee.id + " returned " + result;
+				}
+			}
+			
+			int before = Integer.parseInt(n1.command("RECEIVED"));
+			n1.command("SIGNAL loop");
+			
+			for(NodeProcess node : new NodeProcess[] { n2, n3 })
+			{
+				long end = System.currentTimeMillis() + 5000;
+				while(false == "1".equals(node.command("RECEIVED"))
+					&& System.currentTimeMillis() < end)
+				{
+					Thread.sleep(20);
+				}
+			}
+			
+			// Give a signal that is sent back around time to arrive
+			Thread.sleep(500);
+			
+			assert "1".equals(n2.command("RECEIVED")) : "n2 received " + n2.command("RECEIVED");
+			assert "1".equals(n3.command("RECEIVED")) : "n3 received " + n3.command("RECEIVED");
+			
+			int after = Integer.parseInt(n1.command("RECEIVED"));
+			assert after - before <= 1 : "Signal was sent back to n1 " + (after - before) + " times";
+		}
+		finally
+		{
+			for(NodeProcess node : nodes)
+			{
+				node.close();
+			}
+		}
+	}
+	
+	/**
+	 * Node running in another process, controlled by one command per line
+	 * on its standard input. Every command is answered by a single line.
+	 */
+	private static class NodeProcess
+	{
+		private final String id;
+		private final Process process;
+		private final PrintStream out;
+		private final BufferedReader in;
+		private final Output errors;
+		private final int port;
+		
+		public NodeProcess(String id, int... peers)
+			throws IOException
+		{
+			this.id = id;
+			
+			List<String> command = new ArrayList<String>();
+			command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add(Node.class.getName());
+			command.add(id);
+			for(int peer : peers)
+			{
+				command.add(String.valueOf(peer));
+			}
+			
+			process = new ProcessBuilder(command).start();
+			out = new PrintStream(process.getOutputStream(), true);
+			in = new BufferedReader(new InputStreamReader(process.getInputStream()));
+			
+			errors = new Output(process.getErrorStream());
+			errors.start();
+			
+			String line = in.readLine();
+			if(line == null || false == line.startsWith("PORT "))
+			{
+				process.destroy();
+				throw new IOException("Node " + id + " did not start; " + errors.text);
+			}
+			
+			port = Integer.parseInt(line.substring(5));
+		}
+		
+		public String command(String command)
+			throws IOException
+		{
+			out.println(command);
+			
+			String line = in.readLine();
+			if(line == null)
+			{
+				throw new IOException("Node " + id + " exited; " + errors.text);
+			}
+			
+			return line;
+		}
+		
+		public void close()
+			throws InterruptedException
+		{
+			out.println("EXIT");
+			
+			Thread waiter = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						process.waitFor();
+					}
+					catch(InterruptedException e)
+					{
+					}
+				}
+			};
+			waiter.start();
+			waiter.join(5000);
+			
+			process.destroy();
+		}
+	}
+	
+	/**
+	 * Entry point of the processes started by {@link NodeProcess}. Runs a
+	 * bus with a node and an echo service on it. Arguments are the id of
+	 * the node followed by the ports of the nodes to link with.
+	 */
+	public static class Node
+	{
+		public static void main(String[] args)
+			throws Exception
+		{
+			final String id = args[0];
+			String address = "memory:name=federation-" + id + "-" + System.nanoTime();
+			
+			BusDaemon daemon = new BusDaemon(address);
+			daemon.start();
+			
+			BusConnection service = new BusConnection(new BusAddress(address), ANONYMOUS, null);
+			service.connect();
+			service.getDBus().requestName(NAME_PREFIX + id, 0);
+			service.export("/echo", new Echo()
+			{
+				public String echo(String value)
+					throws DBusException
+				{
+					return id + ":" + value;
+				}
+			});
+			
+			final AtomicInteger received = new AtomicInteger();
+			service.addSignalListener(Echo.Echoed.class, new SignalListener<Echo.Echoed>()
+			{
+				public void signalReceived(Echo.Echoed signal)
+				{
+					received.incrementAndGet();
+				}
+			}).get(5, TimeUnit.SECONDS);
+			
+			FederationNode node = new FederationNode(id, new BusAddress(address), ANONYMOUS, null,
+				new BusAddress("tcp:host=localhost,port=0"), ANONYMOUS, null);
+			node.exportName(NAME_PREFIX + id);
+			node.exportSignals(new MatchRule().withType("signal").withInterface("se.l4.sofa.dbus.daemon.Echo"));
+			for(int i=1; i<args.length; i++)
+			{
+				node.addPeer(new BusAddress("tcp:host=localhost,port=" + args[i]));
+			}
+			
+			node.start();
+			
+			PrintStream out = System.out;
+			out.println("PORT " + node.getLocalPort());
+			out.flush();
+			
+			BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+			String line;
+			while((line = in.readLine()) != null)
+			{
+				String[] parts = line.split(" ");
+				String command = parts[0];
+				if("NAMES".equals(command))
+				{
+					out.println(node.getRemoteNames().size());
+				}
+				else if("CALL".equals(command))
+				{
+					Echo echo = service.get(parts[1], "/echo", Echo.class);
+					out.println(echo.echo(parts[2]));
+				}
+				else if("SIGNAL".equals(command))
+				{
+					service.sendSignal("/echo", new Echo.Echoed(parts[1]));
+					out.println("SENT");
+				}
+				else if("RECEIVED".equals(command))
+				{
+					out.println(received.get());
+				}
+				else if("EXIT".equals(command))
+				{
+					break;
+				}
+				else
+				{
+					out.println("UNKNOWN " + command);
+				}
+				
+				out.flush();
+			}
+			
+			node.close();
+			daemon.close();
+			System.exit(0);
+		}
+	}
+	
+	/** Collects the output of another process so that it never blocks. */
+	private static class Output
+		extends Thread
+	{
+		private final InputStream in;
+		private final StringBuffer text;
+		
+		public Output(InputStream in)
+		{
+			this.in = in;
+			text = new StringBuffer();
+			
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run()
+		{
+			try
+			{
+				byte[] buf = new byte[1024];
+				int n;
+				while((n = in.read(buf)) != -1)
+				{
+					text.append(new String(buf, 0, n));
+				}
+			}
+			catch(IOException e)
+			{
+			}
+		}
+	}
+}
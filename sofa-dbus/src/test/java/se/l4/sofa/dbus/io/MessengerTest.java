@@ -3,12 +3,14 @@ package se.l4.sofa.dbus.io;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 
 import org.testng.annotations.Test;
 
 import se.l4.sofa.dbus.spi.Endian;
 import se.l4.sofa.dbus.spi.Marshalling;
 import se.l4.sofa.dbus.spi.Message;
+import se.l4.sofa.dbus.spi.ObjectPath;
 import se.l4.sofa.dbus.spi.Signature;
 import se.l4.sofa.dbus.spi.UInt32;
 import se.l4.sofa.dbus.spi.Variant;
@@ -52,6 +54,81 @@ public class MessengerTest
 		test3(Endian.BIG);
 	}
 	
+	public void testEncodeOnce()
+		throws IOException
+	{
+		Message msg = new Message(Endian.LITTLE, 4, 0, 1, output(Endian.LITTLE, "Test String"));
+		msg.addField(Message.FIELD_MEMBER, "Test");
+		
+		byte[] first = DBusMessenger.encode(msg);
+		assert first == DBusMessenger.encode(msg) : "Frame was encoded twice";
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new DBusMessenger(null, out).writeMessage(msg);
+		assert checkBytes(first, out.toByteArray()) : "Written frame differs";
+		
+		msg.setField(Message.FIELD_SENDER, ":1.1");
+		byte[] second = DBusMessenger.encode(msg);
+		assert first != second && second.length > first.length
+			: "Frame not encoded again after fields changed";
+			
+		Message read = new DBusMessenger(new ByteArrayInputStream(second), null).readMessage();
+		assert ":1.1".equals(read.getField(Message.FIELD_SENDER));
+		assert checkBytes(second, DBusMessenger.encode(read)) : "Read frame was not kept";
+		assert read.getBodyData() == read.getEncoded() : "Body was copied out of the frame";
+	}
+	
+	public void testSenderPatchedLittle()
+		throws IOException
+	{
+		testSenderPatched(Endian.LITTLE);
+	}
+	
+	public void testSenderPatchedBig()
+		throws IOException
+	{
+		testSenderPatched(Endian.BIG);
+	}
+	
+	private void testSenderPatched(Endian endian)
+		throws IOException
+	{
+		String[] senders = { ":1.1", ":1.22", ":1.333", ":1.4444", "org.example.Name" };
+		String[] members = { "A", "Test", "Longer" };
+		
+		for(String member : members)
+		{
+			for(String sender : senders)
+			{
+				Message msg = new Message(endian, 4, 0, 7, output(endian, "Test String", new UInt32(24)));
+				msg.addField(Message.FIELD_PATH, new ObjectPath("/test"));
+				msg.addField(Message.FIELD_MEMBER, member);
+				msg.addField(Message.FIELD_SIGNATURE, Signature.parse("su"));
+				
+				byte[] frame = DBusMessenger.encode(msg);
+				Message read = new DBusMessenger(new ByteArrayInputStream(frame), null).readMessage();
+				
+				read.setField(Message.FIELD_SENDER, sender);
+				byte[] patched = read.getEncoded();
+				assert patched != null : "Frame dropped when setting sender";
+				
+				Message fresh = new Message(endian, 4, 0, 7, read.getBody());
+				fresh.addFields(new ArrayList<Object>(read.getFields()));
+				
+				assert checkBytes(DBusMessenger.encode(fresh), patched)
+					: "Patched frame differs for " + member + " and " + sender;
+					
+				Message again = new DBusMessenger(new ByteArrayInputStream(patched), null).readMessage();
+				assert sender.equals(again.getField(Message.FIELD_SENDER));
+				assert checkBytes(read.getBody(), again.getBody());
+				
+				// Replacing an existing value encodes the message again
+				again.setField(Message.FIELD_SENDER, ":1.5");
+				assert again.getEncoded() == null;
+			}
+		}
+	}
+	
 	private void test1(Endian endian)
 		throws IOException
 	{
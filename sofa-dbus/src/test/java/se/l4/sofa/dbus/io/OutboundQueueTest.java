@@ -0,0 +1,99 @@
+package se.l4.sofa.dbus.io;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import se.l4.sofa.dbus.spi.Endian;
+import se.l4.sofa.dbus.spi.Message;
+
+@Test
+public class OutboundQueueTest
+{
+	private static Message message(int type)
+	{
+		Message msg = new Message(Endian.LITTLE, type, 0, 1, new byte[16]);
+		msg.addField(Message.FIELD_MEMBER, "Test");
+		return msg;
+	}
+	
+	public void testDropSignals()
+		throws Exception
+	{
+		OutboundQueue queue = new OutboundQueue("test", 2, 0, OutboundQueue.Policy.DROP_SIGNALS, 0);
+		
+		assert queue.put(message(Message.TYPE_SIGNAL));
+		assert queue.put(message(Message.TYPE_SIGNAL));
+		assert queue.put(message(Message.TYPE_SIGNAL));
+		assert queue.put(message(Message.TYPE_METHOD_RETURN));
+		
+		assert queue.getMessageCount() == 3 : "Reply should be queued over the limit";
+		assert queue.getDropped() == 1;
+		assert queue.getByteCount() > 0;
+		
+		queue.take();
+		queue.take();
+		assert queue.take().getType() == Message.TYPE_METHOD_RETURN;
+		assert queue.getByteCount() == 0;
+		assert queue.getPeakMessageCount() == 3;
+	}
+	
+	public void testByteLimit()
+		throws Exception
+	{
+		Message msg = message(Message.TYPE_SIGNAL);
+		int size = DBusMessenger.encode(msg).length;
+		
+		OutboundQueue queue = new OutboundQueue("test", 0, size * 2, OutboundQueue.Policy.DROP_SIGNALS, 0);
+		assert queue.put(msg);
+		assert queue.put(msg);
+		assert queue.put(msg);
+		
+		assert queue.getMessageCount() == 2;
+		assert queue.getByteCount() == size * 2;
+	}
+	
+	public void testDisconnect()
+		throws Exception
+	{
+		OutboundQueue queue = new OutboundQueue("test", 1, 0, OutboundQueue.Policy.DISCONNECT, 50);
+		
+		assert queue.put(message(Message.TYPE_SIGNAL));
+		assert queue.put(message(Message.TYPE_SIGNAL)) : "Should be within grace period";
+		
+		Thread.sleep(100);
+		assert false == queue.put(message(Message.TYPE_SIGNAL)) : "Grace period should have passed";
+	}
+	
+	public void testBlock()
+		throws Exception
+	{
+		final OutboundQueue queue = new OutboundQueue("test", 1, 0, OutboundQueue.Policy.BLOCK, 0);
+		queue.put(message(Message.TYPE_SIGNAL));
+		
+		final CountDownLatch queued = new CountDownLatch(1);
+		Thread producer = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					queue.put(message(Message.TYPE_SIGNAL));
+					queued.countDown();
+				}
+				catch(InterruptedException e)
+				{
+				}
+			}
+		};
+		producer.start();
+		
+		assert false == queued.await(100, TimeUnit.MILLISECONDS) : "Producer was not blocked";
+		
+		queue.take();
+		assert queued.await(5, TimeUnit.SECONDS) : "Producer was not released";
+		assert queue.getBlockedMillis() > 0;
+	}
+}
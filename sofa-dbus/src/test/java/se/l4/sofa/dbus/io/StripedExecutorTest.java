@@ -0,0 +1,97 @@
+package se.l4.sofa.dbus.io;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+@Test
+public class StripedExecutorTest
+{
+	public void testOrderPerKey()
+		throws Exception
+	{
+		StripedExecutor executor = new StripedExecutor("test", 4, 1000);
+		
+		final int perKey = 500;
+		final String[] keys = { ":1.1", ":1.2", ":1.3", ":1.4", ":1.5" };
+		final List<List<Integer>> results = new ArrayList<List<Integer>>();
+		for(int i=0; i<keys.length; i++)
+		{
+			results.add(Collections.synchronizedList(new ArrayList<Integer>()));
+		}
+		
+		final CountDownLatch latch = new CountDownLatch(perKey * keys.length);
+		for(int i=0; i<perKey; i++)
+		{
+			for(int k=0; k<keys.length; k++)
+			{
+				final List<Integer> result = results.get(k);
+				final int value = i;
+				executor.execute(keys[k], new Runnable()
+				{
+					public void run()
+					{
+						result.add(value);
+						latch.countDown();
+					}
+				});
+			}
+		}
+		
+		assert latch.await(10, TimeUnit.SECONDS) : "Tasks did not complete";
+		
+		for(List<Integer> result : results)
+		{
+			for(int i=0; i<perKey; i++)
+			{
+				assert result.get(i) == i : "Tasks for key were run out of order";
+			}
+		}
+		
+		executor.shutdown();
+	}
+	
+	public void testQueueDepths()
+		throws Exception
+	{
+		StripedExecutor executor = new StripedExecutor("test", 2, 10);
+		
+		final CountDownLatch block = new CountDownLatch(1);
+		Runnable blocking = new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					block.await();
+				}
+				catch(InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		
+		executor.execute("a", blocking);
+		for(int i=0; i<5; i++)
+		{
+			executor.execute("a", blocking);
+		}
+		
+		// Give the lane time to pick up the first task
+		Thread.sleep(100);
+		
+		int[] depths = executor.getQueueDepths();
+		int lane = executor.laneFor("a");
+		assert depths.length == 2;
+		assert depths[lane] == 5 : "Expected 5 waiting tasks, got " + depths[lane];
+		assert depths[1 - lane] == 0;
+		
+		block.countDown();
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,211 @@
+package se.l4.sofa.dbus.io.capture;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import se.l4.sofa.dbus.BusAddress;
+import se.l4.sofa.dbus.io.DBusClient;
+import se.l4.sofa.dbus.io.DBusMessenger;
+import se.l4.sofa.dbus.io.DBusServer;
+import se.l4.sofa.dbus.spi.Channel;
+import se.l4.sofa.dbus.spi.Endian;
+import se.l4.sofa.dbus.spi.HandlerChain;
+import se.l4.sofa.dbus.spi.Message;
+import se.l4.sofa.dbus.spi.MessageHandler;
+import se.l4.sofa.dbus.spi.ObjectPath;
+
+@Test
+public class PcapCaptureTest
+{
+	private static final String[] ANONYMOUS = { "ANONYMOUS" };
+	
+	private static Message call(long serial, int size)
+	{
+		Message msg = new Message(Endian.LITTLE, Message.TYPE_METHOD_CALL,
+			Message.FLAG_NO_REPLY_EXPECTED, serial, new byte[size]);
+		msg.addField(Message.FIELD_PATH, new ObjectPath("/capture"));
+		msg.addField(Message.FIELD_MEMBER, "Call" + serial);
+		
+		return msg;
+	}
+	
+	private static List<byte[]> read(byte[] capture)
+		throws IOException
+	{
+		PcapReader reader = new PcapReader(new ByteArrayInputStream(capture));
+		List<byte[]> result = new ArrayList<byte[]>();
+		PcapReader.Frame frame;
+		long last = 0;
+		while((frame = reader.next()) != null)
+		{
+			assert frame.getTimestamp() >= last : "Frames are out of order";
+			last = frame.getTimestamp();
+			result.add(frame.getData());
+		}
+		
+		return result;
+	}
+	
+	public void testRingKeepsNewestFrames()
+		throws Exception
+	{
+		List<byte[]> frames = new ArrayList<byte[]>();
+		for(int i=0; i<50; i++)
+		{
+			frames.add(DBusMessenger.encode(call(i + 1, (i * 37) % 200)));
+		}
+		
+		File file = File.createTempFile("capture", ".pcap");
+		file.deleteOnExit();
+		
+		PcapRingCapture capture = new PcapRingCapture(file, 2048);
+		for(byte[] frame : frames)
+		{
+			capture.capture(frame, FrameCapture.Direction.OUTBOUND);
+		}
+		
+		assert capture.getCaptured() == frames.size();
+		assert capture.getDropped() == 0;
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		capture.writeTo(out);
+		List<byte[]> kept = read(out.toByteArray());
+		
+		// The newest frames are kept in order
+		assert kept.size() > 1 && kept.size() < frames.size() : "Kept " + kept.size();
+		int offset = frames.size() - kept.size();
+		for(int i=0; i<kept.size(); i++)
+		{
+			assert Arrays.equals(kept.get(i), frames.get(offset + i)) : "Frame " + i + " differs";
+		}
+		
+		// A closed capture is trimmed to a valid file with the same frames
+		capture.close();
+		assert file.length() == out.size();
+		
+		byte[] closed = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+		try
+		{
+			assert in.read(closed) == closed.length;
+		}
+		finally
+		{
+			in.close();
+		}
+		
+		assert Arrays.equals(closed, out.toByteArray());
+	}
+	
+	public void testDirectionsAndOversizedFrames()
+		throws Exception
+	{
+		File file = File.createTempFile("capture", ".pcap");
+		file.deleteOnExit();
+		
+		PcapRingCapture capture = new PcapRingCapture(file, 512, EnumSet.of(FrameCapture.Direction.INBOUND));
+		try
+		{
+			capture.capture(DBusMessenger.encode(call(1, 8)), FrameCapture.Direction.OUTBOUND);
+			capture.capture(DBusMessenger.encode(call(2, 8)), FrameCapture.Direction.INBOUND);
+			capture.capture(DBusMessenger.encode(call(3, 1024)), FrameCapture.Direction.INBOUND);
+			
+			assert capture.getCaptured() == 1;
+			assert capture.getDropped() == 1;
+		}
+		finally
+		{
+			capture.close();
+		}
+	}
+	
+	public void testReplay()
+		throws Exception
+	{
+		BusAddress address = new BusAddress("memory:name=capture-" + System.nanoTime());
+		
+		final BlockingQueue<byte[]> received = new LinkedBlockingQueue<byte[]>();
+		HandlerChain chain = new HandlerChain();
+		chain.addHandler(new MessageHandler()
+		{
+			public boolean handle(Message message, Channel channel)
+			{
+				if(message.getType() == Message.TYPE_METHOD_CALL)
+				{
+					received.add(message.getEncoded());
+				}
+				
+				return true;
+			}
+		});
+		
+		DBusServer server = new DBusServer(address, chain, ANONYMOUS, null);
+		server.start();
+		
+		File file = File.createTempFile("capture", ".pcap");
+		file.deleteOnExit();
+		
+		try
+		{
+			// Capture what a client sends
+			PcapRingCapture capture = new PcapRingCapture(file, 1024 * 1024,
+				EnumSet.of(FrameCapture.Direction.OUTBOUND));
+				
+			DBusClient client = new DBusClient(address, new HandlerChain(), ANONYMOUS, null);
+			client.setReconnect(false);
+			client.setCapture(capture);
+			client.connect();
+			
+			int calls = 20;
+			List<byte[]> original = new ArrayList<byte[]>();
+			for(int i=0; i<calls; i++)
+			{
+				client.sendMessage(call(client.nextSerial(), i));
+			}
+			
+			for(int i=0; i<calls; i++)
+			{
+				byte[] frame = received.poll(5, TimeUnit.SECONDS);
+				assert frame != null : "Call " + i + " was not received";
+				original.add(frame);
+			}
+			
+			client.disconnect();
+			capture.close();
+			
+			// Replay it with a new client
+			DBusClient replayer = new DBusClient(address, new HandlerChain(), ANONYMOUS, null);
+			replayer.setReconnect(false);
+			replayer.connect();
+			
+			CaptureReplay replay = new CaptureReplay(file);
+			replay.setSpeed(0);
+			assert replay.replay(replayer) == calls;
+			
+			for(int i=0; i<calls; i++)
+			{
+				byte[] frame = received.poll(5, TimeUnit.SECONDS);
+				assert frame != null : "Replayed call " + i + " was not received";
+				assert Arrays.equals(frame, original.get(i)) : "Replayed call " + i + " differs";
+			}
+			
+			replayer.disconnect();
+		}
+		finally
+		{
+			server.close();
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package se.l4.sofa.dbus.io.memory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.testng.annotations.Test;
+
+@Test
+public class ByteRingTest
+{
+	public void testWrapAround()
+		throws Exception
+	{
+		final ByteRing ring = new ByteRing(16);
+		final int total = 100000;
+		
+		Thread writer = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					OutputStream out = ring.getOutputStream();
+					byte[] chunk = new byte[7];
+					for(int i=0; i<total; i+=chunk.length)
+					{
+						int n = Math.min(chunk.length, total - i);
+						for(int j=0; j<n; j++)
+						{
+							chunk[j] = (byte) (i + j);
+						}
+						
+						out.write(chunk, 0, n);
+					}
+					
+					ring.close();
+				}
+				catch(IOException e)
+				{
+				}
+			}
+		};
+		writer.start();
+		
+		InputStream in = ring.getInputStream();
+		byte[] buf = new byte[11];
+		int read = 0;
+		int n;
+		while((n = in.read(buf, 0, buf.length)) != -1)
+		{
+			for(int i=0; i<n; i++)
+			{
+				assert buf[i] == (byte) (read + i) : "Unexpected byte at " + (read + i);
+			}
+			
+			read += n;
+		}
+		
+		assert read == total : "Read " + read + " of " + total + " bytes";
+	}
+	
+	public void testCapacity()
+	{
+		assert new ByteRing(1000).getCapacity() == 1024;
+		assert new ByteRing(64).getCapacity() == 64;
+	}
+	
+	public void testWriteAfterClose()
+	{
+		ByteRing ring = new ByteRing(16);
+		ring.close();
+		
+		try
+		{
+			ring.getOutputStream().write(1);
+			assert false : "Write to closed ring succeeded";
+		}
+		catch(IOException e)
+		{
+		}
+	}
+	
+	public void testConnect()
+		throws Exception
+	{
+		MemoryServerSocket server = new MemoryServerSocket("ring-test-" + System.nanoTime());
+		server.bind();
+		try
+		{
+			MemorySocket client = MemorySocket.connect(server.getName());
+			MemorySocket accepted = server.accept();
+			
+			client.getOutputStream().write(42);
+			assert accepted.getInputStream().read() == 42;
+			
+			client.close();
+			assert accepted.getInputStream().read() == -1;
+		}
+		finally
+		{
+			server.close();
+		}
+		
+		try
+		{
+			MemorySocket.connect(server.getName());
+			assert false : "Connected to closed server";
+		}
+		catch(IOException e)
+		{
+		}
+	}
+}
@@ -0,0 +1,327 @@
+package se.l4.sofa.dbus.io.shm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.testng.annotations.Test;
+
+import se.l4.sofa.dbus.BusAddress;
+import se.l4.sofa.dbus.BusConnection;
+import se.l4.sofa.dbus.daemon.BusDaemon;
+
+@Test
+public class SharedMemoryTest
+{
+	public void testTransfer()
+		throws Exception
+	{
+		SharedMemoryServerSocket server = new SharedMemoryServerSocket(path());
+		server.bind();
+		try
+		{
+			// Connecting waits for the server to accept
+			Acceptor acceptor = new Acceptor(server);
+			acceptor.start();
+			
+			final SharedMemorySocket client = SharedMemorySocket.connect(server.getPath(), 64);
+			acceptor.join(5000);
+			SharedMemorySocket accepted = acceptor.socket;
+			assert accepted != null : "Connection was not accepted";
+			
+			final int total = 100000;
+			Thread writer = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						OutputStream out = client.getOutputStream();
+						for(int i=0; i<total; i++)
+						{
+							out.write(i);
+						}
+						
+						client.close();
+					}
+					catch(IOException e)
+					{
+					}
+				}
+			};
+			writer.start();
+			
+			InputStream in = accepted.getInputStream();
+			byte[] buf = new byte[37];
+			int read = 0;
+			int n;
+			while((n = in.read(buf, 0, buf.length)) != -1)
+			{
+				for(int i=0; i<n; i++)
+				{
+					assert buf[i] == (byte) (read + i) : "Unexpected byte at " + (read + i);
+				}
+				
+				read += n;
+			}
+			
+			assert read == total : "Read " + read + " of " + total + " bytes";
+		}
+		finally
+		{
+			server.close();
+		}
+		
+		assert false == new File(server.getPath()).exists() : "Directory was not removed";
+	}
+	
+	public void testTwoProcesses()
+		throws Exception
+	{
+		SharedMemoryServerSocket server = new SharedMemoryServerSocket(path());
+		server.bind();
+		
+		Process process = null;
+		try
+		{
+			int total = 1000000;
+			
+			Acceptor acceptor = new Acceptor(server);
+			acceptor.start();
+			
+			String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+			ProcessBuilder builder = new ProcessBuilder(java,
+				"-cp", System.getProperty("java.class.path"),
+				Peer.class.getName(),
+				server.getPath(),
+				String.valueOf(total)
+			);
+			builder.redirectErrorStream(true);
+			process = builder.start();
+			
+			Output output = new Output(process.getInputStream());
+			output.start();
+			
+			acceptor.join(10000);
+			SharedMemorySocket accepted = acceptor.socket;
+			assert accepted != null : "Other process did not connect; " + output.text;
+			
+			// Read everything the other process writes and send it back
+			InputStream in = accepted.getInputStream();
+			OutputStream out = accepted.getOutputStream();
+			byte[] buf = new byte[4096];
+			int read = 0;
+			while(read < total)
+			{
+				int n = in.read(buf, 0, Math.min(buf.length, total - read));
+				assert n > 0 : "Stream ended after " + read + " of " + total + " bytes";
+				
+				for(int i=0; i<n; i++)
+				{
+					assert buf[i] == pattern(read + i) : "Unexpected byte at " + (read + i);
+				}
+				
+				out.write(buf, 0, n);
+				read += n;
+			}
+			
+			int exit = process.waitFor();
+			output.join(5000);
+			assert exit == 0 : "Other process failed with " + exit + "; " + output.text;
+			
+			accepted.close();
+		}
+		finally
+		{
+			if(process != null)
+			{
+				process.destroy();
+			}
+			
+			server.close();
+		}
+	}
+	
+	public void testAlreadyBound()
+		throws Exception
+	{
+		SharedMemoryServerSocket server = new SharedMemoryServerSocket(path());
+		server.bind();
+		try
+		{
+			new SharedMemoryServerSocket(server.getPath()).bind();
+			assert false : "Bound twice to the same path";
+		}
+		catch(IOException e)
+		{
+		}
+		finally
+		{
+			server.close();
+		}
+	}
+	
+	public void testBus()
+		throws Exception
+	{
+		String address = "shm:path=" + path();
+		BusDaemon daemon = new BusDaemon(address);
+		daemon.start();
+		try
+		{
+			BusConnection c = new BusConnection(new BusAddress(address), new String[] { "ANONYMOUS" }, null);
+			c.connect();
+			
+			assert c.getFirstName().startsWith(":1.");
+			assert c.getDBus().nameHasOwner(c.getFirstName());
+		}
+		finally
+		{
+			daemon.close();
+		}
+	}
+	
+	private String path()
+	{
+		File base = new File("/dev/shm");
+		if(false == base.isDirectory())
+		{
+			base = new File(System.getProperty("java.io.tmpdir"));
+		}
+		
+		return new File(base, "sofa-dbus-test-" + System.nanoTime()).getPath();
+	}
+	
+	private static byte pattern(int i)
+	{
+		return (byte) (i * 31 + (i >> 8));
+	}
+	
+	/**
+	 * Run in another process by {@link SharedMemoryTest#testTwoProcesses()}.
+	 * Connects to the server, writes a number of bytes and checks that they
+	 * are sent back.
+	 */
+	public static class Peer
+	{
+		public static void main(String[] args)
+			throws Exception
+		{
+			final SharedMemorySocket socket = SharedMemorySocket.connect(args[0], 4096);
+			final int total = Integer.parseInt(args[1]);
+			
+			Thread writer = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						OutputStream out = socket.getOutputStream();
+						byte[] buf = new byte[1000];
+						for(int i=0; i<total; i+=buf.length)
+						{
+							int n = Math.min(buf.length, total - i);
+							for(int j=0; j<n; j++)
+							{
+								buf[j] = pattern(i + j);
+							}
+							
+							out.write(buf, 0, n);
+						}
+					}
+					catch(IOException e)
+					{
+						e.printStackTrace();
+					}
+				}
+			};
+			writer.start();
+			
+			InputStream in = socket.getInputStream();
+			byte[] buf = new byte[777];
+			int read = 0;
+			while(read < total)
+			{
+				int n = in.read(buf, 0, buf.length);
+				if(n < 0)
+				{
+					System.err.println("Stream ended after " + read + " bytes");
+					System.exit(1);
+				}
+				
+				for(int i=0; i<n; i++)
+				{
+					if(buf[i] != pattern(read + i))
+					{
+						System.err.println("Unexpected byte at " + (read + i));
+						System.exit(2);
+					}
+				}
+				
+				read += n;
+			}
+			
+			writer.join();
+			socket.close();
+			System.exit(0);
+		}
+	}
+	
+	/** Collects the output of another process so that it never blocks. */
+	private static class Output
+		extends Thread
+	{
+		private final InputStream in;
+		private final StringBuffer text;
+		
+		public Output(InputStream in)
+		{
+			this.in = in;
+			text = new StringBuffer();
+		}
+		
+		@Override
+		public void run()
+		{
+			try
+			{
+				byte[] buf = new byte[1024];
+				int n;
+				while((n = in.read(buf)) != -1)
+				{
+					text.append(new String(buf, 0, n));
+				}
+			}
+			catch(IOException e)
+			{
+			}
+		}
+	}
+	
+	private static class Acceptor
+		extends Thread
+	{
+		private final SharedMemoryServerSocket server;
+		private volatile SharedMemorySocket socket;
+		
+		public Acceptor(SharedMemoryServerSocket server)
+		{
+			this.server = server;
+		}
+		
+		@Override
+		public void run()
+		{
+			try
+			{
+				socket = server.accept();
+			}
+			catch(IOException e)
+			{
+			}
+		}
+	}
+}
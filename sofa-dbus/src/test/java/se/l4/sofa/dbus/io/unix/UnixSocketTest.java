@@ -0,0 +1,113 @@
+package se.l4.sofa.dbus.io.unix;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import se.l4.sofa.dbus.io.DBusMessenger;
+import se.l4.sofa.dbus.spi.Endian;
+import se.l4.sofa.dbus.spi.Message;
+import se.l4.sofa.dbus.spi.ObjectPath;
+
+@Test
+public class UnixSocketTest
+{
+	public void testRoundTrip()
+		throws Exception
+	{
+		if(false == System.getProperty("os.name").startsWith("Linux"))
+		{
+			return;
+		}
+		
+		assert UnixSocket.isAvailable() : "UNIX sockets are not available, libc could not be loaded";
+		
+		// Large enough to be sent and received in several parts
+		final Message small = message(1, 100);
+		final Message large = message(2, 4 * 1024 * 1024);
+		
+		final UnixServerSocket server = new UnixServerSocket("\0sofa-dbus-unix-test-" + System.nanoTime());
+		server.bind();
+		
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try
+		{
+			Future<Void> sent = executor.submit(new Callable<Void>()
+			{
+				public Void call()
+					throws Exception
+				{
+					UnixSocket socket = server.accept();
+					try
+					{
+						DBusMessenger messenger = new DBusMessenger(null, socket.getOutputStream());
+						messenger.writeMessage(small);
+						messenger.writeMessage(large);
+					}
+					finally
+					{
+						socket.close();
+					}
+					
+					return null;
+				}
+			});
+			
+			UnixSocket socket = new UnixSocket(server.getPath());
+			socket.connect();
+			try
+			{
+				DBusMessenger messenger = new DBusMessenger(socket.getInputStream(), null);
+				check(small, messenger.readMessage());
+				check(large, messenger.readMessage());
+			}
+			finally
+			{
+				socket.close();
+			}
+			
+			sent.get(10, TimeUnit.SECONDS);
+		}
+		finally
+		{
+			executor.shutdownNow();
+			server.close();
+		}
+	}
+	
+	private static Message message(long serial, int length)
+	{
+		byte[] body = new byte[length];
+		for(int i=0; i<length; i++)
+		{
+			body[i] = (byte) (i * 31 + 7);
+		}
+		
+		Message msg = new Message(Endian.LITTLE, Message.TYPE_SIGNAL, Message.FLAG_NO_REPLY_EXPECTED,
+			serial, body);
+		msg.addField(Message.FIELD_PATH, new ObjectPath("/se/l4/sofa"));
+		msg.addField(Message.FIELD_INTERFACE, "se.l4.sofa.Test");
+		msg.addField(Message.FIELD_MEMBER, "Data");
+		
+		return msg;
+	}
+	
+	private static void check(Message expected, Message actual)
+	{
+		assert expected.getSerial() == actual.getSerial() : "Serial mismatch";
+		assert expected.getFields().equals(actual.getFields()) : "Fields mismatch";
+		
+		byte[] a = expected.getBody();
+		byte[] b = actual.getBody();
+		assert a.length == b.length : "Body length mismatch";
+		
+		for(int i=0; i<a.length; i++)
+		{
+			assert a[i] == b[i] : "Body differs at " + i;
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package se.l4.sofa.dbus.match;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import se.l4.sofa.dbus.MatchRule;
+import se.l4.sofa.dbus.spi.Message;
+
+@Test
+public class MatchRuleIndexTest
+{
+	private static MatchTarget signal(String sender, String path, String member, Object... args)
+	{
+		return new MatchTarget(Message.TYPE_SIGNAL, sender, "se.l4.Test", member, 
+			path, null, args);
+	}
+	
+	private static List<String> find(MatchRuleIndex<String> index, MatchTarget target, NameResolver resolver)
+	{
+		List<String> result = new ArrayList<String>();
+		index.find(target, resolver, result);
+		return result;
+	}
+	
+	public void testBuckets()
+	{
+		MatchRuleIndex<String> index = new MatchRuleIndex<String>();
+		index.add(MatchRule.parse("type='signal',path='/a/b'"), "path");
+		index.add(MatchRule.parse("arg0='x'"), "arg0");
+		index.add(MatchRule.parse("member='Changed'"), "member");
+		index.add(MatchRule.parse("path_namespace='/a'"), "namespace");
+		index.add(MatchRule.parse("interface='se.l4.Test'"), "interface");
+		index.add(MatchRule.parse("sender=':1.1'"), "sender");
+		index.add(MatchRule.parse("type='method_call'"), "wildcard");
+		
+		assert index.size() == 7;
+		
+		List<String> result = find(index, signal(":1.1", "/a/b", "Changed", "x"), null);
+		assert result.size() == 6 : "Got " + result;
+		assert false == result.contains("wildcard");
+		
+		result = find(index, signal(":1.2", "/ab", "Other", "y"), null);
+		assert result.size() == 1 && result.contains("interface") : "Got " + result;
+	}
+	
+	public void testPathNamespace()
+	{
+		MatchRuleIndex<String> index = new MatchRuleIndex<String>();
+		index.add(MatchRule.parse("path_namespace='/'"), "root");
+		index.add(MatchRule.parse("path_namespace='/a/b'"), "ab");
+		
+		assert find(index, signal(null, "/a/b/c", "M"), null).size() == 2;
+		assert find(index, signal(null, "/a/b", "M"), null).size() == 2;
+		assert find(index, signal(null, "/a/bc", "M"), null).size() == 1;
+		assert find(index, signal(null, "/", "M"), null).size() == 1;
+	}
+	
+	public void testArgs()
+	{
+		MatchRuleIndex<String> index = new MatchRuleIndex<String>();
+		index.add(MatchRule.parse("arg0='a',arg1='b'"), "both");
+		index.add(MatchRule.parse("arg2path='/x/'"), "path");
+		
+		assert find(index, signal(null, "/", "M", "a", "b"), null).size() == 1;
+		assert find(index, signal(null, "/", "M", "a", "c"), null).isEmpty();
+		assert find(index, signal(null, "/", "M", "a", "c", "/x/y"), null).contains("path");
+		assert find(index, signal(null, "/", "M", "a", "c", "/y"), null).isEmpty();
+	}
+	
+	public void testWellKnownSender()
+	{
+		MatchRuleIndex<String> index = new MatchRuleIndex<String>();
+		index.add(MatchRule.parse("sender='se.l4.Owner'"), "named");
+		
+		NameResolver resolver = new NameResolver()
+		{
+			public String getNameOwner(String name)
+			{
+				return "se.l4.Owner".equals(name) ? ":1.5" : null;
+			}
+		};
+		
+		assert find(index, signal(":1.5", "/", "M"), resolver).size() == 1;
+		assert find(index, signal(":1.6", "/", "M"), resolver).isEmpty();
+		
+		// Without a resolver the bus is trusted to have filtered the sender
+		assert find(index, signal(":1.6", "/", "M"), null).size() == 1;
+	}
+	
+	public void testArg0OnlyDecodedForMatchingBuckets()
+	{
+		MatchRuleIndex<String> index = new MatchRuleIndex<String>();
+		index.add(MatchRule.parse("member='NameOwnerChanged',arg0='se.l4.A'"), "a");
+		index.add(MatchRule.parse("member='NameOwnerChanged',arg0='se.l4.B'"), "b");
+		index.add(MatchRule.parse("member='Changed'"), "changed");
+		
+		final int[] decoded = new int[1];
+		MatchTarget other = new MatchTarget(Message.TYPE_SIGNAL, ":1.1", "se.l4.Test", "Changed", 
+			"/", null, new Object[] { "se.l4.A" })
+		{
+			@Override
+			public Object[] getArgs()
+			{
+				decoded[0]++;
+				return super.getArgs();
+			}
+		};
+		
+		List<String> result = find(index, other, null);
+		assert result.size() == 1 && result.contains("changed") : "Got " + result;
+		assert decoded[0] == 0 : "Body was decoded for a message no arg0 rule can match";
+		
+		result = find(index, signal(":1.1", "/", "NameOwnerChanged", "se.l4.B"), null);
+		assert result.size() == 1 && result.contains("b") : "Got " + result;
+		
+		assert index.remove(MatchRule.parse("member='NameOwnerChanged',arg0='se.l4.B'"), "b");
+		assert find(index, signal(":1.1", "/", "NameOwnerChanged", "se.l4.B"), null).isEmpty();
+	}
+	
+	public void testWellKnownSenderResolvedPerName()
+	{
+		MatchRuleIndex<String> index = new MatchRuleIndex<String>();
+		for(int i=0; i<10; i++)
+		{
+			index.add(MatchRule.parse("sender='se.l4.Owner'"), "named" + i);
+		}
+		
+		index.add(MatchRule.parse("sender='org.freedesktop.DBus'"), "bus");
+		
+		final int[] resolved = new int[1];
+		NameResolver resolver = new NameResolver()
+		{
+			public String getNameOwner(String name)
+			{
+				resolved[0]++;
+				return "se.l4.Owner".equals(name) ? ":1.5" : null;
+			}
+		};
+		
+		assert find(index, signal(":1.5", "/", "M"), resolver).size() == 10;
+		assert resolved[0] == 2 : "Resolved " + resolved[0] + " times";
+		
+		// Messages from the bus use its well-known name as sender
+		List<String> result = find(index, signal("org.freedesktop.DBus", "/", "M"), resolver);
+		assert result.size() == 1 && result.contains("bus") : "Got " + result;
+	}
+	
+	public void testRemove()
+	{
+		MatchRuleIndex<String> index = new MatchRuleIndex<String>();
+		MatchRule rule = MatchRule.parse("member='Changed'");
+		index.add(rule, "a");
+		index.add(rule, "b");
+		
+		assert index.remove(MatchRule.parse("member='Changed'"), "a");
+		assert false == index.remove(rule, "a");
+		assert index.size() == 1;
+		
+		List<String> result = find(index, signal(null, "/", "Changed"), null);
+		assert result.size() == 1 && result.contains("b");
+	}
+}
@@ -0,0 +1,200 @@
+package se.l4.sofa.dbus.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.testng.annotations.Test;
+
+import se.l4.sofa.dbus.BusAddress;
+import se.l4.sofa.dbus.io.DBusClient;
+import se.l4.sofa.dbus.io.DBusServer;
+import se.l4.sofa.dbus.spi.Channel;
+import se.l4.sofa.dbus.spi.ClientListener;
+import se.l4.sofa.dbus.spi.Endian;
+import se.l4.sofa.dbus.spi.HandlerChain;
+import se.l4.sofa.dbus.spi.Message;
+import se.l4.sofa.dbus.spi.MessageHandler;
+import se.l4.sofa.dbus.spi.ObjectPath;
+import se.l4.sofa.dbus.spi.UInt32;
+
+@Test
+public class ConnectionMetricsTest
+{
+	private static final String[] ANONYMOUS = { "ANONYMOUS" };
+	
+	public void testStripedCounter()
+		throws Exception
+	{
+		final StripedCounter counter = new StripedCounter();
+		Thread[] threads = new Thread[4];
+		for(int i=0; i<threads.length; i++)
+		{
+			threads[i] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					for(int j=0; j<100000; j++)
+					{
+						counter.increment();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		
+		for(Thread t : threads)
+		{
+			t.join();
+		}
+		
+		assert counter.get() == 400000 : "Counted " + counter.get();
+	}
+	
+	public void testSingleStripe()
+		throws Exception
+	{
+		final StripedCounter counter = new StripedCounter(1);
+		Thread[] threads = new Thread[4];
+		for(int i=0; i<threads.length; i++)
+		{
+			threads[i] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					for(int j=0; j<100000; j++)
+					{
+						counter.add(2);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		
+		for(Thread t : threads)
+		{
+			t.join();
+		}
+		
+		assert counter.get() == 800000 : "Counted " + counter.get();
+	}
+	
+	public void testHistogram()
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		for(int i=0; i<99; i++)
+		{
+			histogram.record(1000);
+		}
+		
+		histogram.record(1000000);
+		
+		assert histogram.getCount() == 100;
+		assert histogram.getMax() == 1000000;
+		assert histogram.getTotal() == 99 * 1000 + 1000000;
+		
+		// 1000 ns is in the bucket from 512 to 1023 ns
+		long p50 = histogram.getValueAtPercentile(50);
+		assert p50 >= 1000 && p50 < 2048 : "p50 was " + p50;
+		assert histogram.getValueAtPercentile(100) == 1000000;
+	}
+	
+	public void testConnection()
+		throws Exception
+	{
+		BusAddress address = new BusAddress("memory:name=metrics-" + System.nanoTime());
+		
+		HandlerChain serverChain = new HandlerChain();
+		serverChain.addHandler(new MessageHandler()
+		{
+			public boolean handle(Message message, Channel channel)
+			{
+				if(message.getType() != Message.TYPE_METHOD_CALL)
+				{
+					return false;
+				}
+				
+				Message reply = new Message(Endian.LITTLE, Message.TYPE_METHOD_RETURN,
+					Message.FLAG_NO_REPLY_EXPECTED, channel.nextSerial(), new byte[0]);
+				reply.addField(Message.FIELD_REPLY_SERIAL, new UInt32(message.getSerial()));
+				channel.sendMessage(reply);
+				
+				return true;
+			}
+		});
+		
+		DBusServer server = new DBusServer(address, serverChain, ANONYMOUS, null);
+		final Semaphore accepted = new Semaphore(0);
+		server.addClientListener(new ClientListener()
+		{
+			public void clientConnected(Channel client)
+			{
+				accepted.release();
+			}
+			
+			public void clientDisconnected(Channel client)
+			{
+			}
+		});
+		server.start();
+		
+		MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+		DBusClient client = new DBusClient(address, new HandlerChain(), ANONYMOUS, null);
+		try
+		{
+			client.setReconnect(false);
+			client.connect();
+			
+			assert accepted.tryAcquire(5, TimeUnit.SECONDS) : "Client was not accepted";
+			
+			int calls = 50;
+			for(int i=0; i<calls; i++)
+			{
+				Message call = new Message(Endian.LITTLE, Message.TYPE_METHOD_CALL, 0,
+					client.nextSerial(), new byte[0]);
+				call.addField(Message.FIELD_PATH, new ObjectPath("/metrics"));
+				call.addField(Message.FIELD_MEMBER, "Ping");
+				
+				Message reply = client.sendBlocking(call);
+				assert reply != null && reply.getType() == Message.TYPE_METHOD_RETURN;
+			}
+			
+			ConnectionMetrics metrics = client.getMetrics();
+			assert metrics.getMethodCallsOut() == calls;
+			assert metrics.getMethodReturnsIn() == calls;
+			assert metrics.getMethodCallBytesOut() > 0 && metrics.getMethodReturnBytesIn() > 0;
+			assert metrics.getReplies() == calls;
+			assert metrics.getReplyLatencyMax() >= metrics.getReplyLatency50th();
+			assert metrics.getPendingReplies() == 0;
+			assert metrics.getPeakQueueDepth() >= 1;
+			
+			// Server totals are kept in the server as well as in the client handler
+			assert server.getMetrics().getMethodCallsIn() == calls;
+			assert server.getMetrics().getMethodReturnsOut() == calls;
+			
+			ObjectName name = metrics.getObjectName();
+			assert name != null && mbeans.isRegistered(name);
+			assert ((Long) mbeans.getAttribute(name, "MethodCallsOut")) == calls;
+			
+			ObjectName serverName = server.getMetrics().getObjectName();
+			assert serverName != null && mbeans.isRegistered(serverName);
+			
+			ObjectName handlers = new ObjectName(ConnectionMetrics.DOMAIN + ":type=ClientHandler,*");
+			assert mbeans.queryNames(handlers, null).size() >= 1;
+			
+			client.disconnect();
+			
+			assert false == mbeans.isRegistered(name) : "Client metrics were not unregistered";
+		}
+		finally
+		{
+			client.disconnect();
+			server.close();
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package se.l4.sofa.dbus.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+
+import org.testng.annotations.Test;
+
+import se.l4.sofa.dbus.BusAddress;
+import se.l4.sofa.dbus.io.DBusClient;
+import se.l4.sofa.dbus.io.DBusServer;
+import se.l4.sofa.dbus.spi.Channel;
+import se.l4.sofa.dbus.spi.Endian;
+import se.l4.sofa.dbus.spi.HandlerChain;
+import se.l4.sofa.dbus.spi.Message;
+import se.l4.sofa.dbus.spi.MessageHandler;
+import se.l4.sofa.dbus.spi.ObjectPath;
+
+@Test
+public class HandlerWatchdogTest
+{
+	private static final String[] ANONYMOUS = { "ANONYMOUS" };
+	
+	private static class BlockingHandler
+		implements MessageHandler
+	{
+		private final CountDownLatch release = new CountDownLatch(1);
+		private final CountDownLatch handled = new CountDownLatch(2);
+		
+		public boolean handle(Message message, Channel channel)
+		{
+			if(message.getType() != Message.TYPE_METHOD_CALL)
+			{
+				return false;
+			}
+			
+			try
+			{
+				if("Slow".equals(message.getField(Message.FIELD_MEMBER)))
+				{
+					release.await(10, TimeUnit.SECONDS);
+				}
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			
+			handled.countDown();
+			return true;
+		}
+	}
+	
+	private static Message call(long serial, String member)
+	{
+		Message msg = new Message(Endian.LITTLE, Message.TYPE_METHOD_CALL,
+			Message.FLAG_NO_REPLY_EXPECTED, serial, new byte[0]);
+		msg.addField(Message.FIELD_PATH, new ObjectPath("/watched"));
+		msg.addField(Message.FIELD_MEMBER, member);
+		
+		return msg;
+	}
+	
+	private static void await(HandlerWatchdog watchdog, int slow, int running)
+		throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 5000;
+		while((watchdog.getSlowCount() != slow || watchdog.getRunningCount() != running)
+			&& System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(10);
+		}
+		
+		assert watchdog.getSlowCount() == slow : "Slow " + watchdog.getSlowCount();
+		assert watchdog.getRunningCount() == running : "Running " + watchdog.getRunningCount();
+	}
+	
+	public void testSlowHandlerIsReported()
+		throws Exception
+	{
+		BusAddress address = new BusAddress("memory:name=watchdog-" + System.nanoTime());
+		
+		HandlerWatchdog watchdog = new HandlerWatchdog("test", 50, TimeUnit.MILLISECONDS);
+		watchdog.register();
+		
+		BlockingHandler handler = new BlockingHandler();
+		HandlerChain chain = new HandlerChain();
+		chain.addHandler(handler);
+		chain.setWatchdog(watchdog);
+		
+		DBusServer server = new DBusServer(address, chain, ANONYMOUS, null);
+		server.start();
+		try
+		{
+			DBusClient client = new DBusClient(address, new HandlerChain(), ANONYMOUS, null);
+			client.setReconnect(false);
+			client.connect();
+			
+			client.sendMessage(call(client.nextSerial(), "Slow"));
+			await(watchdog, 1, 1);
+			
+			String[] slow = watchdog.describeSlow();
+			assert slow.length == 1;
+			assert slow[0].contains(BlockingHandler.class.getName()) : slow[0];
+			assert slow[0].contains("Slow") : slow[0];
+			assert slow[0].contains("BlockingHandler.handle") : slow[0];
+			
+			assert watchdog.getSlowDispatches() == 1;
+			assert server.getMetrics().getSlowDispatches() == 1;
+			
+			// The connection stays blocked until the handler returns
+			handler.release.countDown();
+			client.sendMessage(call(client.nextSerial(), "Fast"));
+			assert handler.handled.await(5, TimeUnit.SECONDS);
+			await(watchdog, 0, 0);
+			
+			assert watchdog.getSlowDispatches() == 1;
+			assert watchdog.getLongestMillis() >= 50;
+			
+			MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+			assert Long.valueOf(1).equals(mbeans.getAttribute(watchdog.getObjectName(), "SlowDispatches"));
+			
+			client.disconnect();
+		}
+		finally
+		{
+			server.close();
+			watchdog.close();
+		}
+		
+		assert watchdog.getObjectName() == null;
+	}
+	
+	public void testNotTrackedWithoutWatchdog()
+	{
+		HandlerChain chain = new HandlerChain();
+		assert chain.getWatchdog() == null;
+		
+		chain.handle(call(1, "Fast"), null);
+	}
+}
@@ -0,0 +1,207 @@
+package se.l4.sofa.dbus.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.testng.annotations.Test;
+
+import se.l4.sofa.dbus.BusAddress;
+import se.l4.sofa.dbus.DBusException;
+import se.l4.sofa.dbus.DBusInterface;
+import se.l4.sofa.dbus.DBusSignal;
+import se.l4.sofa.dbus.Name;
+import se.l4.sofa.dbus.PeerConnection;
+import se.l4.sofa.dbus.SignalListener;
+import se.l4.sofa.dbus.StructPosition;
+import se.l4.sofa.dbus.io.DBusClient;
+import se.l4.sofa.dbus.io.DBusServer;
+
+@Test
+public class InvocationMetricsTest
+{
+	private static final String[] ANONYMOUS = { "ANONYMOUS" };
+	
+	@Name("se.l4.sofa.dbus.Counter")
+	public interface Counter
+		extends DBusInterface
+	{
+		class Counted implements DBusSignal
+		{
+			@StructPosition(0)
+			private final int value;
+			
+			public Counted(int value)
+			{
+				this.value = value;
+			}
+			
+			public int getValue()
+			{
+				return value;
+			}
+		}
+		
+		@Name("Add")
+		int add(int a, int b)
+			throws DBusException;
+			
+		@Name("Fail")
+		void fail()
+			throws DBusException;
+	}
+	
+	private static class CounterImpl
+		implements Counter
+	{
+		public int add(int a, int b)
+		{
+			return a + b;
+		}
+		
+		public void fail()
+			throws DBusException
+		{
+			throw new DBusException("Failed on purpose");
+		}
+	}
+	
+	public void testLookup()
+	{
+		InvocationMetrics metrics = new InvocationMetrics();
+		MethodStats stats = metrics.get(MethodStats.Kind.CALL, "a.B", "C");
+		assert stats == metrics.get(MethodStats.Kind.CALL, "a.B", "C");
+		assert stats != metrics.get(MethodStats.Kind.DISPATCH, "a.B", "C");
+		assert "a.B.C".equals(stats.getName());
+		assert "C".equals(metrics.get(MethodStats.Kind.SIGNAL, null, "C").getName());
+		
+		Invocation fast = new Invocation();
+		fast.addMarshal(100);
+		stats.record(1000, fast, false);
+		
+		Invocation slow = new Invocation();
+		slow.addMarshal(100);
+		slow.setWire(900000);
+		metrics.get(MethodStats.Kind.CALL, "a.B", "D").record(1000000, slow, true);
+		
+		assert metrics.getMethodCount() == 4;
+		
+		String[] top = metrics.top(2);
+		assert top.length == 2;
+		assert top[0].startsWith("call a.B.D") : top[0];
+		assert top[1].startsWith("call a.B.C") : top[1];
+		
+		MethodStats d = metrics.get(MethodStats.Kind.CALL, "a.B", "D");
+		assert d.getErrors() == 1;
+		assert d.getPhase(MethodStats.Phase.WIRE).getCount() == 1;
+		assert d.getPhase(MethodStats.Phase.QUEUE).getCount() == 0;
+		
+		TabularData table = metrics.getInvocations();
+		assert table.size() == 4;
+		CompositeData row = table.get(new Object[] { "call", "a.B.D" });
+		assert ((Long) row.get("count")) == 1;
+		assert ((Long) row.get("errors")) == 1;
+	}
+	
+	public void testPeerConnection()
+		throws Exception
+	{
+		PeerConnection server = new PeerConnection(
+			new BusAddress("tcp:host=localhost,port=0,listen=true"), ANONYMOUS, null);
+		server.connect();
+		
+		DBusServer listening = (DBusServer) server.getConnection();
+		try
+		{
+			server.export("/counter", new CounterImpl());
+			
+			final BlockingQueue<Integer> received = new LinkedBlockingQueue<Integer>();
+			server.addSignalListener(Counter.Counted.class, new SignalListener<Counter.Counted>()
+			{
+				public void signalReceived(Counter.Counted signal)
+				{
+					received.add(signal.getValue());
+				}
+			});
+			
+			PeerConnection client = new PeerConnection(
+				new BusAddress("tcp:host=localhost,port=" + listening.getLocalPort()), ANONYMOUS, null);
+			client.connect();
+			
+			Counter counter = client.get(null, "/counter", Counter.class);
+			int calls = 20;
+			for(int i=0; i<calls; i++)
+			{
+				assert counter.add(i, 1) == i + 1;
+			}
+			
+			try
+			{
+				counter.fail();
+				assert false : "Fail did not throw";
+			}
+			catch(DBusException e)
+			{
+				// Expected
+			}
+			
+			client.sendSignal("/counter", new Counter.Counted(42));
+			assert Integer.valueOf(42).equals(received.poll(5, TimeUnit.SECONDS));
+			
+			// Client side
+			DBusClient channel = (DBusClient) client.getConnection();
+			InvocationMetrics clientMetrics = channel.getMetrics().getInvocations();
+			
+			MethodStats add = clientMetrics.get(MethodStats.Kind.CALL, "se.l4.sofa.dbus.Counter", "Add");
+			assert add.getCount() == calls : add;
+			assert add.getErrors() == 0;
+			assert add.getPhase(MethodStats.Phase.MARSHAL).getCount() == calls;
+			assert add.getPhase(MethodStats.Phase.WIRE).getCount() == calls;
+			assert add.getPhase(MethodStats.Phase.HANDLER).getCount() == 0;
+			
+			MethodStats fail = clientMetrics.get(MethodStats.Kind.CALL, "se.l4.sofa.dbus.Counter", "Fail");
+			assert fail.getCount() == 1 && fail.getErrors() == 1 : fail;
+			
+			// Listening side
+			InvocationMetrics serverMetrics = listening.getMetrics().getInvocations();
+			
+			MethodStats dispatched = serverMetrics.get(MethodStats.Kind.DISPATCH, "se.l4.sofa.dbus.Counter", "Add");
+			assert dispatched.getCount() == calls : dispatched;
+			assert dispatched.getPhase(MethodStats.Phase.HANDLER).getCount() == calls;
+			assert dispatched.getPhase(MethodStats.Phase.QUEUE).getCount() == calls;
+			
+			MethodStats failed = serverMetrics.get(MethodStats.Kind.DISPATCH, "se.l4.sofa.dbus.Counter", "Fail");
+			assert failed.getErrors() == 1 : failed;
+			
+			// The signal is recorded after the listener returns
+			MethodStats signal = serverMetrics.get(MethodStats.Kind.SIGNAL, "se.l4.sofa.dbus.Counter", "Counted");
+			long deadline = System.currentTimeMillis() + 5000;
+			while(signal.getCount() == 0 && System.currentTimeMillis() < deadline)
+			{
+				Thread.sleep(10);
+			}
+			
+			assert signal.getCount() == 1 : signal;
+			assert signal.getPhase(MethodStats.Phase.HANDLER).getCount() == 1;
+			
+			// Registered next to the connection metrics
+			MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(channel.getMetrics().getObjectName() + ",metrics=Invocations");
+			assert mbeans.isRegistered(name);
+			assert ((Integer) mbeans.getAttribute(name, "MethodCount")) >= 2;
+			
+			channel.disconnect();
+			assert false == mbeans.isRegistered(name) : "Invocation metrics were not unregistered";
+		}
+		finally
+		{
+			listening.close();
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package se.l4.sofa.dbus.reflect;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.testng.annotations.Test;
+
+import se.l4.sofa.dbus.DBusException;
+import se.l4.sofa.dbus.DBusInterface;
+import se.l4.sofa.dbus.Holder;
+import se.l4.sofa.dbus.LocalConnection;
+import se.l4.sofa.dbus.Name;
+import se.l4.sofa.dbus.Out;
+import se.l4.sofa.dbus.spi.Channel;
+import se.l4.sofa.dbus.spi.Endian;
+import se.l4.sofa.dbus.spi.Message;
+import se.l4.sofa.dbus.spi.SettableFuture;
+
+@Test
+public class DBusProxyHandlerTest
+{
+	@Name("se.l4.sofa.dbus.reflect.Calculator")
+	public interface Calculator
+		extends DBusInterface
+	{
+		String describe(String name, int count, boolean enabled)
+			throws DBusException;
+			
+		void divide(int a, int b, @Out Holder<Integer> quotient, @Out Holder<Integer> remainder)
+			throws DBusException;
+			
+		int sum(List<Integer> values, @Out Holder<String> text)
+			throws DBusException;
+			
+		void reject(String reason)
+			throws DBusException, RejectedException;
+	}
+	
+	@Name("se.l4.sofa.dbus.reflect.Error.Rejected")
+	public static class RejectedException
+		extends DBusException
+	{
+		public RejectedException(String message)
+		{
+			super(message);
+		}
+	}
+	
+	private static class CalculatorImpl
+		implements Calculator
+	{
+		public String describe(String name, int count, boolean enabled)
+		{
+			return name + ":" + count + ":" + enabled;
+		}
+		
+		public void divide(int a, int b, Holder<Integer> quotient, Holder<Integer> remainder)
+		{
+			quotient.setValue(a / b);
+			remainder.setValue(a % b);
+		}
+		
+		public int sum(List<Integer> values, Holder<String> text)
+		{
+			int result = 0;
+			for(int v : values)
+			{
+				result += v;
+			}
+			
+			text.setValue("sum=" + result);
+			return result;
+		}
+		
+		public void reject(String reason)
+			throws RejectedException
+		{
+			throw new RejectedException(reason);
+		}
+	}
+	
+	public void testMixedArguments()
+		throws Exception
+	{
+		Calculator calc = createProxy();
+		
+		assert "a:3:true".equals(calc.describe("a", 3, true));
+	}
+	
+	public void testOutParameters()
+		throws Exception
+	{
+		Calculator calc = createProxy();
+		
+		Holder<Integer> quotient = new Holder<Integer>();
+		Holder<Integer> remainder = new Holder<Integer>();
+		calc.divide(17, 5, quotient, remainder);
+		
+		assert quotient.getValue() == 3 : "Quotient was " + quotient.getValue();
+		assert remainder.getValue() == 2 : "Remainder was " + remainder.getValue();
+		
+		Holder<String> text = new Holder<String>();
+		assert calc.sum(Arrays.asList(1, 2, 3), text) == 6;
+		assert "sum=6".equals(text.getValue());
+	}
+	
+	public void testException()
+		throws Exception
+	{
+		Calculator calc = createProxy();
+		
+		try
+		{
+			calc.reject("no");
+			assert false : "Exception was not thrown";
+		}
+		catch(RejectedException e)
+		{
+			assert "no".equals(e.getMessage());
+		}
+	}
+	
+	private Calculator createProxy()
+		throws DBusException
+	{
+		LocalConnection connection = new LocalConnection();
+		Loopback channel = new Loopback();
+		
+		DBusProxyHandler server = new DBusProxyHandler(connection, Endian.LITTLE, channel);
+		server.export("/calc", new CalculatorImpl());
+		channel.target = server;
+		
+		DBusProxyHandler client = new DBusProxyHandler(connection, Endian.LITTLE, channel);
+		return client.createProxy(connection.getFirstName(), "/calc", Calculator.class);
+	}
+	
+	/** Channel that dispatches calls directly to a handler. */
+	private static class Loopback
+		implements Channel
+	{
+		private DBusProxyHandler target;
+		private Message reply;
+		private long serial;
+		
+		public void sendMessage(Message message)
+		{
+			reply = message;
+		}
+		
+		public Message sendBlocking(Message message)
+		{
+			reply = null;
+			target.handle(message, this);
+			
+			return reply;
+		}
+		
+		public Future<Message> sendAsync(Message message)
+		{
+			SettableFuture<Message> future = new SettableFuture<Message>();
+			future.set(sendBlocking(message));
+			
+			return future;
+		}
+		
+		public long nextSerial()
+		{
+			return ++serial;
+		}
+		
+		public boolean isConnected()
+		{
+			return true;
+		}
+	}
+}
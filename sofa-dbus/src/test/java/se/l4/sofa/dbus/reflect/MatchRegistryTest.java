@@ -0,0 +1,218 @@
+package se.l4.sofa.dbus.reflect;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import se.l4.sofa.dbus.spi.Channel;
+import se.l4.sofa.dbus.spi.Endian;
+import se.l4.sofa.dbus.spi.Message;
+import se.l4.sofa.dbus.spi.SettableFuture;
+
+@Test
+public class MatchRegistryTest
+{
+	public void testReferenceCounting()
+		throws Exception
+	{
+		RecordingChannel channel = new RecordingChannel();
+		MatchRegistry registry = new MatchRegistry(channel, Endian.BIG);
+		
+		String rule = "type='signal',member='Test'";
+		Future<Void> first = registry.add(rule);
+		Future<Void> second = registry.add(rule);
+		
+		first.get(5, TimeUnit.SECONDS);
+		second.get(5, TimeUnit.SECONDS);
+		
+		registry.remove(rule);
+		registry.add(rule).get(5, TimeUnit.SECONDS);
+		registry.remove(rule);
+		registry.remove(rule);
+		
+		waitFor(channel, 2);
+		
+		assert "AddMatch".equals(channel.members.get(0));
+		assert "RemoveMatch".equals(channel.members.get(1));
+		assert registry.size() == 0 : "Rule was not released";
+		
+		registry.close();
+	}
+	
+	public void testAddThenRemoveIsNeverSent()
+		throws Exception
+	{
+		RecordingChannel channel = new RecordingChannel();
+		MatchRegistry registry = new MatchRegistry(channel, Endian.BIG);
+		
+		synchronized(registry)
+		{
+			// Hold the lock so that both changes end up in the same batch
+			registry.add("type='signal',member='A'");
+			registry.remove("type='signal',member='A'");
+			registry.add("type='signal',member='B'");
+		}
+		
+		waitFor(channel, 1);
+		Thread.sleep(100);
+		
+		assert channel.members.size() == 1 : "Expected a single call, got " + channel.members;
+		
+		registry.close();
+	}
+	
+	public void testRemovedWhileAdding()
+		throws Exception
+	{
+		RecordingChannel channel = new RecordingChannel();
+		channel.hold = true;
+		MatchRegistry registry = new MatchRegistry(channel, Endian.BIG);
+		
+		String rule = "type='signal',member='Test'";
+		registry.add(rule);
+		waitFor(channel, 1);
+		
+		// Removed before the bus has replied, must still be removed from the bus
+		registry.remove(rule);
+		Thread.sleep(50);
+		assert channel.members.size() == 1 : "Sent " + channel.members;
+		
+		channel.release();
+		waitFor(channel, 2);
+		channel.release();
+		waitFor(channel, 2);
+		
+		assert "RemoveMatch".equals(channel.members.get(1)) : "Sent " + channel.members;
+		assert registry.size() == 0 : "Rule was not released";
+		
+		registry.close();
+	}
+	
+	public void testReaddedWhileAdding()
+		throws Exception
+	{
+		RecordingChannel channel = new RecordingChannel();
+		channel.hold = true;
+		MatchRegistry registry = new MatchRegistry(channel, Endian.BIG);
+		
+		String rule = "type='signal',member='Test'";
+		Future<Void> first = registry.add(rule);
+		waitFor(channel, 1);
+		
+		registry.remove(rule);
+		Future<Void> second = registry.add(rule);
+		Thread.sleep(50);
+		
+		channel.release();
+		second.get(5, TimeUnit.SECONDS);
+		assert first.isDone();
+		
+		Thread.sleep(100);
+		assert channel.members.size() == 1 : "Expected a single AddMatch, got " + channel.members;
+		assert registry.size() == 1;
+		
+		registry.close();
+	}
+	
+	public void testRemovedWhileRemoving()
+		throws Exception
+	{
+		RecordingChannel channel = new RecordingChannel();
+		MatchRegistry registry = new MatchRegistry(channel, Endian.BIG);
+		
+		String rule = "type='signal',member='Test'";
+		registry.add(rule).get(5, TimeUnit.SECONDS);
+		
+		channel.hold = true;
+		registry.remove(rule);
+		waitFor(channel, 2);
+		
+		// Added again before RemoveMatch has been answered
+		Future<Void> again = registry.add(rule);
+		Thread.sleep(50);
+		assert channel.members.size() == 2 : "Sent " + channel.members;
+		assert false == again.isDone();
+		
+		channel.hold = false;
+		channel.release();
+		again.get(5, TimeUnit.SECONDS);
+		
+		assert "AddMatch".equals(channel.members.get(2)) : "Sent " + channel.members;
+		assert registry.size() == 1;
+		
+		registry.close();
+	}
+	
+	private void waitFor(RecordingChannel channel, int calls)
+		throws InterruptedException
+	{
+		long end = System.currentTimeMillis() + 5000;
+		while(channel.members.size() < calls && System.currentTimeMillis() < end)
+		{
+			Thread.sleep(10);
+		}
+		
+		// Give the registry time to process the replies
+		Thread.sleep(50);
+	}
+	
+	private static class RecordingChannel
+		implements Channel
+	{
+		private final List<String> members = new CopyOnWriteArrayList<String>();
+		private final List<SettableFuture<Message>> held = new CopyOnWriteArrayList<SettableFuture<Message>>();
+		private volatile boolean hold;
+		private long serial;
+		
+		/**
+		 * Reply to every call that is being held.
+		 */
+		public void release()
+		{
+			for(SettableFuture<Message> future : held)
+			{
+				held.remove(future);
+				future.set(new Message(Endian.BIG, Message.TYPE_METHOD_RETURN, 0, 1, new byte[0]));
+			}
+		}
+		
+		public void sendMessage(Message message)
+		{
+		}
+		
+		public Message sendBlocking(Message message)
+		{
+			throw new UnsupportedOperationException();
+		}
+		
+		public Future<Message> sendAsync(Message message)
+		{
+			members.add((String) message.getField(Message.FIELD_MEMBER));
+			
+			SettableFuture<Message> future = new SettableFuture<Message>();
+			if(hold)
+			{
+				held.add(future);
+			}
+			else
+			{
+				future.set(new Message(Endian.BIG, Message.TYPE_METHOD_RETURN, 0, 1, new byte[0]));
+			}
+			
+			return future;
+		}
+		
+		public synchronized long nextSerial()
+		{
+			return ++serial;
+		}
+		
+		public boolean isConnected()
+		{
+			return true;
+		}
+	}
+}
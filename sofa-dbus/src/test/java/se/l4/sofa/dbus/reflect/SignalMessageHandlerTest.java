@@ -0,0 +1,164 @@
+package se.l4.sofa.dbus.reflect;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import se.l4.sofa.dbus.DBus;
+import se.l4.sofa.dbus.DBusException;
+import se.l4.sofa.dbus.DBusInterface;
+import se.l4.sofa.dbus.DBusSignal;
+import se.l4.sofa.dbus.MatchRule;
+import se.l4.sofa.dbus.Name;
+import se.l4.sofa.dbus.SignalListener;
+import se.l4.sofa.dbus.StructPosition;
+import se.l4.sofa.dbus.io.DBusOutputStream;
+import se.l4.sofa.dbus.spi.Endian;
+import se.l4.sofa.dbus.spi.Marshalling;
+import se.l4.sofa.dbus.spi.Message;
+import se.l4.sofa.dbus.spi.ObjectPath;
+import se.l4.sofa.dbus.spi.Signature;
+
+@Test
+public class SignalMessageHandlerTest
+{
+	@Name("se.l4.sofa.dbus.Test")
+	public interface TestSignals
+		extends DBusInterface
+	{
+		class Changed implements DBusSignal
+		{
+			@StructPosition(0)
+			private final String value;
+
+			public Changed(String value)
+			{
+				this.value = value;
+			}
+
+			public String getValue()
+			{
+				return value;
+			}
+		}
+
+		class Removed implements DBusSignal
+		{
+			@StructPosition(0)
+			private final String value;
+
+			public Removed(String value)
+			{
+				this.value = value;
+			}
+		}
+	}
+
+	public void testAnyPath()
+		throws Exception
+	{
+		SignalMessageHandler handler = new SignalMessageHandler((DBus) null, Endian.BIG);
+		Collector<TestSignals.Changed> c = new Collector<TestSignals.Changed>();
+		handler.addListener(TestSignals.Changed.class, c);
+
+		handler.handle(signal("/a", "Changed", "one"), null);
+		handler.handle(signal("/b", "Changed", "two"), null);
+		handler.handle(signal("/b", "Removed", "three"), null);
+
+		assert c.received.size() == 2 : "Expected two signals, got " + c.received;
+		assert "one".equals(c.received.get(0).getValue());
+	}
+
+	public void testPathFilter()
+		throws Exception
+	{
+		SignalMessageHandler handler = new SignalMessageHandler((DBus) null, Endian.BIG);
+		Collector<TestSignals.Changed> onA = new Collector<TestSignals.Changed>();
+		Collector<TestSignals.Changed> onB = new Collector<TestSignals.Changed>();
+		handler.addListener("/a", TestSignals.Changed.class, onA);
+		handler.addListener("/b", TestSignals.Changed.class, onB);
+
+		handler.handle(signal("/a", "Changed", "one"), null);
+
+		assert onA.received.size() == 1 : "Listener on /a did not receive signal";
+		assert onB.received.isEmpty() : "Listener on /b received signal for /a";
+	}
+
+	public void testSharedDecode()
+		throws Exception
+	{
+		SignalMessageHandler handler = new SignalMessageHandler((DBus) null, Endian.BIG);
+		Collector<TestSignals.Changed> any = new Collector<TestSignals.Changed>();
+		Collector<TestSignals.Changed> onA = new Collector<TestSignals.Changed>();
+		handler.addListener(TestSignals.Changed.class, any);
+		handler.addListener("/a", TestSignals.Changed.class, onA);
+
+		handler.handle(signal("/a", "Changed", "one"), null);
+
+		assert any.received.size() == 1 && onA.received.size() == 1;
+		assert any.received.get(0) == onA.received.get(0) : "Signal was decoded more than once";
+	}
+
+	public void testRemove()
+		throws Exception
+	{
+		SignalMessageHandler handler = new SignalMessageHandler((DBus) null, Endian.BIG);
+		Collector<TestSignals.Changed> c = new Collector<TestSignals.Changed>();
+		handler.addListener("/a", TestSignals.Changed.class, c);
+		handler.removeListener((String) null, TestSignals.Changed.class, c);
+
+		handler.handle(signal("/a", "Changed", "one"), null);
+
+		assert c.received.isEmpty() : "Removed listener received signal";
+	}
+	
+	public void testArgAndNamespaceFilter()
+		throws Exception
+	{
+		SignalMessageHandler handler = new SignalMessageHandler((DBus) null, Endian.BIG);
+		Collector<TestSignals.Changed> c = new Collector<TestSignals.Changed>();
+		MatchRule rule = new MatchRule()
+			.withPathNamespace("/a")
+			.withArg(0, "one");
+		handler.addListener(rule, TestSignals.Changed.class, c);
+		
+		handler.handle(signal("/a/b", "Changed", "one"), null);
+		handler.handle(signal("/a/b", "Changed", "two"), null);
+		handler.handle(signal("/ab", "Changed", "one"), null);
+		
+		assert c.received.size() == 1 : "Expected one signal, got " + c.received;
+	}
+
+	private Message signal(String path, String member, String value)
+		throws IOException
+	{
+		Signature sig = Signature.parse("s");
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DBusOutputStream dbusOut = new DBusOutputStream(out);
+		Marshalling.serialize(sig, new Object[] { value }, dbusOut);
+
+		Message msg = new Message(Endian.BIG, Message.TYPE_SIGNAL,
+			Message.FLAG_NO_REPLY_EXPECTED, 1, out.toByteArray());
+		msg.addField(Message.FIELD_PATH, new ObjectPath(path));
+		msg.addField(Message.FIELD_INTERFACE, "se.l4.sofa.dbus.Test");
+		msg.addField(Message.FIELD_MEMBER, member);
+		msg.addField(Message.FIELD_SIGNATURE, sig);
+
+		return msg;
+	}
+
+	private static class Collector<T extends DBusSignal>
+		implements SignalListener<T>
+	{
+		private final List<T> received = new ArrayList<T>();
+
+		public void signalReceived(T signal)
+		{
+			received.add(signal);
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package se.l4.sofa.dbus.relay;
+
+import org.testng.annotations.Test;
+
+import se.l4.sofa.dbus.BusAddress;
+import se.l4.sofa.dbus.BusConnection;
+import se.l4.sofa.dbus.daemon.BusDaemon;
+import se.l4.sofa.dbus.daemon.BusDaemonTest.Echo;
+
+@Test
+public class BusRelayTest
+{
+	private static final String[] ANONYMOUS = { "ANONYMOUS" };
+	
+	public void testRelay()
+		throws Exception
+	{
+		String bus = "memory:name=relay-test-" + System.nanoTime();
+		BusDaemon daemon = new BusDaemon(bus);
+		daemon.start();
+		
+		BusRelay relay = new BusRelay(new BusAddress("tcp:host=localhost,port=0"), ANONYMOUS, null,
+			new BusAddress(bus), ANONYMOUS, null);
+		relay.start();
+		try
+		{
+			BusAddress address = new BusAddress("tcp:host=localhost,port=" + relay.getLocalPort());
+			
+			// One peer through the relay, one directly on the bus
+			BusConnection remote = new BusConnection(address, ANONYMOUS, null);
+			remote.connect();
+			BusConnection local = new BusConnection(new BusAddress(bus), ANONYMOUS, null);
+			local.connect();
+			
+			assert remote.getFirstName().startsWith(":1.");
+			assert relay.getPeerCount() == 1;
+			
+			local.getDBus().requestName("se.l4.sofa.Echo", 0);
+			local.export("/echo", new Echo()
+			{
+				public String echo(String value)
+				{
+					return value;
+				}
+			});
+			
+			Echo echo = remote.get("se.l4.sofa.Echo", "/echo", Echo.class);
+			assert "relayed".equals(echo.echo("relayed"));
+			
+			assert remote.getFirstName().equals(local.getDBus().getNameOwner(remote.getFirstName()));
+			assert relay.getUpstreamMessages() > 0 && relay.getPeerMessages() > 0;
+		}
+		finally
+		{
+			relay.close();
+			daemon.close();
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package se.l4.sofa.dbus.spi;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import se.l4.sofa.dbus.BusAddress;
+import se.l4.sofa.dbus.DBusException;
+import se.l4.sofa.dbus.DBusInterface;
+import se.l4.sofa.dbus.Name;
+import se.l4.sofa.dbus.PeerConnection;
+import se.l4.sofa.dbus.io.DBusServer;
+
+@Test
+public class TracingTest
+{
+	@Name("se.l4.sofa.dbus.Echo")
+	public interface Echo
+		extends DBusInterface
+	{
+		@Name("Echo")
+		String echo(String value)
+			throws DBusException;
+	}
+	
+	/** Tracer that counts ended traces per kind. */
+	private static class CountingTracer
+		implements Tracer
+	{
+		private final Map<Trace.Kind, Integer> ended;
+		
+		public CountingTracer()
+		{
+			ended = new EnumMap<Trace.Kind, Integer>(Trace.Kind.class);
+		}
+		
+		public Trace begin(final Trace.Kind kind)
+		{
+			return new Trace()
+			{
+				public void setSize(int size)
+				{
+				}
+				
+				public void setDetail(String detail)
+				{
+				}
+				
+				public void end(Message message)
+				{
+					synchronized(ended)
+					{
+						Integer count = ended.get(kind);
+						ended.put(kind, count == null ? 1 : count + 1);
+					}
+				}
+			};
+		}
+		
+		public int get(Trace.Kind kind)
+		{
+			synchronized(ended)
+			{
+				Integer count = ended.get(kind);
+				return count == null ? 0 : count;
+			}
+		}
+	}
+	
+	public void testNotTracedByDefault()
+	{
+		assert Tracing.getTracer() == null;
+		assert Tracing.begin(Trace.Kind.HANDLER) == null;
+	}
+	
+	public void testCallIsTraced()
+		throws Exception
+	{
+		String[] mechanisms = { "ANONYMOUS" };
+		CountingTracer tracer = new CountingTracer();
+		
+		PeerConnection server = new PeerConnection(
+			new BusAddress("tcp:host=localhost,port=0,listen=true"), mechanisms, null);
+		server.connect();
+		
+		DBusServer listening = (DBusServer) server.getConnection();
+		try
+		{
+			server.export("/echo", new Echo()
+			{
+				public String echo(String value)
+				{
+					return value;
+				}
+			});
+			
+			PeerConnection client = new PeerConnection(
+				new BusAddress("tcp:host=localhost,port=" + listening.getLocalPort()), mechanisms, null);
+			client.connect();
+			
+			Echo echo = client.get(null, "/echo", Echo.class);
+			
+			Tracing.setTracer(tracer);
+			assert "traced".equals(echo.echo("traced"));
+			
+			// Writing the reply and handling it may end after the call returns
+			long deadline = System.currentTimeMillis() + 5000;
+			while((tracer.get(Trace.Kind.HANDLER) < 2 || tracer.get(Trace.Kind.MESSAGE_WRITTEN) < 2)
+				&& System.currentTimeMillis() < deadline)
+			{
+				Thread.sleep(10);
+			}
+		}
+		finally
+		{
+			Tracing.setTracer(null);
+			listening.close();
+		}
+		
+		for(Trace.Kind kind : Trace.Kind.values())
+		{
+			assert tracer.get(kind) > 0 : kind + " was not traced";
+		}
+		
+		assert tracer.get(Trace.Kind.REPLY_WAIT) == 1;
+		assert tracer.get(Trace.Kind.MESSAGE_WRITTEN) == 2;
+		assert tracer.get(Trace.Kind.MESSAGE_READ) == 2;
+	}
+}